@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2016. The Android Open Source Project.
+ *
+ *          yinglovezhuzhu@gmail.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *           http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.opensource.videoplayer.benchmark;
+
+import com.opensource.videoplayer.downloader.ChunkCopier;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 下载数据读写循环的基准测试：{@link ChunkCopier}把数据流写入文件，比较不同的缓存大小、普通/NIO方式、
+ * 是否计算校验值（按默认的1MB校验块）；每次操作复制{@link #DATA_SIZE}字节，数据流每次最多返回{@link #READ_SIZE}字节，模拟网络连接
+ * Created by yinglovezhuzhu@gmail.com on 2017/2/10.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class ChunkCopyBenchmark {
+
+    private static final int DATA_SIZE = 8 * 1024 * 1024;
+
+    /** 数据流每次读取最多返回的长度，接近socket一次读取的数据量 **/
+    private static final int READ_SIZE = 16 * 1024;
+
+    @Param({"4096", "16384", "65536", "262144"})
+    public int bufferSize;
+
+    @Param({"0", "1048576"})
+    public int checksumBlockSize;
+
+    @Param({"false", "true"})
+    public boolean nio;
+
+    private byte[] mData;
+    private File mFile;
+    private RandomAccessFile mRaf;
+    private ChunkCopier mCopier;
+
+    private final ChunkCopier.Callback mCallback = new ChunkCopier.Callback() {
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+        @Override
+        public int onChunkWritten(int position, int count, int crc) {
+            return DATA_SIZE - position - count;
+        }
+    };
+
+    @Setup
+    public void setUp() throws IOException {
+        mData = new byte[DATA_SIZE];
+        new Random(0).nextBytes(mData);
+        mFile = File.createTempFile("chunk", ".bin");
+        mRaf = new RandomAccessFile(mFile, "rw");
+        mRaf.setLength(DATA_SIZE);
+        mCopier = new ChunkCopier(nio, bufferSize);
+        mCopier.setChecksumBlockSize(checksumBlockSize);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        mRaf.close();
+        mFile.delete();
+    }
+
+    @Benchmark
+    public int copy() throws IOException {
+        return mCopier.copy(new NetworkLikeInputStream(mData, READ_SIZE), mRaf, 0, DATA_SIZE, mCallback);
+    }
+
+    /**
+     * 每次读取最多返回指定长度的数据流，剩余的数据都作为已经可以读取的数据
+     */
+    private static class NetworkLikeInputStream extends InputStream {
+
+        private final byte[] mData;
+        private final int mReadSize;
+        private int mPosition = 0;
+
+        NetworkLikeInputStream(byte[] data, int readSize) {
+            this.mData = data;
+            this.mReadSize = readSize;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return mPosition < mData.length ? mData[mPosition++] & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (mPosition >= mData.length) {
+                return -1;
+            }
+            int count = Math.min(Math.min(length, mReadSize), mData.length - mPosition);
+            System.arraycopy(mData, mPosition, buffer, offset, count);
+            mPosition += count;
+            return count;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return mData.length - mPosition;
+        }
+    }
+}
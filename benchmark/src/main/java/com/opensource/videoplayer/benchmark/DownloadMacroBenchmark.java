@@ -0,0 +1,686 @@
+/*
+ * Copyright (C) 2016. The Android Open Source Project.
+ *
+ *          yinglovezhuzhu@gmail.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *           http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.opensource.videoplayer.benchmark;
+
+import com.opensource.videoplayer.downloader.BlockChecksums;
+import com.opensource.videoplayer.downloader.BufferSizer;
+import com.opensource.videoplayer.downloader.ChunkCopier;
+import com.opensource.videoplayer.downloader.Crc32c;
+import com.opensource.videoplayer.downloader.DownloadLog;
+import com.opensource.videoplayer.downloader.HttpResponseException;
+import com.opensource.videoplayer.downloader.ProgressCheckpointer;
+import com.opensource.videoplayer.downloader.RangeSet;
+import com.opensource.videoplayer.downloader.RetryPolicy;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * 下载的宏基准测试：通过{@link OriginServer}在固定的网络条件下同时下载多个文件，
+ * 报告总吞吐量、首字节时间（TTFB）和断点续传的正确性<br>
+ * 下载过程和{@link com.opensource.videoplayer.downloader.Downloader}相同，使用同样的引擎代码：
+ * 第一个请求从文件开头开始并获取文件长度，之后按连接数分段并行下载，数据由{@link ChunkCopier}写入文件并计算分块校验值，
+ * 已下载区间记录在{@link DownloadLog}中，由{@link ProgressCheckpointer}保存到SQLite，出错按{@link RetryPolicy}重试；
+ * 服务器不支持Range请求时只能用一个连接从头下载<br>
+ * 每个文件下载到指定比例时停止（模拟进程被杀死），从数据库读取保存的进度后继续下载，
+ * 完成后逐字节比较文件内容，并检查每一块的校验值<br>
+ * 运行：./gradlew :benchmark:macroBenchmark -Pmacro.args="--files=8 --size=16m --link=4m --reset-every=5"
+ * Created by yinglovezhuzhu@gmail.com on 2017/2/12.
+ */
+public class DownloadMacroBenchmark {
+
+    private static final int CONNECT_TIMEOUT = 6 * 1000;
+
+    private static final int READ_TIMEOUT = 15 * 1000;
+
+    private final Options mOptions;
+    private OriginServer mServer;
+    private JdbcProgressStore mStore;
+
+    public DownloadMacroBenchmark(Options options) {
+        this.mOptions = options;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = Options.parse(args);
+        String result = new DownloadMacroBenchmark(options).run();
+        System.out.println(result);
+        if (null != options.output) {
+            File parent = options.output.getParentFile();
+            if (null != parent && !parent.exists()) {
+                parent.mkdirs();
+            }
+            FileOutputStream out = new FileOutputStream(options.output);
+            try {
+                out.write(result.getBytes("UTF-8"));
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    /**
+     * 执行一次测试
+     * @return JSON格式的结果
+     * @throws Exception 服务器或者数据库启动失败
+     */
+    public String run() throws Exception {
+        File workDir = File.createTempFile("macro", "");
+        workDir.delete();
+        workDir.mkdirs();
+        mServer = new OriginServer();
+        mServer.setLinkBandwidth(mOptions.linkBandwidth);
+        mServer.setConnectionBandwidth(mOptions.connectionBandwidth);
+        mServer.setLatency(mOptions.latency);
+        mServer.setFirstByteDelay(mOptions.firstByteDelay);
+        mServer.setIgnoreRange(mOptions.ignoreRange);
+        mServer.setOmitContentLength(mOptions.omitContentLength);
+        mServer.setConnectionReset(mOptions.resetEvery, mOptions.resetAfter);
+        mServer.start();
+        mStore = new JdbcProgressStore(new File(workDir, "downloadVideo.db"), false);
+
+        List<FileDownload> downloads = new ArrayList<FileDownload>();
+        for (int i = 0; i < mOptions.files; i++) {
+            String path = "/video" + i + ".mp4";
+            byte[] data = OriginServer.generate(mOptions.fileSize, i);
+            mServer.addFile(path, data);
+            downloads.add(new FileDownload(mServer.getUrl(path), data, new File(workDir, "video" + i + ".mp4")));
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(mOptions.files);
+        long startTime = System.nanoTime();
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        for (FileDownload download : downloads) {
+            futures.add(executor.submit(download));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        long wallMs = (System.nanoTime() - startTime) / 1000000L;
+        executor.shutdown();
+        mServer.stop();
+        mStore.close();
+        delete(workDir);
+        return format(downloads, wallMs);
+    }
+
+    private String format(List<FileDownload> downloads, long wallMs) {
+        List<Long> ttfbs = new ArrayList<Long>();
+        int correct = 0;
+        int retries = 0;
+        StringBuilder files = new StringBuilder();
+        for (FileDownload download : downloads) {
+            if (download.mTtfbMs >= 0) {
+                ttfbs.add(download.mTtfbMs);
+            }
+            if (download.mCorrect) {
+                correct++;
+            }
+            retries += download.mRetries;
+            if (files.length() > 0) {
+                files.append(',');
+            }
+            files.append(download.toJson());
+        }
+        Collections.sort(ttfbs);
+        long totalBytes = (long) mOptions.fileSize * mOptions.files;
+        StringBuilder sb = new StringBuilder(512);
+        sb.append("{\"files\":").append(mOptions.files);
+        sb.append(",\"fileSize\":").append(mOptions.fileSize);
+        sb.append(",\"connections\":").append(mOptions.connections);
+        sb.append(",\"nio\":").append(mOptions.nio);
+        sb.append(",\"conditions\":{\"link\":").append(mOptions.linkBandwidth);
+        sb.append(",\"connection\":").append(mOptions.connectionBandwidth);
+        sb.append(",\"latencyMs\":").append(mOptions.latency);
+        sb.append(",\"firstByteDelayMs\":").append(mOptions.firstByteDelay);
+        sb.append(",\"ignoreRange\":").append(mOptions.ignoreRange);
+        sb.append(",\"omitContentLength\":").append(mOptions.omitContentLength);
+        sb.append(",\"resetEvery\":").append(mOptions.resetEvery);
+        sb.append(",\"resetAfter\":").append(mOptions.resetAfter);
+        sb.append(",\"interruptAt\":").append(mOptions.interruptAt).append('}');
+        sb.append(",\"wallMs\":").append(wallMs);
+        sb.append(",\"throughputBps\":").append(wallMs > 0 ? totalBytes * 8000 / wallMs : 0);
+        sb.append(",\"ttfbMsP50\":").append(ttfbs.isEmpty() ? -1 : ttfbs.get(ttfbs.size() / 2));
+        sb.append(",\"ttfbMsMax\":").append(ttfbs.isEmpty() ? -1 : ttfbs.get(ttfbs.size() - 1));
+        sb.append(",\"retries\":").append(retries);
+        sb.append(",\"serverRequests\":").append(mServer.getRequestCount());
+        sb.append(",\"serverResets\":").append(mServer.getResetCount());
+        sb.append(",\"bytesSent\":").append(mServer.getBytesSent());
+        sb.append(",\"correctFiles\":").append(correct);
+        sb.append(",\"results\":[").append(files).append("]}");
+        return sb.toString();
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (null != children) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * 服务器对从中间开始的Range请求返回了200，只能从头下载
+     */
+    private static class RangeNotSupportedException extends IOException {
+        RangeNotSupportedException() {
+            super("Range not supported");
+        }
+    }
+
+    /**
+     * 一个打开的响应
+     */
+    private static class Response {
+        HttpURLConnection conn;
+        InputStream in;
+        boolean partial;
+        int totalSize;
+
+        void close() {
+            try {
+                in.close();
+            } catch (IOException e) {
+                // 连接已经断开
+            }
+            conn.disconnect();
+        }
+    }
+
+    /**
+     * 一个文件的下载，先下载到指定比例后停止，再从保存的进度继续下载，最后检查内容
+     */
+    private class FileDownload implements Runnable {
+
+        private final String mUrl;
+        private final byte[] mData;
+        private final File mFile;
+        private final RetryPolicy mRetryPolicy = new RetryPolicy();
+        private final BufferSizer mBufferSizer = new BufferSizer(BufferSizer.DEFAULT_MIN_SIZE,
+                BufferSizer.DEFAULT_MAX_SIZE, 1024 * 64);
+
+        private DownloadLog mLog;
+        private ProgressCheckpointer mCheckpointer;
+        private volatile int mStopAt = Integer.MAX_VALUE;
+        private long mStartTime;
+        private volatile long mTtfbMs = -1;
+        private volatile int mRetries = 0;
+        private int mResumedFrom = -1;
+        private boolean mRestarted = false;
+        private long mDurationMs;
+        private boolean mCorrect = false;
+        private int mBadBlocks = 0;
+        private String mError = null;
+
+        FileDownload(String url, byte[] data, File file) {
+            this.mUrl = url;
+            this.mData = data;
+            this.mFile = file;
+        }
+
+        @Override
+        public void run() {
+            mStartTime = System.nanoTime();
+            try {
+                mLog = new DownloadLog(mUrl, 0, 0, mFile.getPath());
+                mStore.createLog(mLog);
+                if (mOptions.interruptAt > 0 && mOptions.interruptAt < 1) {
+                    mStopAt = (int) (mData.length * mOptions.interruptAt);
+                    download();
+                    // 丢弃内存中的进度，只使用已经保存的进度
+                    mLog = mStore.readLog(mUrl);
+                    mResumedFrom = mLog.getDownloadedSize();
+                    mStopAt = Integer.MAX_VALUE;
+                }
+                download();
+                mDurationMs = (System.nanoTime() - mStartTime) / 1000000L;
+                verify();
+            } catch (Exception e) {
+                mDurationMs = (System.nanoTime() - mStartTime) / 1000000L;
+                mError = e.toString();
+            }
+        }
+
+        /**
+         * 下载没有下载的部分，直到下载完成或者达到停止的位置，结束时保存进度
+         */
+        private void download() throws IOException, InterruptedException {
+            mCheckpointer = new ProgressCheckpointer(mStore, mLog, mFile,
+                    ProgressCheckpointer.DEFAULT_BYTES_INTERVAL, ProgressCheckpointer.DEFAULT_TIME_INTERVAL);
+            try {
+                if (mLog.getTotalSize() <= 0) {
+                    if (mLog.getDownloadedSize() > 0) {
+                        // 不知道文件长度（没有Content-Length）的下载不能续传，从头下载
+                        resetLog();
+                    }
+                    // 第一个请求从文件开头开始，同时获取文件长度
+                    Response response = openWithRetry(0, -1);
+                    if (!response.partial) {
+                        downloadAll(response);
+                        return;
+                    }
+                    setTotalSize(response.totalSize);
+                    try {
+                        copy(response, 0, getSegmentEnd(0));
+                    } catch (IOException e) {
+                        // 这一段由分段下载继续
+                        onFailure(e, 0);
+                    } finally {
+                        response.close();
+                    }
+                }
+                try {
+                    downloadSegments();
+                } catch (RangeNotSupportedException e) {
+                    // 服务器不再支持Range请求，从头下载
+                    resetLog();
+                    downloadAll(openWithRetry(0, -1));
+                }
+            } finally {
+                mCheckpointer.flush();
+            }
+        }
+
+        /**
+         * 服务器不支持Range请求，用一个连接从头下载整个文件，出错后重新从头开始
+         * @param response 从文件开头开始的响应
+         */
+        private void downloadAll(Response response) throws IOException, InterruptedException {
+            int failures = 0;
+            while (true) {
+                try {
+                    int totalSize = response.totalSize > 0 ? response.totalSize : mLog.getTotalSize();
+                    int written = copy(response, 0, totalSize > 0 ? totalSize : Integer.MAX_VALUE);
+                    if (totalSize <= 0 && !isStopped()) {
+                        // 没有Content-Length，数据流结束的位置就是文件长度
+                        totalSize = written;
+                    }
+                    if (totalSize > 0) {
+                        setTotalSize(totalSize);
+                    }
+                    if (isStopped() || (totalSize > 0 && isCompleted())) {
+                        return;
+                    }
+                    throw new IOException("Stream ended early");
+                } catch (IOException e) {
+                    failures = onFailure(e, failures);
+                } finally {
+                    response.close();
+                }
+                // 重新从头写入，之前记录的区间和校验值作废
+                clearLog();
+                response = openWithRetry(0, -1);
+            }
+        }
+
+        /**
+         * 按连接数分段，每段一个线程下载其中没有下载的区间
+         */
+        private void downloadSegments() throws IOException, InterruptedException {
+            final int count = mOptions.connections;
+            final IOException[] errors = new IOException[count];
+            Thread[] threads = new Thread[count];
+            for (int i = 0; i < count; i++) {
+                final int index = i;
+                threads[i] = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            downloadSegment(getSegmentStart(index), getSegmentEnd(index));
+                        } catch (IOException e) {
+                            errors[index] = e;
+                        } catch (InterruptedException e) {
+                            errors[index] = new IOException("Interrupted");
+                        }
+                    }
+                }, "MacroBenchmark-segment");
+                threads[i].start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            for (IOException error : errors) {
+                if (error instanceof RangeNotSupportedException) {
+                    throw error;
+                }
+            }
+            for (IOException error : errors) {
+                if (null != error) {
+                    throw error;
+                }
+            }
+        }
+
+        private void downloadSegment(int start, int end) throws IOException, InterruptedException {
+            int failures = 0;
+            while (!isStopped()) {
+                int[] missing;
+                synchronized (mLog) {
+                    missing = mLog.getDownloadedRanges().nextMissingRange(start, end);
+                }
+                if (null == missing) {
+                    return;
+                }
+                Response response = openWithRetry(missing[0], missing[1]);
+                try {
+                    if (copy(response, missing[0], missing[1]) > 0) {
+                        failures = 0;
+                    }
+                } catch (IOException e) {
+                    failures = onFailure(e, failures);
+                } finally {
+                    response.close();
+                }
+            }
+        }
+
+        /**
+         * 把响应的数据写入文件
+         * @param start 开始位置
+         * @param end 结束位置（不包含）
+         * @return 写入的长度
+         */
+        private int copy(Response response, int start, final int end) throws IOException {
+            ChunkCopier copier = new ChunkCopier(mOptions.nio, mBufferSizer);
+            copier.setChecksumBlockSize(mLog.getBlockChecksums().getBlockSize());
+            RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+            try {
+                return copier.copy(response.in, file, start, end - start, new ChunkCopier.Callback() {
+                    @Override
+                    public boolean isCancelled() {
+                        return isStopped();
+                    }
+
+                    @Override
+                    public int onChunkWritten(int position, int count, int crc) {
+                        if (mTtfbMs < 0) {
+                            mTtfbMs = (System.nanoTime() - mStartTime) / 1000000L;
+                        }
+                        synchronized (mLog) {
+                            mLog.addDownloadedRange(position, position + count, crc);
+                        }
+                        mCheckpointer.onBytesWritten(count);
+                        return end - position - count;
+                    }
+                });
+            } finally {
+                file.close();
+            }
+        }
+
+        private Response openWithRetry(int start, int end) throws IOException, InterruptedException {
+            int failures = 0;
+            while (true) {
+                try {
+                    return open(start, end);
+                } catch (IOException e) {
+                    failures = onFailure(e, failures);
+                }
+            }
+        }
+
+        /**
+         * 打开一个Range请求，和Downloader一样只接受206，或者从文件开头开始的200
+         * @param end 结束位置（不包含），小于等于0的时候请求到文件结尾
+         */
+        private Response open(int start, int end) throws IOException {
+            HttpURLConnection conn = (HttpURLConnection) new URL(mUrl).openConnection();
+            conn.setConnectTimeout(CONNECT_TIMEOUT);
+            conn.setReadTimeout(READ_TIMEOUT);
+            conn.setRequestProperty("Range", "bytes=" + start + "-" + (end > 0 ? String.valueOf(end - 1) : ""));
+            int code = conn.getResponseCode();
+            Response response = new Response();
+            response.conn = conn;
+            response.partial = code == HttpURLConnection.HTTP_PARTIAL;
+            if (response.partial) {
+                String contentRange = conn.getHeaderField("Content-Range");
+                int index = null == contentRange ? -1 : contentRange.lastIndexOf('/');
+                response.totalSize = index < 0 ? -1 : Integer.parseInt(contentRange.substring(index + 1).trim());
+            } else if (code == HttpURLConnection.HTTP_OK) {
+                if (start > 0) {
+                    conn.disconnect();
+                    throw new RangeNotSupportedException();
+                }
+                response.totalSize = conn.getContentLength();
+            } else {
+                conn.disconnect();
+                throw new HttpResponseException(code, "server response error, response code:" + code);
+            }
+            response.in = conn.getInputStream();
+            return response;
+        }
+
+        /**
+         * 按重试策略处理错误，可以重试的时候等待后返回
+         * @param failures 之前连续失败的次数
+         * @return 包括这一次的连续失败次数
+         * @throws IOException 不能重试的错误或者超过了重试次数
+         */
+        private int onFailure(IOException e, int failures) throws IOException, InterruptedException {
+            if (isStopped()) {
+                return failures;
+            }
+            failures++;
+            if (e instanceof RangeNotSupportedException || !mRetryPolicy.isRetryable(e)
+                    || failures > mRetryPolicy.getMaxRetries()) {
+                throw e;
+            }
+            synchronized (this) {
+                mRetries++;
+            }
+            Thread.sleep(mRetryPolicy.getDelay(failures));
+            return failures;
+        }
+
+        /**
+         * 续传失败，清除已经下载的区间和校验值，从头下载
+         */
+        private void resetLog() {
+            clearLog();
+            mRestarted = true;
+        }
+
+        private void clearLog() {
+            synchronized (mLog) {
+                mLog.setDownloadedRanges(new RangeSet());
+                mLog.setBlockChecksums(new BlockChecksums());
+                mLog.setDownloadedSize(0);
+            }
+        }
+
+        private boolean isStopped() {
+            synchronized (mLog) {
+                return mLog.getDownloadedSize() >= mStopAt;
+            }
+        }
+
+        private boolean isCompleted() {
+            synchronized (mLog) {
+                return mLog.getTotalSize() > 0 && mLog.getDownloadedSize() >= mLog.getTotalSize();
+            }
+        }
+
+        private void setTotalSize(int totalSize) throws IOException {
+            synchronized (mLog) {
+                mLog.setTotalSize(totalSize);
+            }
+            RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+            try {
+                file.setLength(totalSize);
+            } finally {
+                file.close();
+            }
+        }
+
+        private int getSegmentStart(int index) {
+            return (int) ((long) mLog.getTotalSize() * index / mOptions.connections);
+        }
+
+        private int getSegmentEnd(int index) {
+            return getSegmentStart(index + 1);
+        }
+
+        /**
+         * 逐字节比较文件内容，并用文件内容检查记录的每一块校验值
+         */
+        private void verify() throws IOException {
+            byte[] content = new byte[(int) mFile.length()];
+            FileInputStream in = new FileInputStream(mFile);
+            try {
+                int offset = 0;
+                int count;
+                while (offset < content.length && (count = in.read(content, offset, content.length - offset)) > 0) {
+                    offset += count;
+                }
+            } finally {
+                in.close();
+            }
+            BlockChecksums checksums = mLog.getBlockChecksums();
+            int blockSize = checksums.getBlockSize();
+            int totalSize = mLog.getTotalSize();
+            for (int block = 0; (long) block * blockSize < totalSize; block++) {
+                int start = block * blockSize;
+                int length = Math.min(blockSize, totalSize - start);
+                long expected = Crc32c.update(0, mData, start, length) & 0xffffffffL;
+                if (checksums.getBlockCrc(block, totalSize) != expected) {
+                    mBadBlocks++;
+                }
+            }
+            mCorrect = isCompleted() && Arrays.equals(content, mData) && 0 == mBadBlocks;
+        }
+
+        String toJson() {
+            StringBuilder sb = new StringBuilder(256);
+            sb.append("{\"url\":\"").append(mUrl).append('"');
+            sb.append(",\"size\":").append(mData.length);
+            sb.append(",\"ttfbMs\":").append(mTtfbMs);
+            sb.append(",\"durationMs\":").append(mDurationMs);
+            sb.append(",\"resumedFrom\":").append(mResumedFrom);
+            sb.append(",\"restarted\":").append(mRestarted);
+            sb.append(",\"retries\":").append(mRetries);
+            sb.append(",\"badBlocks\":").append(mBadBlocks);
+            sb.append(",\"correct\":").append(mCorrect);
+            sb.append(",\"error\":");
+            if (null == mError) {
+                sb.append("null");
+            } else {
+                sb.append('"').append(mError.replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+            }
+            sb.append('}');
+            return sb.toString();
+        }
+    }
+
+    /**
+     * 测试参数，命令行格式为--name=value，大小可以使用k、m后缀
+     */
+    public static class Options {
+        public int files = 4;
+        public int fileSize = 8 * 1024 * 1024;
+        public int connections = 3;
+        public long linkBandwidth = 0;
+        public long connectionBandwidth = 0;
+        public long latency = 0;
+        public long firstByteDelay = 0;
+        public boolean ignoreRange = false;
+        public boolean omitContentLength = false;
+        public int resetEvery = 0;
+        public int resetAfter = 1024 * 1024;
+        public double interruptAt = 0.5;
+        public boolean nio = false;
+        public File output = null;
+
+        public static Options parse(String[] args) {
+            Options options = new Options();
+            for (String arg : args) {
+                if (!arg.startsWith("--")) {
+                    throw new IllegalArgumentException("Unknown argument: " + arg);
+                }
+                int index = arg.indexOf('=');
+                String name = index < 0 ? arg.substring(2) : arg.substring(2, index);
+                String value = index < 0 ? "true" : arg.substring(index + 1);
+                if ("files".equals(name)) {
+                    options.files = Integer.parseInt(value);
+                } else if ("size".equals(name)) {
+                    options.fileSize = (int) parseSize(value);
+                } else if ("connections".equals(name)) {
+                    options.connections = Math.max(1, Integer.parseInt(value));
+                } else if ("link".equals(name)) {
+                    options.linkBandwidth = parseSize(value);
+                } else if ("connection".equals(name)) {
+                    options.connectionBandwidth = parseSize(value);
+                } else if ("latency".equals(name)) {
+                    options.latency = Long.parseLong(value);
+                } else if ("first-byte-delay".equals(name)) {
+                    options.firstByteDelay = Long.parseLong(value);
+                } else if ("ignore-range".equals(name)) {
+                    options.ignoreRange = Boolean.parseBoolean(value);
+                } else if ("no-content-length".equals(name)) {
+                    options.omitContentLength = Boolean.parseBoolean(value);
+                } else if ("reset-every".equals(name)) {
+                    options.resetEvery = Integer.parseInt(value);
+                } else if ("reset-after".equals(name)) {
+                    options.resetAfter = (int) parseSize(value);
+                } else if ("interrupt-at".equals(name)) {
+                    options.interruptAt = Double.parseDouble(value);
+                } else if ("nio".equals(name)) {
+                    options.nio = Boolean.parseBoolean(value);
+                } else if ("output".equals(name)) {
+                    options.output = new File(value);
+                } else {
+                    throw new IllegalArgumentException("Unknown argument: " + arg);
+                }
+            }
+            return options;
+        }
+
+        /**
+         * 解析大小或者速度，例如512k、16m，单位为字节（每秒字节数）
+         */
+        private static long parseSize(String value) {
+            String lower = value.trim().toLowerCase(Locale.ENGLISH);
+            long unit = 1;
+            if (lower.endsWith("k")) {
+                unit = 1024;
+            } else if (lower.endsWith("m")) {
+                unit = 1024 * 1024;
+            }
+            if (unit > 1) {
+                lower = lower.substring(0, lower.length() - 1);
+            }
+            return (long) (Double.parseDouble(lower) * unit);
+        }
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2016. The Android Open Source Project.
+ *
+ *          yinglovezhuzhu@gmail.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *           http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.opensource.videoplayer.benchmark;
+
+import com.opensource.videoplayer.downloader.BlockChecksums;
+import com.opensource.videoplayer.downloader.DownloadLog;
+import com.opensource.videoplayer.downloader.ProgressStore;
+import com.opensource.videoplayer.downloader.RangeSet;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * JVM中使用的下载进度保存，通过JDBC写入SQLite，表结构和更新的字段与
+ * {@link com.opensource.videoplayer.db.DownloadDBUtils#updateLog}相同<br>
+ * reopen为true时和以前的DownloadDBUtils一样每次更新都打开、关闭数据库并开始事务，为false时和现在的
+ * DownloadDBHelper一样使用同一个WAL模式的连接和预编译的更新语句；
+ * 所有操作都同步，多个下载共用的时候和Android的数据库一样依次执行
+ * Created by yinglovezhuzhu@gmail.com on 2017/2/10.
+ */
+public class JdbcProgressStore implements ProgressStore {
+
+    private static final String CREATE_LOG_TABLE = "CREATE TABLE IF NOT EXISTS download_log("
+            + "_id INTEGER PRIMARY KEY AUTOINCREMENT, "
+            + "url TEXT, downloaded_size INTEGER, total_size INTEGER, saved_file TEXT, end_downloaded INTEGER, "
+            + "downloaded_ranges TEXT, moov_start INTEGER, moov_end INTEGER, last_access INTEGER, "
+            + "etag TEXT, last_modified TEXT, expires INTEGER, block_checksums TEXT, content_digest TEXT)";
+
+    private static final String CREATE_URL_INDEX = "CREATE UNIQUE INDEX IF NOT EXISTS download_log_url "
+            + "ON download_log(url)";
+
+    private static final String UPDATE_LOG = "UPDATE download_log SET url = ?, downloaded_size = ?, "
+            + "total_size = ?, saved_file = ?, end_downloaded = ?, downloaded_ranges = ?, moov_start = ?, "
+            + "moov_end = ?, etag = ?, last_modified = ?, expires = ?, block_checksums = ?, content_digest = ? "
+            + "WHERE url = ?";
+
+    private final String mJdbcUrl;
+    private final boolean mReopen;
+    private Connection mConnection = null;
+    private PreparedStatement mUpdateStatement = null; // 共用连接时预编译的更新语句
+
+    /**
+     * Constructor
+     * @param dbFile 数据库文件
+     * @param reopen 是否每次更新都重新打开数据库
+     */
+    public JdbcProgressStore(File dbFile, boolean reopen) {
+        this.mJdbcUrl = "jdbc:sqlite:" + dbFile.getPath();
+        this.mReopen = reopen;
+    }
+
+    /**
+     * 创建下载日志表（和数据库版本8一样url有唯一索引）并插入一条日志，之后的更新都修改这条日志
+     * @param log 下载日志
+     * @throws SQLException 数据库出错
+     */
+    public synchronized void createLog(DownloadLog log) throws SQLException {
+        Connection conn = DriverManager.getConnection(mJdbcUrl);
+        try {
+            Statement statement = conn.createStatement();
+            statement.execute(CREATE_LOG_TABLE);
+            statement.execute(CREATE_URL_INDEX);
+            statement.close();
+            PreparedStatement insert = conn.prepareStatement("INSERT OR REPLACE INTO download_log(url) VALUES(?)");
+            insert.setString(1, log.getUrl());
+            insert.executeUpdate();
+            insert.close();
+        } finally {
+            conn.close();
+        }
+    }
+
+    /**
+     * 读取保存的下载日志，用于恢复下载
+     * @param url 下载地址
+     * @return 下载日志，没有的时候返回null
+     * @throws SQLException 数据库出错
+     */
+    public synchronized DownloadLog readLog(String url) throws SQLException {
+        Connection conn = DriverManager.getConnection(mJdbcUrl);
+        try {
+            PreparedStatement query = conn.prepareStatement("SELECT downloaded_size, total_size, saved_file, "
+                    + "downloaded_ranges, block_checksums FROM download_log WHERE url = ?");
+            query.setString(1, url);
+            ResultSet result = query.executeQuery();
+            DownloadLog log = null;
+            if (result.next()) {
+                log = new DownloadLog();
+                log.setUrl(url);
+                log.setDownloadedSize(result.getInt(1));
+                log.setTotalSize(result.getInt(2));
+                log.setSavedFile(result.getString(3));
+                log.setDownloadedRanges(RangeSet.parse(result.getString(4)));
+                log.setBlockChecksums(BlockChecksums.parse(result.getString(5), BlockChecksums.DEFAULT_BLOCK_SIZE));
+            }
+            result.close();
+            query.close();
+            return log;
+        } finally {
+            conn.close();
+        }
+    }
+
+    @Override
+    public synchronized void updateLog(DownloadLog log) {
+        try {
+            if (!mReopen) {
+                bindLog(getUpdateStatement(), log).executeUpdate();
+                return;
+            }
+            Connection conn = DriverManager.getConnection(mJdbcUrl);
+            try {
+                conn.setAutoCommit(false);
+                PreparedStatement update = bindLog(conn.prepareStatement(UPDATE_LOG), log);
+                update.executeUpdate();
+                update.close();
+                conn.commit();
+            } finally {
+                conn.close();
+            }
+        } catch (SQLException e) {
+            throw new IllegalStateException("Update log failed", e);
+        }
+    }
+
+    @Override
+    public boolean isDurable() {
+        return true;
+    }
+
+    /**
+     * 关闭使用的连接
+     */
+    public synchronized void close() {
+        if (null == mConnection) {
+            return;
+        }
+        try {
+            if (null != mUpdateStatement) {
+                mUpdateStatement.close();
+            }
+            mConnection.close();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+        mConnection = null;
+        mUpdateStatement = null;
+    }
+
+    private PreparedStatement getUpdateStatement() throws SQLException {
+        if (null == mConnection) {
+            mConnection = DriverManager.getConnection(mJdbcUrl);
+            Statement statement = mConnection.createStatement();
+            statement.execute("PRAGMA journal_mode=WAL");
+            statement.close();
+        }
+        if (null == mUpdateStatement) {
+            mUpdateStatement = mConnection.prepareStatement(UPDATE_LOG);
+        }
+        return mUpdateStatement;
+    }
+
+    private static PreparedStatement bindLog(PreparedStatement update, DownloadLog log) throws SQLException {
+        update.setString(1, log.getUrl());
+        update.setInt(2, log.getDownloadedSize());
+        update.setInt(3, log.getTotalSize());
+        update.setString(4, log.getSavedFile());
+        update.setInt(5, log.isEndDownloaded() ? 1 : 0);
+        update.setString(6, log.getDownloadedRanges().format());
+        update.setInt(7, log.getMoovStartPos());
+        update.setInt(8, log.getMoovEndPos());
+        update.setString(9, log.getEtag());
+        update.setString(10, log.getLastModified());
+        update.setLong(11, log.getExpires());
+        update.setString(12, log.getBlockChecksums().format());
+        update.setString(13, log.getContentDigest());
+        update.setString(14, log.getUrl());
+        return update;
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2016. The Android Open Source Project.
+ *
+ *          yinglovezhuzhu@gmail.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *           http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.opensource.videoplayer.benchmark;
+
+import android.net.NetworkInfo;
+
+import com.opensource.videoplayer.observer.NetworkObservable;
+import com.opensource.videoplayer.observer.NetworkObserver;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 网络状态变化分发给多个观察者的开销，{@link NetworkObservable#notifyNetworkChanged}在持有观察者列表锁的时候回调
+ * Created by yinglovezhuzhu@gmail.com on 2017/2/10.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class ObserverDispatchBenchmark {
+
+    @Param({"1", "10", "100", "1000"})
+    public int observers;
+
+    private NetworkObservable mObservable;
+
+    @Setup
+    public void setUp() {
+        mObservable = new NetworkObservable();
+        for (int i = 0; i < observers; i++) {
+            mObservable.registerObserver(new CountingObserver());
+        }
+    }
+
+    @Benchmark
+    public void notifyNetworkChanged() {
+        mObservable.notifyNetworkChanged(true, null, null);
+    }
+
+    private static class CountingObserver extends NetworkObserver {
+
+        private int mCount = 0;
+
+        @Override
+        public void onNetworkStateChanged(boolean networkConnected, NetworkInfo currentNetwork,
+                                          NetworkInfo lastNetwork) {
+            mCount++;
+        }
+    }
+}
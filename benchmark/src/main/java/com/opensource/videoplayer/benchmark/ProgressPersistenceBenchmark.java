@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2016. The Android Open Source Project.
+ *
+ *          yinglovezhuzhu@gmail.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *           http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.opensource.videoplayer.benchmark;
+
+import com.opensource.videoplayer.downloader.DownloadLog;
+import com.opensource.videoplayer.downloader.JournalProgressStore;
+import com.opensource.videoplayer.downloader.ProgressCheckpointer;
+import com.opensource.videoplayer.downloader.ProgressJournal;
+import com.opensource.videoplayer.downloader.ProgressStore;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 每次保存下载进度的开销：区间序列化、保存进度、完整的检查点（写入一块数据后同步文件并保存进度）<br>
+ * ranges为已下载区间的数量（多线程分段下载和seek会产生不连续的区间）；store为保存进度的方式：
+ * reopen和以前的DownloadDBUtils一样每次更新都打开、关闭数据库，shared使用共用的WAL连接和预编译语句，
+ * journal写入内存映射的进度日志（{@link ProgressJournal}），下载停止时才写数据库
+ * Created by yinglovezhuzhu@gmail.com on 2017/2/10.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class ProgressPersistenceBenchmark {
+
+    private static final int TOTAL_SIZE = 256 * 1024 * 1024;
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    @Param({"1", "64", "512"})
+    public int ranges;
+
+    @Param({"reopen", "shared", "journal"})
+    public String store;
+
+    private File mDir;
+    private File mFile;
+    private RandomAccessFile mRaf;
+    private DownloadLog mLog;
+    private JdbcProgressStore mDatabase;
+    private ProgressStore mStore;
+    private ProgressCheckpointer mCheckpointer;
+    private final byte[] mChunk = new byte[CHUNK_SIZE];
+    private int mChunkPosition = 0;
+
+    @Setup
+    public void setUp() throws IOException, SQLException {
+        mDir = File.createTempFile("progress", "");
+        mDir.delete();
+        mDir.mkdirs();
+        mFile = new File(mDir, "video.mp4");
+        mRaf = new RandomAccessFile(mFile, "rw");
+        mRaf.setLength(TOTAL_SIZE);
+
+        mLog = new DownloadLog();
+        mLog.setUrl("http://localhost/video.mp4");
+        mLog.setTotalSize(TOTAL_SIZE);
+        mLog.setSavedFile(mFile.getPath());
+        int step = TOTAL_SIZE / ranges / 2;
+        for (int i = 0; i < ranges; i++) {
+            mLog.addDownloadedRange(i * step * 2, i * step * 2 + step);
+        }
+        mLog.setDownloadedSize(mLog.getDownloadedRanges().getCoveredLength());
+
+        mDatabase = new JdbcProgressStore(new File(mDir, "downloadVideo.db"), "reopen".equals(store));
+        mDatabase.createLog(mLog);
+        if ("journal".equals(store)) {
+            mStore = new JournalProgressStore(new ProgressJournal(new File(mDir, "download.journal")), mDatabase);
+        } else {
+            mStore = mDatabase;
+        }
+        mCheckpointer = new ProgressCheckpointer(mStore, mLog, mFile,
+                ProgressCheckpointer.DEFAULT_BYTES_INTERVAL, ProgressCheckpointer.DEFAULT_TIME_INTERVAL);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        if (mStore instanceof JournalProgressStore) {
+            ((JournalProgressStore) mStore).close();
+        }
+        mDatabase.close();
+        mRaf.close();
+        File[] files = mDir.listFiles();
+        if (null != files) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDir.delete();
+    }
+
+    @Benchmark
+    public String formatRanges() {
+        return mLog.getDownloadedRanges().format();
+    }
+
+    @Benchmark
+    public void updateStore() {
+        mStore.updateLog(mLog.snapshot());
+    }
+
+    @Benchmark
+    public void checkpointAfterChunk() throws IOException {
+        // 检查点之前总有新写入的数据，同步文件的开销包括这些数据
+        mRaf.seek(mChunkPosition);
+        mRaf.write(mChunk);
+        mChunkPosition = (mChunkPosition + CHUNK_SIZE) % TOTAL_SIZE;
+        mCheckpointer.flush();
+    }
+}
@@ -0,0 +1,408 @@
+/*
+ * Copyright (C) 2016. The Android Open Source Project.
+ *
+ *          yinglovezhuzhu@gmail.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *           http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.opensource.videoplayer.benchmark;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * 本地回环地址上模拟视频源站的HTTP服务，用于在没有外部网络的情况下测试下载，网络条件可以重复<br>
+ * 支持Range请求（206），可以设置：总带宽和每个连接的带宽、响应延迟、第一个字节的延迟、
+ * 传输中途重置连接、忽略Range请求（总是返回200和整个文件）、不返回Content-Length<br>
+ * 只使用Java标准库的Socket，不依赖Android，在JVM和设备上都可以运行；每个请求使用一个线程，响应后关闭连接
+ * Created by yinglovezhuzhu@gmail.com on 2017/2/12.
+ */
+public class OriginServer {
+
+    private static final String HOST = "127.0.0.1";
+
+    private static final int WRITE_SIZE = 1024 * 8;
+
+    private static final Pattern RANGE_PATTERN = Pattern.compile("bytes=(\\d*)-(\\d*)");
+
+    private final Map<String, byte[]> mFiles = new HashMap<String, byte[]>();
+
+    private volatile Throttle mLinkThrottle = null;
+    private volatile long mConnectionBandwidth = 0;
+    private volatile long mLatency = 0;
+    private volatile long mFirstByteDelay = 0;
+    private volatile boolean mIgnoreRange = false;
+    private volatile boolean mOmitContentLength = false;
+    private volatile int mResetEvery = 0;
+    private volatile int mResetAfterBytes = 0;
+
+    private final AtomicInteger mRequestCount = new AtomicInteger();
+    private final AtomicInteger mResponseCount = new AtomicInteger(); // 有数据的响应数量，用于选择需要重置的连接
+    private final AtomicInteger mResetCount = new AtomicInteger();
+    private final AtomicLong mBytesSent = new AtomicLong();
+
+    private ServerSocket mServerSocket = null;
+
+    /**
+     * 生成指定长度的随机数据，同一个种子生成的数据相同
+     * @param size 长度
+     * @param seed 随机数种子
+     * @return 数据
+     */
+    public static byte[] generate(int size, long seed) {
+        byte[] data = new byte[size];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    /**
+     * 添加一个文件
+     * @param path 请求路径，以“/”开始
+     * @param data 文件内容
+     */
+    public synchronized void addFile(String path, byte[] data) {
+        mFiles.put(path, data);
+    }
+
+    private synchronized byte[] getFile(String path) {
+        return mFiles.get(path);
+    }
+
+    /**
+     * 设置所有连接共享的总带宽，模拟瓶颈链路
+     * @param bytesPerSecond 每秒字节数，小于等于0为不限制
+     */
+    public void setLinkBandwidth(long bytesPerSecond) {
+        this.mLinkThrottle = bytesPerSecond > 0 ? new Throttle(bytesPerSecond) : null;
+    }
+
+    /**
+     * 设置每个连接的带宽，模拟单个TCP连接的速度限制
+     * @param bytesPerSecond 每秒字节数，小于等于0为不限制
+     */
+    public void setConnectionBandwidth(long bytesPerSecond) {
+        this.mConnectionBandwidth = bytesPerSecond;
+    }
+
+    /**
+     * 设置响应延迟，收到请求后等待这个时长才返回响应头
+     * @param millis 延迟，单位毫秒
+     */
+    public void setLatency(long millis) {
+        this.mLatency = millis;
+    }
+
+    /**
+     * 设置第一个字节的延迟，返回响应头后等待这个时长才开始返回数据
+     * @param millis 延迟，单位毫秒
+     */
+    public void setFirstByteDelay(long millis) {
+        this.mFirstByteDelay = millis;
+    }
+
+    /**
+     * 设置是否忽略Range请求，忽略时总是返回200和整个文件，也不返回Accept-Ranges
+     * @param ignoreRange 是否忽略
+     */
+    public void setIgnoreRange(boolean ignoreRange) {
+        this.mIgnoreRange = ignoreRange;
+    }
+
+    /**
+     * 设置是否不返回Content-Length，数据在连接关闭时结束
+     * @param omitContentLength 是否不返回
+     */
+    public void setOmitContentLength(boolean omitContentLength) {
+        this.mOmitContentLength = omitContentLength;
+    }
+
+    /**
+     * 设置传输中途重置连接：每几个有数据的响应中有一个在发送指定字节数之后重置（RST）
+     * @param every 每几个响应重置一个，小于等于0为不重置
+     * @param afterBytes 重置前发送的字节数
+     */
+    public void setConnectionReset(int every, int afterBytes) {
+        this.mResetEvery = every;
+        this.mResetAfterBytes = Math.max(0, afterBytes);
+    }
+
+    /**
+     * 在随机端口上启动服务，已经启动的直接返回
+     * @return 端口
+     * @throws IOException 启动失败
+     */
+    public synchronized int start() throws IOException {
+        if (null != mServerSocket && !mServerSocket.isClosed()) {
+            return mServerSocket.getLocalPort();
+        }
+        mServerSocket = new ServerSocket(0, 64, InetAddress.getByName(HOST));
+        final ServerSocket serverSocket = mServerSocket;
+        Thread acceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!serverSocket.isClosed()) {
+                    try {
+                        final Socket socket = serverSocket.accept();
+                        Thread thread = new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                handleRequest(socket);
+                            }
+                        }, "OriginServer-request");
+                        thread.setDaemon(true);
+                        thread.start();
+                    } catch (IOException e) {
+                        if (!serverSocket.isClosed()) {
+                            e.printStackTrace();
+                        }
+                    }
+                }
+            }
+        }, "OriginServer-accept");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * 停止服务，正在处理的请求在发送下一块数据时结束
+     */
+    public synchronized void stop() {
+        if (null == mServerSocket) {
+            return;
+        }
+        try {
+            mServerSocket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        mServerSocket = null;
+    }
+
+    /**
+     * 获取文件的地址
+     * @param path 请求路径，以“/”开始
+     * @return 地址
+     */
+    public synchronized String getUrl(String path) {
+        return "http://" + HOST + ":" + (null == mServerSocket ? 0 : mServerSocket.getLocalPort()) + path;
+    }
+
+    public int getRequestCount() {
+        return mRequestCount.get();
+    }
+
+    public int getResetCount() {
+        return mResetCount.get();
+    }
+
+    public long getBytesSent() {
+        return mBytesSent.get();
+    }
+
+    private void handleRequest(Socket socket) {
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+            String requestLine = reader.readLine();
+            if (null == requestLine) {
+                return;
+            }
+            mRequestCount.incrementAndGet();
+            String[] parts = requestLine.split(" ");
+            if (parts.length < 2) {
+                writeStatus(socket.getOutputStream(), "400 Bad Request");
+                return;
+            }
+            boolean head = "HEAD".equalsIgnoreCase(parts[0]);
+            String range = null;
+            String line;
+            while (null != (line = reader.readLine()) && line.length() > 0) {
+                int index = line.indexOf(':');
+                if (index > 0 && "range".equals(line.substring(0, index).trim().toLowerCase(Locale.ENGLISH))) {
+                    range = line.substring(index + 1).trim();
+                }
+            }
+            sleep(mLatency);
+
+            OutputStream out = socket.getOutputStream();
+            byte[] data = getFile(parts[1]);
+            if (null == data) {
+                writeStatus(out, "404 Not Found");
+                return;
+            }
+            int[] bounds = mIgnoreRange ? null : parseRange(range, data.length);
+            if (null != bounds && bounds[0] > bounds[1]) {
+                out.write(("HTTP/1.1 416 Requested Range Not Satisfiable\r\nContent-Range: bytes */"
+                        + data.length + "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n").getBytes("UTF-8"));
+                out.flush();
+                return;
+            }
+            int start = null == bounds ? 0 : bounds[0];
+            int end = null == bounds ? data.length - 1 : bounds[1];
+            writeHeader(out, bounds, start, end, data.length);
+            if (head) {
+                return;
+            }
+            sleep(mFirstByteDelay);
+            writeBody(socket, out, data, start, end);
+        } catch (IOException e) {
+            // 客户端主动断开连接
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void writeHeader(OutputStream out, int[] bounds, int start, int end, int totalSize) throws IOException {
+        StringBuilder header = new StringBuilder();
+        if (null == bounds) {
+            header.append("HTTP/1.1 200 OK\r\n");
+        } else {
+            header.append("HTTP/1.1 206 Partial Content\r\n");
+            header.append("Content-Range: bytes ").append(start).append('-').append(end)
+                    .append('/').append(totalSize).append("\r\n");
+        }
+        if (!mIgnoreRange) {
+            header.append("Accept-Ranges: bytes\r\n");
+        }
+        if (!mOmitContentLength) {
+            header.append("Content-Length: ").append(end - start + 1).append("\r\n");
+        }
+        header.append("Content-Type: video/mp4\r\n");
+        header.append("Connection: close\r\n\r\n");
+        out.write(header.toString().getBytes("UTF-8"));
+    }
+
+    /**
+     * 按带宽限制发送数据，需要重置的响应发送指定字节数后重置连接
+     */
+    private void writeBody(Socket socket, OutputStream out, byte[] data, int start, int end)
+            throws IOException, InterruptedException {
+        int every = mResetEvery;
+        boolean reset = every > 0 && mResponseCount.incrementAndGet() % every == 0;
+        int resetPosition = reset ? start + mResetAfterBytes : Integer.MAX_VALUE;
+        Throttle connectionThrottle = mConnectionBandwidth > 0 ? new Throttle(mConnectionBandwidth) : null;
+        int position = start;
+        while (position <= end) {
+            if (position >= resetPosition) {
+                out.flush();
+                mResetCount.incrementAndGet();
+                // SO_LINGER为0时close发送RST，客户端读取时得到“Connection reset”
+                socket.setSoLinger(true, 0);
+                socket.close();
+                return;
+            }
+            int count = Math.min(Math.min(WRITE_SIZE, end - position + 1), resetPosition - position);
+            Throttle linkThrottle = mLinkThrottle;
+            if (null != linkThrottle) {
+                linkThrottle.acquire(count);
+            }
+            if (null != connectionThrottle) {
+                connectionThrottle.acquire(count);
+            }
+            out.write(data, position, count);
+            position += count;
+            mBytesSent.addAndGet(count);
+        }
+        out.flush();
+    }
+
+    /**
+     * 解析Range请求头
+     * @return {开始位置, 结束位置（包含）}，没有Range或者格式不支持时返回null，开始位置超出文件长度时开始位置大于结束位置
+     */
+    private static int[] parseRange(String range, int totalSize) {
+        if (null == range) {
+            return null;
+        }
+        Matcher matcher = RANGE_PATTERN.matcher(range);
+        if (!matcher.matches()) {
+            return null;
+        }
+        String startValue = matcher.group(1);
+        String endValue = matcher.group(2);
+        int start;
+        int end = totalSize - 1;
+        if (startValue.length() == 0) {
+            if (endValue.length() == 0) {
+                return null;
+            }
+            // bytes=-500，最后500个字节
+            start = Math.max(0, totalSize - Integer.parseInt(endValue));
+        } else {
+            start = Integer.parseInt(startValue);
+            if (endValue.length() > 0) {
+                end = Math.min(end, Integer.parseInt(endValue));
+            }
+        }
+        return new int[] {start, end, };
+    }
+
+    private static void writeStatus(OutputStream out, String status) throws IOException {
+        out.write(("HTTP/1.1 " + status + "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n").getBytes("UTF-8"));
+        out.flush();
+    }
+
+    private static void sleep(long millis) throws InterruptedException {
+        if (millis > 0) {
+            Thread.sleep(millis);
+        }
+    }
+
+    /**
+     * 按固定速度发放的字节配额，多个线程共用时为总速度
+     */
+    private static class Throttle {
+
+        private final long mBytesPerSecond;
+        private long mNextTime = 0; // 下一次可以发送的时间，单位纳秒
+
+        Throttle(long bytesPerSecond) {
+            this.mBytesPerSecond = bytesPerSecond;
+        }
+
+        void acquire(int bytes) throws InterruptedException {
+            long wait;
+            synchronized (this) {
+                long now = System.nanoTime();
+                if (mNextTime < now) {
+                    mNextTime = now;
+                }
+                wait = mNextTime - now;
+                mNextTime += bytes * 1000000000L / mBytesPerSecond;
+            }
+            if (wait > 0) {
+                Thread.sleep(wait / 1000000L, (int) (wait % 1000000L));
+            }
+        }
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2016. The Android Open Source Project.
+ *
+ *          yinglovezhuzhu@gmail.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *           http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.opensource.videoplayer.benchmark;
+
+import com.opensource.videoplayer.downloader.DownloadLog;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * JdbcProgressStore的测试，共用连接和每次重新打开两种方式保存的结果相同，关闭之后预编译的语句不再使用
+ * Created by yinglovezhuzhu@gmail.com on 2017/2/24.
+ */
+public class JdbcProgressStoreTest {
+
+    private static final String URL = "http://127.0.0.1/video.mp4";
+
+    private File mDbFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mDbFile = File.createTempFile("progress", ".db");
+    }
+
+    @After
+    public void tearDown() {
+        mDbFile.delete();
+        new File(mDbFile.getPath() + "-wal").delete();
+        new File(mDbFile.getPath() + "-shm").delete();
+    }
+
+    @Test
+    public void reopenMode() throws Exception {
+        checkUpdates(new JdbcProgressStore(mDbFile, true));
+    }
+
+    @Test
+    public void sharedMode() throws Exception {
+        checkUpdates(new JdbcProgressStore(mDbFile, false));
+    }
+
+    @Test
+    public void updateAfterClose() throws Exception {
+        JdbcProgressStore store = new JdbcProgressStore(mDbFile, false);
+        DownloadLog log = newLog();
+        store.createLog(log);
+        log.getDownloadedRanges().add(0, 100);
+        store.updateLog(log);
+        store.close();
+        // 关闭之后重新打开连接并重新编译语句
+        log.getDownloadedRanges().add(500, 600);
+        store.updateLog(log);
+        store.close();
+        assertEquals("0-100,500-600", store.readLog(URL).getDownloadedRanges().format());
+    }
+
+    @Test
+    public void createLogReplacesExisting() throws Exception {
+        JdbcProgressStore store = new JdbcProgressStore(mDbFile, true);
+        DownloadLog log = newLog();
+        store.createLog(log);
+        log.getDownloadedRanges().add(0, 100);
+        store.updateLog(log);
+        // url有唯一索引，再次创建替换原来的日志，不会出现两条
+        store.createLog(log);
+        assertEquals(0, store.readLog(URL).getDownloadedRanges().getCoveredLength());
+    }
+
+    private void checkUpdates(JdbcProgressStore store) throws Exception {
+        DownloadLog log = newLog();
+        store.createLog(log);
+        for (int i = 0; i < 10; i++) {
+            log.getDownloadedRanges().add(i * 100, i * 100 + 50);
+            log.setDownloadedSize(log.getDownloadedRanges().getCoveredLength());
+            store.updateLog(log);
+        }
+        store.close();
+        DownloadLog saved = store.readLog(URL);
+        assertEquals(500, saved.getDownloadedSize());
+        assertEquals(1000, saved.getTotalSize());
+        assertEquals(log.getDownloadedRanges().format(), saved.getDownloadedRanges().format());
+    }
+
+    private static DownloadLog newLog() {
+        return new DownloadLog(URL, 0, 1000, "/tmp/video.mp4");
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2016. The Android Open Source Project.
+ *
+ *          yinglovezhuzhu@gmail.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *           http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.opensource.videoplayer;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.NetworkInfo;
+
+import com.opensource.videoplayer.observer.NetworkObserver;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 网络带宽估计<br>
+ * 下载线程每读取一块数据调用一次{@link #onBytesTransferred(int)}，有下载正在进行的时间内，
+ * 每隔{@link #SAMPLE_MIN_TIME}毫秒把这段时间的总字节数换算成一个速度样本（多个连接同时下载时为总速度），
+ * 用指数加权平均得到估计值；估计值按网络类型（WIFI、MOBILE_LTE等）分别保存到SharedPreferences中，
+ * 切换网络或者下次启动的时候直接使用这种网络之前的估计值<br>
+ * {@link #getEstimatedBitrate()}只读取一个变量，可以在任何线程频繁调用
+ * Created by yinglovezhuzhu@gmail.com on 2017/1/10.
+ */
+public final class BandwidthMeter {
+
+    /** 没有估计值 **/
+    public static final long NO_ESTIMATE = -1;
+
+    private static final String PREFS_NAME = "bandwidth_meter";
+
+    /** 一个样本最少的统计时长，单位毫秒 **/
+    private static final long SAMPLE_MIN_TIME = 500;
+
+    /** 下载结束时不足统计时长的样本，至少需要这么多字节才记录 **/
+    private static final long SAMPLE_MIN_BYTES = 1024 * 64;
+
+    /** 新样本的权重 **/
+    private static final double SMOOTHING = 0.3;
+
+    private static BandwidthMeter mInstance = null;
+
+    private SharedPreferences mPreferences = null;
+
+    private final Map<String, Long> mHistory = new HashMap<String, Long>(); // 网络类型 -> 估计值（bit/s）
+
+    private String mNetworkType = "NONE";
+
+    private volatile long mEstimatedBitrate = NO_ESTIMATE;
+
+    private int mActiveTransfers = 0;
+    private long mSampleStartTime = 0;
+    private long mSampleBytes = 0;
+
+    private final NetworkObserver mNetworkObserver = new NetworkObserver() {
+        @Override
+        public void onNetworkStateChanged(boolean networkConnected, NetworkInfo currentNetwork,
+                                          NetworkInfo lastNetwork) {
+            onNetworkChanged(currentNetwork);
+        }
+    };
+
+    private BandwidthMeter() {
+
+    }
+
+    public static BandwidthMeter getInstance() {
+        synchronized (BandwidthMeter.class) {
+            if (null == mInstance) {
+                mInstance = new BandwidthMeter();
+            }
+            return mInstance;
+        }
+    }
+
+    /**
+     * 初始化，读取保存的估计值并监听网络变化，需要在{@link NetworkManager#initialized(Context)}之后调用
+     * @param context Context对象
+     */
+    public void initialize(Context context) {
+        synchronized (this) {
+            if (null != mPreferences) {
+                return;
+            }
+            mPreferences = context.getApplicationContext().getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+            for (Map.Entry<String, ?> entry : mPreferences.getAll().entrySet()) {
+                if (entry.getValue() instanceof Long) {
+                    mHistory.put(entry.getKey(), (Long) entry.getValue());
+                }
+            }
+        }
+        NetworkManager.getInstance().registerNetworkObserver(mNetworkObserver);
+        onNetworkChanged(NetworkManager.getInstance().getCurrentNetwork());
+    }
+
+    /**
+     * 获取当前网络的估计带宽
+     * @return 估计带宽，单位bit/s，没有估计值的时候返回{@link #NO_ESTIMATE}
+     */
+    public long getEstimatedBitrate() {
+        return mEstimatedBitrate;
+    }
+
+    /**
+     * 一个下载连接开始传输数据
+     */
+    public synchronized void onTransferStart() {
+        if (mActiveTransfers++ == 0) {
+            mSampleStartTime = now();
+            mSampleBytes = 0;
+        }
+    }
+
+    /**
+     * 读取到数据，在下载线程中调用
+     * @param bytes 字节数
+     */
+    public synchronized void onBytesTransferred(int bytes) {
+        mSampleBytes += bytes;
+        long elapsed = now() - mSampleStartTime;
+        if (elapsed >= SAMPLE_MIN_TIME) {
+            addSample(mSampleBytes, elapsed);
+        }
+    }
+
+    /**
+     * 一个下载连接结束传输数据（完成、停止或者出错）
+     */
+    public synchronized void onTransferEnd() {
+        if (mActiveTransfers <= 0) {
+            return;
+        }
+        if (--mActiveTransfers == 0) {
+            long elapsed = now() - mSampleStartTime;
+            if (mSampleBytes >= SAMPLE_MIN_BYTES && elapsed > 0) {
+                addSample(mSampleBytes, elapsed);
+            }
+            save();
+        }
+    }
+
+    private void addSample(long bytes, long elapsedMs) {
+        long bitrate = bytes * 8000 / elapsedMs;
+        long estimate = mEstimatedBitrate;
+        estimate = estimate < 0 ? bitrate : (long) (estimate + SMOOTHING * (bitrate - estimate));
+        mEstimatedBitrate = estimate;
+        mHistory.put(mNetworkType, estimate);
+        mSampleStartTime = now();
+        mSampleBytes = 0;
+    }
+
+    private synchronized void onNetworkChanged(NetworkInfo network) {
+        String type = getNetworkType(network);
+        if (type.equals(mNetworkType)) {
+            return;
+        }
+        save();
+        mNetworkType = type;
+        Long history = mHistory.get(type);
+        mEstimatedBitrate = null == history ? NO_ESTIMATE : history;
+        // 切换网络之前的数据不计入新网络的样本
+        mSampleStartTime = now();
+        mSampleBytes = 0;
+    }
+
+    /**
+     * 保存当前网络的估计值
+     */
+    private void save() {
+        if (null == mPreferences || mEstimatedBitrate < 0) {
+            return;
+        }
+        mPreferences.edit().putLong(mNetworkType, mEstimatedBitrate).commit();
+    }
+
+    private static String getNetworkType(NetworkInfo network) {
+        if (null == network || !network.isConnected()) {
+            return "NONE";
+        }
+        String subtype = network.getSubtypeName();
+        return null == subtype || subtype.length() == 0 ? network.getTypeName()
+                : network.getTypeName() + "_" + subtype;
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1000000L;
+    }
+}
@@ -26,8 +26,10 @@ import android.content.pm.ActivityInfo;
 import android.media.MediaPlayer;
 import android.net.NetworkInfo;
 import android.net.Uri;
+import android.os.Build;
 import android.os.Bundle;
 import android.provider.MediaStore;
+import android.util.Log;
 import android.view.View;
 import android.view.Window;
 import android.view.WindowManager;
@@ -35,15 +37,29 @@ import android.widget.MediaController;
 import android.widget.VideoView;
 
 import com.opensource.videoplayer.downloader.DownloadListener;
+import com.opensource.videoplayer.metrics.PlaybackSession;
 import com.opensource.videoplayer.observer.NetworkObserver;
 import com.opensource.videoplayer.presenter.VideoPlayerPresenter;
 import com.opensource.videoplayer.view.IVideoPlayerView;
 
+import java.util.Arrays;
+
 /**
  * This activity plays a video from a specified URI.
  */
 public class VideoPlayerActivity extends Activity implements IVideoPlayerView {
 
+    private static final String TAG = "VideoPlayerActivity";
+
+    /** 和视频地址内容相同的其他下载地址（镜像、不同的CDN），String数组 **/
+    public static final String EXTRA_MIRROR_URLS = "com.opensource.videoplayer.extra.MIRROR_URLS";
+
+    /** 同一个视频不同码率的地址，String数组，需要同时设置{@link #EXTRA_VARIANT_BITRATES} **/
+    public static final String EXTRA_VARIANT_URLS = "com.opensource.videoplayer.extra.VARIANT_URLS";
+
+    /** 每个码率的码率值（bit/s），long数组，和{@link #EXTRA_VARIANT_URLS}一一对应 **/
+    public static final String EXTRA_VARIANT_BITRATES = "com.opensource.videoplayer.extra.VARIANT_BITRATES";
+
     private VideoView mVideoView;
     private View mProgressView;
 
@@ -58,7 +74,13 @@ public class VideoPlayerActivity extends Activity implements IVideoPlayerView {
         mVideoView = (VideoView) findViewById(R.id.video_player_surface_view);
         mProgressView = findViewById(R.id.video_player_progress_indicator);
 
-        mVideoView.setMediaController(new MediaController(this));
+        mVideoView.setMediaController(new MediaController(this) {
+            @Override
+            public void setMediaPlayer(MediaPlayerControl player) {
+                // 包装播放控制，拖动进度的时候通知下载优先下载新位置的数据
+                super.setMediaPlayer(null == player ? null : new SeekAwarePlayerControl(player));
+            }
+        });
         // make the video view handle keys for seeking and pausing
         mVideoView.requestFocus();
         mVideoView.setKeepScreenOn(true);
@@ -89,8 +111,24 @@ public class VideoPlayerActivity extends Activity implements IVideoPlayerView {
                 hideLoadingProgress();
             }
         });
+        mVideoPlayer.setPlaybackSessionListener(new PlaybackSession.Listener() {
+            @Override
+            public void onSessionFinished(PlaybackSession session) {
+                // 格式固定的一行记录，可以从日志中提取
+                Log.i(TAG, "qoe " + session.toRecord());
+            }
+        });
         mVideoPlayer.onCreate();
         mVideoPlayer.setVideoUri(intent.getData());
+        String[] mirrorUrls = intent.getStringArrayExtra(EXTRA_MIRROR_URLS);
+        if (null != mirrorUrls) {
+            mVideoPlayer.setMirrorUrls(Arrays.asList(mirrorUrls));
+        }
+        String[] variantUrls = intent.getStringArrayExtra(EXTRA_VARIANT_URLS);
+        long[] variantBitrates = intent.getLongArrayExtra(EXTRA_VARIANT_BITRATES);
+        if (null != variantUrls && null != variantBitrates) {
+            mVideoPlayer.setVariants(Arrays.asList(variantUrls), variantBitrates);
+        }
         mVideoPlayer.play();
 
         if (intent.hasExtra(MediaStore.EXTRA_SCREEN_ORIENTATION)) {
@@ -156,6 +194,14 @@ public class VideoPlayerActivity extends Activity implements IVideoPlayerView {
         }
     }
 
+    @Override
+    public void setOnInfoListener(MediaPlayer.OnInfoListener listener) {
+        // VideoView.setOnInfoListener在API 17中才加入
+        if(null != mVideoView && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1) {
+            mVideoView.setOnInfoListener(listener);
+        }
+    }
+
 
     @Override
     public void playVideo(Uri uri, int position) {
@@ -190,4 +236,74 @@ public class VideoPlayerActivity extends Activity implements IVideoPlayerView {
         }
         mProgressView.setVisibility(View.GONE);
     }
+
+    /**
+     * 播放控制包装类，拖动进度的时候通知{@link VideoPlayerPresenter}
+     */
+    private class SeekAwarePlayerControl implements MediaController.MediaPlayerControl {
+
+        private final MediaController.MediaPlayerControl mPlayer;
+
+        SeekAwarePlayerControl(MediaController.MediaPlayerControl player) {
+            this.mPlayer = player;
+        }
+
+        @Override
+        public void start() {
+            mPlayer.start();
+        }
+
+        @Override
+        public void pause() {
+            mPlayer.pause();
+        }
+
+        @Override
+        public int getDuration() {
+            return mPlayer.getDuration();
+        }
+
+        @Override
+        public int getCurrentPosition() {
+            return mPlayer.getCurrentPosition();
+        }
+
+        @Override
+        public void seekTo(int pos) {
+            if (null != mVideoPlayer) {
+                mVideoPlayer.seekTo(pos);
+            }
+            mPlayer.seekTo(pos);
+        }
+
+        @Override
+        public boolean isPlaying() {
+            return mPlayer.isPlaying();
+        }
+
+        @Override
+        public int getBufferPercentage() {
+            return mPlayer.getBufferPercentage();
+        }
+
+        @Override
+        public boolean canPause() {
+            return mPlayer.canPause();
+        }
+
+        @Override
+        public boolean canSeekBackward() {
+            return mPlayer.canSeekBackward();
+        }
+
+        @Override
+        public boolean canSeekForward() {
+            return mPlayer.canSeekForward();
+        }
+
+        @Override
+        public int getAudioSessionId() {
+            return mPlayer.getAudioSessionId();
+        }
+    }
 }
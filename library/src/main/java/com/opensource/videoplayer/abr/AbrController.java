@@ -0,0 +1,327 @@
+/*
+ * Copyright (C) 2016. The Android Open Source Project.
+ *
+ *          yinglovezhuzhu@gmail.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *           http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.opensource.videoplayer.abr;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * 自适应码率控制器，根据实际下载速度和当前缓冲的时长在同一个视频的多个码率之间选择<br>
+ * 目标码率为不超过估计带宽一定比例（{@link #BANDWIDTH_FRACTION}）的最高码率；
+ * 提高码率需要缓冲足够（不少于{@link #DEFAULT_MIN_BUFFER_FOR_UP}），避免刚开始播放或者缓冲不足时切换到高码率导致卡顿；
+ * 缓冲足够多（超过{@link #DEFAULT_MAX_BUFFER_FOR_DOWN}）的时候，带宽的短暂下降由缓冲承担，不降低码率<br>
+ * 调用者在分片或者关键帧的位置调用{@link #select(long, long)}，切换发生在这些位置。
+ * 每次目标码率和当前码率不同时记录一条决策（包括因为缓冲而保持不变的情况），输出到日志，
+ * 格式固定，可以从日志中提取后离线分析
+ * Created by yinglovezhuzhu@gmail.com on 2017/2/3.
+ */
+public class AbrController {
+
+    private static final String TAG = "AbrController";
+
+    /** 提高码率需要的最少缓冲时长，单位毫秒 **/
+    public static final long DEFAULT_MIN_BUFFER_FOR_UP = 10000;
+
+    /** 缓冲超过这个时长的时候不降低码率，单位毫秒 **/
+    public static final long DEFAULT_MAX_BUFFER_FOR_DOWN = 20000;
+
+    /** 只使用估计带宽的这个比例，留出余量 **/
+    private static final double BANDWIDTH_FRACTION = 0.75;
+
+    /** 保留的决策记录数量 **/
+    private static final int MAX_DECISIONS = 100;
+
+    public static final String REASON_INITIAL = "initial";
+    public static final String REASON_UP = "up";
+    public static final String REASON_DOWN = "down";
+    public static final String REASON_HOLD_LOW_BUFFER = "hold-low-buffer";
+    public static final String REASON_HOLD_HIGH_BUFFER = "hold-high-buffer";
+    public static final String REASON_RESTART = "restart";
+
+    private final long[] mBitrates;
+    private final long mMinBufferForUp;
+    private final long mMaxBufferForDown;
+    private final boolean[] mDisabled;
+    private int mCurrent = -1;
+    private final LinkedList<Decision> mDecisions = new LinkedList<Decision>();
+    private Listener mListener = null;
+
+    /**
+     * Constructor
+     * @param bitrates 每个码率的码率值，单位bit/s，序号和调用者的码率列表对应，不需要排序
+     */
+    public AbrController(long[] bitrates) {
+        this(bitrates, DEFAULT_MIN_BUFFER_FOR_UP, DEFAULT_MAX_BUFFER_FOR_DOWN);
+    }
+
+    /**
+     * Constructor
+     * @param bitrates 每个码率的码率值，单位bit/s，序号和调用者的码率列表对应，不需要排序
+     * @param minBufferForUp 提高码率需要的最少缓冲时长，单位毫秒
+     * @param maxBufferForDown 缓冲超过这个时长的时候不降低码率，单位毫秒
+     */
+    public AbrController(long[] bitrates, long minBufferForUp, long maxBufferForDown) {
+        if (null == bitrates || bitrates.length == 0) {
+            throw new IllegalArgumentException("At least one bitrate is required");
+        }
+        this.mBitrates = new long[bitrates.length];
+        System.arraycopy(bitrates, 0, mBitrates, 0, bitrates.length);
+        this.mDisabled = new boolean[bitrates.length];
+        this.mMinBufferForUp = minBufferForUp;
+        this.mMaxBufferForDown = maxBufferForDown;
+    }
+
+    /**
+     * 设置决策监听
+     * @param listener 监听，在调用{@link #select(long, long)}的线程回调
+     */
+    public synchronized void setListener(Listener listener) {
+        this.mListener = listener;
+    }
+
+    /**
+     * 设置码率是否可以使用，例如还没有读取到播放列表或者地址不可用的码率，不可用的码率不会被选择
+     * @param index 码率序号
+     * @param enabled 是否可以使用
+     */
+    public synchronized void setEnabled(int index, boolean enabled) {
+        mDisabled[index] = !enabled;
+    }
+
+    /**
+     * 获取码率数量
+     * @return 码率数量
+     */
+    public int getCount() {
+        return mBitrates.length;
+    }
+
+    /**
+     * 获取码率值
+     * @param index 码率序号
+     * @return 码率，单位bit/s
+     */
+    public long getBitrate(int index) {
+        return mBitrates[index];
+    }
+
+    /**
+     * 获取当前使用的码率
+     * @return 码率序号，还没有选择的时候为-1
+     */
+    public synchronized int getCurrentIndex() {
+        return mCurrent;
+    }
+
+    /**
+     * 选择开始播放的码率，还没有缓冲，只根据带宽选择
+     * @param throughput 估计带宽，单位bit/s，小于等于0为没有估计值
+     * @param defaultIndex 没有估计值的时候使用的码率
+     * @return 码率序号
+     */
+    public synchronized int selectInitial(long throughput, int defaultIndex) {
+        int index = throughput > 0 ? getTargetIndex(throughput) : defaultIndex;
+        return setInitialIndex(index, throughput);
+    }
+
+    /**
+     * 直接指定开始播放的码率，例如离线的时候只能使用有缓存的码率
+     * @param index 码率序号
+     * @param throughput 估计带宽，只用于记录
+     * @return 码率序号
+     */
+    public synchronized int setInitialIndex(int index, long throughput) {
+        index = Math.max(0, Math.min(mBitrates.length - 1, index));
+        record(new Decision(-1, index, throughput, 0, REASON_INITIAL));
+        mCurrent = index;
+        return index;
+    }
+
+    /**
+     * 在分片或者关键帧的位置选择下一段数据使用的码率
+     * @param throughput 估计带宽，单位bit/s，小于等于0为没有估计值，这时保持当前码率
+     * @param bufferMs 当前缓冲的时长，单位毫秒
+     * @return 码率序号
+     */
+    public synchronized int select(long throughput, long bufferMs) {
+        if (mCurrent < 0) {
+            return selectInitial(throughput, 0);
+        }
+        if (throughput <= 0) {
+            return mCurrent;
+        }
+        int target = getTargetIndex(throughput);
+        long current = mBitrates[mCurrent];
+        if (mBitrates[target] == current) {
+            return mCurrent;
+        }
+        String reason;
+        int next;
+        if (mBitrates[target] > current) {
+            reason = bufferMs >= mMinBufferForUp ? REASON_UP : REASON_HOLD_LOW_BUFFER;
+        } else {
+            reason = bufferMs > mMaxBufferForDown ? REASON_HOLD_HIGH_BUFFER : REASON_DOWN;
+        }
+        next = REASON_UP.equals(reason) || REASON_DOWN.equals(reason) ? target : mCurrent;
+        record(new Decision(mCurrent, next, throughput, bufferMs, reason));
+        mCurrent = next;
+        return next;
+    }
+
+    /**
+     * 播放器重新开始缓冲（seek到没有缓存的位置、出错后重新加载）的时候选择码率，
+     * 这时任何码率都没有缓冲，和开始播放一样只根据带宽选择，切换发生在重新开始的关键帧上
+     * @param throughput 估计带宽，单位bit/s，小于等于0为没有估计值，这时保持当前码率
+     * @return 码率序号
+     */
+    public synchronized int selectOnRestart(long throughput) {
+        if (mCurrent < 0) {
+            return selectInitial(throughput, 0);
+        }
+        if (throughput <= 0) {
+            return mCurrent;
+        }
+        int target = getTargetIndex(throughput);
+        if (target != mCurrent) {
+            record(new Decision(mCurrent, target, throughput, 0, REASON_RESTART));
+            mCurrent = target;
+        }
+        return mCurrent;
+    }
+
+    /**
+     * 获取最近的决策记录
+     * @return 决策记录，按时间顺序
+     */
+    public synchronized List<Decision> getDecisions() {
+        return new ArrayList<Decision>(mDecisions);
+    }
+
+    /**
+     * 不超过可用带宽的最高码率，都超过的时候为最低码率，所有码率都不可用的时候为当前码率
+     */
+    private int getTargetIndex(long throughput) {
+        double available = throughput * BANDWIDTH_FRACTION;
+        int best = -1;
+        int lowest = -1;
+        for (int i = 0; i < mBitrates.length; i++) {
+            if (mDisabled[i]) {
+                continue;
+            }
+            if (lowest < 0 || mBitrates[i] < mBitrates[lowest]) {
+                lowest = i;
+            }
+            if (mBitrates[i] <= available && (best < 0 || mBitrates[i] > mBitrates[best])) {
+                best = i;
+            }
+        }
+        if (lowest < 0) {
+            return Math.max(0, mCurrent);
+        }
+        return best < 0 ? lowest : best;
+    }
+
+    private void record(Decision decision) {
+        mDecisions.add(decision);
+        if (mDecisions.size() > MAX_DECISIONS) {
+            mDecisions.removeFirst();
+        }
+        Log.i(TAG, decision.toString());
+        if (null != mListener) {
+            mListener.onDecision(decision);
+        }
+    }
+
+    /**
+     * 决策监听
+     */
+    public interface Listener {
+
+        /**
+         * 产生了一条决策记录
+         * @param decision 决策
+         */
+        void onDecision(Decision decision);
+    }
+
+    /**
+     * 一次码率决策
+     */
+    public final class Decision {
+        private final long mTime;
+        private final int mFrom;
+        private final int mTo;
+        private final long mThroughput;
+        private final long mBufferMs;
+        private final String mReason;
+
+        private Decision(int from, int to, long throughput, long bufferMs, String reason) {
+            this.mTime = System.currentTimeMillis();
+            this.mFrom = from;
+            this.mTo = to;
+            this.mThroughput = throughput;
+            this.mBufferMs = bufferMs;
+            this.mReason = reason;
+        }
+
+        public long getTime() {
+            return mTime;
+        }
+
+        /**
+         * 决策前的码率
+         * @return 码率序号，开始播放时为-1
+         */
+        public int getFrom() {
+            return mFrom;
+        }
+
+        /**
+         * 决策后的码率
+         * @return 码率序号
+         */
+        public int getTo() {
+            return mTo;
+        }
+
+        public long getThroughput() {
+            return mThroughput;
+        }
+
+        public long getBufferMs() {
+            return mBufferMs;
+        }
+
+        public String getReason() {
+            return mReason;
+        }
+
+        /**
+         * 固定格式的一行记录：abr,时间,原码率序号,新码率序号,原码率,新码率,估计带宽,缓冲时长,原因
+         */
+        @Override
+        public String toString() {
+            return "abr," + mTime + "," + mFrom + "," + mTo + ","
+                    + (mFrom < 0 ? 0 : mBitrates[mFrom]) + "," + mBitrates[mTo] + ","
+                    + mThroughput + "," + mBufferMs + "," + mReason;
+        }
+    }
+}
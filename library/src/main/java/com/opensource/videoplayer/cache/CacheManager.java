@@ -0,0 +1,346 @@
+/*
+ * Copyright (C) 2016. The Android Open Source Project.
+ *
+ *          yinglovezhuzhu@gmail.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *           http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.opensource.videoplayer.cache;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.opensource.videoplayer.db.DownloadDBUtils;
+import com.opensource.videoplayer.downloader.DownloadLog;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * 视频缓存管理，限制缓存文件的总大小<br>
+ * 下载历史和下载日志中记录的缓存文件超过容量限制的时候，按最后播放时间从早到晚删除缓存文件和对应的记录，
+ * 正在播放或者正在下载的地址（{@link #pin(String)}）不会被删除；所有的数据库和文件操作在同一个后台线程中执行<br>
+ * 缓存目录（{@link #addCacheDir(File)}）中没有记录的文件（例如删除记录之后没有删除成功的文件）也计算在内，
+ * 按最后修改时间和有记录的缓存一起清理
+ * Created by yinglovezhuzhu@gmail.com on 2017/1/15.
+ */
+public final class CacheManager {
+
+    private static final String TAG = "CacheManager";
+
+    public static final long DEFAULT_MAX_CACHE_SIZE = 512L * 1024 * 1024;
+
+    /** 没有记录的文件在最后修改之后多久才会被清理，下载开始的时候文件可能比记录先创建 **/
+    private static final long ORPHAN_MIN_AGE = 10 * 60 * 1000L;
+
+    private static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "Video-cache");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private static CacheManager mInstance = null;
+
+    private Context mContext = null;
+
+    private volatile long mMaxCacheSize = DEFAULT_MAX_CACHE_SIZE;
+
+    private final Map<String, Integer> mPinned = new HashMap<String, Integer>(); // 地址 -> 引用次数
+
+    private final CopyOnWriteArrayList<File> mCacheDirs = new CopyOnWriteArrayList<File>();
+
+    private CacheManager() {
+
+    }
+
+    public static CacheManager getInstance() {
+        synchronized (CacheManager.class) {
+            if (null == mInstance) {
+                mInstance = new CacheManager();
+            }
+            return mInstance;
+        }
+    }
+
+    /**
+     * 初始化
+     * @param context Context对象
+     */
+    public synchronized void initialize(Context context) {
+        if (null == mContext) {
+            mContext = context.getApplicationContext();
+        }
+    }
+
+    /**
+     * 添加一个缓存目录，清理的时候目录中没有下载历史和下载日志记录的文件也计算在缓存大小中<br>
+     * 只检查目录中的直接子文件（子目录作为一个整体），子目录也是缓存目录的时候需要单独添加
+     * @param dir 缓存目录
+     */
+    public void addCacheDir(File dir) {
+        if (null != dir) {
+            mCacheDirs.addIfAbsent(dir.getAbsoluteFile());
+        }
+    }
+
+    /**
+     * 设置缓存的最大容量，超过的时候会在后台清理
+     * @param maxCacheSize 最大容量，单位字节
+     */
+    public void setMaxCacheSize(long maxCacheSize) {
+        this.mMaxCacheSize = maxCacheSize;
+        trim();
+    }
+
+    public long getMaxCacheSize() {
+        return mMaxCacheSize;
+    }
+
+    /**
+     * 锁定一个地址的缓存，正在播放或者下载的时候调用，锁定期间不会被清理，可以多次锁定
+     * @param url 视频地址
+     */
+    public synchronized void pin(String url) {
+        Integer count = mPinned.get(url);
+        mPinned.put(url, null == count ? 1 : count + 1);
+    }
+
+    /**
+     * 解除一次锁定
+     * @param url 视频地址
+     */
+    public synchronized void unpin(String url) {
+        Integer count = mPinned.get(url);
+        if (null == count || count <= 1) {
+            mPinned.remove(url);
+        } else {
+            mPinned.put(url, count - 1);
+        }
+    }
+
+    public synchronized boolean isPinned(String url) {
+        return mPinned.containsKey(url);
+    }
+
+    /**
+     * 记录一次播放，在后台更新最后访问时间
+     * @param url 视频地址
+     */
+    public void onAccess(final String url) {
+        final Context context = mContext;
+        if (null == context) {
+            return;
+        }
+        final long time = System.currentTimeMillis();
+        EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                DownloadDBUtils.updateLastAccess(context, url, time);
+            }
+        });
+    }
+
+    /**
+     * 在后台检查缓存大小，超过容量的时候清理最久没有播放的缓存
+     */
+    public void trim() {
+        final Context context = mContext;
+        if (null == context) {
+            return;
+        }
+        EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                trimToSize(context, mMaxCacheSize);
+            }
+        });
+    }
+
+    private void trimToSize(Context context, long maxSize) {
+        List<CacheEntry> entries = new ArrayList<CacheEntry>();
+        Set<File> recorded = new HashSet<File>();
+        long totalSize = 0;
+        for (DownloadLog history : DownloadDBUtils.getAllHistory(context)) {
+            CacheEntry entry = new CacheEntry(history, true);
+            entries.add(entry);
+            totalSize += entry.mSize;
+            if (null != entry.mFile) {
+                recorded.add(entry.mFile.getAbsoluteFile());
+            }
+        }
+        for (DownloadLog log : DownloadDBUtils.getAllLogs(context)) {
+            CacheEntry entry = new CacheEntry(log, false);
+            entries.add(entry);
+            totalSize += entry.mSize;
+            if (null != entry.mFile) {
+                recorded.add(entry.mFile.getAbsoluteFile());
+            }
+        }
+        totalSize += findOrphans(recorded, entries);
+        if (totalSize <= maxSize) {
+            return;
+        }
+        Collections.sort(entries, new Comparator<CacheEntry>() {
+            @Override
+            public int compare(CacheEntry lhs, CacheEntry rhs) {
+                long l = lhs.mLastAccess;
+                long r = rhs.mLastAccess;
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+        for (CacheEntry entry : entries) {
+            if (totalSize <= maxSize) {
+                break;
+            }
+            String url = null == entry.mLog ? null : entry.mLog.getUrl();
+            // 检查和删除在同一个锁中，删除的过程中不会有新的锁定
+            synchronized (this) {
+                if (null != url && mPinned.containsKey(url)) {
+                    continue;
+                }
+                if (entry.mHistory) {
+                    DownloadDBUtils.deleteHistory(context, url);
+                } else if (null != url) {
+                    DownloadDBUtils.deleteLog(context, url);
+                }
+                if (null != entry.mFile && entry.mFile.exists() && !delete(entry.mFile)) {
+                    Log.w(TAG, "Delete cache file failed: " + entry.mFile);
+                }
+            }
+            totalSize -= entry.mSize;
+            Log.i(TAG, "Evict cache " + (null == url ? entry.mFile : url) + ", size " + entry.mSize);
+        }
+    }
+
+    /**
+     * 查找缓存目录中没有记录的文件，最近修改过的文件可能正在下载，不计算在内
+     * @param recorded 有记录的缓存文件
+     * @param entries 找到的文件加入这个列表
+     * @return 找到的文件的总大小
+     */
+    private long findOrphans(Set<File> recorded, List<CacheEntry> entries) {
+        long size = 0;
+        long now = System.currentTimeMillis();
+        for (File dir : mCacheDirs) {
+            File[] children = dir.listFiles();
+            if (null == children) {
+                continue;
+            }
+            for (File child : children) {
+                File file = child.getAbsoluteFile();
+                if (recorded.contains(file) || mCacheDirs.contains(file)) {
+                    continue;
+                }
+                CacheEntry entry = new CacheEntry(file);
+                if (now - entry.mLastAccess < ORPHAN_MIN_AGE) {
+                    continue;
+                }
+                entries.add(entry);
+                size += entry.mSize;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * 计算文件的大小，目录（HLS视频的分片）为所有文件的大小之和
+     * @param file 文件或者目录
+     * @return 大小
+     */
+    private static long sizeOf(File file) {
+        if (!file.isDirectory()) {
+            return file.length();
+        }
+        long size = 0;
+        File[] children = file.listFiles();
+        if (null != children) {
+            for (File child : children) {
+                size += sizeOf(child);
+            }
+        }
+        return size;
+    }
+
+    /**
+     * 计算文件的最后修改时间，目录为其中所有文件最后修改时间的最大值
+     * @param file 文件或者目录
+     * @return 最后修改时间
+     */
+    private static long lastModifiedOf(File file) {
+        long time = file.lastModified();
+        File[] children = file.listFiles();
+        if (null != children) {
+            for (File child : children) {
+                time = Math.max(time, lastModifiedOf(child));
+            }
+        }
+        return time;
+    }
+
+    /**
+     * 删除文件，目录连同其中的文件一起删除
+     * @param file 文件或者目录
+     * @return 是否删除成功
+     */
+    private static boolean delete(File file) {
+        File[] children = file.listFiles();
+        if (null != children) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        return file.delete();
+    }
+
+    /**
+     * 一个缓存文件和它的记录
+     */
+    private static class CacheEntry {
+        private final DownloadLog mLog; // 没有记录的文件为null
+        private final boolean mHistory; // 是否为下载历史，否则为下载日志
+        private final File mFile;
+        private final long mSize;
+        private final long mLastAccess;
+
+        private CacheEntry(DownloadLog log, boolean history) {
+            this.mLog = log;
+            this.mHistory = history;
+            this.mFile = null == log.getSavedFile() ? null : new File(log.getSavedFile());
+            this.mSize = null == mFile ? 0 : sizeOf(mFile);
+            this.mLastAccess = log.getLastAccess();
+        }
+
+        private CacheEntry(File file) {
+            this.mLog = null;
+            this.mHistory = false;
+            this.mFile = file;
+            this.mSize = sizeOf(file);
+            this.mLastAccess = lastModifiedOf(file);
+        }
+    }
+}
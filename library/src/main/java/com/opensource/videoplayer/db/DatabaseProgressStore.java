@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2016. The Android Open Source Project.
+ *
+ *          yinglovezhuzhu@gmail.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *           http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.opensource.videoplayer.db;
+
+import android.content.Context;
+
+import com.opensource.videoplayer.downloader.DownloadLog;
+import com.opensource.videoplayer.downloader.ProgressStore;
+
+/**
+ * 把下载进度保存到下载日志数据库
+ * Created by yinglovezhuzhu@gmail.com on 2017/2/10.
+ */
+public class DatabaseProgressStore implements ProgressStore {
+
+    private final Context mContext;
+
+    public DatabaseProgressStore(Context context) {
+        this.mContext = context;
+    }
+
+    @Override
+    public void updateLog(DownloadLog log) {
+        DownloadDBUtils.updateLog(mContext, log);
+    }
+
+    @Override
+    public boolean isDurable() {
+        return true;
+    }
+}
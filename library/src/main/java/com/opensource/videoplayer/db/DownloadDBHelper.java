@@ -19,12 +19,24 @@
 package com.opensource.videoplayer.db;
 
 import android.content.Context;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 
 /**
- * 功能：下载日志数据库
+ * 功能：下载日志数据库<br>
+ * 整个进程共用一个实例和一个数据库连接，第一次使用时打开，之后不再关闭；
+ * API 11及以上使用WAL日志模式，写入时不阻塞读取，每次提交只追加日志，不需要重写数据库文件<br>
+ * 频繁执行的SQL通过{@link #getStatement(String)}预编译一次后重复使用<br>
+ * 版本8开始两个表的url都有唯一索引，按地址查询不再扫描全表，同一个地址只有一条记录
  * @author yinglovezhuzhu@gmail.com
  *
  */
@@ -32,56 +44,212 @@ public class DownloadDBHelper extends SQLiteOpenHelper {
 	
 	private static final String DB_NAME = "downloadVideo.db";
 	
-	private static final int DB_VERSION = 1;
+	private static final int DB_VERSION = 8;
 	
 	public static DownloadDBHelper mDBHelper = null;
+
+	/** 下载进度表 **/
+	static final String CREATE_LOG_TABLE = "CREATE TABLE IF NOT EXISTS download_log("
+			+ "_id INTEGER PRIMARY KEY AUTOINCREMENT, "
+			+ "url TEXT, downloaded_size INTEGER, total_size INTEGER, saved_file TEXT, end_downloaded INTEGER, "
+			+ "downloaded_ranges TEXT, moov_start INTEGER, moov_end INTEGER, last_access INTEGER, "
+			+ "etag TEXT, last_modified TEXT, expires INTEGER, block_checksums TEXT, content_digest TEXT)";
+
+	/** 下载历史 **/
+	static final String CREATE_HISTORY_TABLE = "CREATE TABLE IF NOT EXISTS download_history("
+			+ "_id INTEGER PRIMARY KEY AUTOINCREMENT, "
+			+ "url TEXT, total_size INTEGER, finished_time INTEGER, saved_file TEXT, last_access INTEGER, "
+			+ "etag TEXT, last_modified TEXT, expires INTEGER)";
+
+	static final String CREATE_LOG_URL_INDEX = "CREATE UNIQUE INDEX IF NOT EXISTS download_log_url ON download_log(url)";
+
+	static final String CREATE_HISTORY_URL_INDEX = "CREATE UNIQUE INDEX IF NOT EXISTS download_history_url "
+			+ "ON download_history(url)";
+
+	private static final String ADD_COLUMN = "ALTER TABLE ";
+
+	private final Map<String, SQLiteStatement> mStatements = new HashMap<String, SQLiteStatement>(); // 预编译的语句
+	private SQLiteDatabase mStatementDatabase = null; // 预编译语句所属的数据库连接
 	
 	public DownloadDBHelper(Context context) {
 		super(context, DB_NAME, null, DB_VERSION);
 	}
 	
-	public static DownloadDBHelper getInstance(Context context) {
+	public static synchronized DownloadDBHelper getInstance(Context context) {
 		if(mDBHelper == null) {
-			mDBHelper = new DownloadDBHelper(context);
+			mDBHelper = new DownloadDBHelper(context.getApplicationContext());
 		}
 		return mDBHelper;
 	}
-	
+
+	/**
+	 * 获取共用的数据库连接，不能关闭
+	 * @param context Context对象
+	 * @return 数据库
+	 */
 	public static SQLiteDatabase getReadableDatabase(Context context) {
-		return new DownloadDBHelper(context).getReadableDatabase();
+		return getInstance(context).getReadableDatabase();
 	}
-	
+
+	/**
+	 * 获取共用的数据库连接，不能关闭
+	 * @param context Context对象
+	 * @return 数据库
+	 */
 	public static SQLiteDatabase getWriteableDatabase(Context context) {
-		return new DownloadDBHelper(context).getWritableDatabase();
+		return getInstance(context).getWritableDatabase();
+	}
+
+	/**
+	 * 在后台线程打开数据库（创建、升级）并恢复进度日志（{@link DownloadJournal}），之后主线程第一次使用时不需要等待打开
+	 * @param context Context对象
+	 */
+	public static void preload(Context context) {
+		final Context appContext = context.getApplicationContext();
+		final DownloadDBHelper helper = getInstance(appContext);
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					helper.getWritableDatabase();
+					DownloadJournal.open(appContext);
+				} catch (SQLException e) {
+					e.printStackTrace();
+				}
+			}
+		}, "DownloadDB-open");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * 获取预编译的语句，同一条SQL只编译一次，数据库重新打开或者关闭的时候关闭所有的语句，之后重新编译<br>
+	 * 语句对象不是线程安全的，绑定参数和执行期间需要同步返回的对象
+	 * @param sql SQL语句
+	 * @return 预编译的语句
+	 */
+	public synchronized SQLiteStatement getStatement(String sql) {
+		SQLiteDatabase db = getWritableDatabase();
+		if(db != mStatementDatabase) {
+			clearStatements();
+			mStatementDatabase = db;
+		}
+		SQLiteStatement statement = mStatements.get(sql);
+		if(null == statement) {
+			statement = db.compileStatement(sql);
+			mStatements.put(sql, statement);
+		}
+		return statement;
+	}
+
+	/**
+	 * 关闭并移除所有预编译的语句，语句属于编译时的数据库连接，连接关闭之后不能再使用
+	 */
+	private synchronized void clearStatements() {
+		for(SQLiteStatement statement : mStatements.values()) {
+			try {
+				statement.close();
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+			}
+		}
+		mStatements.clear();
+		mStatementDatabase = null;
+	}
+
+	@Override
+	public synchronized void close() {
+		clearStatements();
+		super.close();
 	}
 
 	@Override
 	public void onCreate(SQLiteDatabase db) {
-		
-		//下载进度表
-		db.execSQL("CREATE TABLE IF NOT EXISTS download_log(_id INTEGER PRIMARY KEY AUTOINCREMENT, " +
-                "url TEXT, downloaded_size INTEGER, total_size INTEGER, saved_file TEXT, end_downloaded INTEGER)");
-		
-		//下载历史
-		db.execSQL("CREATE TABLE IF NOT EXISTS download_history(_id INTEGER PRIMARY KEY AUTOINCREMENT, " +
-                "url TEXT, total_size INTEGER, finished_time INTEGER, saved_file TEXT)");
-		
+		for(String sql : getCreateStatements()) {
+			db.execSQL(sql);
+		}
 	}
 	
 	@Override
 	public void onOpen(SQLiteDatabase db) {
 		super.onOpen(db);
+		// 新打开的连接，之前连接上编译的语句不能再使用
+		clearStatements();
+		if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB && !db.isReadOnly()) {
+			// 多个下载线程频繁更新进度，WAL模式下写入不阻塞读取
+			db.enableWriteAheadLogging();
+		}
 	}
 
 	@Override
 	public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-		dropAllTables(db);
+		// 在SQLiteOpenHelper开始的事务中执行，任何一步失败都不会留下升级了一半的数据库
+		for(String sql : getUpgradeStatements(oldVersion)) {
+			if(sql.startsWith(ADD_COLUMN)) {
+				addColumn(db, sql);
+			} else {
+				db.execSQL(sql);
+			}
+		}
 		onCreate(db);
 	}
+
+	/**
+	 * 创建数据库的语句，表和索引已经存在的时候不执行
+	 * @return SQL语句
+	 */
+	static List<String> getCreateStatements() {
+		List<String> statements = new ArrayList<String>();
+		statements.add(CREATE_LOG_TABLE);
+		statements.add(CREATE_HISTORY_TABLE);
+		statements.add(CREATE_LOG_URL_INDEX);
+		statements.add(CREATE_HISTORY_URL_INDEX);
+		return statements;
+	}
+
+	/**
+	 * 从旧版本升级需要执行的语句，执行之后再执行{@link #getCreateStatements()}；增加字段的语句失败（字段已经存在）的时候忽略
+	 * @param oldVersion 旧的版本号
+	 * @return SQL语句
+	 */
+	static List<String> getUpgradeStatements(int oldVersion) {
+		List<String> statements = new ArrayList<String>();
+		if(oldVersion < 7) {
+			// 旧版本的下载日志缺少区间、校验等字段，不能用来续传，重新下载
+			statements.add("DROP TABLE IF EXISTS download_log");
+		}
+		// 下载历史保留，增加新的字段
+		if(oldVersion < 5) {
+			statements.add(addColumnStatement("download_history", "last_access INTEGER"));
+		}
+		if(oldVersion < 6) {
+			statements.add(addColumnStatement("download_history", "etag TEXT"));
+			statements.add(addColumnStatement("download_history", "last_modified TEXT"));
+			statements.add(addColumnStatement("download_history", "expires INTEGER"));
+		}
+		if(oldVersion < 8) {
+			// 以前的版本同一个地址可能保存了多条记录，只保留最后一条，然后建立唯一索引
+			if(oldVersion >= 7) {
+				statements.add(removeDuplicateUrlsStatement("download_log"));
+			}
+			statements.add(removeDuplicateUrlsStatement("download_history"));
+		}
+		return statements;
+	}
+
+	private static String removeDuplicateUrlsStatement(String table) {
+		return "DELETE FROM " + table + " WHERE _id NOT IN (SELECT MAX(_id) FROM " + table + " GROUP BY url)";
+	}
+
+	private static String addColumnStatement(String table, String column) {
+		return ADD_COLUMN + table + " ADD COLUMN " + column;
+	}
 	
-	private void dropAllTables(SQLiteDatabase db) {
-		db.execSQL("drop table if exists download_log");
-		
-		onCreate(db);
+	private void addColumn(SQLiteDatabase db, String sql) {
+		try {
+			db.execSQL(sql);
+		} catch (SQLException e) {
+			e.printStackTrace();
+		}
 	}
 }
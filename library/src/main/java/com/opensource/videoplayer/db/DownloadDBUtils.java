@@ -21,14 +21,24 @@ package com.opensource.videoplayer.db;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
 
+import com.opensource.videoplayer.downloader.BlockChecksums;
 import com.opensource.videoplayer.downloader.DownloadLog;
+import com.opensource.videoplayer.downloader.RangeSet;
 import com.opensource.videoplayer.utils.StringUtils;
 
+import java.util.ArrayList;
+import java.util.List;
+
 
 /**
- * usage Download log database util
+ * usage Download log database util<br>
+ * 使用{@link DownloadDBHelper}共用的数据库连接，不关闭数据库；更新进度和按地址查询缓存文件使用预编译的语句
  * @author yinglovezhuzhu@gmail.com
  *
  */
@@ -44,9 +54,35 @@ public class DownloadDBUtils {
     private static final String SAVED_FILE = "saved_file";
     private static final String END_DOWNLOADED = "end_downloaded";
     private static final String FINISHED_TIME = "finished_time";
+    private static final String DOWNLOADED_RANGES = "downloaded_ranges";
+    private static final String MOOV_START = "moov_start";
+    private static final String MOOV_END = "moov_end";
+    private static final String LAST_ACCESS = "last_access";
+    private static final String ETAG = "etag";
+    private static final String LAST_MODIFIED = "last_modified";
+    private static final String EXPIRES = "expires";
+    private static final String BLOCK_CHECKSUMS = "block_checksums";
+    private static final String CONTENT_DIGEST = "content_digest";
+
+    private static final String SQL_UPDATE_LOG = "UPDATE " + TABLE_NAME_LOG + " SET "
+            + DOWNLOADED_SIZE + " = ?, " + TOTAL_SIZE + " = ?, " + SAVED_FILE + " = ?, " + END_DOWNLOADED + " = ?, "
+            + DOWNLOADED_RANGES + " = ?, " + MOOV_START + " = ?, " + MOOV_END + " = ?, " + ETAG + " = ?, "
+            + LAST_MODIFIED + " = ?, " + EXPIRES + " = ?, " + BLOCK_CHECKSUMS + " = ?, " + CONTENT_DIGEST + " = ? "
+            + "WHERE " + URL + " = ?";
+
+    /** 下载完成时删除下载日志 **/
+    static final String SQL_DELETE_LOG = "DELETE FROM " + TABLE_NAME_LOG + " WHERE " + URL + " = ?";
+
+    /** 下载完成时保存下载历史，同一个地址已经有记录的时候替换 **/
+    static final String SQL_REPLACE_HISTORY = "INSERT OR REPLACE INTO " + TABLE_NAME_HISTORY + "("
+            + URL + ", " + TOTAL_SIZE + ", " + FINISHED_TIME + ", " + SAVED_FILE + ", " + LAST_ACCESS + ", "
+            + ETAG + ", " + LAST_MODIFIED + ", " + EXPIRES + ") VALUES(?, ?, ?, ?, ?, ?, ?, ?)";
+
+    private static final String SQL_HISTORY_FILE = "SELECT " + SAVED_FILE + " FROM " + TABLE_NAME_HISTORY
+            + " WHERE " + URL + " = ? LIMIT 1";
 	
 	/**
-	 * Save the log of a file.
+	 * Save the log of a file，同一个地址已经有日志的时候替换原来的日志
 	 * @param context Context对象
 	 * @param log
 	 * @return 插入数据id
@@ -65,14 +101,24 @@ public class DownloadDBUtils {
             values.put(TOTAL_SIZE, log.getTotalSize());
             values.put(SAVED_FILE, log.getSavedFile());
             values.put(END_DOWNLOADED, log.isEndDownloaded() ? 1 : 0);
-            id = db.insert(TABLE_NAME_LOG, "", values);
+            values.put(DOWNLOADED_RANGES, log.getDownloadedRanges().format());
+            values.put(MOOV_START, log.getMoovStartPos());
+            values.put(MOOV_END, log.getMoovEndPos());
+            putValidators(values, log);
+            values.put(BLOCK_CHECKSUMS, log.getBlockChecksums().format());
+            values.put(CONTENT_DIGEST, log.getContentDigest());
+            values.put(LAST_ACCESS, System.currentTimeMillis());
+            id = db.insertWithOnConflict(TABLE_NAME_LOG, "", values, SQLiteDatabase.CONFLICT_REPLACE);
+            if(id != -1) {
+                // 进度日志用id区分同一个地址的不同下载
+                log.setId(id);
+            }
 			// 设置事务执行的标志为成功
 			db.setTransactionSuccessful();
 		} catch(IllegalStateException e) {
 			e.printStackTrace();
 		} finally {
 			db.endTransaction();
-			db.close();
 		}
 		return id;
 	}
@@ -92,7 +138,6 @@ public class DownloadDBUtils {
 			db.setTransactionSuccessful();
 		} finally {
 			db.endTransaction();
-			db.close();
 		}
 		return count;
 	}
@@ -110,56 +155,110 @@ public class DownloadDBUtils {
         DownloadLog downloadLog = null;
 		if(cursor != null) {
 			if(cursor.moveToFirst()) {
-                downloadLog = new DownloadLog();
-				int idIndex = cursor.getColumnIndex(_ID);
-                int urlIndex = cursor.getColumnIndex(URL);
-				int downloadedSizeIndex = cursor.getColumnIndex(DOWNLOADED_SIZE);
-                int totalSizeIndex = cursor.getColumnIndexOrThrow(TOTAL_SIZE);
-                int savedFileIndex = cursor.getColumnIndex(SAVED_FILE);
-                int endDownloadedIndex = cursor.getColumnIndex(END_DOWNLOADED);
-                downloadLog.setId(cursor.getLong(idIndex));
-                downloadLog.setUrl(cursor.getString(urlIndex));
-                downloadLog.setDownloadedSize(cursor.getInt(downloadedSizeIndex));
-                downloadLog.setTotalSize(cursor.getInt(totalSizeIndex));
-                downloadLog.setSavedFile(cursor.getString(savedFileIndex));
-                downloadLog.setEndDownloaded(1 == cursor.getInt(endDownloadedIndex));
+                downloadLog = readLog(cursor);
 			}
 			cursor.close();
 		}
-		db.close();
 		return downloadLog;
 	}
+
+    /**
+     * 获取所有的下载日志（未完成的下载）
+     * @param context Context
+     * @return 下载日志列表
+     */
+    public static List<DownloadLog> getAllLogs(Context context) {
+        SQLiteDatabase db = DownloadDBHelper.getReadableDatabase(context);
+        Cursor cursor = db.query(TABLE_NAME_LOG, null, null, null, null, null, null);
+        List<DownloadLog> logs = new ArrayList<DownloadLog>();
+        if(cursor != null) {
+            while(cursor.moveToNext()) {
+                logs.add(readLog(cursor));
+            }
+            cursor.close();
+        }
+        return logs;
+    }
+
+    private static DownloadLog readLog(Cursor cursor) {
+        DownloadLog downloadLog = new DownloadLog();
+        int idIndex = cursor.getColumnIndex(_ID);
+        int urlIndex = cursor.getColumnIndex(URL);
+        int downloadedSizeIndex = cursor.getColumnIndex(DOWNLOADED_SIZE);
+        int totalSizeIndex = cursor.getColumnIndexOrThrow(TOTAL_SIZE);
+        int savedFileIndex = cursor.getColumnIndex(SAVED_FILE);
+        int endDownloadedIndex = cursor.getColumnIndex(END_DOWNLOADED);
+        int downloadedRangesIndex = cursor.getColumnIndex(DOWNLOADED_RANGES);
+        int moovStartIndex = cursor.getColumnIndex(MOOV_START);
+        int moovEndIndex = cursor.getColumnIndex(MOOV_END);
+        int lastAccessIndex = cursor.getColumnIndex(LAST_ACCESS);
+        downloadLog.setId(cursor.getLong(idIndex));
+        downloadLog.setUrl(cursor.getString(urlIndex));
+        downloadLog.setDownloadedSize(cursor.getInt(downloadedSizeIndex));
+        downloadLog.setTotalSize(cursor.getInt(totalSizeIndex));
+        downloadLog.setSavedFile(cursor.getString(savedFileIndex));
+        downloadLog.setEndDownloaded(1 == cursor.getInt(endDownloadedIndex));
+        RangeSet downloadedRanges = RangeSet.parse(cursor.getString(downloadedRangesIndex));
+        if (downloadedRanges.size() == 0 && downloadLog.getDownloadedSize() > 0) {
+            // 没有区间信息的日志，已下载的是文件开头的连续部分
+            downloadedRanges.add(0, downloadLog.getDownloadedSize());
+        }
+        downloadLog.setDownloadedRanges(downloadedRanges);
+        downloadLog.setMoovStartPos(cursor.getInt(moovStartIndex));
+        downloadLog.setMoovEndPos(cursor.getInt(moovEndIndex));
+        downloadLog.setLastAccess(cursor.getLong(lastAccessIndex));
+        readValidators(cursor, downloadLog);
+        downloadLog.setBlockChecksums(BlockChecksums.parse(cursor.getString(cursor.getColumnIndex(BLOCK_CHECKSUMS)),
+                BlockChecksums.DEFAULT_BLOCK_SIZE));
+        downloadLog.setContentDigest(cursor.getString(cursor.getColumnIndex(CONTENT_DIGEST)));
+        return downloadLog;
+    }
 	
 	/**
-	 * Update a log record through thread id and url
+	 * Update a log record through url，下载过程中频繁调用，使用预编译的语句
 	 * @param context Context对象
 	 * @param log 下载日志数据
+	 * @return 更新的记录数，API 11以下不能获取，返回-1
 	 */
 	public static int updateLog(Context context, DownloadLog log) {
-		SQLiteDatabase db = DownloadDBHelper.getWriteableDatabase(context);
-		int count = 0;
-		try {
-			db.beginTransaction();
-			ContentValues values = new ContentValues();
-            values.put(URL, log.getUrl());
-			values.put(DOWNLOADED_SIZE, log.getDownloadedSize());
-            values.put(TOTAL_SIZE, log.getTotalSize());
-            values.put(SAVED_FILE, log.getSavedFile());
-            values.put(END_DOWNLOADED, log.isEndDownloaded() ? 1 : 0);
-			count = db.update(TABLE_NAME_LOG, values, URL + " = ?", new String[] {log.getUrl(), });
-			db.setTransactionSuccessful();
-		} finally {
-			db.endTransaction();
-			db.close();
+		SQLiteStatement statement = DownloadDBHelper.getInstance(context).getStatement(SQL_UPDATE_LOG);
+		synchronized (statement) {
+			statement.clearBindings();
+			statement.bindLong(1, log.getDownloadedSize());
+			statement.bindLong(2, log.getTotalSize());
+			bindString(statement, 3, log.getSavedFile());
+			statement.bindLong(4, log.isEndDownloaded() ? 1 : 0);
+			bindString(statement, 5, log.getDownloadedRanges().format());
+			statement.bindLong(6, log.getMoovStartPos());
+			statement.bindLong(7, log.getMoovEndPos());
+			bindString(statement, 8, log.getEtag());
+			bindString(statement, 9, log.getLastModified());
+			statement.bindLong(10, log.getExpires());
+			bindString(statement, 11, log.getBlockChecksums().format());
+			bindString(statement, 12, log.getContentDigest());
+			bindString(statement, 13, log.getUrl());
+			// 一条语句本身就是一个事务，不需要另外开始事务
+			if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+				return statement.executeUpdateDelete();
+			}
+			statement.execute();
+			return -1;
+		}
+	}
+
+	private static void bindString(SQLiteStatement statement, int index, String value) {
+		if(null == value) {
+			statement.bindNull(index);
+		} else {
+			statement.bindString(index, value);
 		}
-		return count;
 	}
 
     ///////////////////////////////////////////////////////////////////////////////////////////////////
     ////////////////////////////////////////////////////////////////////////////////////////////////////
 
     /**
-     * Save the log of a file.
+     * Save the log of a file，同一个地址已经有下载历史的时候替换原来的记录
      * @param context Context对象
      * @param log
      * @return 插入数据id
@@ -172,23 +271,76 @@ public class DownloadDBUtils {
         long id = -1;
         db.beginTransaction();
         try {
-            ContentValues values = new ContentValues();
-            values.put(URL, log.getUrl());
-            values.put(TOTAL_SIZE, log.getTotalSize());
-            values.put(FINISHED_TIME, log.getFinishedTime());
-            values.put(SAVED_FILE, log.getSavedFile());
-            id = db.insert(TABLE_NAME_HISTORY, "", values);
+            id = insertHistory(db, log);
             // 设置事务执行的标志为成功
             db.setTransactionSuccessful();
         } catch(IllegalStateException e) {
             e.printStackTrace();
         } finally {
             db.endTransaction();
-            db.close();
         }
         return id;
     }
 
+    /**
+     * 下载完成，在同一个事务中删除下载日志并保存下载历史，不会出现日志已经删除而历史没有保存的情况
+     * @param context Context对象
+     * @param log 下载完成的日志
+     * @return 下载历史的id，失败返回-1
+     */
+    public static long completeDownload(Context context, DownloadLog log) {
+        if(null == log || StringUtils.isEmpty(log.getUrl())) {
+            return -1L;
+        }
+        DownloadDBHelper helper = DownloadDBHelper.getInstance(context);
+        SQLiteDatabase db = helper.getWritableDatabase();
+        SQLiteStatement delete = helper.getStatement(SQL_DELETE_LOG);
+        SQLiteStatement insert = helper.getStatement(SQL_REPLACE_HISTORY);
+        long id = -1;
+        db.beginTransaction();
+        try {
+            synchronized (delete) {
+                delete.clearBindings();
+                delete.bindString(1, log.getUrl());
+                delete.execute();
+            }
+            synchronized (insert) {
+                insert.clearBindings();
+                insert.bindString(1, log.getUrl());
+                insert.bindLong(2, log.getTotalSize());
+                insert.bindLong(3, log.getFinishedTime());
+                bindString(insert, 4, log.getSavedFile());
+                insert.bindLong(5, System.currentTimeMillis());
+                bindString(insert, 6, log.getEtag());
+                bindString(insert, 7, log.getLastModified());
+                insert.bindLong(8, log.getExpires());
+                id = insert.executeInsert();
+            }
+            if(id != -1) {
+                db.setTransactionSuccessful();
+            }
+        } catch(SQLException e) {
+            // 保存失败的时候事务回滚，下载日志不会被删除
+            e.printStackTrace();
+        } catch(IllegalStateException e) {
+            e.printStackTrace();
+        } finally {
+            db.endTransaction();
+        }
+        return id;
+    }
+
+    private static long insertHistory(SQLiteDatabase db, DownloadLog log) {
+        ContentValues values = new ContentValues();
+        values.put(URL, log.getUrl());
+        values.put(TOTAL_SIZE, log.getTotalSize());
+        values.put(FINISHED_TIME, log.getFinishedTime());
+        values.put(SAVED_FILE, log.getSavedFile());
+        values.put(LAST_ACCESS, System.currentTimeMillis());
+        putValidators(values, log);
+        return db.insertWithOnConflict(TABLE_NAME_HISTORY, "", values, SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
     /**
      * 根据URL返回历史记录信息，如果没有返回null
      * @param context Context
@@ -202,25 +354,123 @@ public class DownloadDBUtils {
         DownloadLog history = null;
         if(cursor != null) {
             if(cursor.moveToFirst()) {
-                history = new DownloadLog();
-                int idIndex = cursor.getColumnIndex(_ID);
-                int urlIndex = cursor.getColumnIndex(URL);
-                int totalSizeIndex = cursor.getColumnIndexOrThrow(TOTAL_SIZE);
-                int finishedTimeIndex = cursor.getColumnIndex(FINISHED_TIME);
-                int savedFileIndex = cursor.getColumnIndex(SAVED_FILE);
-                history.setId(cursor.getLong(idIndex));
-                history.setUrl(cursor.getString(urlIndex));
-                history.setTotalSize(cursor.getInt(totalSizeIndex));
-                history.setDownloadedSize(history.getTotalSize());
-                history.setFinishedTime(cursor.getLong(finishedTimeIndex));
-                history.setSavedFile(cursor.getString(savedFileIndex));
+                history = readHistory(cursor);
             }
             cursor.close();
         }
-        db.close();
         return history;
     }
 
+    /**
+     * 根据URL返回下载完成的缓存文件路径，只需要判断缓存是否存在时使用，比{@link #getHistoryByUrl(Context, String)}快
+     * @param context Context
+     * @param url 下载地址
+     * @return 缓存文件路径，没有下载历史的时候返回null
+     */
+    public static String getHistoryFile(Context context, String url) {
+        SQLiteStatement statement = DownloadDBHelper.getInstance(context).getStatement(SQL_HISTORY_FILE);
+        synchronized (statement) {
+            statement.clearBindings();
+            statement.bindString(1, url);
+            try {
+                return statement.simpleQueryForString();
+            } catch (SQLiteDoneException e) {
+                // 没有记录
+                return null;
+            }
+        }
+    }
+
+    /**
+     * 获取所有的下载历史记录
+     * @param context Context
+     * @return 下载历史记录列表
+     */
+    public static List<DownloadLog> getAllHistory(Context context) {
+        SQLiteDatabase db = DownloadDBHelper.getReadableDatabase(context);
+        Cursor cursor = db.query(TABLE_NAME_HISTORY, null, null, null, null, null, null);
+        List<DownloadLog> histories = new ArrayList<DownloadLog>();
+        if(cursor != null) {
+            while(cursor.moveToNext()) {
+                histories.add(readHistory(cursor));
+            }
+            cursor.close();
+        }
+        return histories;
+    }
+
+    private static DownloadLog readHistory(Cursor cursor) {
+        DownloadLog history = new DownloadLog();
+        int idIndex = cursor.getColumnIndex(_ID);
+        int urlIndex = cursor.getColumnIndex(URL);
+        int totalSizeIndex = cursor.getColumnIndexOrThrow(TOTAL_SIZE);
+        int finishedTimeIndex = cursor.getColumnIndex(FINISHED_TIME);
+        int savedFileIndex = cursor.getColumnIndex(SAVED_FILE);
+        int lastAccessIndex = cursor.getColumnIndex(LAST_ACCESS);
+        history.setId(cursor.getLong(idIndex));
+        history.setUrl(cursor.getString(urlIndex));
+        history.setTotalSize(cursor.getInt(totalSizeIndex));
+        history.setDownloadedSize(history.getTotalSize());
+        history.setFinishedTime(cursor.getLong(finishedTimeIndex));
+        history.setSavedFile(cursor.getString(savedFileIndex));
+        history.setLastAccess(cursor.getLong(lastAccessIndex));
+        readValidators(cursor, history);
+        return history;
+    }
+
+    /**
+     * 更新下载历史的验证信息（ETag、Last-Modified、过期时间）
+     * @param context Context
+     * @param history 下载历史
+     * @return 更新记录数
+     */
+    public static int updateHistoryValidators(Context context, DownloadLog history) {
+        SQLiteDatabase db = DownloadDBHelper.getWriteableDatabase(context);
+        int count = 0;
+        try {
+            db.beginTransaction();
+            ContentValues values = new ContentValues();
+            putValidators(values, history);
+            count = db.update(TABLE_NAME_HISTORY, values, URL + " = ?", new String[] {history.getUrl(), });
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return count;
+    }
+
+    private static void putValidators(ContentValues values, DownloadLog log) {
+        values.put(ETAG, log.getEtag());
+        values.put(LAST_MODIFIED, log.getLastModified());
+        values.put(EXPIRES, log.getExpires());
+    }
+
+    private static void readValidators(Cursor cursor, DownloadLog log) {
+        log.setEtag(cursor.getString(cursor.getColumnIndex(ETAG)));
+        log.setLastModified(cursor.getString(cursor.getColumnIndex(LAST_MODIFIED)));
+        log.setExpires(cursor.getLong(cursor.getColumnIndex(EXPIRES)));
+    }
+
+    /**
+     * 更新一个地址的最后访问（播放）时间，下载日志和下载历史中的记录都会更新
+     * @param context Context
+     * @param url 下载地址
+     * @param time 访问时间
+     */
+    public static void updateLastAccess(Context context, String url, long time) {
+        SQLiteDatabase db = DownloadDBHelper.getWriteableDatabase(context);
+        try {
+            db.beginTransaction();
+            ContentValues values = new ContentValues();
+            values.put(LAST_ACCESS, time);
+            db.update(TABLE_NAME_LOG, values, URL + " = ?", new String[] {url, });
+            db.update(TABLE_NAME_HISTORY, values, URL + " = ?", new String[] {url, });
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
     /**
      * 根据URL删除历史记录
      * @param context Context
@@ -236,7 +486,6 @@ public class DownloadDBUtils {
             db.setTransactionSuccessful();
         } finally {
             db.endTransaction();
-            db.close();
         }
         return count;
     }
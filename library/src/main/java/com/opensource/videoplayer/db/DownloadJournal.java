@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2016. The Android Open Source Project.
+ *
+ *          yinglovezhuzhu@gmail.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *           http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.opensource.videoplayer.db;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.opensource.videoplayer.downloader.DownloadLog;
+import com.opensource.videoplayer.downloader.IntegrityVerifier;
+import com.opensource.videoplayer.downloader.ProgressJournal;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * 进程共用的下载进度日志（{@link ProgressJournal}），第一次打开时把上一个进程留下的进度合并到数据库<br>
+ * 槽位中记录的下载日志id和数据库中的记录相同时才使用，下载已经完成、删除或者重新开始的记录直接丢弃；
+ * 写日志的时候文件没有同步，断电后日志可能比文件数据先写到磁盘，所以只合并和下载时的校验值一致的区间
+ * （{@link IntegrityVerifier#verifyDownloadedRanges()}），恢复的进度不会包含没有写入的数据；
+ * 合并后释放所有槽位，之后的下载重新申请
+ * Created by yinglovezhuzhu@gmail.com on 2017/2/20.
+ */
+public final class DownloadJournal {
+
+    private static final String TAG = "DownloadJournal";
+
+    private static final String FILE_NAME = "download.journal";
+
+    private static ProgressJournal sJournal = null;
+    private static boolean sOpened = false; // 是否已经尝试打开，打开失败的时候不再重试
+
+    private DownloadJournal() {
+
+    }
+
+    /**
+     * 打开进度日志，第一次调用时恢复上一个进程的进度，需要读写数据库，不要在主线程中调用
+     * @param context Context对象
+     * @return 进度日志，不能使用的时候返回null（只使用数据库保存进度）
+     */
+    public static synchronized ProgressJournal open(Context context) {
+        if (sOpened) {
+            return sJournal;
+        }
+        sOpened = true;
+        File file = new File(context.getApplicationContext().getFilesDir(), FILE_NAME);
+        try {
+            ProgressJournal journal = new ProgressJournal(file);
+            recover(context, journal);
+            sJournal = journal;
+        } catch (IOException e) {
+            Log.w(TAG, "Open progress journal failed: " + file, e);
+        }
+        return sJournal;
+    }
+
+    private static void recover(Context context, ProgressJournal journal) {
+        List<DownloadLog> logs = journal.readAll();
+        for (DownloadLog progress : logs) {
+            DownloadLog log = DownloadDBUtils.getLogByUrl(context, progress.getUrl());
+            if (null == log || log.getId() != progress.getId() || log.getTotalSize() != progress.getTotalSize()
+                    || null == log.getSavedFile()) {
+                continue;
+            }
+            try {
+                progress = new IntegrityVerifier(new File(log.getSavedFile()), progress).verifyDownloadedRanges();
+            } catch (IOException e) {
+                // 文件不能读取，保留数据库中的进度
+                Log.w(TAG, "Verify progress failed: " + log.getSavedFile(), e);
+                continue;
+            }
+            log.setDownloadedRanges(progress.getDownloadedRanges());
+            log.setBlockChecksums(progress.getBlockChecksums());
+            log.setDownloadedSize(progress.getDownloadedSize());
+            log.setEndDownloaded(progress.isEndDownloaded());
+            log.setMoovStartPos(progress.getMoovStartPos());
+            log.setMoovEndPos(progress.getMoovEndPos());
+            DownloadDBUtils.updateLog(context, log);
+            Log.i(TAG, "Recover progress " + log.getDownloadedSize() + "/" + log.getTotalSize() + " " + log.getUrl());
+        }
+        journal.clear();
+    }
+}
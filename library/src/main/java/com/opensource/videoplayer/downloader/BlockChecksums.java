@@ -0,0 +1,260 @@
+/*
+ * Copyright (C) 2016. The Android Open Source Project.
+ *
+ *          yinglovezhuzhu@gmail.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *           http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.opensource.videoplayer.downloader;
+
+import com.opensource.videoplayer.utils.StringUtils;
+
+/**
+ * 按固定大小分块记录已下载数据的CRC-32C校验值<br>
+ * 下载时每写入一段数据记录一个[start, end)区间和它的校验值，同一块中相邻的区间用{@link Crc32c#combine(int, int, long)}
+ * 合并，一块下载完成后就只剩一个覆盖整块的区间；区间不会跨越块的边界。
+ * 和已有区间重叠的数据（seek拆分分段时重复下载的部分）不记录，这一块在校验时从文件中重新计算<br>
+ * 这个类不是线程安全的，多线程使用时需要调用者同步
+ * Created by yinglovezhuzhu@gmail.com on 2017/1/20.
+ */
+public class BlockChecksums {
+
+    public static final int DEFAULT_BLOCK_SIZE = 1024 * 1024;
+
+    private static final String RANGE_SEPARATOR = ",";
+    private static final String POS_SEPARATOR = "-";
+    private static final String CRC_SEPARATOR = ":";
+
+    private final int mBlockSize;
+    private int[] mStarts = new int[4];
+    private int[] mEnds = new int[4];
+    private int[] mCrcs = new int[4];
+    private int mSize = 0;
+
+    public BlockChecksums() {
+        this(DEFAULT_BLOCK_SIZE);
+    }
+
+    public BlockChecksums(int blockSize) {
+        this.mBlockSize = blockSize;
+    }
+
+    public int getBlockSize() {
+        return mBlockSize;
+    }
+
+    /**
+     * 记录一段数据的校验值，数据不能跨越块的边界
+     * @param start 开始位置
+     * @param end 结束位置（不包含）
+     * @param crc 这段数据的校验值
+     * @return 是否记录，和已有区间重叠或者跨越块边界的时候不记录
+     */
+    public boolean add(int start, int end, int crc) {
+        if (end <= start || start / mBlockSize != (end - 1) / mBlockSize) {
+            return false;
+        }
+        int index = upperBound(start);
+        // index - 1 为开始位置小于等于start的最后一个区间
+        if (index > 0 && mEnds[index - 1] > start) {
+            return false;
+        }
+        if (index < mSize && mStarts[index] < end) {
+            return false;
+        }
+        boolean mergePrev = index > 0 && mEnds[index - 1] == start
+                && mStarts[index - 1] / mBlockSize == start / mBlockSize;
+        boolean mergeNext = index < mSize && mStarts[index] == end
+                && mStarts[index] / mBlockSize == start / mBlockSize;
+        if (mergePrev) {
+            int prev = index - 1;
+            mCrcs[prev] = Crc32c.combine(mCrcs[prev], crc, end - start);
+            mEnds[prev] = end;
+            if (mergeNext) {
+                mCrcs[prev] = Crc32c.combine(mCrcs[prev], mCrcs[index], mEnds[index] - mStarts[index]);
+                mEnds[prev] = mEnds[index];
+                delete(index);
+            }
+        } else if (mergeNext) {
+            mCrcs[index] = Crc32c.combine(crc, mCrcs[index], mEnds[index] - mStarts[index]);
+            mStarts[index] = start;
+        } else {
+            insert(index, start, end, crc);
+        }
+        return true;
+    }
+
+    /**
+     * 删除和指定区间有重叠的所有记录
+     * @param start 开始位置
+     * @param end 结束位置（不包含）
+     */
+    public void remove(int start, int end) {
+        int i = 0;
+        while (i < mSize) {
+            if (mStarts[i] < end && mEnds[i] > start) {
+                delete(i);
+            } else {
+                i++;
+            }
+        }
+    }
+
+    /**
+     * 获取一块数据的校验值
+     * @param block 块的序号
+     * @param totalSize 文件总长度，最后一块可能不足一块的大小
+     * @return 校验值（无符号），这一块还没有完整的校验值时返回-1
+     */
+    public long getBlockCrc(int block, int totalSize) {
+        int start = block * mBlockSize;
+        int end = Math.min(start + mBlockSize, totalSize);
+        int index = upperBound(start) - 1;
+        if (index < 0 || mStarts[index] != start || mEnds[index] != end) {
+            return -1;
+        }
+        return mCrcs[index] & 0xffffffffL;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * 第index条记录的开始位置，记录按位置排序
+     */
+    int getStart(int index) {
+        return mStarts[index];
+    }
+
+    /**
+     * 第index条记录的结束位置（不包含）
+     */
+    int getEnd(int index) {
+        return mEnds[index];
+    }
+
+    /**
+     * 第index条记录的校验值
+     */
+    int getCrc(int index) {
+        return mCrcs[index];
+    }
+
+    public BlockChecksums copy() {
+        BlockChecksums checksums = new BlockChecksums(mBlockSize);
+        checksums.mStarts = new int[mStarts.length];
+        checksums.mEnds = new int[mEnds.length];
+        checksums.mCrcs = new int[mCrcs.length];
+        System.arraycopy(mStarts, 0, checksums.mStarts, 0, mSize);
+        System.arraycopy(mEnds, 0, checksums.mEnds, 0, mSize);
+        System.arraycopy(mCrcs, 0, checksums.mCrcs, 0, mSize);
+        checksums.mSize = mSize;
+        return checksums;
+    }
+
+    /**
+     * 格式化为字符串，用于保存到数据库，格式为"start-end:crc,start-end:crc"，crc为十六进制
+     * @return 字符串
+     */
+    public String format() {
+        StringBuilder sb = new StringBuilder(mSize * 24);
+        for (int i = 0; i < mSize; i++) {
+            if (i > 0) {
+                sb.append(RANGE_SEPARATOR);
+            }
+            sb.append(mStarts[i]).append(POS_SEPARATOR).append(mEnds[i])
+                    .append(CRC_SEPARATOR).append(Integer.toHexString(mCrcs[i]));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 从{@link #format()}的结果解析，格式错误的记录会被忽略
+     * @param value 字符串
+     * @param blockSize 块大小
+     * @return 校验值记录
+     */
+    public static BlockChecksums parse(String value, int blockSize) {
+        BlockChecksums checksums = new BlockChecksums(blockSize);
+        if (StringUtils.isEmpty(value)) {
+            return checksums;
+        }
+        for (String item : value.split(RANGE_SEPARATOR)) {
+            int posIndex = item.indexOf(POS_SEPARATOR);
+            int crcIndex = item.indexOf(CRC_SEPARATOR);
+            if (posIndex <= 0 || crcIndex <= posIndex) {
+                continue;
+            }
+            try {
+                checksums.add(Integer.parseInt(item.substring(0, posIndex)),
+                        Integer.parseInt(item.substring(posIndex + 1, crcIndex)),
+                        (int) Long.parseLong(item.substring(crcIndex + 1), 16));
+            } catch (NumberFormatException e) {
+                e.printStackTrace();
+            }
+        }
+        return checksums;
+    }
+
+    /**
+     * 二分查找第一个开始位置大于position的区间
+     */
+    private int upperBound(int position) {
+        int low = 0;
+        int high = mSize;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (mStarts[mid] <= position) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private void insert(int index, int start, int end, int crc) {
+        if (mSize == mStarts.length) {
+            int[] starts = new int[mSize * 2];
+            int[] ends = new int[mSize * 2];
+            int[] crcs = new int[mSize * 2];
+            System.arraycopy(mStarts, 0, starts, 0, mSize);
+            System.arraycopy(mEnds, 0, ends, 0, mSize);
+            System.arraycopy(mCrcs, 0, crcs, 0, mSize);
+            mStarts = starts;
+            mEnds = ends;
+            mCrcs = crcs;
+        }
+        System.arraycopy(mStarts, index, mStarts, index + 1, mSize - index);
+        System.arraycopy(mEnds, index, mEnds, index + 1, mSize - index);
+        System.arraycopy(mCrcs, index, mCrcs, index + 1, mSize - index);
+        mStarts[index] = start;
+        mEnds[index] = end;
+        mCrcs[index] = crc;
+        mSize++;
+    }
+
+    private void delete(int index) {
+        System.arraycopy(mStarts, index + 1, mStarts, index, mSize - index - 1);
+        System.arraycopy(mEnds, index + 1, mEnds, index, mSize - index - 1);
+        System.arraycopy(mCrcs, index + 1, mCrcs, index, mSize - index - 1);
+        mSize--;
+    }
+
+    @Override
+    public String toString() {
+        return "BlockChecksums{" + format() + '}';
+    }
+}
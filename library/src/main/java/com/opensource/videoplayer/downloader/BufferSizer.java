@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2016. The Android Open Source Project.
+ *
+ *          yinglovezhuzhu@gmail.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *           http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.opensource.videoplayer.downloader;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 根据实际读取速度调整读写缓存大小<br>
+ * 每次从网络读取数据后记录读取的字节数和距离上一次读取的时长（包含写入文件、计算校验值和回调的时间），
+ * 累计至少{@link #SAMPLE_MIN_TIME}毫秒作为一个速度样本，按字节数加权，不会因为数据已经在接收缓存中、
+ * 读取立即返回而高估速度；样本用指数加权平均计算速度，
+ * 缓存大小取这个速度下大约{@link #TARGET_READ_TIME}毫秒能读取的数据量（2的整数次幂），限制在最小和最大值之间；
+ * 慢速网络使用小缓存，进度更新及时，快速网络使用大缓存，减少写入和回调次数<br>
+ * 同时统计每种缓存大小被使用的次数，用于调整不同环境下的上下限
+ * Created by yinglovezhuzhu@gmail.com on 2017/1/8.
+ */
+public class BufferSizer {
+
+    public static final int DEFAULT_MIN_SIZE = 1024 * 8;
+
+    public static final int DEFAULT_MAX_SIZE = 1024 * 512;
+
+    /** 每次读取的目标耗时，单位毫秒 **/
+    private static final long TARGET_READ_TIME = 100;
+
+    /** 一个速度样本最少的统计时长，单位毫秒 **/
+    private static final long SAMPLE_MIN_TIME = 100;
+
+    /** 新的速度样本的权重 **/
+    private static final double SMOOTHING = 0.25;
+
+    private final int mMinSize;
+    private final int mMaxSize;
+
+    private int mSize;
+    private double mBytesPerSecond = -1;
+    private long mSampleBytes = 0;
+    private long mSampleNanos = 0;
+    private long mReadCount = 0;
+    private final Map<Integer, Long> mSizeCounts = new LinkedHashMap<Integer, Long>();
+
+    /**
+     * Constructor
+     * @param minSize 最小缓存大小
+     * @param maxSize 最大缓存大小
+     * @param initialSize 开始时的缓存大小
+     */
+    public BufferSizer(int minSize, int maxSize, int initialSize) {
+        this.mMinSize = Math.max(1, minSize);
+        this.mMaxSize = Math.max(mMinSize, maxSize);
+        this.mSize = clamp(initialSize);
+    }
+
+    /**
+     * 获取当前应该使用的缓存大小
+     * @return 缓存大小
+     */
+    public synchronized int getBufferSize() {
+        return mSize;
+    }
+
+    /**
+     * 记录一次读取
+     * @param bufferSize 这次读取使用的缓存大小
+     * @param bytes 读取到的字节数
+     * @param elapsedNanos 距离同一个连接上一次读取（第一次为开始读取）的时长，单位纳秒
+     */
+    public synchronized void onRead(int bufferSize, int bytes, long elapsedNanos) {
+        mReadCount++;
+        Long count = mSizeCounts.get(bufferSize);
+        mSizeCounts.put(bufferSize, null == count ? 1L : count + 1);
+        if (bytes <= 0) {
+            return;
+        }
+        mSampleBytes += bytes;
+        mSampleNanos += Math.max(0L, elapsedNanos);
+        if (mSampleNanos < SAMPLE_MIN_TIME * 1000000L) {
+            return;
+        }
+        double bytesPerSecond = mSampleBytes * 1000000000.0 / mSampleNanos;
+        mSampleBytes = 0;
+        mSampleNanos = 0;
+        mBytesPerSecond = mBytesPerSecond < 0 ? bytesPerSecond
+                : mBytesPerSecond + SMOOTHING * (bytesPerSecond - mBytesPerSecond);
+        mSize = clamp((long) (mBytesPerSecond * TARGET_READ_TIME / 1000));
+    }
+
+    public int getMinSize() {
+        return mMinSize;
+    }
+
+    public int getMaxSize() {
+        return mMaxSize;
+    }
+
+    /**
+     * 平滑后的读取速度
+     * @return 字节每秒，还没有数据时返回-1
+     */
+    public synchronized long getBytesPerSecond() {
+        return (long) mBytesPerSecond;
+    }
+
+    public synchronized long getReadCount() {
+        return mReadCount;
+    }
+
+    /**
+     * 每种缓存大小被使用的次数
+     * @return 缓存大小 -> 读取次数，按第一次使用的顺序
+     */
+    public synchronized Map<Integer, Long> getSizeCounts() {
+        return new LinkedHashMap<Integer, Long>(mSizeCounts);
+    }
+
+    /**
+     * 取不大于指定值的2的整数次幂，并限制在上下限之间
+     */
+    private int clamp(long size) {
+        if (size <= mMinSize) {
+            return mMinSize;
+        }
+        if (size >= mMaxSize) {
+            return mMaxSize;
+        }
+        int result = Integer.highestOneBit((int) size);
+        return result < mMinSize ? mMinSize : result;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "BufferSizer{" +
+                "minSize=" + mMinSize +
+                ", maxSize=" + mMaxSize +
+                ", size=" + mSize +
+                ", bytesPerSecond=" + (long) mBytesPerSecond +
+                ", readCount=" + mReadCount +
+                ", sizeCounts=" + mSizeCounts +
+                '}';
+    }
+}
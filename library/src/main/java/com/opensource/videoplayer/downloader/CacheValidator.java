@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2016. The Android Open Source Project.
+ *
+ *          yinglovezhuzhu@gmail.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *           http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.opensource.videoplayer.downloader;
+
+import android.content.Context;
+import android.os.Handler;
+import android.util.Log;
+
+import com.opensource.videoplayer.db.DownloadDBUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * HTTP缓存验证<br>
+ * 下载时记录响应中的ETag、Last-Modified和Cache-Control的max-age；继续下载的时候使用If-Range，
+ * 文件改变时服务器返回整个文件而不是部分数据；已经下载完成的缓存在max-age过期后发送条件请求
+ * （If-None-Match/If-Modified-Since），304表示没有改变，不传输任何文件数据
+ * Created by yinglovezhuzhu@gmail.com on 2017/1/18.
+ */
+public class CacheValidator {
+
+    private static final String TAG = "CacheValidator";
+
+    private static final int RESPONSE_OK = 200;
+
+    private static final int RESPONSE_NOT_MODIFIED = 304;
+
+    private static final Pattern MAX_AGE_PATTERN = Pattern.compile("max-age\\s*=\\s*\"?(\\d+)");
+
+    private static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "Cache-validator");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    /**
+     * 缓存验证结果回调
+     */
+    public interface Callback {
+
+        /**
+         * 验证完成
+         * @param valid 缓存是否可以继续使用，false的时候缓存文件和下载历史已经删除
+         */
+        void onValidated(boolean valid);
+    }
+
+    private CacheValidator() {
+
+    }
+
+    /**
+     * 从响应头中读取验证信息保存到下载日志
+     * @param conn 已经连接的HttpURLConnection
+     * @param log 下载日志
+     */
+    public static void readValidators(HttpURLConnection conn, DownloadLog log) {
+        log.setEtag(conn.getHeaderField("ETag"));
+        log.setLastModified(conn.getHeaderField("Last-Modified"));
+        log.setExpires(getExpires(conn));
+    }
+
+    /**
+     * 下载日志中有验证信息的时候设置If-Range请求头，ETag是弱验证（W/开头）的时候使用Last-Modified
+     * @param conn 还没有连接的HttpURLConnection
+     * @param log 下载日志
+     */
+    public static void setIfRange(HttpURLConnection conn, DownloadLog log) {
+        String etag = log.getEtag();
+        String validator = null != etag && !etag.startsWith("W/") ? etag : log.getLastModified();
+        if (null != validator) {
+            conn.setRequestProperty("If-Range", validator);
+        }
+    }
+
+    /**
+     * 继续下载时检查服务器上的文件是否已经改变<br>
+     * 带If-Range的请求在文件改变的时候返回200和整个文件；不支持If-Range的服务器通过比较响应中的验证信息判断
+     *
+     * @param conn 已经连接的HttpURLConnection
+     * @param log 下载日志
+     * @param startPos 请求的开始位置
+     * @return 是否已经改变
+     * @throws IOException 读取响应出错
+     */
+    public static boolean isChanged(HttpURLConnection conn, DownloadLog log, int startPos) throws IOException {
+        boolean hasValidator = null != log.getEtag() || null != log.getLastModified();
+        if (!hasValidator) {
+            return false;
+        }
+        if (conn.getResponseCode() == RESPONSE_OK && startPos > 0) {
+            return true;
+        }
+        String etag = conn.getHeaderField("ETag");
+        if (null != etag && null != log.getEtag()) {
+            return !etag.equals(log.getEtag());
+        }
+        String lastModified = conn.getHeaderField("Last-Modified");
+        return null != lastModified && null != log.getLastModified()
+                && !lastModified.equals(log.getLastModified());
+    }
+
+    /**
+     * 缓存是否还在max-age有效期内，有效期内不需要验证
+     * @param history 下载历史
+     * @return 是否有效
+     */
+    public static boolean isFresh(DownloadLog history) {
+        return history.getExpires() > System.currentTimeMillis();
+    }
+
+    /**
+     * 在后台验证已经下载完成的缓存，结果在调用者的线程（需要有Looper）回调<br>
+     * 没有验证信息或者网络不可用的时候认为缓存可用；服务器上的文件改变的时候删除缓存文件和下载历史
+     *
+     * @param context Context对象
+     * @param history 下载历史
+     * @param callback 结果回调
+     */
+    public static void validateAsync(final Context context, final DownloadLog history, final Callback callback) {
+        final Handler handler = new Handler();
+        EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                final boolean valid = validate(context, history);
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onValidated(valid);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * 发送条件请求验证已经下载完成的缓存，这个方法有网络请求，不要在ui线程中调用
+     * @param context Context对象
+     * @param history 下载历史
+     * @return 缓存是否可以继续使用
+     */
+    public static boolean validate(Context context, DownloadLog history) {
+        if (null == history.getEtag() && null == history.getLastModified()) {
+            return true;
+        }
+        HttpURLConnection conn = null;
+        try {
+            conn = (HttpURLConnection) new URL(history.getUrl()).openConnection();
+            conn.setConnectTimeout(6 * 1000);
+            conn.setRequestMethod("GET");
+            if (null != history.getEtag()) {
+                conn.setRequestProperty("If-None-Match", history.getEtag());
+            }
+            if (null != history.getLastModified()) {
+                conn.setRequestProperty("If-Modified-Since", history.getLastModified());
+            }
+            int responseCode = conn.getResponseCode();
+            if (responseCode == RESPONSE_NOT_MODIFIED) {
+                history.setExpires(getExpires(conn));
+                DownloadDBUtils.updateHistoryValidators(context, history);
+                return true;
+            }
+            if (responseCode == RESPONSE_OK) {
+                // 文件已经改变，不读取响应数据，删除缓存后重新下载
+                Log.i(TAG, "Cache changed: " + history.getUrl());
+                DownloadDBUtils.deleteHistory(context, history.getUrl());
+                File file = new File(history.getSavedFile());
+                if (file.exists() && !file.delete()) {
+                    Log.w(TAG, "Delete cache file failed: " + file);
+                }
+                return false;
+            }
+            return true;
+        } catch (IOException e) {
+            Log.w(TAG, "Validate cache failed: " + e.toString());
+            return true;
+        } finally {
+            if (null != conn) {
+                conn.disconnect();
+            }
+        }
+    }
+
+    /**
+     * 根据Cache-Control的max-age计算缓存过期时间，no-cache、no-store或者没有max-age的时候每次都需要验证
+     * @param conn 已经连接的HttpURLConnection
+     * @return 过期时间，0为已经过期
+     */
+    private static long getExpires(HttpURLConnection conn) {
+        String cacheControl = conn.getHeaderField("Cache-Control");
+        if (null == cacheControl) {
+            return 0;
+        }
+        String value = cacheControl.toLowerCase(Locale.ENGLISH);
+        if (value.contains("no-cache") || value.contains("no-store")) {
+            return 0;
+        }
+        Matcher matcher = MAX_AGE_PATTERN.matcher(value);
+        if (!matcher.find()) {
+            return 0;
+        }
+        try {
+            return System.currentTimeMillis() + Long.parseLong(matcher.group(1)) * 1000L;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
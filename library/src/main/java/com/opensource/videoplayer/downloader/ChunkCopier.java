@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) 2016. The Android Open Source Project.
+ *
+ *          yinglovezhuzhu@gmail.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *           http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.opensource.videoplayer.downloader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedList;
+
+/**
+ * 把网络数据流写入文件指定位置的工具类，每写入一块数据回调一次<br>
+ * 普通方式使用byte[]缓存和{@link RandomAccessFile#write(byte[], int, int)}写入；
+ * NIO方式读取到同样的byte[]缓存中，数据流中已经有可以读取的数据时继续读取填满缓存，
+ * 然后把缓存包装成{@link ByteBuffer}用{@link FileChannel#write(ByteBuffer, long)}按位置写入，
+ * 不需要seek，也不经过{@link java.nio.channels.Channels#newChannel(InputStream)}多复制一次<br>
+ * 设置了{@link BufferSizer}的时候每次读取都会记录读取的字节数和距离上一次读取的时长，缓存大小随速度调整，
+ * 缓存从共享的缓存池中获取<br>
+ * 设置了校验块大小的时候同时计算写入数据的CRC-32C，一段数据跨越块的边界时按块拆分后分别回调
+ * Created by yinglovezhuzhu@gmail.com on 2017/1/5.
+ */
+public class ChunkCopier {
+
+    /** 缓存池中每种大小最多保留的缓存数量 **/
+    private static final int MAX_POOLED_BUFFERS = 4;
+
+    private static final LinkedList<byte[]> ARRAY_POOL = new LinkedList<byte[]>();
+
+    private final boolean mUseNio;
+    private final int mBufferSize;
+    private final BufferSizer mSizer;
+    private int mChecksumBlockSize = 0;
+
+    /**
+     * 写入回调
+     */
+    public interface Callback {
+
+        /**
+         * 是否需要停止写入，每次读取数据之前检查
+         * @return true 停止
+         */
+        boolean isCancelled();
+
+        /**
+         * 一块数据已经写入文件
+         * @param position 数据在文件中的开始位置
+         * @param count 数据长度
+         * @param crc 这段数据的CRC-32C，没有设置校验块大小的时候为0
+         * @return 还需要写入的长度，小于等于0的时候停止
+         */
+        int onChunkWritten(int position, int count, int crc);
+    }
+
+    /**
+     * Constructor，使用固定大小的缓存
+     * @param bufferSize 缓存大小
+     */
+    public ChunkCopier(int bufferSize) {
+        this(false, bufferSize);
+    }
+
+    /**
+     * Constructor，使用固定大小的缓存
+     * @param useNio 是否使用NIO方式写入
+     * @param bufferSize 缓存大小
+     */
+    public ChunkCopier(boolean useNio, int bufferSize) {
+        this.mUseNio = useNio;
+        this.mBufferSize = bufferSize;
+        this.mSizer = null;
+    }
+
+    /**
+     * Constructor，缓存大小由读取速度决定
+     * @param sizer 缓存大小调整，可以多个ChunkCopier共用
+     */
+    public ChunkCopier(BufferSizer sizer) {
+        this(false, sizer);
+    }
+
+    /**
+     * Constructor，缓存大小由读取速度决定
+     * @param useNio 是否使用NIO方式写入
+     * @param sizer 缓存大小调整，可以多个ChunkCopier共用
+     */
+    public ChunkCopier(boolean useNio, BufferSizer sizer) {
+        this.mUseNio = useNio;
+        this.mBufferSize = sizer.getBufferSize();
+        this.mSizer = sizer;
+    }
+
+    /**
+     * 设置计算校验值的块大小，回调的数据不会跨越块的边界
+     * @param blockSize 块大小，小于等于0的时候不计算校验值
+     */
+    public void setChecksumBlockSize(int blockSize) {
+        this.mChecksumBlockSize = blockSize;
+    }
+
+    /**
+     * 从数据流读取数据写入到文件的指定位置，直到数据流结束、写入指定长度或者回调要求停止
+     * @param in 数据流
+     * @param file 文件
+     * @param position 开始写入的位置
+     * @param length 需要写入的长度
+     * @param callback 写入回调
+     * @return 写入的总长度
+     * @throws IOException 读写出错
+     */
+    public int copy(InputStream in, RandomAccessFile file, int position, int length,
+                    Callback callback) throws IOException {
+        return mUseNio ? copyChannel(in, file.getChannel(), position, length, callback)
+                : copyStream(in, file, position, length, callback);
+    }
+
+    private int copyStream(InputStream in, RandomAccessFile file, int position, int length,
+                           Callback callback) throws IOException {
+        byte[] buffer = acquireArray(nextBufferSize());
+        int written = 0;
+        int remain = length;
+        int count;
+        try {
+            file.seek(position);
+            long sampleTime = System.nanoTime();
+            while (remain > 0 && !callback.isCancelled()) {
+                int size = nextBufferSize();
+                if (size != buffer.length) {
+                    releaseArray(buffer);
+                    buffer = acquireArray(size);
+                }
+                count = in.read(buffer, 0, Math.min(buffer.length, remain));
+                if (count == -1) {
+                    break;
+                }
+                // 两次读取之间的时长，包含上一块数据的写入和回调，数据已经在接收缓存中的时候读取本身几乎不耗时
+                long now = System.nanoTime();
+                onRead(buffer.length, count, now - sampleTime);
+                sampleTime = now;
+                file.write(buffer, 0, count);
+                remain = onChunkWritten(callback, position + written, buffer, count);
+                written += count;
+            }
+        } finally {
+            releaseArray(buffer);
+        }
+        return written;
+    }
+
+    private int copyChannel(InputStream in, FileChannel channel, int position, int length,
+                            Callback callback) throws IOException {
+        byte[] buffer = acquireArray(nextBufferSize());
+        int written = 0;
+        int remain = length;
+        int count;
+        try {
+            long sampleTime = System.nanoTime();
+            while (remain > 0 && !callback.isCancelled()) {
+                int size = nextBufferSize();
+                if (size != buffer.length) {
+                    releaseArray(buffer);
+                    buffer = acquireArray(size);
+                }
+                int limit = Math.min(buffer.length, remain);
+                count = in.read(buffer, 0, limit);
+                if (count == -1) {
+                    break;
+                }
+                // 接收缓存中还有数据的时候继续读取，填满缓存后一次写入，减少写入的系统调用
+                while (count < limit && in.available() > 0) {
+                    int read = in.read(buffer, count, limit - count);
+                    if (read <= 0) {
+                        break;
+                    }
+                    count += read;
+                }
+                long now = System.nanoTime();
+                onRead(buffer.length, count, now - sampleTime);
+                sampleTime = now;
+                ByteBuffer data = ByteBuffer.wrap(buffer, 0, count);
+                long writePos = position + written;
+                while (data.hasRemaining()) {
+                    writePos += channel.write(data, writePos);
+                }
+                remain = onChunkWritten(callback, position + written, buffer, count);
+                written += count;
+            }
+        } finally {
+            releaseArray(buffer);
+        }
+        return written;
+    }
+
+    /**
+     * 回调写入的数据，需要计算校验值的时候按块拆分
+     * @param array byte[]缓存，数据从0开始
+     */
+    private int onChunkWritten(Callback callback, int position, byte[] array, int count) {
+        if (mChecksumBlockSize <= 0) {
+            return callback.onChunkWritten(position, count, 0);
+        }
+        int remain = 0;
+        int offset = 0;
+        while (offset < count) {
+            int partStart = position + offset;
+            int partEnd = Math.min(position + count, (partStart / mChecksumBlockSize + 1) * mChecksumBlockSize);
+            int length = partEnd - partStart;
+            int crc = Crc32c.update(0, array, offset, length);
+            remain = callback.onChunkWritten(partStart, length, crc);
+            offset += length;
+        }
+        return remain;
+    }
+
+    private int nextBufferSize() {
+        return null == mSizer ? mBufferSize : mSizer.getBufferSize();
+    }
+
+    private void onRead(int bufferSize, int count, long elapsedNanos) {
+        if (null != mSizer) {
+            mSizer.onRead(bufferSize, count, elapsedNanos);
+        }
+    }
+
+    /**
+     * 从缓存池中获取一个byte[]缓存，没有合适的时候新建
+     */
+    private static byte[] acquireArray(int size) {
+        synchronized (ARRAY_POOL) {
+            for (int i = 0; i < ARRAY_POOL.size(); i++) {
+                if (ARRAY_POOL.get(i).length == size) {
+                    return ARRAY_POOL.remove(i);
+                }
+            }
+        }
+        return new byte[size];
+    }
+
+    /**
+     * 把byte[]缓存放回缓存池
+     */
+    private static void releaseArray(byte[] buffer) {
+        synchronized (ARRAY_POOL) {
+            int count = 0;
+            for (byte[] pooled : ARRAY_POOL) {
+                if (pooled.length == buffer.length) {
+                    count++;
+                }
+            }
+            if (count < MAX_POOLED_BUFFERS) {
+                ARRAY_POOL.add(buffer);
+            }
+        }
+    }
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright (C) 2016. The Android Open Source Project.
+ *
+ *          yinglovezhuzhu@gmail.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *           http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.opensource.videoplayer.downloader;
+
+import java.io.IOException;
+
+/**
+ * 服务器上的文件和本地已经下载的数据不是同一个版本（ETag或者Last-Modified改变）
+ * Created by yinglovezhuzhu@gmail.com on 2017/1/18.
+ */
+public class ContentChangedException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    public ContentChangedException(String message) {
+        super(message);
+    }
+}
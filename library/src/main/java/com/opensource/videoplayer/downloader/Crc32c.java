@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2016. The Android Open Source Project.
+ *
+ *          yinglovezhuzhu@gmail.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *           http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.opensource.videoplayer.downloader;
+
+
+/**
+ * CRC-32C（Castagnoli）校验，和Google Cloud Storage的x-goog-hash中的crc32c一致<br>
+ * 校验值只有一个int，可以直接保存到数据库，下次继续计算；{@link #combine(int, int, long)}可以把两段相邻数据的校验值
+ * 合并成整段数据的校验值，不需要重新读取数据（算法来自zlib的crc32_combine）
+ * Created by yinglovezhuzhu@gmail.com on 2017/1/20.
+ */
+public final class Crc32c {
+
+    /** 反转后的多项式 **/
+    private static final int POLY = 0x82F63B78;
+
+    private static final int[] TABLE = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i;
+            for (int j = 0; j < 8; j++) {
+                crc = (crc & 1) != 0 ? (crc >>> 1) ^ POLY : crc >>> 1;
+            }
+            TABLE[i] = crc;
+        }
+    }
+
+    private Crc32c() {
+
+    }
+
+    /**
+     * 继续计算校验值
+     * @param crc 之前数据的校验值，第一段数据为0
+     * @param data 数据
+     * @param offset 开始位置
+     * @param length 长度
+     * @return 包含这段数据的校验值
+     */
+    public static int update(int crc, byte[] data, int offset, int length) {
+        int c = ~crc;
+        for (int i = offset, end = offset + length; i < end; i++) {
+            c = TABLE[(c ^ data[i]) & 0xff] ^ (c >>> 8);
+        }
+        return ~c;
+    }
+
+    /**
+     * 合并两段相邻数据的校验值
+     * @param crc1 第一段数据的校验值
+     * @param crc2 第二段数据的校验值
+     * @param length2 第二段数据的长度
+     * @return 两段数据连在一起的校验值
+     */
+    public static int combine(int crc1, int crc2, long length2) {
+        if (length2 <= 0) {
+            return crc1;
+        }
+        int[] even = new int[32]; // 偶数次方的零数据运算矩阵
+        int[] odd = new int[32]; // 奇数次方的零数据运算矩阵
+
+        // 一个0比特的运算矩阵
+        odd[0] = POLY;
+        int row = 1;
+        for (int n = 1; n < 32; n++) {
+            odd[n] = row;
+            row <<= 1;
+        }
+        // 两个0比特
+        square(even, odd);
+        // 四个0比特
+        square(odd, even);
+
+        // 在crc1后面补length2个0字节
+        int crc = crc1;
+        long len = length2;
+        do {
+            square(even, odd);
+            if ((len & 1) != 0) {
+                crc = times(even, crc);
+            }
+            len >>= 1;
+            if (len == 0) {
+                break;
+            }
+            square(odd, even);
+            if ((len & 1) != 0) {
+                crc = times(odd, crc);
+            }
+            len >>= 1;
+        } while (len != 0);
+        return crc ^ crc2;
+    }
+
+    private static int times(int[] matrix, int vec) {
+        int sum = 0;
+        int i = 0;
+        while (vec != 0) {
+            if ((vec & 1) != 0) {
+                sum ^= matrix[i];
+            }
+            vec >>>= 1;
+            i++;
+        }
+        return sum;
+    }
+
+    private static void square(int[] square, int[] matrix) {
+        for (int n = 0; n < 32; n++) {
+            square[n] = times(matrix, matrix[n]);
+        }
+    }
+}
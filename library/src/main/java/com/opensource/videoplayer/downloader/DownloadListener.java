@@ -40,4 +40,12 @@ public interface DownloadListener {
      * @param message 说明文字
      */
 	void onError(int code, String message);
+
+    /**
+     * 下载出错后等待重试，重试会从已经下载到的位置继续
+     * @param retryCount 连续重试的次数，从1开始，下载到数据后重新计数
+     * @param maxRetries 最大重试次数，超过后下载失败，回调{@link #onError(int, String)}
+     * @param message 出错的原因
+     */
+    void onRetry(int retryCount, int maxRetries, String message);
 }
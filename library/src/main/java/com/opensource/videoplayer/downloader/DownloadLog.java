@@ -29,9 +29,18 @@ public class DownloadLog {
     private int downloadedSize;
     private int totalSize;
     private String savedFile;
-    private boolean endDownloaded = false; // 文件尾部是否已经下载， false 未下载， true 已下载
+    private boolean endDownloaded = false; // 索引数据（moov或者文件尾部）是否已经下载， false 未下载， true 已下载
+    private int moovStartPos = 0; // 预先下载的索引数据开始位置
+    private int moovEndPos = 0; // 预先下载的索引数据结束位置（不包含）
     private long finishedTime = System.currentTimeMillis();
+    private long lastAccess = 0; // 最后访问（播放）时间
+    private String etag = null; // 服务器返回的ETag
+    private String lastModified = null; // 服务器返回的Last-Modified
+    private long expires = 0; // 根据Cache-Control的max-age计算的过期时间，之前不需要验证
     private boolean locked = false;
+    private RangeSet downloadedRanges = new RangeSet(); // 已经下载的字节区间
+    private BlockChecksums blockChecksums = new BlockChecksums(); // 已经下载的数据按块计算的校验值
+    private String contentDigest = null; // 服务器提供的整个文件的摘要，格式为"算法=base64"
 
     public DownloadLog() {
 
@@ -93,6 +102,22 @@ public class DownloadLog {
         this.endDownloaded = endDownloaded;
     }
 
+    public int getMoovStartPos() {
+        return moovStartPos;
+    }
+
+    public void setMoovStartPos(int moovStartPos) {
+        this.moovStartPos = moovStartPos;
+    }
+
+    public int getMoovEndPos() {
+        return moovEndPos;
+    }
+
+    public void setMoovEndPos(int moovEndPos) {
+        this.moovEndPos = moovEndPos;
+    }
+
     public long getFinishedTime() {
         return finishedTime;
     }
@@ -101,6 +126,150 @@ public class DownloadLog {
         this.finishedTime = finishedTime;
     }
 
+    public long getLastAccess() {
+        return lastAccess;
+    }
+
+    public void setLastAccess(long lastAccess) {
+        this.lastAccess = lastAccess;
+    }
+
+    public String getEtag() {
+        return etag;
+    }
+
+    public void setEtag(String etag) {
+        this.etag = etag;
+    }
+
+    public String getLastModified() {
+        return lastModified;
+    }
+
+    public void setLastModified(String lastModified) {
+        this.lastModified = lastModified;
+    }
+
+    public long getExpires() {
+        return expires;
+    }
+
+    public void setExpires(long expires) {
+        this.expires = expires;
+    }
+
+    public RangeSet getDownloadedRanges() {
+        return downloadedRanges;
+    }
+
+    public void setDownloadedRanges(RangeSet downloadedRanges) {
+        this.downloadedRanges = null == downloadedRanges ? new RangeSet() : downloadedRanges;
+        this.downloadedSize = this.downloadedRanges.getCoveredLength();
+    }
+
+    public BlockChecksums getBlockChecksums() {
+        return blockChecksums;
+    }
+
+    public void setBlockChecksums(BlockChecksums blockChecksums) {
+        this.blockChecksums = null == blockChecksums ? new BlockChecksums() : blockChecksums;
+    }
+
+    public String getContentDigest() {
+        return contentDigest;
+    }
+
+    public void setContentDigest(String contentDigest) {
+        this.contentDigest = contentDigest;
+    }
+
+    /**
+     * 记录一段已经下载的数据，同时更新已下载长度
+     * @param start 开始位置
+     * @param end 结束位置（不包含）
+     */
+    public void addDownloadedRange(int start, int end) {
+        downloadedRanges.add(start, end);
+        downloadedSize = downloadedRanges.getCoveredLength();
+    }
+
+    /**
+     * 记录一段已经下载的数据和它的校验值
+     * @param start 开始位置
+     * @param end 结束位置（不包含），不能跨越校验块的边界
+     * @param crc 这段数据的CRC-32C
+     */
+    public void addDownloadedRange(int start, int end, int crc) {
+        blockChecksums.add(start, end, crc);
+        addDownloadedRange(start, end);
+    }
+
+    /**
+     * 删除一段已经下载的数据记录（数据损坏需要重新下载）
+     * @param start 开始位置
+     * @param end 结束位置（不包含）
+     */
+    public void removeDownloadedRange(int start, int end) {
+        downloadedRanges.remove(start, end);
+        blockChecksums.remove(start, end);
+        downloadedSize = downloadedRanges.getCoveredLength();
+    }
+
+    /**
+     * 指定区间是否已经下载
+     * @param offset 开始位置
+     * @param length 长度
+     * @return 是否已经全部下载
+     */
+    public boolean isRangeAvailable(int offset, int length) {
+        return downloadedSize >= totalSize || downloadedRanges.isRangeAvailable(offset, length);
+    }
+
+    /**
+     * 获取从指定位置开始连续已下载的长度
+     * @param position 位置
+     * @return 连续已下载的长度
+     */
+    public int getAvailableLength(int position) {
+        if (position < 0 || position >= totalSize) {
+            return 0;
+        }
+        if (downloadedSize >= totalSize) {
+            return totalSize - position;
+        }
+        return downloadedRanges.getAvailableLength(position);
+    }
+
+    /**
+     * 获取指定位置之后第一个没有下载的区间
+     * @param from 开始查找的位置
+     * @return {开始位置, 结束位置（不包含）}，之后没有缺失的数据时返回null
+     */
+    public int[] nextMissingRange(int from) {
+        return downloadedRanges.nextMissingRange(from, totalSize);
+    }
+
+    /**
+     * 复制一份当前的下载进度，用于在其他线程中保存
+     * @return 下载日志的副本，不包含锁定状态
+     */
+    public DownloadLog snapshot() {
+        DownloadLog log = new DownloadLog(url, downloadedSize, totalSize, savedFile);
+        log.id = id;
+        log.endDownloaded = endDownloaded;
+        log.moovStartPos = moovStartPos;
+        log.moovEndPos = moovEndPos;
+        log.finishedTime = finishedTime;
+        log.lastAccess = lastAccess;
+        log.etag = etag;
+        log.lastModified = lastModified;
+        log.expires = expires;
+        log.setDownloadedRanges(downloadedRanges.copy());
+        log.blockChecksums = blockChecksums.copy();
+        log.contentDigest = contentDigest;
+        return log;
+    }
+
     public void lock() {
         this.locked = true;
     }
@@ -122,8 +291,17 @@ public class DownloadLog {
                 ", totalSize=" + totalSize +
                 ", savedFile='" + savedFile + '\'' +
                 ", endDownloaded=" + endDownloaded +
+                ", moovStartPos=" + moovStartPos +
+                ", moovEndPos=" + moovEndPos +
                 ", finishedTime=" + finishedTime +
+                ", lastAccess=" + lastAccess +
+                ", etag='" + etag + '\'' +
+                ", lastModified='" + lastModified + '\'' +
+                ", expires=" + expires +
                 ", locked=" + locked +
+                ", downloadedRanges=" + downloadedRanges +
+                ", blockChecksums=" + blockChecksums +
+                ", contentDigest='" + contentDigest + '\'' +
                 '}';
     }
 }
@@ -0,0 +1,280 @@
+/*
+ * Copyright (C) 2016. The Android Open Source Project.
+ *
+ *          yinglovezhuzhu@gmail.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *           http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.opensource.videoplayer.downloader;
+
+import android.util.Log;
+
+import com.opensource.videoplayer.cache.CacheManager;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 下载调度器，所有下载任务在同一个固定大小的线程池中执行<br>
+ * 等待中的任务按优先级（正在播放 &gt; 即将播放 &gt; 后台）和提交顺序排队；
+ * 同一个URL同时只有一个任务，重复提交的时候监听器加入已有的任务，优先级更高的时候提升已有任务的优先级；
+ * 最后一个监听器取消的时候停止任务
+ * Created by yinglovezhuzhu@gmail.com on 2017/1/12.
+ */
+public final class DownloadScheduler {
+
+    private static final String TAG = "DownloadScheduler";
+
+    /** 正在播放的视频 **/
+    public static final int PRIORITY_FOREGROUND = 0;
+
+    /** 即将播放的视频 **/
+    public static final int PRIORITY_NEXT = 1;
+
+    /** 后台预先下载 **/
+    public static final int PRIORITY_BACKGROUND = 2;
+
+    private static final int DEFAULT_MAX_CONCURRENT = 2;
+
+    private static DownloadScheduler mInstance = null;
+
+    private final ThreadPoolExecutor mExecutor;
+
+    private final Map<String, Job> mJobs = new HashMap<String, Job>(); // URL -> 等待中或者正在执行的任务
+
+    private final AtomicLong mSequence = new AtomicLong();
+
+    private DownloadScheduler() {
+        mExecutor = new ThreadPoolExecutor(DEFAULT_MAX_CONCURRENT, DEFAULT_MAX_CONCURRENT,
+                30, TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "Download-scheduler-" + mCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public static DownloadScheduler getInstance() {
+        synchronized (DownloadScheduler.class) {
+            if (null == mInstance) {
+                mInstance = new DownloadScheduler();
+            }
+            return mInstance;
+        }
+    }
+
+    /**
+     * 设置同时执行的下载任务数
+     * @param maxConcurrent 任务数，小于1的时候按1处理
+     */
+    public synchronized void setMaxConcurrent(int maxConcurrent) {
+        int count = maxConcurrent < 1 ? 1 : maxConcurrent;
+        if (count > mExecutor.getMaximumPoolSize()) {
+            mExecutor.setMaximumPoolSize(count);
+            mExecutor.setCorePoolSize(count);
+        } else {
+            mExecutor.setCorePoolSize(count);
+            mExecutor.setMaximumPoolSize(count);
+        }
+    }
+
+    /**
+     * 提交一个下载任务，同一个URL已经有任务的时候不会重复下载，监听器加入已有的任务，
+     * 并且马上收到已有任务最近一次的下载进度；已有的任务已经结束的时候提交一个新的任务
+     *
+     * @param downloader 下载器
+     * @param defaultSuffix 默认后缀，参考{@link Downloader#download(String, DownloadListener)}
+     * @param priority 优先级，{@link #PRIORITY_FOREGROUND}、{@link #PRIORITY_NEXT}、{@link #PRIORITY_BACKGROUND}
+     * @param listener 下载监听，可以为null
+     * @return 执行这个URL下载的任务，任务的下载器可能不是传入的下载器
+     */
+    public synchronized Job submit(Downloader downloader, String defaultSuffix, int priority,
+                                   DownloadListener listener) {
+        String url = downloader.getUrl();
+        Job job = mJobs.get(url);
+        if (null == job || job.mFinished) {
+            job = new Job(url, downloader, defaultSuffix, priority, mSequence.getAndIncrement());
+            job.addListener(listener);
+            mJobs.put(url, job);
+            mExecutor.execute(job);
+            return job;
+        }
+        if (job.addListener(listener)) {
+            // 在加入之前已经分发的进度（包括下载完成）不会再收到，这里补发最近一次的进度
+            job.replayProgress(listener);
+        }
+        if (priority < job.mPriority && !job.mRunning && mExecutor.remove(job)) {
+            // 重新排队，提升优先级
+            job.mPriority = priority;
+            mExecutor.execute(job);
+        }
+        return job;
+    }
+
+    /**
+     * 移除一个任务的监听器，任务没有监听器的时候取消这个任务：
+     * 还没有开始执行的从队列中移除，正在执行的调用{@link Downloader#stop()}停止<br>
+     * 调用者不需要再停止下载器，其他监听器还在使用的时候下载会继续
+     *
+     * @param url 下载地址
+     * @param listener 下载监听
+     */
+    public synchronized void cancel(String url, DownloadListener listener) {
+        Job job = mJobs.get(url);
+        if (null == job) {
+            return;
+        }
+        if (!job.mListeners.remove(listener) || !job.mListeners.isEmpty()) {
+            return;
+        }
+        if (!job.mRunning) {
+            if (mExecutor.remove(job)) {
+                mJobs.remove(url);
+            }
+        } else if (!job.mFinished) {
+            // 停止之后下载线程结束，onJobFinish的时候移除任务
+            job.mDownloader.stop();
+        }
+    }
+
+    /**
+     * 等待执行的任务数
+     * @return 任务数
+     */
+    public int getQueueDepth() {
+        return mExecutor.getQueue().size();
+    }
+
+    /**
+     * 正在执行的任务数
+     * @return 任务数
+     */
+    public int getActiveCount() {
+        return mExecutor.getActiveCount();
+    }
+
+    private synchronized void onJobStart(Job job) {
+        job.mRunning = true;
+    }
+
+    private synchronized void onJobFinish(Job job) {
+        // 标记为结束之后再提交同一个URL会创建新的任务，不会加入这个不再分发进度的任务
+        job.mFinished = true;
+        if (mJobs.get(job.mUrl) == job) {
+            mJobs.remove(job.mUrl);
+        }
+    }
+
+    /**
+     * 下载任务，把下载进度和错误分发给所有的监听器
+     */
+    public final class Job implements Runnable, Comparable<Job>, DownloadListener {
+
+        private final String mUrl;
+        private final Downloader mDownloader;
+        private final String mDefaultSuffix;
+        private final long mSequence;
+        private int mPriority;
+        private boolean mRunning = false;
+        private boolean mFinished = false;
+        private volatile long mProgress = -1L; // 最近一次的下载进度，高32位是已下载大小，低32位是总大小
+        private final CopyOnWriteArrayList<DownloadListener> mListeners = new CopyOnWriteArrayList<DownloadListener>();
+
+        private Job(String url, Downloader downloader, String defaultSuffix, int priority, long sequence) {
+            this.mUrl = url;
+            this.mDownloader = downloader;
+            this.mDefaultSuffix = defaultSuffix;
+            this.mPriority = priority;
+            this.mSequence = sequence;
+        }
+
+        public Downloader getDownloader() {
+            return mDownloader;
+        }
+
+        private boolean addListener(DownloadListener listener) {
+            return null != listener && mListeners.addIfAbsent(listener);
+        }
+
+        private void replayProgress(DownloadListener listener) {
+            long progress = mProgress;
+            if (progress >= 0) {
+                listener.onProgressUpdate((int) (progress >>> 32), (int) progress);
+            }
+        }
+
+        @Override
+        public void run() {
+            onJobStart(this);
+            // 下载过程中缓存不会被清理
+            CacheManager.getInstance().pin(mUrl);
+            Exception error = null;
+            try {
+                mDownloader.download(mDefaultSuffix, this);
+            } catch (Exception e) {
+                Log.e(TAG, "Download failed: " + mUrl, e);
+                error = e;
+            } finally {
+                // 先标记结束再分发结果，之后提交的监听器加入新的任务
+                onJobFinish(this);
+                CacheManager.getInstance().unpin(mUrl);
+            }
+            if (null != error) {
+                onError(DownloadListener.CODE_EXCEPTION, error.getMessage());
+            }
+            CacheManager.getInstance().trim();
+        }
+
+        @Override
+        public int compareTo(Job another) {
+            if (mPriority != another.mPriority) {
+                return mPriority < another.mPriority ? -1 : 1;
+            }
+            return mSequence < another.mSequence ? -1 : (mSequence == another.mSequence ? 0 : 1);
+        }
+
+        @Override
+        public void onProgressUpdate(int downloadedSize, int totalSize) {
+            mProgress = ((long) downloadedSize << 32) | (totalSize & 0xFFFFFFFFL);
+            for (DownloadListener listener : mListeners) {
+                listener.onProgressUpdate(downloadedSize, totalSize);
+            }
+        }
+
+        @Override
+        public void onError(int code, String message) {
+            for (DownloadListener listener : mListeners) {
+                listener.onError(code, message);
+            }
+        }
+
+        @Override
+        public void onRetry(int retryCount, int maxRetries, String message) {
+            for (DownloadListener listener : mListeners) {
+                listener.onRetry(retryCount, maxRetries, message);
+            }
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2016. The Android Open Source Project.
+ *
+ *          yinglovezhuzhu@gmail.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *           http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.opensource.videoplayer.downloader;
+
+/**
+ * 分段下载的数据段，描述文件中的一段需要下载的字节区间[startPos, endPos)以及这一段已经下载的长度<br>
+ * 分段只是下载时的任务划分，不保存到数据库，已经下载的数据由{@link RangeSet}记录
+ * Created by yinglovezhuzhu@gmail.com on 2016/12/20.
+ */
+
+public class DownloadSegment {
+
+    private int startPos;
+    private int endPos;
+    private int downloadedSize;
+    private boolean running = false; // 是否有线程正在下载这一段
+    private volatile boolean interrupted = false; // 是否需要中断正在下载这一段的线程
+
+    public DownloadSegment(int startPos, int endPos, int downloadedSize) {
+        this.startPos = startPos;
+        this.endPos = endPos;
+        this.downloadedSize = downloadedSize;
+    }
+
+    public int getStartPos() {
+        return startPos;
+    }
+
+    public int getEndPos() {
+        return endPos;
+    }
+
+    public void setEndPos(int endPos) {
+        this.endPos = endPos;
+    }
+
+    public int getDownloadedSize() {
+        return downloadedSize;
+    }
+
+    public void setDownloadedSize(int downloadedSize) {
+        this.downloadedSize = downloadedSize;
+    }
+
+    /**
+     * 下一个需要下载的位置
+     * @return 下一个需要下载的字节位置
+     */
+    public int getCurrentPos() {
+        return startPos + downloadedSize;
+    }
+
+    /**
+     * 这一段的总长度
+     * @return 总长度
+     */
+    public int getLength() {
+        return endPos - startPos;
+    }
+
+    public boolean isFinished() {
+        return downloadedSize >= getLength();
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    public void setRunning(boolean running) {
+        this.running = running;
+    }
+
+    public boolean isInterrupted() {
+        return interrupted;
+    }
+
+    /**
+     * 设置中断标志，正在下载这一段的线程会在读取完当前的数据后停止，去下载优先级更高的分段
+     * @param interrupted 是否中断
+     */
+    public void setInterrupted(boolean interrupted) {
+        this.interrupted = interrupted;
+    }
+
+    @Override
+    public String toString() {
+        return "DownloadSegment{" +
+                "startPos=" + startPos +
+                ", endPos=" + endPos +
+                ", downloadedSize=" + downloadedSize +
+                '}';
+    }
+}
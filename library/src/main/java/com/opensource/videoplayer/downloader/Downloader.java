@@ -21,7 +21,14 @@ package com.opensource.videoplayer.downloader;
 import android.content.Context;
 import android.util.Log;
 
+import com.opensource.videoplayer.BandwidthMeter;
+import com.opensource.videoplayer.db.DatabaseProgressStore;
 import com.opensource.videoplayer.db.DownloadDBUtils;
+import com.opensource.videoplayer.db.DownloadJournal;
+import com.opensource.videoplayer.mp4.Mp4Box;
+import com.opensource.videoplayer.mp4.Mp4BoxParser;
+import com.opensource.videoplayer.mp4.Mp4SampleTable;
+import com.opensource.videoplayer.mp4.RangeReader;
 import com.opensource.videoplayer.utils.StringUtils;
 
 import java.io.File;
@@ -30,10 +37,14 @@ import java.io.InputStream;
 import java.io.RandomAccessFile;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -51,8 +62,20 @@ public class Downloader {
 
     private static final int RESPONSE_OK = 200;
 
+    private static final int RESPONSE_PARTIAL_CONTENT = 206;
+
+    private static final int MIN_SEGMENT_SIZE = 1024 * 1024; // 分段下载时每一段的最小长度
+
+    private static final int SEEK_THRESHOLD = 1024 * 256; // seek位置离正在下载的位置小于这个长度的时候不需要调整下载位置
+
+    private static final int FILE_END_SIZE = 1024 * 512; // 不能解析moov位置的时候先下载的文件尾部长度
+
+    private static final int MAX_VERIFY_RETRY = 1; // 校验失败后重新下载损坏的块的次数
+
+    private static final int READ_TIMEOUT = 15 * 1000; // 读取超时，超过这个时间没有数据认为连接已经卡住
+
     private Context mContext;
-    private boolean mStop = true; // The flag of stopped.
+    private volatile boolean mStop = true; // The flag of stopped.
     private File mSaveFolder;
     private String mFileName; // saveLog file name;
     private File mSavedFile = null;
@@ -61,6 +84,33 @@ public class Downloader {
 
     private boolean mNeedDownloadEnd = false; // Need download file end first
 
+    private int mSegmentCount = 1; // 分段下载的段数，每一段使用一个连接并行下载
+
+    private final Object mDataLock = new Object(); // 有新数据写入或者下载停止时通知等待数据的线程
+
+    private volatile int mPriorityPos = -1; // 优先下载的位置（seek的位置），-1为没有
+    private Mp4SampleTable mSampleTable = null; // 视频的采样表，用于把seek时间换算为文件位置
+
+    private final List<DownloadSegment> mSegments = new ArrayList<DownloadSegment>(); // 本次下载的分段，按开始位置排序
+
+    private boolean mUseNio = false; // 是否使用NIO方式写入文件
+
+    private BufferSizer mBufferSizer = new BufferSizer(BufferSizer.DEFAULT_MIN_SIZE,
+            BufferSizer.DEFAULT_MAX_SIZE, BUFFER_SIZE); // 根据读取速度调整读写缓存大小，所有连接共用
+
+    private HttpStream mPendingStream = null; // 保留下来还没有读取完的连接，从它当前的位置继续下载时直接使用
+
+    private ProgressCheckpointer mCheckpointer; // 下载过程中定期保存进度
+    private JournalProgressStore mProgressStore; // 下载过程中的进度写入进度日志，停止时才写数据库
+    private long mCheckpointBytes = ProgressCheckpointer.DEFAULT_BYTES_INTERVAL;
+    private long mCheckpointTime = ProgressCheckpointer.DEFAULT_TIME_INTERVAL;
+
+    private RetryPolicy mRetryPolicy = new RetryPolicy(); // 出错后的重试策略
+
+    private final List<String> mMirrorUrls = new ArrayList<String>(); // 和主地址内容相同的其他下载地址
+    private MirrorSelector mMirrors = null; // 根据速度选择下载地址，使用时才创建
+    private final AtomicInteger mFailureCount = new AtomicInteger(0); // 连续失败（没有下载到数据）的次数
+
     /**
      * Constructor<br><br>
      *
@@ -84,8 +134,36 @@ public class Downloader {
      * 设置下载url
      * @param url 下载url地址
      */
-    public void setUrl(String url) {
+    public synchronized void setUrl(String url) {
         this.mUrl = url;
+        this.mMirrors = null;
+    }
+
+    /**
+     * 设置和下载地址内容相同的其他地址（镜像、不同的CDN）<br>
+     * 下载时不同的分段可以同时从不同的地址下载，速度快的地址分到更多的数据；
+     * 一个地址出错或者卡住的时候，它没有下载完的部分由其他地址继续下载。
+     * 下载记录和缓存验证都以{@link #getUrl()}为准
+     * @param urls 其他下载地址，不包括主地址，可以为null
+     */
+    public synchronized void setMirrorUrls(List<String> urls) {
+        mMirrorUrls.clear();
+        if (null != urls) {
+            for (String url : urls) {
+                if (!StringUtils.isEmpty(url) && !url.equals(mUrl) && !mMirrorUrls.contains(url)) {
+                    mMirrorUrls.add(url);
+                }
+            }
+        }
+        this.mMirrors = null;
+    }
+
+    /**
+     * 获取下载url
+     * @return 下载url地址
+     */
+    public String getUrl() {
+        return mUrl;
     }
 
     /**
@@ -97,6 +175,20 @@ public class Downloader {
      * @throws Exception The error happened when downloading.
      */
     public File download(String defaultSuffix, DownloadListener listener) throws Exception {
+        try {
+            return doDownload(defaultSuffix, listener);
+        } catch (RuntimeException e) {
+            if (!isContentChanged(e)) {
+                throw e;
+            }
+            // 服务器上的文件已经改变，删除已经下载的数据，重新开始下载
+            Log.w(TAG, "Content changed, restart download: " + mUrl);
+            resetDownload();
+            return doDownload(defaultSuffix, listener);
+        }
+    }
+
+    private File doDownload(String defaultSuffix, DownloadListener listener) throws Exception {
         if(StringUtils.isEmpty(mUrl)) {
             if(null != listener) {
                 listener.onError(DownloadListener.CODE_EXCEPTION, "download url is empty");
@@ -108,13 +200,15 @@ public class Downloader {
             return mSavedFile;
         }
         mStop = false;
+        mFailureCount.set(0);
 
+        // 第一次打开进度日志时会把上一个进程的进度合并到数据库，需要在读取下载日志之前
+        ProgressJournal journal = DownloadJournal.open(mContext);
         mDownloadLog = DownloadDBUtils.getLogByUrl(mContext, mUrl);
         if (null != mDownloadLog
                 && mDownloadLog.getDownloadedSize() >= mDownloadLog.getTotalSize()) {
             mSavedFile = new File(mDownloadLog.getSavedFile());
-            DownloadDBUtils.deleteLog(mContext, mUrl);
-            DownloadDBUtils.saveHistory(mContext, mDownloadLog);
+            DownloadDBUtils.completeDownload(mContext, mDownloadLog);
             mDownloadLog.unlock();
             mStop = true;
             Log.w(TAG, "File downloadVideo finished!");
@@ -125,50 +219,46 @@ public class Downloader {
             return mSavedFile;
         }
 
-        HttpURLConnection conn = null;
         RandomAccessFile randomFile = null;
 
         if (null == mDownloadLog) {
-            // 进行一次链接，获取需要下载的文件信息
+            // 第一个请求从文件开头开始下载，同时从响应中获取文件信息，不再单独请求一次；
+            // 连接保留下来，之后从这个位置开始的下载直接使用，省去一次连接
             int fileSize = 0;
+            HttpStream stream = null;
             try {
-                conn = getConnection(mUrl);
-                conn.connect();
-                Log.i(TAG, getResponseHeader(conn));
-                if (conn.getResponseCode() == RESPONSE_OK) {
-                    fileSize = conn.getContentLength();
-                    // Throw a RuntimeException when got file size failed.
-                    if (fileSize < 0) {
-                        throw new RuntimeException("Can't get file size ");
-                    }
-
-                    if (StringUtils.isEmpty(mFileName)) {
-                        final String filename = getFileName(conn, defaultSuffix);
-                        // Create local file object according to local saved folder and local file name.
-                        mSavedFile = new File(mSaveFolder, filename);
-                    } else {
-                        mSavedFile = new File(mSaveFolder, mFileName);
-                    }
+                stream = openStreamWithRetry(0, -1, listener);
+                Log.i(TAG, getResponseHeader(stream.conn));
+                fileSize = getTotalSize(stream.conn);
+                // Throw a RuntimeException when got file size failed.
+                if (fileSize < 0) {
+                    throw new RuntimeException("Can't get file size ");
+                }
 
-                    mDownloadLog = new DownloadLog(mUrl, 0, fileSize, mSavedFile.getPath());
-                    DownloadDBUtils.saveLog(mContext, mDownloadLog);
-                    if (mDownloadLog.getDownloadedSize() >= fileSize) {
-                        // 下载完成，删除日志，保存到下载历史中
-                        DownloadDBUtils.deleteLog(mContext, mUrl);
-                        DownloadDBUtils.saveHistory(mContext, mDownloadLog);
-                        mStop = true;
-                        return mSavedFile;
-                    }
-                    mDownloadLog.lock();
+                if (StringUtils.isEmpty(mFileName)) {
+                    final String filename = getFileName(stream.conn, defaultSuffix);
+                    // Create local file object according to local saved folder and local file name.
+                    mSavedFile = new File(mSaveFolder, filename);
                 } else {
-                    if (null != mDownloadLog) {
-                        mDownloadLog.unlock();
-                    }
+                    mSavedFile = new File(mSaveFolder, mFileName);
+                }
+
+                mDownloadLog = new DownloadLog(mUrl, 0, fileSize, mSavedFile.getPath());
+                if (stream.mirror.isPrimary()) {
+                    // 不同的CDN的ETag可能不同，只记录主地址的验证信息
+                    CacheValidator.readValidators(stream.conn, mDownloadLog);
+                    mDownloadLog.setContentDigest(IntegrityVerifier.parseDigest(stream.conn));
+                }
+                DownloadDBUtils.saveLog(mContext, mDownloadLog);
+                if (mDownloadLog.getDownloadedSize() >= fileSize) {
+                    // 下载完成，删除日志，保存到下载历史中
+                    DownloadDBUtils.completeDownload(mContext, mDownloadLog);
                     mStop = true;
-                    Log.w(TAG, "Server response error! Response code：" + conn.getResponseCode()
-                            + "Response message：" + conn.getResponseMessage());
-                    throw new RuntimeException("server response error, response code:" + conn.getResponseCode());
+                    return mSavedFile;
                 }
+                mDownloadLog.lock();
+                putPendingStream(stream);
+                stream = null;
             } catch (Exception e) {
                 if (null != mDownloadLog) {
                     mDownloadLog.unlock();
@@ -177,10 +267,9 @@ public class Downloader {
                 Log.e(TAG, e.toString());
                 throw new RuntimeException("Failed to connect the url:" + mUrl, e);
             } finally {
-                if (null != conn) {
-                    conn.disconnect();
+                if (null != stream) {
+                    stream.close(false);
                 }
-                conn = null;
             }
 
             if(mStop) {
@@ -213,15 +302,25 @@ public class Downloader {
             mSavedFile = new File(mDownloadLog.getSavedFile());
             mSaveFolder = mSavedFile.getParentFile();
             mFileName = mSavedFile.getName();
+            if (mSavedFile.length() != mDownloadLog.getTotalSize()) {
+                // 文件被截断或者删除，已经下载的数据不能使用，重新下载
+                Log.w(TAG, "Saved file truncated, restart download: " + mSavedFile);
+                resetDownload();
+                return doDownload(defaultSuffix, listener);
+            }
         }
 
         if(mStop) {
             return mSavedFile;
         }
 
-        // 下载视频数据的尾部部分，否则播放器无法解析视频文件
+        mProgressStore = new JournalProgressStore(journal, new DatabaseProgressStore(mContext));
+        mCheckpointer = new ProgressCheckpointer(mProgressStore, mDownloadLog, mSavedFile,
+                mCheckpointBytes, mCheckpointTime);
+
+        // 先下载视频的索引数据（moov），否则播放器无法解析视频文件
         if(mNeedDownloadEnd) {
-            downloadFileEnd(mContext, 1024 * 512);
+            downloadMoov(mContext, listener);
         }
 
         if(mStop) {
@@ -232,51 +331,31 @@ public class Downloader {
             listener.onProgressUpdate(mDownloadLog.getDownloadedSize(), mDownloadLog.getTotalSize());
         }
 
-        InputStream inStream = null;
         try {
-            conn = getConnection(mUrl);
-
-            // Get the position of this thread start to downloadVideo.
-            int startPos = mDownloadLog.getDownloadedSize();
-
-            // Get the position of this thread end to downloadVideo.
-            int endPos = mDownloadLog.getTotalSize();
-
-            //Setting the rage of the data, it will return exact realistic size automatically,
-            // if the size set to be is lager then realistic size.
-            conn.setRequestProperty("Range", "bytes=" + startPos + "-" + endPos);
-
-            // Get the input stream of the connection.
-            Log.i(TAG, "Starts to downloadVideo from position " + startPos);
-            randomFile = new RandomAccessFile(mSavedFile, "rw");
-            // Make the pointer point to the position where start to downloadVideo.
-            randomFile.seek(startPos);
-            inStream = conn.getInputStream();
-            // Set local cache size
-            byte[] buffer = new byte[BUFFER_SIZE];
-            int offset = 0;
-            // The data is written to file until user stop downloadVideo or data is finished downloadVideo.
-            while (!mStop && (offset = inStream.read(buffer)) != -1) {
-                randomFile.write(buffer, 0, offset);
-                mDownloadLog.setDownloadedSize(mDownloadLog.getDownloadedSize() + offset);
-                if (null != listener) {
-                    listener.onProgressUpdate(mDownloadLog.getDownloadedSize(), mDownloadLog.getTotalSize());
-                }
+            downloadSegments(listener);
+            // Flush the data and update the downloaded ranges to database.
+            mCheckpointer.flush();
+            if (!mStop && mDownloadLog.getDownloadedSize() >= mDownloadLog.getTotalSize()) {
+                verifyIntegrity(listener);
             }
-            // Update the range of this thread to database.
-            DownloadDBUtils.updateLog(mContext, mDownloadLog);
             if (mDownloadLog.getDownloadedSize() >= mDownloadLog.getTotalSize()) {
                 // 下载完成，删除日志，保存到下载历史中
-                DownloadDBUtils.deleteLog(mContext, mUrl);
                 mDownloadLog.setDownloadedSize(mDownloadLog.getTotalSize());
-                DownloadDBUtils.saveHistory(mContext, mDownloadLog);
+                DownloadDBUtils.completeDownload(mContext, mDownloadLog);
+                mProgressStore.discard();
                 mStop = true;
+            } else {
+                // 停止下载，进度日志中的进度保存到数据库
+                mProgressStore.close();
             }
 
             if (null != mDownloadLog) {
                 mDownloadLog.unlock();
             }
         } catch (Exception e) {
+            // 保存已经下载的区间，下次只需要下载缺少的部分
+            mCheckpointer.flush();
+            mProgressStore.close();
             if (null != mDownloadLog) {
                 mDownloadLog.unlock();
             }
@@ -284,26 +363,189 @@ public class Downloader {
             Log.e(TAG, e.toString());// 打印错误
             throw new RuntimeException("Failed to downloadVideo file from " + mUrl, e);
         } finally {
-            if (null != randomFile) {
-                try {
-                    randomFile.close();
-                } catch (Exception e) {
-                    e.printStackTrace();
+            closePendingStream();
+            Log.i(TAG, "Buffer sizes: " + mBufferSizer);
+        }
+        return mSavedFile;
+    }
+
+    /**
+     * 设置分段下载的段数（同时使用的连接数），每次开始下载时把还没有下载的区间划分成这个数量的分段
+     * @param segmentCount 段数，小于1的时候按1处理
+     */
+    public void setSegmentCount(int segmentCount) {
+        this.mSegmentCount = segmentCount < 1 ? 1 : segmentCount;
+    }
+
+    /**
+     * 把正在下载的位置移动到指定播放时间之前最近的关键帧，跳过的部分之后再下载<br>
+     * 需要先下载视频的索引数据（moov），不能换算的时候不做处理
+     *
+     * @param timeMs 播放时间，单位毫秒
+     * @return 是否调整了下载位置
+     */
+    public boolean seekToTime(long timeMs) {
+        Mp4SampleTable sampleTable = getSampleTable();
+        if (null == sampleTable) {
+            return false;
+        }
+        long offset = sampleTable.getKeyFrameOffset(timeMs);
+        if (offset < 0 || offset > Integer.MAX_VALUE) {
+            return false;
+        }
+        return seekTo((int) offset);
+    }
+
+    /**
+     * 把正在下载的位置移动到指定的文件位置，跳过的部分之后再下载<br>
+     * 这个位置所在的分段会在这个位置被拆分成两段，正在下载这一段（没有的话任意一段）的线程会停止，
+     * 转去下载从这个位置开始的新分段
+     *
+     * @param position 文件中的位置
+     * @return 是否调整了下载位置
+     */
+    public boolean seekTo(int position) {
+        DownloadLog log = mDownloadLog;
+        if (null == log || position < 0 || position >= log.getTotalSize()
+                || getAvailableLength(position) > 0) {
+            return false;
+        }
+        synchronized (log) {
+            List<DownloadSegment> segments = mSegments;
+            DownloadSegment target = null;
+            int index = 0;
+            for (; index < segments.size(); index++) {
+                DownloadSegment segment = segments.get(index);
+                if (position >= segment.getStartPos() && position < segment.getEndPos()) {
+                    target = segment;
+                    break;
                 }
             }
-            if (null != inStream) {
-                try {
-                    inStream.close();
-                } catch (Exception e) {
-                    e.printStackTrace();
+            if (null == target || target.isFinished()) {
+                return false;
+            }
+            if (target.isRunning() && position - target.getCurrentPos() < SEEK_THRESHOLD) {
+                // 正在下载的位置很快就会到达seek位置
+                mPriorityPos = position;
+                return false;
+            }
+            int splitPos = Math.max(position, target.getCurrentPos());
+            if (splitPos > target.getCurrentPos()) {
+                segments.add(index + 1, new DownloadSegment(splitPos, target.getEndPos(), 0));
+                target.setEndPos(splitPos);
+            }
+            mPriorityPos = splitPos;
+            Log.i(TAG, "Seek download position to " + splitPos);
+
+            // 中断一个正在下载的线程，让它去下载新的分段
+            DownloadSegment interrupt = target.isRunning() ? target : null;
+            for (int i = 0; null == interrupt && i < segments.size(); i++) {
+                if (segments.get(i).isRunning()) {
+                    interrupt = segments.get(i);
                 }
             }
-            if (null != conn) {
-                conn.disconnect();
+            if (null != interrupt) {
+                interrupt.setInterrupted(true);
             }
+        }
+        return true;
+    }
 
+    /**
+     * 获取视频的采样表，第一次调用时从本地已经下载的moov数据解析
+     * @return 采样表，moov还没有下载或者不能解析的时候返回null
+     */
+    private synchronized Mp4SampleTable getSampleTable() {
+        DownloadLog log = mDownloadLog;
+        if (null != mSampleTable || null == log || null == mSavedFile || !log.isEndDownloaded()) {
+            return mSampleTable;
         }
-        return mSavedFile;
+        RandomAccessFile file = null;
+        try {
+            final RandomAccessFile localFile = new RandomAccessFile(mSavedFile, "r");
+            file = localFile;
+            Mp4Box moov;
+            if (log.getMoovEndPos() > log.getMoovStartPos()) {
+                moov = new Mp4Box("moov", log.getMoovStartPos(),
+                        log.getMoovEndPos() - log.getMoovStartPos(), 8);
+            } else {
+                // moov在文件开头，从本地文件中查找，只读取已经下载的部分
+                moov = Mp4BoxParser.findTopLevelBox(new RangeReader() {
+                    @Override
+                    public byte[] read(long offset, int length) throws IOException {
+                        if (getAvailableLength((int) offset) < length) {
+                            throw new IOException("Data not downloaded at " + offset);
+                        }
+                        byte[] data = new byte[length];
+                        localFile.seek(offset);
+                        localFile.readFully(data);
+                        return data;
+                    }
+                }, log.getTotalSize(), "moov");
+            }
+            if (null == moov || moov.getSize() > Integer.MAX_VALUE
+                    || getAvailableLength((int) moov.getOffset()) < moov.getSize()) {
+                return null;
+            }
+            byte[] data = new byte[(int) moov.getSize()];
+            file.seek(moov.getOffset());
+            file.readFully(data);
+            mSampleTable = Mp4SampleTable.parse(data);
+        } catch (IOException e) {
+            Log.w(TAG, "Load sample table failed: " + e.toString());
+        } finally {
+            if (null != file) {
+                try {
+                    file.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        return mSampleTable;
+    }
+
+    /**
+     * 设置是否使用NIO方式（读取到池化的byte[]缓存，FileChannel按位置写入）写入文件，默认不使用
+     * @param useNio 是否使用NIO
+     */
+    public void setUseNio(boolean useNio) {
+        this.mUseNio = useNio;
+    }
+
+    /**
+     * 设置读写缓存大小的范围，下载时根据实际读取速度在这个范围内调整，两个值相同时使用固定大小的缓存
+     * @param minSize 最小缓存大小
+     * @param maxSize 最大缓存大小
+     */
+    public void setBufferSizeBounds(int minSize, int maxSize) {
+        this.mBufferSizer = new BufferSizer(minSize, maxSize, BUFFER_SIZE);
+    }
+
+    /**
+     * 获取缓存大小的统计数据（当前大小、平滑后的速度、每种大小的使用次数），用于调整缓存大小的范围
+     * @return 缓存大小调整
+     */
+    public BufferSizer getBufferSizer() {
+        return mBufferSizer;
+    }
+
+    /**
+     * 设置下载过程中保存进度的间隔，写入的字节数或者经过的时间先达到的时候保存一次
+     * @param bytes 字节数
+     * @param timeMs 时间，单位毫秒
+     */
+    public void setCheckpointInterval(long bytes, long timeMs) {
+        this.mCheckpointBytes = bytes;
+        this.mCheckpointTime = timeMs;
+    }
+
+    /**
+     * 设置出错后的重试策略，默认为{@link RetryPolicy#RetryPolicy()}
+     * @param policy 重试策略，null为不重试
+     */
+    public void setRetryPolicy(RetryPolicy policy) {
+        this.mRetryPolicy = null == policy ? new RetryPolicy(0, 1, 1) : policy;
     }
 
     /**
@@ -314,6 +556,8 @@ public class Downloader {
         if (null != mDownloadLog) {
             mDownloadLog.unlock();
         }
+        closePendingStream();
+        notifyDataChanged();
     }
 
     /**
@@ -345,6 +589,55 @@ public class Downloader {
         return null == mDownloadLog ? 0 : mDownloadLog.getTotalSize();
     }
 
+    /**
+     * 获取从指定位置开始，本地已经下载的连续数据长度
+     *
+     * @param position 文件中的位置
+     * @return 从这个位置开始可以直接读取的字节数，没有数据时返回0
+     */
+    public int getAvailableLength(int position) {
+        DownloadLog log = mDownloadLog;
+        if (null == log) {
+            return 0;
+        }
+        synchronized (log) {
+            return log.getAvailableLength(position);
+        }
+    }
+
+    /**
+     * 等待指定位置的数据下载完成，在数据可用或者超时的时候返回<br>
+     * 下载停止的时候会继续等待，重新开始下载后写入的数据同样会唤醒等待的线程<br>
+     * 这个方法会阻塞，不要在ui线程中调用
+     *
+     * @param position 文件中的位置
+     * @param timeout 最长等待时间，单位毫秒
+     * @return 从这个位置开始可以直接读取的字节数，超时的时候为0
+     * @throws InterruptedException 等待被中断
+     */
+    public int waitForData(int position, long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        synchronized (mDataLock) {
+            int available = getAvailableLength(position);
+            long remain = timeout;
+            while (available <= 0 && remain > 0) {
+                mDataLock.wait(remain);
+                available = getAvailableLength(position);
+                remain = deadline - System.currentTimeMillis();
+            }
+            return available;
+        }
+    }
+
+    /**
+     * 通知等待数据的线程有新数据写入或者下载状态改变
+     */
+    private void notifyDataChanged() {
+        synchronized (mDataLock) {
+            mDataLock.notifyAll();
+        }
+    }
+
     /**
      * Gets save file
      *
@@ -356,56 +649,333 @@ public class Downloader {
 
 
     /**
-     * 下载文件的最尾部分数据<br>
-     * mp4视频文件如果最后部分没有下载下来，将无法播放，直到下载完成，这里先将文件的最后部分下载下来，
-     * 方便视频能够在未下载完成就可以开始播放
+     * 把还没有下载的区间划分成分段并行下载，每一段使用单独的连接，写入同一个文件的对应位置<br>
+     * 只有一段的时候直接在当前线程下载
      *
-     * @param context  Context对象
-     * @param byteSize 需要下载的文件尾部的长度
+     * @param listener 下载监听，进度为所有分段的总进度
+     * @throws Exception 任意一段下载出错
      */
-    private void downloadFileEnd(Context context, int byteSize) {
-        if (null == mDownloadLog || mDownloadLog.isEndDownloaded()
-                | mDownloadLog.getDownloadedSize() >= mDownloadLog.getTotalSize()) {
+    private void downloadSegments(final DownloadListener listener) throws Exception {
+        int unfinished;
+        synchronized (mDownloadLog) {
+            buildSegments();
+            unfinished = mSegments.size();
+        }
+        if (unfinished == 0) {
             return;
         }
-        HttpURLConnection conn = null;
-        RandomAccessFile outFile = null;
-        InputStream inStream = null;
+
+        final List<Exception> errors = Collections.synchronizedList(new ArrayList<Exception>());
+        final Runnable worker = new Runnable() {
+            @Override
+            public void run() {
+                DownloadSegment segment;
+                while (!mStop && null != (segment = nextSegment())) {
+                    try {
+                        downloadSegment(segment, listener);
+                    } catch (Exception e) {
+                        Log.e(TAG, "Segment download failed: " + segment, e);
+                        // 暂时性的错误等待后重试，分段从已经下载到的位置继续
+                        if (!awaitRetry(e, listener)) {
+                            errors.add(e);
+                            mStop = true;
+                        }
+                    } finally {
+                        synchronized (mDownloadLog) {
+                            segment.setRunning(false);
+                        }
+                    }
+                }
+            }
+        };
+
+        int threadCount = Math.min(unfinished, mSegmentCount);
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 1; i < threadCount; i++) {
+            Thread thread = new Thread(worker, "Downloader-segment-" + i);
+            threads.add(thread);
+            thread.start();
+        }
+        worker.run();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        if (!errors.isEmpty()) {
+            throw errors.get(0);
+        }
+    }
+
+    /**
+     * 和服务器提供的摘要比较，校验下载完成的文件，损坏的块删除下载记录后重新下载，
+     * 不能确定损坏位置或者重新下载后仍然不一致的时候删除所有数据
+     *
+     * @param listener 下载监听
+     * @throws Exception 文件不正确或者重新下载出错
+     */
+    private void verifyIntegrity(DownloadListener listener) throws Exception {
+        for (int attempt = 0; !mStop; attempt++) {
+            DownloadLog snapshot;
+            synchronized (mDownloadLog) {
+                snapshot = mDownloadLog.snapshot();
+            }
+            List<int[]> corrupt = new IntegrityVerifier(mSavedFile, snapshot).verify();
+            if (null != corrupt && corrupt.isEmpty()) {
+                return;
+            }
+            if (null == corrupt || attempt >= MAX_VERIFY_RETRY) {
+                resetDownload();
+                throw new IOException("Checksum mismatch: " + mUrl);
+            }
+            synchronized (mDownloadLog) {
+                for (int[] range : corrupt) {
+                    Log.w(TAG, "Refetch corrupt block " + range[0] + "-" + range[1]);
+                    mDownloadLog.removeDownloadedRange(range[0], range[1]);
+                }
+            }
+            mCheckpointer.flush();
+            downloadSegments(listener);
+            mCheckpointer.flush();
+        }
+    }
+
+    /**
+     * 根据还没有下载的区间生成分段，分段数少于设置的段数时把最长的分段从中间拆分，
+     * 直到达到段数或者分段长度小于最小长度，调用时需要同步mDownloadLog
+     */
+    private void buildSegments() {
+        mSegments.clear();
+        int[] missing = mDownloadLog.nextMissingRange(0);
+        while (null != missing) {
+            mSegments.add(new DownloadSegment(missing[0], missing[1], 0));
+            missing = mDownloadLog.nextMissingRange(missing[1]);
+        }
+        while (mSegments.size() < mSegmentCount) {
+            int longest = -1;
+            for (int i = 0; i < mSegments.size(); i++) {
+                if (longest < 0 || mSegments.get(i).getLength() > mSegments.get(longest).getLength()) {
+                    longest = i;
+                }
+            }
+            if (longest < 0 || mSegments.get(longest).getLength() < MIN_SEGMENT_SIZE * 2) {
+                break;
+            }
+            DownloadSegment segment = mSegments.get(longest);
+            int middle = segment.getStartPos() + segment.getLength() / 2;
+            mSegments.add(longest + 1, new DownloadSegment(middle, segment.getEndPos(), 0));
+            segment.setEndPos(middle);
+        }
+    }
+
+    /**
+     * 获取下一个未完成并且没有线程在下载的分段
+     * @return 分段，没有的时候返回null
+     */
+    private DownloadSegment nextSegment() {
+        synchronized (mDownloadLog) {
+            DownloadSegment next = null;
+            for (DownloadSegment segment : mSegments) {
+                if (segment.isFinished() || segment.isRunning()) {
+                    continue;
+                }
+                if (null == next) {
+                    next = segment;
+                }
+                if (mPriorityPos >= 0 && segment.getEndPos() > mPriorityPos) {
+                    // 优先下载播放位置（seek位置）之后的分段
+                    next = segment;
+                    break;
+                }
+            }
+            if (null != next) {
+                next.setRunning(true);
+                next.setInterrupted(false);
+            }
+            return next;
+        }
+    }
+
+    /**
+     * 下载一个分段剩余的部分
+     * @param segment 分段
+     * @param listener 下载监听
+     * @throws Exception 下载出错
+     */
+    private void downloadSegment(final DownloadSegment segment, final DownloadListener listener) throws Exception {
+        HttpStream stream = null;
+        RandomAccessFile randomFile = null;
+        boolean completed = false;
         try {
-            conn = getConnection(mUrl);
+            // Get the position of this segment start to downloadVideo.
+            int startPos = segment.getCurrentPos();
 
-            // 开始下载的位置
-            int startPos = mDownloadLog.getTotalSize() - byteSize;
-            // 保证开始位置大于等于0
-            startPos = startPos < 0 ? 0 : startPos;
+            // Get the position of this segment end to downloadVideo(exclusive).
+            int endPos = segment.getEndPos();
 
-            // 下载的结束位置
-            int endPos = mDownloadLog.getTotalSize();
+            // Get the input stream of the connection.
+            Log.i(TAG, "Starts to downloadVideo from position " + startPos + " to " + endPos);
+            stream = openStream(startPos, endPos);
+            final HttpStream current = stream;
+            BandwidthMeter.getInstance().onTransferStart();
+            randomFile = new RandomAccessFile(mSavedFile, "rw");
+            // The data is written to file until user stop downloadVideo, data of this segment is finished
+            // or this segment is interrupted by seeking.
+            stream.position += newCopier().copy(stream.in, randomFile, startPos,
+                    segment.getLength() - segment.getDownloadedSize(), new ChunkCopier.Callback() {
+                        @Override
+                        public boolean isCancelled() {
+                            return mStop || segment.isInterrupted();
+                        }
 
-            //Setting the rage of the data, it will return exact realistic size automatically,
-            // if the size set to be is lager then realistic size.
-            conn.setRequestProperty("Range", "bytes=" + startPos + "-" + endPos);
+                        @Override
+                        public int onChunkWritten(int position, int count, int crc) {
+                            int remain;
+                            int downloadedSize;
+                            int totalSize;
+                            synchronized (mDownloadLog) {
+                                mDownloadLog.addDownloadedRange(position, position + count, crc);
+                                // seek的时候分段可能被拆分，结束位置会变小，超出的数据属于新的分段（内容相同），不计入这一段
+                                segment.setDownloadedSize(Math.min(segment.getLength(),
+                                        segment.getDownloadedSize() + count));
+                                remain = segment.getLength() - segment.getDownloadedSize();
+                                downloadedSize = mDownloadLog.getDownloadedSize();
+                                totalSize = mDownloadLog.getTotalSize();
+                            }
+                            mFailureCount.set(0);
+                            onMirrorTransferred(current, count);
+                            notifyDataChanged();
+                            mCheckpointer.onBytesWritten(count);
+                            BandwidthMeter.getInstance().onBytesTransferred(count);
+                            if (null != listener) {
+                                listener.onProgressUpdate(downloadedSize, totalSize);
+                            }
+                            return remain;
+                        }
+                    });
+            completed = true;
+            if (segment.isFinished()) {
+                // 每完成一段保存一次进度
+                mCheckpointer.requestCheckpoint();
+            }
+        } finally {
+            if (null != randomFile) {
+                try {
+                    randomFile.close();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+            if (null != stream) {
+                BandwidthMeter.getInstance().onTransferEnd();
+                releaseStream(stream, completed);
+            }
+        }
+    }
 
+    /**
+     * 预先下载视频的索引数据（moov box）<br>
+     * mp4视频文件如果moov没有下载下来，将无法播放，直到下载完成。这里逐个读取顶层box的头部找到moov的位置，
+     * 只下载moov这一段数据，方便视频能够在未下载完成就可以开始播放；下载的数据会记录到已下载区间中，
+     * 之后不会重复下载；不是mp4文件或者解析失败的时候下载文件的最尾部分
+     *
+     * @param context  Context对象
+     * @param listener 下载监听
+     */
+    private void downloadMoov(Context context, DownloadListener listener) {
+        if (null == mDownloadLog || mDownloadLog.isEndDownloaded()
+                || mDownloadLog.getDownloadedSize() >= mDownloadLog.getTotalSize()) {
+            return;
+        }
+        int totalSize = mDownloadLog.getTotalSize();
+        Mp4Box moov = null;
+        try {
+            moov = Mp4BoxParser.findTopLevelBox(new HttpRangeReader(), totalSize, "moov");
+        } catch (IOException e) {
+            Log.w(TAG, "Find moov box failed: " + e.toString());
+        }
+
+        int startPos;
+        int endPos;
+        if (null == moov) {
+            // 不能解析的时候先下载文件尾部，保证开始位置大于等于0
+            startPos = Math.max(0, totalSize - FILE_END_SIZE);
+            endPos = totalSize;
+        } else {
+            startPos = (int) moov.getOffset();
+            endPos = (int) moov.getEnd();
+        }
+        int[] missing;
+        synchronized (mDownloadLog) {
+            missing = mDownloadLog.nextMissingRange(startPos);
+        }
+        while (!mStop && null != missing && missing[0] < endPos) {
+            try {
+                downloadRange(context, missing[0], Math.min(missing[1], endPos));
+            } catch (IOException e) {
+                Log.e(TAG, e.toString());// 打印错误
+                // 暂时性的错误等待后重试，已经下载的部分记录在区间中，从中断的位置继续
+                if (!awaitRetry(e, listener)) {
+                    mDownloadLog.unlock();
+                    mStop = true;
+                    throw new RuntimeException("Failed to downloadVideo file from " + mUrl, e);
+                }
+            }
+            synchronized (mDownloadLog) {
+                missing = mDownloadLog.nextMissingRange(missing[0]);
+            }
+        }
+        if (mStop) {
+            return;
+        }
+        if (null != moov) {
+            mDownloadLog.setMoovStartPos(startPos);
+            mDownloadLog.setMoovEndPos(endPos);
+        }
+        mDownloadLog.setEndDownloaded(true);
+        mCheckpointer.flush();
+    }
+
+    /**
+     * 下载文件中指定区间的数据并写入到文件的对应位置
+     *
+     * @param context  Context对象
+     * @param startPos 开始位置
+     * @param endPos 结束位置（不包含）
+     * @throws IOException 连接或者读写出错，已经写入的数据会记录到已下载区间中
+     */
+    private void downloadRange(Context context, int startPos, final int endPos) throws IOException {
+        HttpStream stream = null;
+        RandomAccessFile outFile = null;
+        boolean completed = false;
+        try {
             // Get the input stream of the connection.
-            Log.i(TAG, "Starts to downloadVideo from position " + startPos);
+            Log.i(TAG, "Starts to downloadVideo from position " + startPos + " to " + endPos);
+            stream = openStream(startPos, endPos);
+            final HttpStream current = stream;
+            BandwidthMeter.getInstance().onTransferStart();
             outFile = new RandomAccessFile(mSavedFile, "rw");
-            // Make the pointer point to the position where start to downloadVideo.
-            outFile.seek(startPos);
-            inStream = conn.getInputStream();
-            // Set local cache size
-            byte[] buffer = new byte[BUFFER_SIZE];
-            int offset = 0;
             // The data is written to file until user stop downloadVideo or data is finished downloadVideo.
-            while (!mStop && (offset = inStream.read(buffer)) != -1) {
-                outFile.write(buffer, 0, offset);
-            }
-            mDownloadLog.setEndDownloaded(true);
-            DownloadDBUtils.updateLog(context, mDownloadLog);
-        } catch (Exception e) {
-            Log.e(TAG, e.toString());// 打印错误
-            mDownloadLog.unlock();
-            mStop = true;
-            throw new RuntimeException("Failed to downloadVideo file from " + mUrl, e);
+            stream.position += newCopier().copy(stream.in, outFile, startPos, endPos - startPos,
+                    new ChunkCopier.Callback() {
+                        @Override
+                        public boolean isCancelled() {
+                            return mStop;
+                        }
+
+                        @Override
+                        public int onChunkWritten(int position, int count, int crc) {
+                            synchronized (mDownloadLog) {
+                                mDownloadLog.addDownloadedRange(position, position + count, crc);
+                            }
+                            mFailureCount.set(0);
+                            onMirrorTransferred(current, count);
+                            notifyDataChanged();
+                            mCheckpointer.onBytesWritten(count);
+                            BandwidthMeter.getInstance().onBytesTransferred(count);
+                            return endPos - position - count;
+                        }
+                    });
+            completed = true;
         } finally {
             if (null != outFile) {
                 try {
@@ -414,16 +984,292 @@ public class Downloader {
                     e.printStackTrace();
                 }
             }
-            if (null != inStream) {
+            if (null != stream) {
+                BandwidthMeter.getInstance().onTransferEnd();
+                releaseStream(stream, completed);
+            }
+        }
+    }
+
+    /**
+     * 创建写入文件的工具，同时按块计算校验值
+     */
+    private ChunkCopier newCopier() {
+        ChunkCopier copier = new ChunkCopier(mUseNio, mBufferSizer);
+        copier.setChecksumBlockSize(mDownloadLog.getBlockChecksums().getBlockSize());
+        return copier;
+    }
+
+    /**
+     * 异常是否由服务器上的文件改变引起
+     */
+    private static boolean isContentChanged(Throwable e) {
+        for (Throwable cause = e; null != cause; cause = cause.getCause()) {
+            if (cause instanceof ContentChangedException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 删除下载日志和已经下载的数据，下次下载从头开始
+     */
+    private void resetDownload() {
+        closePendingStream();
+        if (null != mProgressStore) {
+            mProgressStore.discard();
+        }
+        DownloadDBUtils.deleteLog(mContext, mUrl);
+        if (null != mSavedFile && mSavedFile.exists() && !mSavedFile.delete()) {
+            Log.w(TAG, "Delete file failed: " + mSavedFile);
+        }
+        synchronized (this) {
+            mDownloadLog = null;
+            mSampleTable = null;
+        }
+        mPriorityPos = -1;
+    }
+
+    /**
+     * 打开一个从指定位置开始的数据流<br>
+     * 保留的连接正好在这个位置的时候直接使用，否则发送一个新的Range请求；
+     * 系统的HttpURLConnection会复用同一个服务器的空闲连接（keep-alive），不需要重新建立连接
+     *
+     * @param startPos 开始位置
+     * @param endPos 结束位置（不包含），小于等于0的时候请求到文件结尾
+     * @return 数据流
+     * @throws IOException 连接失败或者服务器不支持Range请求
+     */
+    private HttpStream openStream(int startPos, int endPos) throws IOException {
+        HttpStream stream = takePendingStream(startPos);
+        if (null != stream) {
+            Log.i(TAG, "Reuse connection at position " + startPos);
+            return stream;
+        }
+        MirrorSelector mirrors = getMirrors();
+        while (true) {
+            // 第一个请求从主地址读取文件信息
+            MirrorSelector.Mirror mirror = mirrors.select(null == mDownloadLog);
+            try {
+                return openStream(mirror, startPos, endPos);
+            } catch (ContentChangedException e) {
+                throw e;
+            } catch (IOException e) {
+                Log.w(TAG, "Open stream failed: " + mirror + ", " + e);
+                // 还有其他可用的地址时直接换一个地址
+                if (!mirrors.onFailure(mirror) || mStop) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * 从指定的地址打开一个从指定位置开始的数据流
+     *
+     * @param mirror 下载地址
+     * @param startPos 开始位置
+     * @param endPos 结束位置（不包含），小于等于0的时候请求到文件结尾
+     * @return 数据流
+     * @throws IOException 连接失败、服务器不支持Range请求或者镜像的文件和主地址不一致
+     */
+    private HttpStream openStream(MirrorSelector.Mirror mirror, int startPos, int endPos) throws IOException {
+        HttpURLConnection conn = getConnection(mirror.getUrl());
+        conn.setRequestProperty("Range", "bytes=" + startPos + "-" + (endPos > 0 ? String.valueOf(endPos - 1) : ""));
+        DownloadLog log = mDownloadLog;
+        if (null != log && mirror.isPrimary()) {
+            // 文件改变的时候服务器返回整个新文件，不会把两个版本的数据拼在一起
+            CacheValidator.setIfRange(conn, log);
+        }
+        int responseCode = conn.getResponseCode();
+        if (null != log && mirror.isPrimary() && CacheValidator.isChanged(conn, log, startPos)) {
+            conn.disconnect();
+            throw new ContentChangedException("Content changed: " + mUrl);
+        }
+        boolean partial = responseCode == RESPONSE_PARTIAL_CONTENT;
+        // 不支持Range请求的服务器返回整个文件，只能用于从文件开头开始的下载
+        if (!partial && !(responseCode == RESPONSE_OK && startPos == 0)) {
+            conn.disconnect();
+            throw new HttpResponseException(responseCode, "server response error, response code:" + responseCode);
+        }
+        if (null != log && !mirror.isPrimary() && getTotalSize(conn) != log.getTotalSize()) {
+            // 镜像上的文件和主地址不是同一个文件
+            conn.disconnect();
+            getMirrors().remove(mirror);
+            throw new IOException("Mirror content mismatch: " + mirror.getUrl());
+        }
+        return new HttpStream(conn, conn.getInputStream(), mirror, startPos, partial ? endPos : -1);
+    }
+
+    /**
+     * 获取下载地址选择器，第一次使用或者地址改变后创建
+     * @return 下载地址选择器
+     */
+    private synchronized MirrorSelector getMirrors() {
+        if (null == mMirrors) {
+            List<String> urls = new ArrayList<String>();
+            urls.add(mUrl);
+            urls.addAll(mMirrorUrls);
+            mMirrors = new MirrorSelector(urls);
+        }
+        return mMirrors;
+    }
+
+    /**
+     * 记录从数据流的地址读取到的数据，用于按速度选择地址
+     * @param stream 数据流
+     * @param count 读取的字节数
+     */
+    private void onMirrorTransferred(HttpStream stream, int count) {
+        long now = System.nanoTime();
+        getMirrors().onTransferred(stream.mirror, count, now - stream.sampleTime);
+        stream.sampleTime = now;
+    }
+
+    /**
+     * 打开一个从指定位置开始的数据流，暂时性的错误等待后重试
+     *
+     * @param startPos 开始位置
+     * @param endPos 结束位置（不包含），小于等于0的时候请求到文件结尾
+     * @param listener 下载监听
+     * @return 数据流
+     * @throws IOException 不能重试的错误或者超过了重试次数
+     */
+    private HttpStream openStreamWithRetry(int startPos, int endPos, DownloadListener listener) throws IOException {
+        while (true) {
+            try {
+                return openStream(startPos, endPos);
+            } catch (IOException e) {
+                Log.e(TAG, e.toString());
+                if (!awaitRetry(e, listener)) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * 下载出错后判断是否重试，可以重试的时候通知监听并等待退避时间<br>
+     * 等待过程中停止下载会立即返回；连续失败的次数在下载到数据后清零
+     *
+     * @param e 出错的原因
+     * @param listener 下载监听，可以为null
+     * @return 是否需要重试，false为不能重试的错误、超过了重试次数或者下载已经停止
+     */
+    private boolean awaitRetry(Exception e, DownloadListener listener) {
+        RetryPolicy policy = mRetryPolicy;
+        if (mStop || !policy.isRetryable(e)) {
+            return false;
+        }
+        MirrorSelector mirrors = getMirrors();
+        if (mirrors.size() > 1 && mirrors.hasAvailable()) {
+            // 出错的地址已经暂停使用，立即从其他地址继续下载，不计入重试次数
+            Log.w(TAG, "Fail over to other mirrors: " + mirrors);
+            return true;
+        }
+        int retryCount = mFailureCount.incrementAndGet();
+        if (retryCount > policy.getMaxRetries()) {
+            Log.w(TAG, "Retry budget exhausted after " + policy.getMaxRetries() + " retries: " + mUrl);
+            return false;
+        }
+        long delay = policy.getDelay(retryCount);
+        Log.w(TAG, "Retry " + retryCount + "/" + policy.getMaxRetries() + " in " + delay + "ms: " + e);
+        if (null != listener) {
+            listener.onRetry(retryCount, policy.getMaxRetries(), e.toString());
+        }
+        // stop()会通知mDataLock，等待中停止下载可以立即返回
+        long deadline = System.currentTimeMillis() + delay;
+        synchronized (mDataLock) {
+            long remain;
+            while (!mStop && (remain = deadline - System.currentTimeMillis()) > 0) {
                 try {
-                    inStream.close();
-                } catch (Exception e) {
-                    e.printStackTrace();
+                    mDataLock.wait(remain);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    return false;
                 }
             }
-            if (null != conn) {
-                conn.disconnect();
+        }
+        return !mStop;
+    }
+
+    /**
+     * 使用完数据流后释放<br>
+     * 请求的数据全部读取完的时候关闭数据流，连接回到系统的连接池给之后的请求使用；
+     * 请求到文件结尾的数据流没有读取完的时候保留下来，下一个从这个位置开始的下载继续使用；
+     * 其他情况（停止下载、出错、分段被中断）断开连接
+     *
+     * @param stream 数据流
+     * @param completed 读取过程是否正常结束
+     */
+    private void releaseStream(HttpStream stream, boolean completed) {
+        if (!completed && !mStop) {
+            // 读取出错或者超时，这个地址暂停使用，之后的请求换其他地址
+            getMirrors().onFailure(stream.mirror);
+        }
+        if (!completed || mStop) {
+            stream.close(false);
+        } else if (stream.end < 0) {
+            if (stream.position < mDownloadLog.getTotalSize()) {
+                putPendingStream(stream);
+            } else {
+                stream.close(true);
             }
+        } else {
+            stream.close(stream.position >= stream.end);
+        }
+    }
+
+    private synchronized HttpStream takePendingStream(int position) {
+        HttpStream stream = mPendingStream;
+        if (null == stream || stream.position != position) {
+            return null;
+        }
+        mPendingStream = null;
+        // 保留期间没有读取，不计入速度
+        stream.sampleTime = System.nanoTime();
+        return stream;
+    }
+
+    private synchronized int getPendingPosition() {
+        return null == mPendingStream ? -1 : mPendingStream.position;
+    }
+
+    private synchronized void putPendingStream(HttpStream stream) {
+        if (null != mPendingStream && mPendingStream != stream) {
+            mPendingStream.close(false);
+        }
+        mPendingStream = stream;
+    }
+
+    private synchronized void closePendingStream() {
+        if (null != mPendingStream) {
+            mPendingStream.close(false);
+            mPendingStream = null;
+        }
+    }
+
+    /**
+     * 从响应中获取文件的总长度，206响应从Content-Range中获取，200响应为Content-Length
+     * @param conn 已经连接的HttpURLConnection
+     * @return 文件总长度，获取失败返回-1
+     * @throws IOException 读取响应出错
+     */
+    private static int getTotalSize(HttpURLConnection conn) throws IOException {
+        if (conn.getResponseCode() != RESPONSE_PARTIAL_CONTENT) {
+            return conn.getContentLength();
+        }
+        // Content-Range: bytes 0-1023/1048576
+        String contentRange = conn.getHeaderField("Content-Range");
+        int index = null == contentRange ? -1 : contentRange.lastIndexOf('/');
+        if (index < 0) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(contentRange.substring(index + 1).trim());
+        } catch (NumberFormatException e) {
+            return -1;
         }
     }
 
@@ -437,6 +1283,8 @@ public class Downloader {
         URL url = new URL(downloadUrl);
         HttpURLConnection conn = (HttpURLConnection) url.openConnection();
         conn.setConnectTimeout(6 * 1000);
+        // 读取超时（连接卡住）的时候抛出异常，换其他地址或者重试
+        conn.setReadTimeout(READ_TIMEOUT);
         conn.setRequestMethod("GET");
         conn.setRequestProperty("Accept", "*/*");
         conn.setRequestProperty("Accept-Language", "zh-CN");
@@ -526,4 +1374,93 @@ public class Downloader {
         }
         return sb.toString();
     }
+
+    /**
+     * 使用Range请求读取网络文件指定区间的数据<br>
+     * 保留的连接可以读取到这个区间（在它当前位置之后不远）的时候，使用这个连接下载到本地文件再读取，不发送新的请求
+     */
+    private class HttpRangeReader implements RangeReader {
+
+        @Override
+        public byte[] read(long offset, int length) throws IOException {
+            int pendingPos = getPendingPosition();
+            int totalSize = mDownloadLog.getTotalSize();
+            if (pendingPos >= 0 && offset >= pendingPos && offset + length - pendingPos <= SEEK_THRESHOLD) {
+                int end = (int) Math.min(offset + length, totalSize);
+                downloadRange(mContext, pendingPos, end);
+                return readLocal(offset, (int) (end - offset));
+            }
+            HttpStream stream = null;
+            boolean completed = false;
+            try {
+                stream = openStream((int) offset, (int) (offset + length));
+                byte[] data = new byte[length];
+                int read = 0;
+                int count;
+                while (read < length && (count = stream.in.read(data, read, length - read)) != -1) {
+                    read += count;
+                }
+                stream.position += read;
+                completed = true;
+                if (read < length) {
+                    byte[] result = new byte[read];
+                    System.arraycopy(data, 0, result, 0, read);
+                    return result;
+                }
+                return data;
+            } finally {
+                if (null != stream) {
+                    releaseStream(stream, completed);
+                }
+            }
+        }
+
+        private byte[] readLocal(long offset, int length) throws IOException {
+            RandomAccessFile file = new RandomAccessFile(mSavedFile, "r");
+            try {
+                byte[] data = new byte[length];
+                file.seek(offset);
+                file.readFully(data);
+                return data;
+            } finally {
+                file.close();
+            }
+        }
+    }
+
+    /**
+     * 一个Range请求的数据流和它当前读取到的位置
+     */
+    private static class HttpStream {
+        private final HttpURLConnection conn;
+        private final InputStream in;
+        private final MirrorSelector.Mirror mirror; // 连接的下载地址
+        private int position; // 下一个读取的字节在文件中的位置
+        private final int end; // 请求的结束位置（不包含），-1为请求到文件结尾
+        private long sampleTime; // 上一次统计速度的时间，单位纳秒
+
+        private HttpStream(HttpURLConnection conn, InputStream in, MirrorSelector.Mirror mirror, int position, int end) {
+            this.conn = conn;
+            this.in = in;
+            this.mirror = mirror;
+            this.position = position;
+            this.end = end;
+            this.sampleTime = System.nanoTime();
+        }
+
+        /**
+         * 关闭数据流
+         * @param reuse 是否把连接放回连接池，数据没有读取完的时候需要断开连接
+         */
+        private void close(boolean reuse) {
+            try {
+                in.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            if (!reuse) {
+                conn.disconnect();
+            }
+        }
+    }
 }
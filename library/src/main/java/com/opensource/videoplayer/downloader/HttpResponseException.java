@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2016. The Android Open Source Project.
+ *
+ *          yinglovezhuzhu@gmail.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *           http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.opensource.videoplayer.downloader;
+
+import java.io.IOException;
+
+/**
+ * 服务器返回了不能使用的响应码，例如404、416、503等
+ * Created by yinglovezhuzhu@gmail.com on 2017/1/24.
+ */
+public class HttpResponseException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int mResponseCode;
+
+    public HttpResponseException(int responseCode, String message) {
+        super(message);
+        this.mResponseCode = responseCode;
+    }
+
+    /**
+     * 获取响应码
+     * @return HTTP响应码
+     */
+    public int getResponseCode() {
+        return mResponseCode;
+    }
+}
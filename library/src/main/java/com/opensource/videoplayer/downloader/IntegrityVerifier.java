@@ -0,0 +1,271 @@
+/*
+ * Copyright (C) 2016. The Android Open Source Project.
+ *
+ *          yinglovezhuzhu@gmail.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *           http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.opensource.videoplayer.downloader;
+
+import android.util.Base64;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * 下载完成后校验文件的完整性<br>
+ * 服务器提供了整个文件的摘要时（x-goog-hash的crc32c，Digest的sha-256/md5，200响应的Content-MD5）和它比较：
+ * crc32c直接由下载时记录的每一块的校验值合并得到，不需要读取文件；sha-256/md5需要读取一遍文件，
+ * 同时检查每一块在文件中的数据和下载时的校验值是否一致。
+ * 不一致的时候返回需要重新下载的块，不能确定是哪一块出错的时候整个文件需要重新下载<br>
+ * 恢复没有同步到磁盘的进度（进度日志）时，用{@link #verifyDownloadedRanges()}只保留和校验值一致的已下载区间
+ * Created by yinglovezhuzhu@gmail.com on 2017/1/20.
+ */
+public class IntegrityVerifier {
+
+    private static final String TAG = "IntegrityVerifier";
+
+    public static final String CRC32C = "crc32c";
+    public static final String SHA_256 = "sha-256";
+    public static final String MD5 = "md5";
+
+    private static final int RESPONSE_OK = 200;
+
+    private static final int BUFFER_SIZE = 1024 * 64;
+
+    private final File mFile;
+    private final DownloadLog mLog;
+
+    /**
+     * Constructor
+     * @param file 下载完成的文件
+     * @param log 下载日志的副本，包含每一块的校验值和服务器提供的摘要
+     */
+    public IntegrityVerifier(File file, DownloadLog log) {
+        this.mFile = file;
+        this.mLog = log;
+    }
+
+    /**
+     * 从响应头中获取服务器提供的整个文件的摘要，优先使用crc32c
+     * @param conn 已经连接的HttpURLConnection
+     * @return "算法=base64"，没有的时候返回null
+     * @throws IOException 读取响应出错
+     */
+    public static String parseDigest(HttpURLConnection conn) throws IOException {
+        String crc32c = null;
+        String sha256 = null;
+        String md5 = null;
+        String[] headers = {conn.getHeaderField("x-goog-hash"), conn.getHeaderField("Digest")};
+        for (String header : headers) {
+            if (null == header) {
+                continue;
+            }
+            for (String item : header.split(",")) {
+                int index = item.indexOf('=');
+                if (index <= 0) {
+                    continue;
+                }
+                String algorithm = item.substring(0, index).trim().toLowerCase(Locale.ENGLISH);
+                String value = item.substring(index + 1).trim();
+                if (CRC32C.equals(algorithm)) {
+                    crc32c = value;
+                } else if (SHA_256.equals(algorithm)) {
+                    sha256 = value;
+                } else if (MD5.equals(algorithm)) {
+                    md5 = value;
+                }
+            }
+        }
+        if (null == md5 && conn.getResponseCode() == RESPONSE_OK) {
+            // Content-MD5只对整个响应有效，部分内容的响应不能使用
+            md5 = conn.getHeaderField("Content-MD5");
+        }
+        if (null != crc32c) {
+            return CRC32C + "=" + crc32c;
+        }
+        if (null != sha256) {
+            return SHA_256 + "=" + sha256;
+        }
+        return null == md5 ? null : MD5 + "=" + md5;
+    }
+
+    /**
+     * 校验文件，这个方法可能读取整个文件，不要在ui线程中调用
+     * @return 需要重新下载的区间列表（每一项为{开始位置, 结束位置}），校验通过或者没有摘要的时候为空列表；
+     *         文件不正确但是不能确定是哪一块的时候返回null
+     * @throws IOException 读取文件出错
+     */
+    public List<int[]> verify() throws IOException {
+        List<int[]> corrupt = new ArrayList<int[]>();
+        String digest = mLog.getContentDigest();
+        int index = null == digest ? -1 : digest.indexOf('=');
+        if (index <= 0) {
+            return corrupt;
+        }
+        String algorithm = digest.substring(0, index);
+        byte[] expected;
+        try {
+            expected = Base64.decode(digest.substring(index + 1), Base64.DEFAULT);
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "Invalid digest: " + digest);
+            return corrupt;
+        }
+
+        if (CRC32C.equals(algorithm)) {
+            if (expected.length != 4) {
+                return corrupt;
+            }
+            long expectedCrc = ((expected[0] & 0xffL) << 24) | ((expected[1] & 0xffL) << 16)
+                    | ((expected[2] & 0xffL) << 8) | (expected[3] & 0xffL);
+            if ((getFileCrc() & 0xffffffffL) == expectedCrc) {
+                return corrupt;
+            }
+            scanBlocks(null, corrupt);
+        } else {
+            MessageDigest messageDigest;
+            try {
+                messageDigest = MessageDigest.getInstance(SHA_256.equals(algorithm) ? "SHA-256" : "MD5");
+            } catch (NoSuchAlgorithmException e) {
+                return corrupt;
+            }
+            scanBlocks(messageDigest, corrupt);
+            if (Arrays.equals(expected, messageDigest.digest())) {
+                corrupt.clear();
+                return corrupt;
+            }
+        }
+        Log.w(TAG, "Digest mismatch: " + mFile + ", corrupt blocks: " + corrupt.size());
+        return corrupt.isEmpty() ? null : corrupt;
+    }
+
+    /**
+     * 把每一块的校验值按顺序合并成整个文件的校验值，没有校验值的块从文件中计算
+     */
+    private int getFileCrc() throws IOException {
+        BlockChecksums checksums = mLog.getBlockChecksums();
+        int blockSize = checksums.getBlockSize();
+        int totalSize = mLog.getTotalSize();
+        int crc = 0;
+        RandomAccessFile file = null;
+        try {
+            for (int block = 0, start = 0; start < totalSize; block++, start += blockSize) {
+                int length = Math.min(blockSize, totalSize - start);
+                long blockCrc = checksums.getBlockCrc(block, totalSize);
+                if (blockCrc < 0) {
+                    if (null == file) {
+                        file = new RandomAccessFile(mFile, "r");
+                    }
+                    blockCrc = readBlockCrc(file, start, length, null) & 0xffffffffL;
+                }
+                crc = Crc32c.combine(crc, (int) blockCrc, length);
+            }
+        } finally {
+            if (null != file) {
+                file.close();
+            }
+        }
+        return crc;
+    }
+
+    /**
+     * 按顺序读取整个文件，比较每一块的数据和下载时的校验值，不一致的块加入列表
+     * @param digest 同时计算整个文件的摘要，可以为null
+     * @param corrupt 不一致的块
+     */
+    private void scanBlocks(MessageDigest digest, List<int[]> corrupt) throws IOException {
+        BlockChecksums checksums = mLog.getBlockChecksums();
+        int blockSize = checksums.getBlockSize();
+        int totalSize = mLog.getTotalSize();
+        RandomAccessFile file = new RandomAccessFile(mFile, "r");
+        try {
+            for (int block = 0, start = 0; start < totalSize; block++, start += blockSize) {
+                int length = Math.min(blockSize, totalSize - start);
+                int crc = readBlockCrc(file, start, length, digest);
+                long expected = checksums.getBlockCrc(block, totalSize);
+                if (expected >= 0 && expected != (crc & 0xffffffffL)) {
+                    corrupt.add(new int[] {start, start + length});
+                }
+            }
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * 从文件中重新计算每一段有校验值的已下载数据，只保留和下载时的校验值一致的部分，用于恢复没有同步到磁盘的进度：
+     * 断电后没有写到磁盘的数据和校验值不一致，没有校验值的已下载区间不能确认，都不保留。
+     * 这个方法读取所有已下载的数据，不要在ui线程中调用
+     * @return 下载日志的副本，已下载区间和校验值只包含校验通过的部分；有数据不能信任的时候文件尾部需要重新下载
+     * @throws IOException 文件不存在或者读取出错
+     */
+    public DownloadLog verifyDownloadedRanges() throws IOException {
+        BlockChecksums checksums = mLog.getBlockChecksums();
+        RangeSet downloaded = mLog.getDownloadedRanges();
+        DownloadLog result = mLog.snapshot();
+        result.setDownloadedRanges(new RangeSet());
+        result.setBlockChecksums(new BlockChecksums(checksums.getBlockSize()));
+        RandomAccessFile file = new RandomAccessFile(mFile, "r");
+        try {
+            long fileLength = file.length();
+            for (int i = 0; i < checksums.size(); i++) {
+                int start = checksums.getStart(i);
+                int end = checksums.getEnd(i);
+                if (end > fileLength || !downloaded.isRangeAvailable(start, end - start)) {
+                    continue;
+                }
+                int crc = checksums.getCrc(i);
+                if (readBlockCrc(file, start, end - start, null) == crc) {
+                    result.addDownloadedRange(start, end, crc);
+                }
+            }
+        } finally {
+            file.close();
+        }
+        if (result.getDownloadedSize() < downloaded.getCoveredLength()) {
+            Log.w(TAG, "Untrusted progress dropped: " + mFile + ", " + downloaded.getCoveredLength()
+                    + " -> " + result.getDownloadedSize());
+            // 文件尾部（moov）的数据可能被去掉了，重新检查
+            result.setEndDownloaded(false);
+        }
+        return result;
+    }
+
+    private static int readBlockCrc(RandomAccessFile file, int start, int length,
+                                    MessageDigest digest) throws IOException {
+        byte[] buffer = new byte[Math.min(BUFFER_SIZE, length)];
+        int crc = 0;
+        int remain = length;
+        file.seek(start);
+        while (remain > 0) {
+            int count = Math.min(buffer.length, remain);
+            file.readFully(buffer, 0, count);
+            crc = Crc32c.update(crc, buffer, 0, count);
+            if (null != digest) {
+                digest.update(buffer, 0, count);
+            }
+            remain -= count;
+        }
+        return crc;
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2016. The Android Open Source Project.
+ *
+ *          yinglovezhuzhu@gmail.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *           http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.opensource.videoplayer.downloader;
+
+/**
+ * 把下载过程中的进度写入{@link ProgressJournal}，只在下载停止的时候写一次数据库<br>
+ * 日志不可用（没有空闲槽位、区间太多放不下）的时候改为每次都写入数据库，和不使用日志时一样<br>
+ * 写入日志的时候{@link #isDurable()}返回false，{@link ProgressCheckpointer}不同步文件；
+ * 写入数据库之前文件一定已经同步：{@link #close()}在{@link ProgressCheckpointer#flush()}之后调用，
+ * 日志第一次写入失败的时候不马上写数据库，留到下一次（已经同步过的）保存或者{@link #close()}
+ * Created by yinglovezhuzhu@gmail.com on 2017/2/20.
+ */
+public class JournalProgressStore implements ProgressStore {
+
+    private final ProgressJournal mJournal;
+    private final ProgressStore mFallback;
+    private int mSlot = -1;
+    private boolean mJournalFailed = false;
+    private DownloadLog mLastLog = null; // 最后一次的进度，还没有保存到数据库
+
+    /**
+     * Constructor
+     * @param journal 进度日志，为null的时候直接使用fallback
+     * @param fallback 数据库等持久的保存位置
+     */
+    public JournalProgressStore(ProgressJournal journal, ProgressStore fallback) {
+        this.mJournal = journal;
+        this.mFallback = fallback;
+        this.mJournalFailed = null == journal;
+    }
+
+    @Override
+    public synchronized void updateLog(DownloadLog log) {
+        if (!mJournalFailed) {
+            if (mSlot < 0) {
+                mSlot = mJournal.acquire(log.getUrl(), log.getId());
+            }
+            if (mSlot >= 0 && mJournal.write(mSlot, log)) {
+                mLastLog = log;
+                return;
+            }
+            // 以后都写数据库，槽位中的进度已经过时，释放掉避免恢复时使用；
+            // 这次保存之前没有同步文件，不能写数据库，留到下一次保存或者close
+            mJournalFailed = true;
+            releaseSlot();
+            mLastLog = log;
+            return;
+        }
+        mFallback.updateLog(log);
+        mLastLog = null;
+    }
+
+    @Override
+    public synchronized boolean isDurable() {
+        return mJournalFailed;
+    }
+
+    /**
+     * 下载停止的时候在{@link ProgressCheckpointer#flush()}之后调用，把最后的进度保存到数据库并释放槽位；
+     * 之后的进度仍然可以继续保存
+     */
+    public synchronized void close() {
+        if (null != mLastLog) {
+            mFallback.updateLog(mLastLog);
+        }
+        releaseSlot();
+        mLastLog = null;
+    }
+
+    /**
+     * 下载完成或者放弃已下载的数据时调用，释放槽位，不保存进度
+     */
+    public synchronized void discard() {
+        releaseSlot();
+        mLastLog = null;
+    }
+
+    private void releaseSlot() {
+        if (mSlot >= 0) {
+            mJournal.release(mSlot);
+            mSlot = -1;
+        }
+    }
+}
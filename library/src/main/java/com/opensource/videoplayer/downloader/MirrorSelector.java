@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) 2016. The Android Open Source Project.
+ *
+ *          yinglovezhuzhu@gmail.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *           http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.opensource.videoplayer.downloader;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * 同一个文件的多个下载地址（镜像、不同的CDN）的选择器<br>
+ * 每个镜像记录实际下载速度（指数加权平均），每次打开新的连接时按速度作为权重随机选择一个镜像，
+ * 速度快的镜像分到更多的区间，同时多个分段可以从不同的镜像并行下载；
+ * 还没有速度数据的镜像按已知速度的平均值计算，保证每个镜像都会被尝试<br>
+ * 镜像出错或者读取超时（卡住）的时候在一段时间内不再使用，它没有下载完的区间由其他镜像继续下载；
+ * 文件内容和主地址不一致（长度不同）的镜像在这次下载中不再使用<br>
+ * 第一个地址是主地址，下载记录和验证信息都以主地址为准
+ * Created by yinglovezhuzhu@gmail.com on 2017/1/26.
+ */
+public class MirrorSelector {
+
+    /** 镜像出错后不再使用的时间，单位毫秒 **/
+    public static final long DEFAULT_COOLDOWN = 30000;
+
+    /** 新的速度样本的权重 **/
+    private static final double SMOOTHING = 0.3;
+
+    private final List<Mirror> mMirrors = new ArrayList<Mirror>();
+    private final long mCooldown;
+    private final Random mRandom = new Random();
+
+    /**
+     * Constructor
+     * @param urls 下载地址，第一个为主地址，不能为空
+     */
+    public MirrorSelector(List<String> urls) {
+        this(urls, DEFAULT_COOLDOWN);
+    }
+
+    /**
+     * Constructor
+     * @param urls 下载地址，第一个为主地址，不能为空
+     * @param cooldown 镜像出错后不再使用的时间，单位毫秒
+     */
+    public MirrorSelector(List<String> urls, long cooldown) {
+        if (null == urls || urls.isEmpty()) {
+            throw new IllegalArgumentException("At least one url is required");
+        }
+        for (int i = 0; i < urls.size(); i++) {
+            mMirrors.add(new Mirror(urls.get(i), i == 0));
+        }
+        this.mCooldown = cooldown;
+    }
+
+    /**
+     * 选择一个镜像用于新的连接<br>
+     * 所有镜像都不可用的时候返回最早恢复的一个，由调用者的重试策略决定是否继续
+     * @param preferPrimary 主地址可用的时候是否直接使用主地址，第一个请求需要从主地址读取文件信息
+     * @return 镜像
+     */
+    public synchronized Mirror select(boolean preferPrimary) {
+        long now = now();
+        Mirror primary = mMirrors.get(0);
+        if (preferPrimary && primary.isAvailable(now)) {
+            return primary;
+        }
+        List<Mirror> available = new ArrayList<Mirror>();
+        double knownSum = 0;
+        int knownCount = 0;
+        for (Mirror mirror : mMirrors) {
+            if (mirror.isAvailable(now)) {
+                available.add(mirror);
+                if (mirror.mBytesPerSecond > 0) {
+                    knownSum += mirror.mBytesPerSecond;
+                    knownCount++;
+                }
+            }
+        }
+        if (available.isEmpty()) {
+            Mirror earliest = null;
+            for (Mirror mirror : mMirrors) {
+                if (!mirror.mRemoved && (null == earliest || mirror.mDisabledUntil < earliest.mDisabledUntil)) {
+                    earliest = mirror;
+                }
+            }
+            return null == earliest ? primary : earliest;
+        }
+        double unknownWeight = knownCount == 0 ? 1 : knownSum / knownCount;
+        double[] weights = new double[available.size()];
+        double total = 0;
+        for (int i = 0; i < weights.length; i++) {
+            double speed = available.get(i).mBytesPerSecond;
+            weights[i] = speed > 0 ? speed : unknownWeight;
+            total += weights[i];
+        }
+        double target = mRandom.nextDouble() * total;
+        for (int i = 0; i < weights.length; i++) {
+            target -= weights[i];
+            if (target < 0) {
+                return available.get(i);
+            }
+        }
+        return available.get(available.size() - 1);
+    }
+
+    /**
+     * 记录从镜像读取到的数据，更新镜像的速度
+     * @param mirror 镜像
+     * @param bytes 读取的字节数
+     * @param elapsedNanos 读取耗时，单位纳秒
+     */
+    public synchronized void onTransferred(Mirror mirror, int bytes, long elapsedNanos) {
+        if (bytes <= 0 || elapsedNanos <= 0) {
+            return;
+        }
+        double sample = bytes * 1000000000.0 / elapsedNanos;
+        mirror.mBytesPerSecond = mirror.mBytesPerSecond < 0 ? sample
+                : mirror.mBytesPerSecond + SMOOTHING * (sample - mirror.mBytesPerSecond);
+    }
+
+    /**
+     * 镜像出错或者读取超时，一段时间内不再使用
+     * @param mirror 镜像
+     * @return 是否还有其他可用的镜像
+     */
+    public synchronized boolean onFailure(Mirror mirror) {
+        mirror.mDisabledUntil = now() + mCooldown;
+        return hasAvailable();
+    }
+
+    /**
+     * 镜像上的文件和主地址不一致，这次下载不再使用，主地址不会被移除
+     * @param mirror 镜像
+     */
+    public synchronized void remove(Mirror mirror) {
+        if (!mirror.mPrimary) {
+            mirror.mRemoved = true;
+        }
+    }
+
+    /**
+     * 是否有当前可以使用的镜像
+     * @return 是否有可用的镜像
+     */
+    public synchronized boolean hasAvailable() {
+        long now = now();
+        for (Mirror mirror : mMirrors) {
+            if (mirror.isAvailable(now)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 镜像数量（包括主地址）
+     * @return 镜像数量
+     */
+    public int size() {
+        return mMirrors.size();
+    }
+
+    /**
+     * 获取所有镜像
+     * @return 镜像列表，不能修改
+     */
+    public List<Mirror> getMirrors() {
+        return Collections.unmodifiableList(mMirrors);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return mMirrors.toString();
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1000000L;
+    }
+
+    /**
+     * 一个下载地址和它的状态
+     */
+    public static final class Mirror {
+        private final String mUrl;
+        private final boolean mPrimary;
+        private double mBytesPerSecond = -1; // 平均速度，-1为还没有数据
+        private long mDisabledUntil = 0; // 出错后恢复使用的时间
+        private boolean mRemoved = false; // 内容不一致，不再使用
+
+        private Mirror(String url, boolean primary) {
+            this.mUrl = url;
+            this.mPrimary = primary;
+        }
+
+        public String getUrl() {
+            return mUrl;
+        }
+
+        /**
+         * 是否是主地址
+         * @return 是否是主地址
+         */
+        public boolean isPrimary() {
+            return mPrimary;
+        }
+
+        private boolean isAvailable(long now) {
+            return !mRemoved && now >= mDisabledUntil;
+        }
+
+        @Override
+        public String toString() {
+            return mUrl + "(" + (long) mBytesPerSecond + "B/s" + (mRemoved ? ", removed" : "") + ")";
+        }
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2016. The Android Open Source Project.
+ *
+ *          yinglovezhuzhu@gmail.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *           http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.opensource.videoplayer.downloader;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * 下载进度检查点，每写入一定字节数或者经过一定时间（先到为准）在后台线程保存一次下载进度<br>
+ * 保存前先复制当前的已下载区间，持久保存（{@link ProgressStore#isDurable()}，例如数据库）的时候先把文件数据同步到磁盘，
+ * 保证数据库中记录的区间对应的数据一定已经写到磁盘上，断电后恢复下载时不会信任没有写入的数据；
+ * 只写进度日志的时候不同步，日志和文件数据都在系统的页缓存中，进程被杀死不会丢失，断电后恢复时按校验值重新检查
+ * 日志中的区间，{@link #flush()}总是同步<br>
+ * 所有的保存操作在同一个后台线程中按顺序执行；进度通过{@link ProgressStore}保存，不依赖Android运行环境
+ * Created by yinglovezhuzhu@gmail.com on 2016/12/30.
+ */
+public class ProgressCheckpointer {
+
+    public static final long DEFAULT_BYTES_INTERVAL = 1024 * 1024;
+
+    public static final long DEFAULT_TIME_INTERVAL = 2000;
+
+    private static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "Download-checkpoint");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final ProgressStore mStore;
+    private final DownloadLog mLog;
+    private final File mFile;
+    private final long mBytesInterval;
+    private final long mTimeInterval;
+
+    private long mPendingBytes = 0; // 上一次检查点之后写入的字节数
+    private long mLastCheckpointTime; // 上一次检查点的时间，单位毫秒
+    private boolean mScheduled = false; // 是否已经有等待执行的检查点
+
+    private final Runnable mCheckpointTask = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (ProgressCheckpointer.this) {
+                mScheduled = false;
+            }
+            checkpoint(false);
+        }
+    };
+
+    /**
+     * Constructor
+     * @param store 保存进度的位置
+     * @param log 下载日志，读写已下载区间时需要同步这个对象
+     * @param file 保存的文件
+     * @param bytesInterval 两个检查点之间最多写入的字节数
+     * @param timeInterval 两个检查点之间最长的时间，单位毫秒
+     */
+    public ProgressCheckpointer(ProgressStore store, DownloadLog log, File file,
+                                long bytesInterval, long timeInterval) {
+        this.mStore = store;
+        this.mLog = log;
+        this.mFile = file;
+        this.mBytesInterval = bytesInterval;
+        this.mTimeInterval = timeInterval;
+        this.mLastCheckpointTime = now();
+    }
+
+    /**
+     * 写入数据后调用，达到字节数或者时间间隔的时候在后台线程保存进度，不会阻塞调用的线程
+     * @param count 写入的字节数
+     */
+    public synchronized void onBytesWritten(int count) {
+        mPendingBytes += count;
+        if (mScheduled) {
+            return;
+        }
+        if (mPendingBytes >= mBytesInterval || now() - mLastCheckpointTime >= mTimeInterval) {
+            schedule();
+        }
+    }
+
+    /**
+     * 不管间隔，立即在后台线程保存一次进度
+     */
+    public synchronized void requestCheckpoint() {
+        if (!mScheduled) {
+            schedule();
+        }
+    }
+
+    /**
+     * 同步文件并保存进度，等待保存完成，在下载结束或者停止的时候调用，之前等待执行的检查点也会执行完成
+     */
+    public void flush() {
+        Future<?> future = EXECUTOR.submit(new Runnable() {
+            @Override
+            public void run() {
+                checkpoint(true);
+            }
+        });
+        try {
+            future.get();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void schedule() {
+        mScheduled = true;
+        mPendingBytes = 0;
+        mLastCheckpointTime = now();
+        EXECUTOR.execute(mCheckpointTask);
+    }
+
+    /**
+     * 保存一次进度：复制区间、同步文件（持久保存或者force的时候）、保存
+     * @param force 是否总是同步文件
+     */
+    private void checkpoint(boolean force) {
+        DownloadLog snapshot;
+        synchronized (mLog) {
+            snapshot = mLog.snapshot();
+        }
+        // 复制的区间对应的数据都已经write完成，同步后才能记录到数据库
+        if ((force || mStore.isDurable()) && !sync()) {
+            return;
+        }
+        mStore.updateLog(snapshot);
+    }
+
+    /**
+     * 把文件已经写入的数据同步到磁盘，fsync对同一个文件的所有写入都有效
+     * @return 是否同步成功
+     */
+    private boolean sync() {
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(mFile, "rw");
+            file.getFD().sync();
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } finally {
+            if (null != file) {
+                try {
+                    file.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1000000L;
+    }
+}
@@ -0,0 +1,347 @@
+/*
+ * Copyright (C) 2016. The Android Open Source Project.
+ *
+ *          yinglovezhuzhu@gmail.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *           http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.opensource.videoplayer.downloader;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 下载进度日志文件，内存映射的固定长度记录，每个正在进行的下载占用一个槽位<br>
+ * 保存进度只是对映射内存的普通写入，不经过系统调用和数据库，写入的数据在页缓存中，进程被杀死后仍然有效
+ * （断电时可能比文件数据先写到磁盘，恢复时需要按校验值重新检查）；每个槽位有两个数据区交替写入，写完后才更新序号，
+ * 写到一半进程退出时读取到的仍然是上一次完整的进度<br>
+ * 数据库只在开始下载和下载结束的时候更新，重新启动后需要把日志中的进度合并到数据库<br>
+ * 所有操作在同一个锁中执行；写入时检查槽位仍然属于这个下载（地址和下载日志id相同），
+ * 槽位已经被释放或者被其他下载重新申请的时候不写入
+ * Created by yinglovezhuzhu@gmail.com on 2017/2/20.
+ */
+public class ProgressJournal {
+
+    public static final int DEFAULT_SLOT_COUNT = 16;
+
+    public static final int DEFAULT_SLOT_SIZE = 64 * 1024;
+
+    private static final int MAGIC = 0x56504a31; // "VPJ1"
+    private static final int FILE_HEADER_SIZE = 16; // magic, 槽位数量, 槽位大小, 保留
+
+    private static final int STATE_FREE = 0;
+    private static final int STATE_ACTIVE = 1;
+
+    // 槽位头部：状态、地址长度、下载日志id、已提交的序号、地址
+    private static final int SLOT_STATE = 0;
+    private static final int SLOT_URL_LENGTH = 4;
+    private static final int SLOT_LOG_ID = 8;
+    private static final int SLOT_SEQUENCE = 16;
+    private static final int SLOT_URL = 24;
+    private static final int SLOT_HEADER_SIZE = 2048;
+    private static final int MAX_URL_BYTES = SLOT_HEADER_SIZE - SLOT_URL;
+
+    // 数据区：已下载长度、总长度、索引数据是否已下载、索引开始、结束位置、校验块大小、区间数量、校验值数量，之后是区间和校验值
+    private static final int DATA_DOWNLOADED_SIZE = 0;
+    private static final int DATA_TOTAL_SIZE = 4;
+    private static final int DATA_END_DOWNLOADED = 8;
+    private static final int DATA_MOOV_START = 12;
+    private static final int DATA_MOOV_END = 16;
+    private static final int DATA_BLOCK_SIZE = 20;
+    private static final int DATA_RANGE_COUNT = 24;
+    private static final int DATA_CHECKSUM_COUNT = 28;
+    private static final int DATA_HEADER_SIZE = 32;
+    private static final int RANGE_SIZE = 8;
+    private static final int CHECKSUM_SIZE = 12;
+
+    private final MappedByteBuffer mBuffer;
+    private final int mSlotCount;
+    private final int mSlotSize;
+    private final int mAreaSize;
+
+    /**
+     * Constructor，使用默认的槽位数量和大小
+     * @param file 日志文件
+     * @throws IOException 文件不能创建或者映射
+     */
+    public ProgressJournal(File file) throws IOException {
+        this(file, DEFAULT_SLOT_COUNT, DEFAULT_SLOT_SIZE);
+    }
+
+    /**
+     * Constructor，已有的文件格式或者槽位设置不同的时候清空重新使用
+     * @param file 日志文件
+     * @param slotCount 槽位数量，即同时使用日志的下载数量
+     * @param slotSize 每个槽位的字节数，区间和校验值放不下的下载不能使用日志
+     * @throws IOException 文件不能创建或者映射
+     */
+    public ProgressJournal(File file, int slotCount, int slotSize) throws IOException {
+        if (slotSize <= SLOT_HEADER_SIZE + 2 * DATA_HEADER_SIZE) {
+            throw new IllegalArgumentException("Slot size too small: " + slotSize);
+        }
+        this.mSlotCount = slotCount;
+        this.mSlotSize = slotSize;
+        this.mAreaSize = (slotSize - SLOT_HEADER_SIZE) / 2;
+        long length = FILE_HEADER_SIZE + (long) slotCount * slotSize;
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            boolean valid = raf.length() == length;
+            raf.setLength(length);
+            // 映射在文件关闭后仍然有效
+            mBuffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+            if (!valid || mBuffer.getInt(0) != MAGIC || mBuffer.getInt(4) != slotCount
+                    || mBuffer.getInt(8) != slotSize) {
+                for (int i = 0; i < slotCount; i++) {
+                    mBuffer.putInt(slotOffset(i) + SLOT_STATE, STATE_FREE);
+                }
+                mBuffer.putInt(4, slotCount);
+                mBuffer.putInt(8, slotSize);
+                mBuffer.putInt(0, MAGIC);
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * 为一个下载申请槽位，这个地址已经有槽位的时候重新使用，之前的进度作废
+     * @param url 下载地址
+     * @param logId 数据库中下载日志的id，恢复时用来确认日志和数据库记录是同一次下载
+     * @return 槽位序号，没有空闲槽位或者地址太长的时候返回-1
+     */
+    public synchronized int acquire(String url, long logId) {
+        byte[] urlBytes = encode(url);
+        if (null == urlBytes || urlBytes.length > MAX_URL_BYTES) {
+            return -1;
+        }
+        int slot = find(urlBytes);
+        if (slot < 0) {
+            for (int i = 0; i < mSlotCount; i++) {
+                if (mBuffer.getInt(slotOffset(i) + SLOT_STATE) == STATE_FREE) {
+                    slot = i;
+                    break;
+                }
+            }
+        }
+        if (slot < 0) {
+            return -1;
+        }
+        int offset = slotOffset(slot);
+        mBuffer.putInt(offset + SLOT_STATE, STATE_FREE);
+        mBuffer.putLong(offset + SLOT_SEQUENCE, 0);
+        mBuffer.putLong(offset + SLOT_LOG_ID, logId);
+        mBuffer.putInt(offset + SLOT_URL_LENGTH, urlBytes.length);
+        for (int i = 0; i < urlBytes.length; i++) {
+            mBuffer.put(offset + SLOT_URL + i, urlBytes[i]);
+        }
+        // 头部写完后才标记为使用中
+        mBuffer.putInt(offset + SLOT_STATE, STATE_ACTIVE);
+        return slot;
+    }
+
+    /**
+     * 把下载进度写入槽位，写入没有使用的数据区后更新序号，之前的进度在序号更新前一直有效
+     * @param slot 槽位序号
+     * @param log 下载日志的快照
+     * @return 是否写入，区间和校验值太多放不下或者槽位已经不属于这个下载的时候返回false
+     */
+    public synchronized boolean write(int slot, DownloadLog log) {
+        byte[] urlBytes = encode(log.getUrl());
+        if (slot < 0 || slot >= mSlotCount || null == urlBytes || !matches(slot, urlBytes)
+                || mBuffer.getLong(slotOffset(slot) + SLOT_LOG_ID) != log.getId()) {
+            return false;
+        }
+        RangeSet ranges = log.getDownloadedRanges();
+        BlockChecksums checksums = log.getBlockChecksums();
+        int rangeCount = ranges.size();
+        int checksumCount = checksums.size();
+        if (DATA_HEADER_SIZE + rangeCount * RANGE_SIZE + checksumCount * CHECKSUM_SIZE > mAreaSize) {
+            return false;
+        }
+        int offset = slotOffset(slot);
+        long sequence = mBuffer.getLong(offset + SLOT_SEQUENCE) + 1;
+        int area = areaOffset(slot, sequence);
+        mBuffer.putInt(area + DATA_DOWNLOADED_SIZE, log.getDownloadedSize());
+        mBuffer.putInt(area + DATA_TOTAL_SIZE, log.getTotalSize());
+        mBuffer.putInt(area + DATA_END_DOWNLOADED, log.isEndDownloaded() ? 1 : 0);
+        mBuffer.putInt(area + DATA_MOOV_START, log.getMoovStartPos());
+        mBuffer.putInt(area + DATA_MOOV_END, log.getMoovEndPos());
+        mBuffer.putInt(area + DATA_BLOCK_SIZE, checksums.getBlockSize());
+        mBuffer.putInt(area + DATA_RANGE_COUNT, rangeCount);
+        mBuffer.putInt(area + DATA_CHECKSUM_COUNT, checksumCount);
+        int position = area + DATA_HEADER_SIZE;
+        for (int i = 0; i < rangeCount; i++) {
+            mBuffer.putInt(position, ranges.getStart(i));
+            mBuffer.putInt(position + 4, ranges.getEnd(i));
+            position += RANGE_SIZE;
+        }
+        for (int i = 0; i < checksumCount; i++) {
+            mBuffer.putInt(position, checksums.getStart(i));
+            mBuffer.putInt(position + 4, checksums.getEnd(i));
+            mBuffer.putInt(position + 8, checksums.getCrc(i));
+            position += CHECKSUM_SIZE;
+        }
+        // 数据写完后提交，恢复时读取序号对应的数据区
+        mBuffer.putLong(offset + SLOT_SEQUENCE, sequence);
+        return true;
+    }
+
+    /**
+     * 释放槽位，下载完成或者进度已经保存到数据库的时候调用
+     * @param slot 槽位序号
+     */
+    public synchronized void release(int slot) {
+        mBuffer.putInt(slotOffset(slot) + SLOT_STATE, STATE_FREE);
+    }
+
+    /**
+     * 释放一个地址使用的槽位
+     * @param url 下载地址
+     */
+    public synchronized void release(String url) {
+        byte[] urlBytes = encode(url);
+        int slot = null == urlBytes ? -1 : find(urlBytes);
+        if (slot >= 0) {
+            release(slot);
+        }
+    }
+
+    /**
+     * 读取所有使用中并且写入过进度的槽位，用于启动时恢复
+     * @return 下载日志，只包含地址、id和进度相关的字段
+     */
+    public synchronized List<DownloadLog> readAll() {
+        List<DownloadLog> logs = new ArrayList<DownloadLog>();
+        for (int i = 0; i < mSlotCount; i++) {
+            int offset = slotOffset(i);
+            long sequence = mBuffer.getLong(offset + SLOT_SEQUENCE);
+            if (mBuffer.getInt(offset + SLOT_STATE) != STATE_ACTIVE || sequence <= 0) {
+                continue;
+            }
+            DownloadLog log = read(i, sequence);
+            if (null != log) {
+                logs.add(log);
+            }
+        }
+        return logs;
+    }
+
+    /**
+     * 释放所有槽位
+     */
+    public synchronized void clear() {
+        for (int i = 0; i < mSlotCount; i++) {
+            release(i);
+        }
+    }
+
+    private DownloadLog read(int slot, long sequence) {
+        int offset = slotOffset(slot);
+        int urlLength = mBuffer.getInt(offset + SLOT_URL_LENGTH);
+        if (urlLength <= 0 || urlLength > MAX_URL_BYTES) {
+            return null;
+        }
+        byte[] urlBytes = new byte[urlLength];
+        for (int i = 0; i < urlLength; i++) {
+            urlBytes[i] = mBuffer.get(offset + SLOT_URL + i);
+        }
+        int area = areaOffset(slot, sequence);
+        int rangeCount = mBuffer.getInt(area + DATA_RANGE_COUNT);
+        int checksumCount = mBuffer.getInt(area + DATA_CHECKSUM_COUNT);
+        int blockSize = mBuffer.getInt(area + DATA_BLOCK_SIZE);
+        if (rangeCount < 0 || checksumCount < 0 || blockSize <= 0 || DATA_HEADER_SIZE
+                + (long) rangeCount * RANGE_SIZE + (long) checksumCount * CHECKSUM_SIZE > mAreaSize) {
+            return null;
+        }
+        DownloadLog log = new DownloadLog();
+        try {
+            log.setUrl(new String(urlBytes, "UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            return null;
+        }
+        log.setId(mBuffer.getLong(offset + SLOT_LOG_ID));
+        RangeSet ranges = new RangeSet();
+        BlockChecksums checksums = new BlockChecksums(blockSize);
+        int position = area + DATA_HEADER_SIZE;
+        for (int i = 0; i < rangeCount; i++) {
+            ranges.add(mBuffer.getInt(position), mBuffer.getInt(position + 4));
+            position += RANGE_SIZE;
+        }
+        for (int i = 0; i < checksumCount; i++) {
+            checksums.add(mBuffer.getInt(position), mBuffer.getInt(position + 4), mBuffer.getInt(position + 8));
+            position += CHECKSUM_SIZE;
+        }
+        log.setDownloadedRanges(ranges);
+        log.setBlockChecksums(checksums);
+        log.setDownloadedSize(mBuffer.getInt(area + DATA_DOWNLOADED_SIZE));
+        log.setTotalSize(mBuffer.getInt(area + DATA_TOTAL_SIZE));
+        log.setEndDownloaded(mBuffer.getInt(area + DATA_END_DOWNLOADED) != 0);
+        log.setMoovStartPos(mBuffer.getInt(area + DATA_MOOV_START));
+        log.setMoovEndPos(mBuffer.getInt(area + DATA_MOOV_END));
+        return log;
+    }
+
+    /**
+     * 查找地址相同的使用中的槽位
+     */
+    private int find(byte[] urlBytes) {
+        for (int i = 0; i < mSlotCount; i++) {
+            if (matches(i, urlBytes)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 槽位是否在使用中并且属于这个地址
+     */
+    private boolean matches(int slot, byte[] urlBytes) {
+        int offset = slotOffset(slot);
+        if (mBuffer.getInt(offset + SLOT_STATE) != STATE_ACTIVE
+                || mBuffer.getInt(offset + SLOT_URL_LENGTH) != urlBytes.length) {
+            return false;
+        }
+        for (int i = 0; i < urlBytes.length; i++) {
+            if (mBuffer.get(offset + SLOT_URL + i) != urlBytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int slotOffset(int slot) {
+        return FILE_HEADER_SIZE + slot * mSlotSize;
+    }
+
+    private int areaOffset(int slot, long sequence) {
+        return slotOffset(slot) + SLOT_HEADER_SIZE + (int) (sequence & 1) * mAreaSize;
+    }
+
+    private static byte[] encode(String url) {
+        if (null == url) {
+            return null;
+        }
+        try {
+            return url.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright (C) 2016. The Android Open Source Project.
+ *
+ *          yinglovezhuzhu@gmail.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *           http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.opensource.videoplayer.downloader;
+
+/**
+ * 下载进度的保存位置，{@link ProgressCheckpointer}通过这个接口保存进度，不直接依赖数据库，
+ * 可以在没有Android运行环境的JVM中使用（例如基准测试）
+ * Created by yinglovezhuzhu@gmail.com on 2017/2/10.
+ */
+public interface ProgressStore {
+
+    /**
+     * 保存下载日志中的进度，在检查点的后台线程调用
+     * @param log 下载日志的快照，调用期间不会被修改
+     */
+    void updateLog(DownloadLog log);
+
+    /**
+     * 下一次{@link #updateLog(DownloadLog)}是否持久保存（例如写数据库），持久保存之前需要先把文件数据同步到磁盘，
+     * 否则记录的区间对应的数据在断电之后可能还没有写到磁盘上；只写到进度日志时返回false，同步推迟到持久保存之前
+     * @return 是否持久保存
+     */
+    boolean isDurable();
+}
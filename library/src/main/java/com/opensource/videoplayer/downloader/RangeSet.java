@@ -0,0 +1,307 @@
+/*
+ * Copyright (C) 2016. The Android Open Source Project.
+ *
+ *          yinglovezhuzhu@gmail.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *           http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.opensource.videoplayer.downloader;
+
+import com.opensource.videoplayer.utils.StringUtils;
+
+/**
+ * 已下载字节区间的集合，区间为[start, end)，按开始位置排序并且互不相交、互不相邻<br>
+ * 下载时数据总是接在某个区间后面写入，{@link #add(int, int)}会优先检查上一次修改的区间，
+ * 大部分情况下只需要修改一个数组元素，可以在下载的读取循环中直接调用<br>
+ * 这个类不是线程安全的，多线程使用时需要调用者同步
+ * Created by yinglovezhuzhu@gmail.com on 2016/12/28.
+ */
+public class RangeSet {
+
+    private static final String RANGE_SEPARATOR = ",";
+    private static final String POS_SEPARATOR = "-";
+
+    private int[] mStarts = new int[4];
+    private int[] mEnds = new int[4];
+    private int mSize = 0;
+    private int mCoveredLength = 0; // 所有区间的总长度
+    private int mLastIndex = -1; // 上一次修改的区间
+
+    public RangeSet() {
+
+    }
+
+    /**
+     * 添加一个区间，和已有区间相交或者相邻的会合并
+     * @param start 开始位置
+     * @param end 结束位置（不包含）
+     */
+    public void add(int start, int end) {
+        if (end <= start) {
+            return;
+        }
+        // 快速路径：接在上一次修改的区间后面，并且不会碰到下一个区间
+        if (mLastIndex >= 0 && mLastIndex < mSize && mEnds[mLastIndex] == start
+                && (mLastIndex + 1 >= mSize || mStarts[mLastIndex + 1] > end)) {
+            mEnds[mLastIndex] = end;
+            mCoveredLength += end - start;
+            return;
+        }
+
+        // 第一个结束位置大于等于start的区间（可能和新区间相交或者相邻）
+        int first = lowerBound(start);
+        // 最后一个开始位置小于等于end的区间
+        int last = first;
+        while (last < mSize && mStarts[last] <= end) {
+            last++;
+        }
+        last--;
+
+        if (first > last) {
+            // 没有相交的区间，直接插入
+            insert(first, start, end);
+            mCoveredLength += end - start;
+            mLastIndex = first;
+            return;
+        }
+
+        int newStart = Math.min(start, mStarts[first]);
+        int newEnd = Math.max(end, mEnds[last]);
+        int removed = 0;
+        for (int i = first; i <= last; i++) {
+            removed += mEnds[i] - mStarts[i];
+        }
+        mStarts[first] = newStart;
+        mEnds[first] = newEnd;
+        int count = last - first;
+        if (count > 0) {
+            System.arraycopy(mStarts, last + 1, mStarts, first + 1, mSize - last - 1);
+            System.arraycopy(mEnds, last + 1, mEnds, first + 1, mSize - last - 1);
+            mSize -= count;
+        }
+        mCoveredLength += (newEnd - newStart) - removed;
+        mLastIndex = first;
+    }
+
+    /**
+     * 移除一个区间，用于数据校验失败需要重新下载的情况
+     * @param start 开始位置
+     * @param end 结束位置（不包含）
+     */
+    public void remove(int start, int end) {
+        if (end <= start) {
+            return;
+        }
+        int index = lowerBound(start);
+        while (index < mSize && mStarts[index] < end) {
+            int s = mStarts[index];
+            int e = mEnds[index];
+            if (e <= start) {
+                index++;
+                continue;
+            }
+            mCoveredLength -= Math.min(e, end) - Math.max(s, start);
+            if (s < start && e > end) {
+                // 从中间拆分成两段
+                mEnds[index] = start;
+                insert(index + 1, end, e);
+                break;
+            } else if (s < start) {
+                mEnds[index] = start;
+                index++;
+            } else if (e > end) {
+                mStarts[index] = end;
+                break;
+            } else {
+                System.arraycopy(mStarts, index + 1, mStarts, index, mSize - index - 1);
+                System.arraycopy(mEnds, index + 1, mEnds, index, mSize - index - 1);
+                mSize--;
+            }
+        }
+        mLastIndex = -1;
+    }
+
+    /**
+     * 指定区间是否已经全部下载
+     * @param offset 开始位置
+     * @param length 长度
+     * @return 是否全部下载
+     */
+    public boolean isRangeAvailable(int offset, int length) {
+        if (length <= 0) {
+            return true;
+        }
+        return getAvailableLength(offset) >= length;
+    }
+
+    /**
+     * 获取从指定位置开始连续已下载的长度
+     * @param position 位置
+     * @return 连续已下载的长度，这个位置没有下载时返回0
+     */
+    public int getAvailableLength(int position) {
+        int index = lowerBound(position + 1);
+        // lowerBound(position + 1)返回第一个end >= position + 1（即end > position）的区间
+        if (index < mSize && mStarts[index] <= position) {
+            return mEnds[index] - position;
+        }
+        return 0;
+    }
+
+    /**
+     * 获取指定位置之后第一个没有下载的区间
+     * @param from 开始查找的位置
+     * @param limit 查找的结束位置（文件长度）
+     * @return {开始位置, 结束位置（不包含）}，没有缺失的区间时返回null
+     */
+    public int[] nextMissingRange(int from, int limit) {
+        int position = from;
+        int index = lowerBound(position + 1);
+        if (index < mSize && mStarts[index] <= position) {
+            position = mEnds[index];
+            index++;
+        }
+        if (position >= limit) {
+            return null;
+        }
+        int end = index < mSize ? Math.min(mStarts[index], limit) : limit;
+        return new int[] {position, end, };
+    }
+
+    /**
+     * 已下载的总长度
+     */
+    public int getCoveredLength() {
+        return mCoveredLength;
+    }
+
+    /**
+     * 区间数量
+     */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * 第index个区间的开始位置，区间按位置排序
+     */
+    int getStart(int index) {
+        return mStarts[index];
+    }
+
+    /**
+     * 第index个区间的结束位置（不包含）
+     */
+    int getEnd(int index) {
+        return mEnds[index];
+    }
+
+    /**
+     * 复制一份区间集合
+     */
+    public RangeSet copy() {
+        RangeSet rangeSet = new RangeSet();
+        int capacity = Math.max(4, mSize);
+        rangeSet.mStarts = new int[capacity];
+        rangeSet.mEnds = new int[capacity];
+        System.arraycopy(mStarts, 0, rangeSet.mStarts, 0, mSize);
+        System.arraycopy(mEnds, 0, rangeSet.mEnds, 0, mSize);
+        rangeSet.mSize = mSize;
+        rangeSet.mCoveredLength = mCoveredLength;
+        return rangeSet;
+    }
+
+    public void clear() {
+        mSize = 0;
+        mCoveredLength = 0;
+        mLastIndex = -1;
+    }
+
+    /**
+     * 转换为字符串用于保存，格式为"start-end,start-end"
+     */
+    public String format() {
+        StringBuilder sb = new StringBuilder(mSize * 16);
+        for (int i = 0; i < mSize; i++) {
+            if (i > 0) {
+                sb.append(RANGE_SEPARATOR);
+            }
+            sb.append(mStarts[i]).append(POS_SEPARATOR).append(mEnds[i]);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 从{@link #format()}的结果解析区间集合，格式错误的区间会被忽略
+     * @param value 字符串
+     * @return 区间集合
+     */
+    public static RangeSet parse(String value) {
+        RangeSet rangeSet = new RangeSet();
+        if (StringUtils.isEmpty(value)) {
+            return rangeSet;
+        }
+        for (String item : value.split(RANGE_SEPARATOR)) {
+            int index = item.indexOf(POS_SEPARATOR);
+            if (index <= 0) {
+                continue;
+            }
+            try {
+                rangeSet.add(Integer.parseInt(item.substring(0, index)),
+                        Integer.parseInt(item.substring(index + 1)));
+            } catch (NumberFormatException e) {
+                e.printStackTrace();
+            }
+        }
+        return rangeSet;
+    }
+
+    /**
+     * 二分查找第一个结束位置大于等于position的区间
+     */
+    private int lowerBound(int position) {
+        int low = 0;
+        int high = mSize;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (mEnds[mid] < position) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private void insert(int index, int start, int end) {
+        if (mSize == mStarts.length) {
+            int[] starts = new int[mSize * 2];
+            int[] ends = new int[mSize * 2];
+            System.arraycopy(mStarts, 0, starts, 0, mSize);
+            System.arraycopy(mEnds, 0, ends, 0, mSize);
+            mStarts = starts;
+            mEnds = ends;
+        }
+        System.arraycopy(mStarts, index, mStarts, index + 1, mSize - index);
+        System.arraycopy(mEnds, index, mEnds, index + 1, mSize - index);
+        mStarts[index] = start;
+        mEnds[index] = end;
+        mSize++;
+    }
+
+    @Override
+    public String toString() {
+        return "RangeSet{" + format() + ", covered=" + mCoveredLength + '}';
+    }
+}
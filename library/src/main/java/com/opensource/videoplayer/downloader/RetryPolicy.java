@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2016. The Android Open Source Project.
+ *
+ *          yinglovezhuzhu@gmail.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *           http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.opensource.videoplayer.downloader;
+
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * 下载出错后的重试策略<br>
+ * 超时、连接被重置、5xx等暂时性的错误等待一段时间后重试，等待时间按指数增长（加上随机抖动，
+ * 避免大量客户端同时重试）；4xx等永久性的错误和文件已经改变不重试，立即失败<br>
+ * 连续失败（中间没有下载到数据）的次数超过最大重试次数后放弃
+ * Created by yinglovezhuzhu@gmail.com on 2017/1/24.
+ */
+public class RetryPolicy {
+
+    public static final int DEFAULT_MAX_RETRIES = 5;
+
+    /** 第一次重试前的等待时间，单位毫秒 **/
+    public static final long DEFAULT_BASE_DELAY = 500;
+
+    /** 最长的等待时间，单位毫秒 **/
+    public static final long DEFAULT_MAX_DELAY = 16000;
+
+    private static final int HTTP_REQUEST_TIMEOUT = 408;
+
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+    private final int mMaxRetries;
+    private final long mBaseDelay;
+    private final long mMaxDelay;
+    private final Random mRandom = new Random();
+
+    public RetryPolicy() {
+        this(DEFAULT_MAX_RETRIES, DEFAULT_BASE_DELAY, DEFAULT_MAX_DELAY);
+    }
+
+    /**
+     * Constructor
+     * @param maxRetries 最大连续重试次数，0为不重试
+     * @param baseDelay 第一次重试前的等待时间，单位毫秒
+     * @param maxDelay 最长的等待时间，单位毫秒
+     */
+    public RetryPolicy(int maxRetries, long baseDelay, long maxDelay) {
+        this.mMaxRetries = Math.max(0, maxRetries);
+        this.mBaseDelay = Math.max(1, baseDelay);
+        this.mMaxDelay = Math.max(mBaseDelay, maxDelay);
+    }
+
+    /**
+     * 获取最大连续重试次数
+     * @return 最大重试次数
+     */
+    public int getMaxRetries() {
+        return mMaxRetries;
+    }
+
+    /**
+     * 判断错误是否是暂时性的，可以重试
+     * @param e 下载过程中的错误
+     * @return 是否可以重试
+     */
+    public boolean isRetryable(Throwable e) {
+        if (e instanceof ContentChangedException) {
+            // 文件已经改变，由下载器删除数据后重新下载
+            return false;
+        }
+        if (e instanceof HttpResponseException) {
+            int code = ((HttpResponseException) e).getResponseCode();
+            return code >= 500 || code == HTTP_REQUEST_TIMEOUT || code == HTTP_TOO_MANY_REQUESTS;
+        }
+        // 超时、连接被重置、域名解析失败等网络错误
+        return e instanceof IOException;
+    }
+
+    /**
+     * 获取第几次重试前需要等待的时间，基础时间为第一次的等待时间乘以2的(retryCount-1)次方，
+     * 不超过最长的等待时间，实际等待时间在基础时间的一半到基础时间之间随机
+     * @param retryCount 第几次重试，从1开始
+     * @return 等待时间，单位毫秒
+     */
+    public long getDelay(int retryCount) {
+        long delay = mBaseDelay;
+        for (int i = 1; i < retryCount && delay < mMaxDelay; i++) {
+            delay *= 2;
+        }
+        delay = Math.min(delay, mMaxDelay);
+        long half = delay / 2;
+        synchronized (mRandom) {
+            return half + (long) (mRandom.nextDouble() * (delay - half));
+        }
+    }
+}
@@ -0,0 +1,282 @@
+/*
+ * Copyright (C) 2016. The Android Open Source Project.
+ *
+ *          yinglovezhuzhu@gmail.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *           http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.opensource.videoplayer.hls;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * HLS播放列表（m3u8），可以是主播放列表（包含不同码率的子播放列表）或者媒体播放列表（包含分片）<br>
+ * 所有地址都已经转换为绝对地址
+ * Created by yinglovezhuzhu@gmail.com on 2017/1/28.
+ */
+public class HlsPlaylist {
+
+    private final String mUrl;
+    private final boolean mMaster;
+    private final List<Variant> mVariants = new ArrayList<Variant>();
+    private final List<Segment> mSegments = new ArrayList<Segment>();
+    private int mVersion = 0;
+    private int mTargetDuration = 0;
+    private long mMediaSequence = 0;
+    private boolean mEndList = false;
+
+    HlsPlaylist(String url, boolean master) {
+        this.mUrl = url;
+        this.mMaster = master;
+    }
+
+    /**
+     * 获取播放列表的地址（重定向后的地址），相对地址以它为基准
+     * @return 播放列表地址
+     */
+    public String getUrl() {
+        return mUrl;
+    }
+
+    /**
+     * 是否为主播放列表
+     * @return true为主播放列表，false为媒体播放列表
+     */
+    public boolean isMaster() {
+        return mMaster;
+    }
+
+    /**
+     * 获取主播放列表中的子播放列表
+     * @return 子播放列表，按在文件中的顺序
+     */
+    public List<Variant> getVariants() {
+        return Collections.unmodifiableList(mVariants);
+    }
+
+    /**
+     * 获取媒体播放列表中的分片
+     * @return 分片，按播放顺序
+     */
+    public List<Segment> getSegments() {
+        return Collections.unmodifiableList(mSegments);
+    }
+
+    public int getVersion() {
+        return mVersion;
+    }
+
+    public int getTargetDuration() {
+        return mTargetDuration;
+    }
+
+    public long getMediaSequence() {
+        return mMediaSequence;
+    }
+
+    /**
+     * 是否有#EXT-X-ENDLIST，点播的播放列表不会再增加分片
+     * @return 是否结束
+     */
+    public boolean isEndList() {
+        return mEndList;
+    }
+
+    /**
+     * 获取所有分片的总时长
+     * @return 总时长，单位毫秒
+     */
+    public long getDurationMs() {
+        long duration = 0;
+        for (Segment segment : mSegments) {
+            duration += segment.getDurationMs();
+        }
+        return duration;
+    }
+
+    void setVersion(int version) {
+        this.mVersion = version;
+    }
+
+    void setTargetDuration(int targetDuration) {
+        this.mTargetDuration = targetDuration;
+    }
+
+    void setMediaSequence(long mediaSequence) {
+        this.mMediaSequence = mediaSequence;
+    }
+
+    void setEndList(boolean endList) {
+        this.mEndList = endList;
+    }
+
+    void addVariant(Variant variant) {
+        mVariants.add(variant);
+    }
+
+    void addSegment(Segment segment) {
+        mSegments.add(segment);
+    }
+
+    /**
+     * 主播放列表中的一个子播放列表（#EXT-X-STREAM-INF）
+     */
+    public static class Variant {
+        private final String mUrl;
+        private final long mBandwidth;
+        private final String mResolution;
+        private final String mCodecs;
+
+        Variant(String url, long bandwidth, String resolution, String codecs) {
+            this.mUrl = url;
+            this.mBandwidth = bandwidth;
+            this.mResolution = resolution;
+            this.mCodecs = codecs;
+        }
+
+        public String getUrl() {
+            return mUrl;
+        }
+
+        /**
+         * 获取峰值码率
+         * @return 码率，单位bit/s，没有的时候为0
+         */
+        public long getBandwidth() {
+            return mBandwidth;
+        }
+
+        /**
+         * 获取分辨率，例如"1280x720"
+         * @return 分辨率，没有的时候为null
+         */
+        public String getResolution() {
+            return mResolution;
+        }
+
+        public String getCodecs() {
+            return mCodecs;
+        }
+
+        @Override
+        public String toString() {
+            return mBandwidth + "bps " + (null == mResolution ? "" : mResolution + " ") + mUrl;
+        }
+    }
+
+    /**
+     * 媒体播放列表中的一个分片，或者分片的初始化数据（#EXT-X-MAP）
+     */
+    public static class Segment {
+        private final String mUrl;
+        private final long mDurationMs;
+        private final long mOffset;
+        private final long mLength;
+        private final boolean mDiscontinuity;
+        private final String mKeyTag;
+        private final Segment mInitSegment;
+
+        Segment(String url, long durationMs, long offset, long length, boolean discontinuity,
+                String keyTag, Segment initSegment) {
+            this.mUrl = url;
+            this.mDurationMs = durationMs;
+            this.mOffset = offset;
+            this.mLength = length;
+            this.mDiscontinuity = discontinuity;
+            this.mKeyTag = keyTag;
+            this.mInitSegment = initSegment;
+        }
+
+        public String getUrl() {
+            return mUrl;
+        }
+
+        /**
+         * 获取分片时长
+         * @return 时长，单位毫秒
+         */
+        public long getDurationMs() {
+            return mDurationMs;
+        }
+
+        /**
+         * 获取分片在文件中的位置（#EXT-X-BYTERANGE）
+         * @return 开始位置
+         */
+        public long getOffset() {
+            return mOffset;
+        }
+
+        /**
+         * 获取分片的长度（#EXT-X-BYTERANGE）
+         * @return 长度，-1为整个文件
+         */
+        public long getLength() {
+            return mLength;
+        }
+
+        /**
+         * 分片前面是否有#EXT-X-DISCONTINUITY
+         * @return 是否不连续
+         */
+        public boolean isDiscontinuity() {
+            return mDiscontinuity;
+        }
+
+        /**
+         * 获取分片使用的加密信息
+         * @return #EXT-X-KEY标签（URI为绝对地址），没有加密的时候为null
+         */
+        public String getKeyTag() {
+            return mKeyTag;
+        }
+
+        /**
+         * 获取分片的初始化数据（fMP4分片的#EXT-X-MAP）
+         * @return 初始化数据，没有的时候为null
+         */
+        public Segment getInitSegment() {
+            return mInitSegment;
+        }
+
+        /**
+         * 获取分片地址的后缀，用于缓存文件名和本地地址
+         * @return 后缀，带点，例如".ts"，没有的时候为".ts"
+         */
+        public String getExtension() {
+            String path = mUrl;
+            int end = path.length();
+            int query = path.indexOf('?');
+            if (query >= 0) {
+                end = query;
+            }
+            int fragment = path.indexOf('#');
+            if (fragment >= 0 && fragment < end) {
+                end = fragment;
+            }
+            path = path.substring(0, end);
+            int dot = path.lastIndexOf('.');
+            if (dot < 0 || dot < path.lastIndexOf('/') || path.length() - dot > 5) {
+                return ".ts";
+            }
+            return path.substring(dot);
+        }
+
+        @Override
+        public String toString() {
+            return mUrl + (mLength >= 0 ? "@" + mOffset + "+" + mLength : "") + " " + mDurationMs + "ms";
+        }
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2016. The Android Open Source Project.
+ *
+ *          yinglovezhuzhu@gmail.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *           http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.opensource.videoplayer.hls;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * HLS播放列表（m3u8）解析器，支持点播需要的标签：<br>
+ * 主播放列表：#EXT-X-STREAM-INF<br>
+ * 媒体播放列表：#EXTINF、#EXT-X-TARGETDURATION、#EXT-X-MEDIA-SEQUENCE、#EXT-X-BYTERANGE、
+ * #EXT-X-DISCONTINUITY、#EXT-X-KEY、#EXT-X-MAP、#EXT-X-ENDLIST<br>
+ * 其他标签忽略，所有相对地址转换为绝对地址
+ * Created by yinglovezhuzhu@gmail.com on 2017/1/28.
+ */
+public class HlsPlaylistParser {
+
+    private static final String TAG_HEADER = "#EXTM3U";
+    private static final String TAG_VERSION = "#EXT-X-VERSION:";
+    private static final String TAG_STREAM_INF = "#EXT-X-STREAM-INF:";
+    private static final String TAG_TARGET_DURATION = "#EXT-X-TARGETDURATION:";
+    private static final String TAG_MEDIA_SEQUENCE = "#EXT-X-MEDIA-SEQUENCE:";
+    private static final String TAG_INF = "#EXTINF:";
+    private static final String TAG_BYTERANGE = "#EXT-X-BYTERANGE:";
+    private static final String TAG_DISCONTINUITY = "#EXT-X-DISCONTINUITY";
+    private static final String TAG_KEY = "#EXT-X-KEY:";
+    private static final String TAG_MAP = "#EXT-X-MAP:";
+    private static final String TAG_ENDLIST = "#EXT-X-ENDLIST";
+
+    /** 属性列表中的一个属性，值可以带引号 **/
+    private static final Pattern ATTRIBUTE_PATTERN = Pattern.compile("([A-Z0-9\\-]+)=(\"[^\"]*\"|[^,]*)");
+
+    private static final Pattern URI_ATTRIBUTE_PATTERN = Pattern.compile("URI=\"([^\"]*)\"");
+
+    private HlsPlaylistParser() {
+
+    }
+
+    /**
+     * 解析播放列表
+     * @param url 播放列表的地址（重定向后的地址），用于转换相对地址
+     * @param content 播放列表内容
+     * @return 播放列表
+     * @throws IOException 不是m3u8文件或者格式错误
+     */
+    public static HlsPlaylist parse(String url, String content) throws IOException {
+        BufferedReader reader = new BufferedReader(new StringReader(content));
+        String line = nextLine(reader);
+        // 可能有UTF-8的BOM
+        if (null == line || !line.replace("\uFEFF", "").startsWith(TAG_HEADER)) {
+            throw new IOException("Not a m3u8 playlist: " + url);
+        }
+        boolean master = content.contains(TAG_STREAM_INF);
+        HlsPlaylist playlist = new HlsPlaylist(url, master);
+
+        Map<String, String> streamInf = null;
+        long durationMs = -1;
+        long length = -1;
+        long offset = -1;
+        long nextOffset = 0; // 没有指定开始位置的分片从同一个文件上一个分片的结尾开始
+        String lastUrl = null;
+        boolean discontinuity = false;
+        String keyTag = null;
+        HlsPlaylist.Segment initSegment = null;
+        try {
+            while (null != (line = nextLine(reader))) {
+                if (line.startsWith(TAG_VERSION)) {
+                    playlist.setVersion(Integer.parseInt(line.substring(TAG_VERSION.length()).trim()));
+                } else if (line.startsWith(TAG_STREAM_INF)) {
+                    streamInf = parseAttributes(line.substring(TAG_STREAM_INF.length()));
+                } else if (line.startsWith(TAG_TARGET_DURATION)) {
+                    playlist.setTargetDuration(Integer.parseInt(line.substring(TAG_TARGET_DURATION.length()).trim()));
+                } else if (line.startsWith(TAG_MEDIA_SEQUENCE)) {
+                    playlist.setMediaSequence(Long.parseLong(line.substring(TAG_MEDIA_SEQUENCE.length()).trim()));
+                } else if (line.startsWith(TAG_INF)) {
+                    String value = line.substring(TAG_INF.length());
+                    int comma = value.indexOf(',');
+                    durationMs = (long) (Double.parseDouble((comma < 0 ? value : value.substring(0, comma)).trim()) * 1000);
+                } else if (line.startsWith(TAG_BYTERANGE)) {
+                    String value = line.substring(TAG_BYTERANGE.length()).trim();
+                    int at = value.indexOf('@');
+                    length = Long.parseLong(at < 0 ? value : value.substring(0, at));
+                    offset = at < 0 ? -1 : Long.parseLong(value.substring(at + 1));
+                } else if (line.startsWith(TAG_DISCONTINUITY)) {
+                    discontinuity = true;
+                } else if (line.startsWith(TAG_KEY)) {
+                    Map<String, String> attributes = parseAttributes(line.substring(TAG_KEY.length()));
+                    keyTag = "NONE".equals(attributes.get("METHOD")) ? null : resolveUriAttribute(url, line);
+                } else if (line.startsWith(TAG_MAP)) {
+                    Map<String, String> attributes = parseAttributes(line.substring(TAG_MAP.length()));
+                    String mapUrl = resolve(url, attributes.get("URI"));
+                    long mapOffset = 0;
+                    long mapLength = -1;
+                    String range = attributes.get("BYTERANGE");
+                    if (null != range) {
+                        int at = range.indexOf('@');
+                        mapLength = Long.parseLong(at < 0 ? range : range.substring(0, at));
+                        mapOffset = at < 0 ? 0 : Long.parseLong(range.substring(at + 1));
+                    }
+                    initSegment = new HlsPlaylist.Segment(mapUrl, 0, mapOffset, mapLength, false, keyTag, null);
+                } else if (line.startsWith(TAG_ENDLIST)) {
+                    playlist.setEndList(true);
+                } else if (!line.startsWith("#")) {
+                    String uri = resolve(url, line);
+                    if (master) {
+                        if (null != streamInf) {
+                            playlist.addVariant(new HlsPlaylist.Variant(uri, parseLong(streamInf.get("BANDWIDTH")),
+                                    streamInf.get("RESOLUTION"), streamInf.get("CODECS")));
+                            streamInf = null;
+                        }
+                    } else if (durationMs >= 0) {
+                        if (length >= 0) {
+                            if (offset < 0) {
+                                offset = uri.equals(lastUrl) ? nextOffset : 0;
+                            }
+                            nextOffset = offset + length;
+                        } else {
+                            offset = 0;
+                        }
+                        playlist.addSegment(new HlsPlaylist.Segment(uri, durationMs, offset, length,
+                                discontinuity, keyTag, initSegment));
+                        lastUrl = uri;
+                        durationMs = -1;
+                        length = -1;
+                        offset = -1;
+                        discontinuity = false;
+                    }
+                }
+            }
+        } catch (NumberFormatException e) {
+            throw new IOException("Malformed m3u8 playlist: " + url + ", " + e.getMessage());
+        }
+        return playlist;
+    }
+
+    /**
+     * 解析属性列表，例如 BANDWIDTH=1280000,RESOLUTION=1280x720,CODECS="avc1.4d401f,mp4a.40.2"
+     * @param value 属性列表
+     * @return 属性名 -> 属性值（去掉引号）
+     */
+    static Map<String, String> parseAttributes(String value) {
+        Map<String, String> attributes = new HashMap<String, String>();
+        Matcher matcher = ATTRIBUTE_PATTERN.matcher(value);
+        while (matcher.find()) {
+            String attribute = matcher.group(2);
+            if (attribute.length() >= 2 && attribute.startsWith("\"") && attribute.endsWith("\"")) {
+                attribute = attribute.substring(1, attribute.length() - 1);
+            }
+            attributes.put(matcher.group(1), attribute);
+        }
+        return attributes;
+    }
+
+    /**
+     * 把相对地址转换为绝对地址
+     * @param baseUrl 播放列表地址
+     * @param uri 地址
+     * @return 绝对地址
+     * @throws IOException 地址格式错误
+     */
+    static String resolve(String baseUrl, String uri) throws IOException {
+        if (null == uri) {
+            throw new IOException("Missing uri in playlist: " + baseUrl);
+        }
+        try {
+            return new URL(new URL(baseUrl), uri.trim()).toString();
+        } catch (MalformedURLException e) {
+            throw new IOException("Malformed uri in playlist: " + uri);
+        }
+    }
+
+    /**
+     * 把标签中的URI属性转换为绝对地址
+     * @param baseUrl 播放列表地址
+     * @param tag 标签
+     * @return 转换后的标签
+     * @throws IOException 地址格式错误
+     */
+    private static String resolveUriAttribute(String baseUrl, String tag) throws IOException {
+        Matcher matcher = URI_ATTRIBUTE_PATTERN.matcher(tag);
+        if (!matcher.find()) {
+            return tag;
+        }
+        return tag.substring(0, matcher.start(1)) + resolve(baseUrl, matcher.group(1)) + tag.substring(matcher.end(1));
+    }
+
+    private static long parseLong(String value) {
+        if (null == value) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * 读取下一个非空行
+     */
+    private static String nextLine(BufferedReader reader) throws IOException {
+        String line;
+        while (null != (line = reader.readLine())) {
+            line = line.trim();
+            if (line.length() > 0) {
+                return line;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,882 @@
+/*
+ * Copyright (C) 2016. The Android Open Source Project.
+ *
+ *          yinglovezhuzhu@gmail.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *           http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.opensource.videoplayer.hls;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.opensource.videoplayer.BandwidthMeter;
+import com.opensource.videoplayer.abr.AbrController;
+import com.opensource.videoplayer.db.DownloadDBUtils;
+import com.opensource.videoplayer.downloader.DownloadLog;
+import com.opensource.videoplayer.downloader.HttpResponseException;
+import com.opensource.videoplayer.downloader.RetryPolicy;
+import com.opensource.videoplayer.metrics.PlaybackSession;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * 一个HLS点播视频的下载会话<br>
+ * 读取主播放列表，按估计带宽选择开始的码率，它的媒体播放列表作为播放器使用的时间线；播放器通过本地代理请求分片时，
+ * 从请求的分片开始预先并行下载之后{@link #DEFAULT_LOOK_AHEAD}个分片到缓存目录，超出这个范围的分片不下载<br>
+ * 其他码率的分片和时间线对齐（分片数量相同、没有#EXT-X-MAP、编码相同）时，每个分片下载前由{@link AbrController}
+ * 根据估计带宽和已经缓存的时长选择码率，码率切换发生在分片的边界上<br>
+ * 分片下载完成后才放到缓存目录中，播放列表也会保存下来，再次播放同一个视频时直接使用缓存中的分片，
+ * 没有网络的时候也可以使用缓存的播放列表<br>
+ * 缓存目录作为一条下载历史记录，由{@link com.opensource.videoplayer.cache.CacheManager}统一清理
+ * Created by yinglovezhuzhu@gmail.com on 2017/1/28.
+ */
+public class HlsSession {
+
+    private static final String TAG = "HlsSession";
+
+    /** 预先下载的分片数量 **/
+    public static final int DEFAULT_LOOK_AHEAD = 5;
+
+    /** 同时下载的分片数量 **/
+    public static final int DEFAULT_PARALLELISM = 3;
+
+    private static final int CONNECT_TIMEOUT = 6 * 1000;
+
+    private static final int READ_TIMEOUT = 15 * 1000;
+
+    private static final int BUFFER_SIZE = 1024 * 64;
+
+    private static final String MASTER_FILE = "master.m3u8";
+
+    private static final String MEDIA_FILE = "playlist.m3u8";
+
+    private static final String INIT_PREFIX = "init";
+
+    private final Context mContext;
+    private final String mUrl;
+    private final File mDir; // 这个视频的缓存目录
+    private final int mLookAhead;
+    private final int mParallelism;
+    private RetryPolicy mRetryPolicy = new RetryPolicy();
+    private volatile PlaybackSession mPlaybackSession = null;
+
+    private ExecutorService mExecutor = null;
+    private boolean mStarted = false;
+    private boolean mStopped = false;
+    private HlsPlaylist mPlaylist = null; // 作为时间线的媒体播放列表
+    private File mVariantDir = null; // 时间线的码率的缓存目录
+    private int mTimeline = 0; // 时间线的码率序号
+    private HlsPlaylist[] mVariantPlaylists = null; // 每个码率的媒体播放列表，不能切换到的码率为null
+    private File[] mVariantDirs = null; // 每个码率的缓存目录
+    private AbrController mAbr = null; // 只有一个码率或者不能切换的时候为null
+    private IOException mLoadError = null;
+    private int mPlayIndex = 0; // 播放器最后请求的分片
+
+    private final Map<String, HlsPlaylist.Segment> mItems = new HashMap<String, HlsPlaylist.Segment>(); // 本地文件名 -> 分片
+    private final Map<String, Integer> mIndexes = new HashMap<String, Integer>(); // 本地文件名 -> 分片序号，初始化数据为-1
+    private final List<HlsPlaylist.Segment> mInitSegments = new ArrayList<HlsPlaylist.Segment>();
+    private final Set<String> mFetching = new HashSet<String>(); // 正在下载或者等待下载的文件名
+    private final Map<String, IOException> mErrors = new HashMap<String, IOException>(); // 下载失败的文件名
+    private final Set<String> mDownloaded = new HashSet<String>(); // 这个会话中从网络下载的文件名
+    private final Set<String> mServed = new HashSet<String>(); // 已经交给播放器的文件名
+
+    /**
+     * Constructor
+     * @param context Context对象
+     * @param url 主播放列表或者媒体播放列表的地址
+     * @param cacheRoot 缓存根目录，每个视频使用其中的一个子目录
+     */
+    public HlsSession(Context context, String url, File cacheRoot) {
+        this(context, url, cacheRoot, DEFAULT_LOOK_AHEAD, DEFAULT_PARALLELISM);
+    }
+
+    /**
+     * Constructor
+     * @param context Context对象
+     * @param url 主播放列表或者媒体播放列表的地址
+     * @param cacheRoot 缓存根目录，每个视频使用其中的一个子目录
+     * @param lookAhead 从播放位置开始预先下载的分片数量
+     * @param parallelism 同时下载的分片数量
+     */
+    public HlsSession(Context context, String url, File cacheRoot, int lookAhead, int parallelism) {
+        this.mContext = context;
+        this.mUrl = url;
+        this.mDir = new File(cacheRoot, hash(url));
+        this.mLookAhead = Math.max(1, lookAhead);
+        this.mParallelism = Math.max(1, parallelism);
+    }
+
+    /**
+     * 判断地址是否是HLS播放列表（路径以.m3u8结尾）
+     * @param url 地址
+     * @return 是否是HLS
+     */
+    public static boolean isHlsUrl(String url) {
+        if (null == url) {
+            return false;
+        }
+        String path = url;
+        int index = path.indexOf('?');
+        if (index >= 0) {
+            path = path.substring(0, index);
+        }
+        index = path.indexOf('#');
+        if (index >= 0) {
+            path = path.substring(0, index);
+        }
+        return path.toLowerCase(Locale.ENGLISH).endsWith(".m3u8");
+    }
+
+    public String getUrl() {
+        return mUrl;
+    }
+
+    /**
+     * 设置下载出错后的重试策略
+     * @param policy 重试策略
+     */
+    public void setRetryPolicy(RetryPolicy policy) {
+        this.mRetryPolicy = null == policy ? new RetryPolicy(0, 1, 1) : policy;
+    }
+
+    /**
+     * 设置播放记录，记录下载的网络数据量和使用的缓存数据量
+     * @param session 播放记录，可以为null
+     */
+    public void setPlaybackSession(PlaybackSession session) {
+        this.mPlaybackSession = session;
+    }
+
+    /**
+     * 在后台读取播放列表并开始预先下载分片，已经开始的直接返回
+     */
+    public synchronized void start() {
+        if (mStarted || mStopped) {
+            return;
+        }
+        mStarted = true;
+        mExecutor = Executors.newFixedThreadPool(mParallelism, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "Hls-prefetch");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                load();
+            }
+        }, "Hls-loader");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * 停止下载，正在等待的请求会立即返回
+     */
+    public synchronized void stop() {
+        mStopped = true;
+        if (null != mExecutor) {
+            mExecutor.shutdownNow();
+        }
+        notifyAll();
+    }
+
+    public synchronized boolean isStopped() {
+        return mStopped;
+    }
+
+    /**
+     * 等待媒体播放列表读取完成
+     * @param timeout 最长等待时间，单位毫秒
+     * @return 媒体播放列表，超时或者已经停止的时候返回null
+     * @throws IOException 读取播放列表失败
+     * @throws InterruptedException 等待被中断
+     */
+    public synchronized HlsPlaylist waitForPlaylist(long timeout) throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        long remain;
+        while (null == mPlaylist) {
+            if (null != mLoadError) {
+                throw mLoadError;
+            }
+            if (mStopped || (remain = deadline - System.currentTimeMillis()) <= 0) {
+                return null;
+            }
+            wait(remain);
+        }
+        return mPlaylist;
+    }
+
+    /**
+     * 生成给播放器使用的媒体播放列表，分片和初始化数据的地址替换为本地地址，
+     * 分片单独下载，不再需要#EXT-X-BYTERANGE<br>
+     * 相邻的两个分片都已经缓存并且来自不同码率的时候加上#EXT-X-DISCONTINUITY，播放器在这里重新初始化解码器；
+     * 还没有缓存的分片在下载时才选择码率，不加，对齐的码率之间切换不需要重置时间戳
+     * @param baseUrl 本地地址前缀，后面直接拼接文件名
+     * @return 播放列表内容，播放列表还没有读取完成的时候返回null
+     */
+    public synchronized String buildLocalPlaylist(String baseUrl) {
+        HlsPlaylist playlist = mPlaylist;
+        if (null == playlist) {
+            return null;
+        }
+        StringBuilder builder = new StringBuilder("#EXTM3U\n");
+        if (playlist.getVersion() > 0) {
+            builder.append("#EXT-X-VERSION:").append(playlist.getVersion()).append('\n');
+        }
+        builder.append("#EXT-X-TARGETDURATION:").append(playlist.getTargetDuration()).append('\n');
+        builder.append("#EXT-X-MEDIA-SEQUENCE:").append(playlist.getMediaSequence()).append('\n');
+        builder.append("#EXT-X-PLAYLIST-TYPE:VOD\n");
+        List<HlsPlaylist.Segment> segments = playlist.getSegments();
+        String keyTag = null;
+        HlsPlaylist.Segment initSegment = null;
+        int lastVariant = -1;
+        for (int i = 0; i < segments.size(); i++) {
+            HlsPlaylist.Segment segment = segments.get(i);
+            int variant = null == mAbr ? mTimeline : getCachedVariant(getSegmentName(i, segment));
+            boolean variantChanged = variant >= 0 && lastVariant >= 0 && variant != lastVariant;
+            lastVariant = variant;
+            if (segment.isDiscontinuity() || variantChanged) {
+                builder.append("#EXT-X-DISCONTINUITY\n");
+            }
+            if (null == keyTag ? null != segment.getKeyTag() : !keyTag.equals(segment.getKeyTag())) {
+                // 加密的密钥直接从服务器读取
+                keyTag = segment.getKeyTag();
+                builder.append(null == keyTag ? "#EXT-X-KEY:METHOD=NONE" : keyTag).append('\n');
+            }
+            if (null != segment.getInitSegment() && segment.getInitSegment() != initSegment) {
+                initSegment = segment.getInitSegment();
+                builder.append("#EXT-X-MAP:URI=\"").append(baseUrl).append(getInitName(initSegment)).append("\"\n");
+            }
+            builder.append(String.format(Locale.US, "#EXTINF:%.3f,\n", segment.getDurationMs() / 1000.0));
+            builder.append(baseUrl).append(getSegmentName(i, segment)).append('\n');
+        }
+        builder.append("#EXT-X-ENDLIST\n");
+        return builder.toString();
+    }
+
+    /**
+     * 等待分片或者初始化数据下载到缓存中，请求的分片作为新的播放位置，从它开始预先下载之后的分片
+     * @param name 本地文件名，{@link #buildLocalPlaylist(String)}中使用的名称
+     * @param timeout 最长等待时间，单位毫秒
+     * @return 缓存文件，超时或者已经停止的时候返回null
+     * @throws IOException 没有这个分片或者下载失败
+     * @throws InterruptedException 等待被中断
+     */
+    public File waitForFile(String name, long timeout) throws IOException, InterruptedException {
+        if (null == waitForPlaylist(timeout)) {
+            return null;
+        }
+        synchronized (this) {
+            Integer index = mIndexes.get(name);
+            if (null == index) {
+                throw new IOException("No such segment: " + name);
+            }
+            if (index >= 0) {
+                mPlayIndex = index;
+            }
+            // 播放器重新请求的时候重试下载失败的分片
+            mErrors.remove(name);
+            schedule();
+            long deadline = System.currentTimeMillis() + timeout;
+            long remain;
+            File file;
+            while (null == (file = getCachedFile(name))) {
+                IOException error = mErrors.remove(name);
+                if (null != error) {
+                    throw error;
+                }
+                if (mStopped || (remain = deadline - System.currentTimeMillis()) <= 0) {
+                    return null;
+                }
+                wait(remain);
+            }
+            PlaybackSession session = mPlaybackSession;
+            if (mServed.add(name) && !mDownloaded.contains(name) && null != session) {
+                // 开始播放前已经缓存的分片
+                session.onCacheBytes(file.length());
+            }
+            return file;
+        }
+    }
+
+    /**
+     * 读取播放列表，选择码率，保存下载历史，然后开始预先下载
+     */
+    private void load() {
+        try {
+            File masterFile = new File(mDir, MASTER_FILE);
+            boolean[] cached = new boolean[1];
+            HlsPlaylist playlist = loadPlaylist(mUrl, masterFile, cached);
+            List<HlsPlaylist.Variant> variants = null;
+            int timeline = 0;
+            File[] variantDirs;
+            if (playlist.isMaster()) {
+                variants = playlist.getVariants();
+                if (variants.isEmpty()) {
+                    throw new IOException("No variant in master playlist: " + mUrl);
+                }
+                variantDirs = new File[variants.size()];
+                long[] bitrates = new long[variants.size()];
+                for (int i = 0; i < variants.size(); i++) {
+                    variantDirs[i] = new File(mDir, hash(variants.get(i).getUrl()));
+                    bitrates[i] = variants.get(i).getBandwidth();
+                }
+                AbrController abr = new AbrController(bitrates);
+                timeline = selectInitialVariant(abr, variantDirs, cached[0]);
+                HlsPlaylist.Variant variant = variants.get(timeline);
+                Log.i(TAG, "Select variant " + variant);
+                playlist = loadPlaylist(variant.getUrl(), new File(variantDirs[timeline], MEDIA_FILE), cached);
+                if (playlist.isMaster()) {
+                    throw new IOException("Nested master playlist: " + variant.getUrl());
+                }
+                if (variants.size() > 1 && !hasInitSegment(playlist)) {
+                    // 其他码率的播放列表读取完成之前只使用开始的码率
+                    for (int i = 0; i < variants.size(); i++) {
+                        abr.setEnabled(i, i == timeline);
+                    }
+                    mAbr = abr;
+                }
+            } else {
+                variantDirs = new File[] {new File(mDir, hash(mUrl)), };
+                masterFile.delete();
+            }
+            File variantDir = variantDirs[timeline];
+            if (!playlist.isEndList()) {
+                Log.w(TAG, "Playlist without #EXT-X-ENDLIST, play as vod: " + mUrl);
+            }
+            recordHistory();
+            synchronized (this) {
+                mVariantDir = variantDir;
+                mTimeline = timeline;
+                mVariantDirs = variantDirs;
+                mVariantPlaylists = new HlsPlaylist[variantDirs.length];
+                mVariantPlaylists[timeline] = playlist;
+                mItems.clear();
+                mIndexes.clear();
+                mInitSegments.clear();
+                List<HlsPlaylist.Segment> segments = playlist.getSegments();
+                for (int i = 0; i < segments.size(); i++) {
+                    HlsPlaylist.Segment segment = segments.get(i);
+                    HlsPlaylist.Segment init = segment.getInitSegment();
+                    if (null != init && !mInitSegments.contains(init)) {
+                        mInitSegments.add(init);
+                        mItems.put(getInitName(init), init);
+                        mIndexes.put(getInitName(init), -1);
+                    }
+                    mItems.put(getSegmentName(i, segment), segment);
+                    mIndexes.put(getSegmentName(i, segment), i);
+                }
+                mPlaylist = playlist;
+                notifyAll();
+                schedule();
+            }
+            if (null != mAbr) {
+                loadAlternateVariants(variants, timeline);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Load playlist failed: " + mUrl, e);
+            synchronized (this) {
+                mLoadError = e;
+                notifyAll();
+            }
+        } catch (RuntimeException e) {
+            // 等待播放列表的请求不能一直等下去
+            Log.e(TAG, "Load playlist failed: " + mUrl, e);
+            synchronized (this) {
+                mLoadError = new IOException("Load playlist failed: " + e);
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * 把缓存目录记录为下载历史，由缓存管理统一清理；记录失败不影响播放
+     */
+    private void recordHistory() {
+        try {
+            if (null == DownloadDBUtils.getHistoryFile(mContext, mUrl)) {
+                DownloadDBUtils.saveHistory(mContext, new DownloadLog(mUrl, 0, 0, mDir.getPath()));
+            }
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Record hls cache failed: " + mDir, e);
+        }
+    }
+
+    /**
+     * 选择开始播放的码率：按估计带宽选择，没有估计值的时候使用第一个（播放列表推荐的开始码率）；
+     * 离线的时候使用第一个有缓存的码率
+     * @param abr 码率控制器
+     * @param variantDirs 每个码率的缓存目录
+     * @param offline 主播放列表是否来自缓存（网络不可用）
+     * @return 码率序号
+     */
+    private int selectInitialVariant(AbrController abr, File[] variantDirs, boolean offline) {
+        long bitrate = BandwidthMeter.getInstance().getEstimatedBitrate();
+        if (offline) {
+            for (int i = 0; i < variantDirs.length; i++) {
+                if (new File(variantDirs[i], MEDIA_FILE).exists()) {
+                    return abr.setInitialIndex(i, bitrate);
+                }
+            }
+        }
+        return abr.selectInitial(bitrate, 0);
+    }
+
+    /**
+     * 读取其他码率的媒体播放列表，和时间线对齐的码率才可以切换
+     * @param variants 所有码率
+     * @param timeline 时间线的码率序号
+     */
+    private void loadAlternateVariants(List<HlsPlaylist.Variant> variants, int timeline) {
+        HlsPlaylist.Variant timelineVariant = variants.get(timeline);
+        HlsPlaylist timelinePlaylist = mPlaylist;
+        boolean[] cached = new boolean[1];
+        for (int i = 0; i < variants.size() && !isStopped(); i++) {
+            if (i == timeline) {
+                continue;
+            }
+            HlsPlaylist.Variant variant = variants.get(i);
+            HlsPlaylist playlist;
+            try {
+                playlist = loadPlaylist(variant.getUrl(), new File(mVariantDirs[i], MEDIA_FILE), cached);
+            } catch (IOException e) {
+                Log.w(TAG, "Load variant failed: " + variant + ", " + e);
+                continue;
+            }
+            boolean sameCodecs = null == variant.getCodecs() || null == timelineVariant.getCodecs()
+                    || variant.getCodecs().equals(timelineVariant.getCodecs());
+            if (playlist.isMaster() || hasInitSegment(playlist) || !sameCodecs
+                    || playlist.getSegments().size() != timelinePlaylist.getSegments().size()) {
+                Log.w(TAG, "Variant not aligned with timeline, skip: " + variant);
+                continue;
+            }
+            synchronized (this) {
+                mVariantPlaylists[i] = playlist;
+            }
+            mAbr.setEnabled(i, true);
+        }
+    }
+
+    private static boolean hasInitSegment(HlsPlaylist playlist) {
+        for (HlsPlaylist.Segment segment : playlist.getSegments()) {
+            if (null != segment.getInitSegment()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 获取已经缓存的文件，分片可以是任意一个码率的，调用时需要同步this
+     * @param name 本地文件名
+     * @return 缓存文件，没有缓存的时候返回null
+     */
+    private File getCachedFile(String name) {
+        int variant = getCachedVariant(name);
+        return variant < 0 ? null : new File(mVariantDirs[variant], name);
+    }
+
+    /**
+     * 获取已经缓存的文件所在的码率，优先使用时间线的码率，调用时需要同步this
+     * @param name 本地文件名
+     * @return 码率序号，没有缓存的时候返回-1
+     */
+    private int getCachedVariant(String name) {
+        Integer index = mIndexes.get(name);
+        if (null == index) {
+            return -1;
+        }
+        if (new File(mVariantDir, name).exists()) {
+            return mTimeline;
+        }
+        if (index < 0) {
+            return -1;
+        }
+        for (int i = 0; i < mVariantPlaylists.length; i++) {
+            if (null != mVariantPlaylists[i] && new File(mVariantDirs[i], name).exists()) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 从播放位置开始连续缓存的时长，作为码率选择的缓冲时长，调用时需要同步this
+     * @return 缓冲时长，单位毫秒
+     */
+    private long getBufferedMs() {
+        List<HlsPlaylist.Segment> segments = mPlaylist.getSegments();
+        long buffered = 0;
+        for (int i = mPlayIndex; i < segments.size(); i++) {
+            if (null == getCachedFile(getSegmentName(i, segments.get(i)))) {
+                break;
+            }
+            buffered += segments.get(i).getDurationMs();
+        }
+        return buffered;
+    }
+
+    /**
+     * 读取播放列表并保存到缓存，网络读取失败的时候使用缓存
+     * @param url 播放列表地址
+     * @param cacheFile 缓存文件
+     * @param cached 输出参数，播放列表是否来自缓存
+     * @return 播放列表
+     * @throws IOException 网络读取失败并且没有缓存
+     */
+    private HlsPlaylist loadPlaylist(String url, File cacheFile, boolean[] cached) throws IOException {
+        try {
+            String[] result = fetchText(url);
+            HlsPlaylist playlist = HlsPlaylistParser.parse(result[0], result[1]);
+            writeFile(cacheFile, result[1].getBytes("UTF-8"));
+            cached[0] = false;
+            return playlist;
+        } catch (IOException e) {
+            if (!cacheFile.exists()) {
+                throw e;
+            }
+            Log.w(TAG, "Load playlist failed, use cache: " + url + ", " + e);
+            cached[0] = true;
+            return HlsPlaylistParser.parse(url, new String(readFile(cacheFile), "UTF-8"));
+        }
+    }
+
+    /**
+     * 计算预先下载的范围：播放位置开始的{@link #mLookAhead}个分片和它们的初始化数据
+     * @return 本地文件名，按下载顺序
+     */
+    private Set<String> getWindow() {
+        Set<String> names = new LinkedHashSet<String>();
+        if (null == mPlaylist) {
+            return names;
+        }
+        List<HlsPlaylist.Segment> segments = mPlaylist.getSegments();
+        int end = Math.min(segments.size(), mPlayIndex + mLookAhead);
+        for (int i = mPlayIndex; i < end; i++) {
+            HlsPlaylist.Segment segment = segments.get(i);
+            if (null != segment.getInitSegment()) {
+                names.add(getInitName(segment.getInitSegment()));
+            }
+            names.add(getSegmentName(i, segment));
+        }
+        return names;
+    }
+
+    /**
+     * 把预先下载范围内还没有缓存的分片加入下载队列，调用时需要同步this
+     */
+    private void schedule() {
+        if (mStopped || null == mExecutor) {
+            return;
+        }
+        for (final String name : getWindow()) {
+            if (mFetching.contains(name) || mErrors.containsKey(name) || null != getCachedFile(name)) {
+                continue;
+            }
+            mFetching.add(name);
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    fetch(name);
+                }
+            });
+        }
+    }
+
+    /**
+     * 下载一个分片，播放位置已经改变、不在预先下载范围内的分片直接跳过
+     * @param name 本地文件名
+     */
+    private void fetch(String name) {
+        HlsPlaylist.Segment segment;
+        File file;
+        synchronized (this) {
+            if (mStopped || !getWindow().contains(name)) {
+                mFetching.remove(name);
+                return;
+            }
+            segment = mItems.get(name);
+            file = new File(mVariantDir, name);
+            int index = mIndexes.get(name);
+            if (null != mAbr && index >= 0) {
+                // 在分片的边界上选择码率
+                int variant = mAbr.select(BandwidthMeter.getInstance().getEstimatedBitrate(), getBufferedMs());
+                if (null != mVariantPlaylists[variant]) {
+                    segment = mVariantPlaylists[variant].getSegments().get(index);
+                    file = new File(mVariantDirs[variant], name);
+                }
+            }
+        }
+        IOException error = null;
+        try {
+            fetchWithRetry(segment, file);
+        } catch (IOException e) {
+            Log.e(TAG, "Fetch segment failed: " + segment, e);
+            error = e;
+        }
+        synchronized (this) {
+            mFetching.remove(name);
+            if (null != error && !mStopped) {
+                mErrors.put(name, error);
+            } else if (null == error) {
+                mDownloaded.add(name);
+            }
+            notifyAll();
+            schedule();
+        }
+    }
+
+    /**
+     * 下载一个分片，暂时性的错误按重试策略等待后重试，下载完成后再放到缓存目录
+     * @param segment 分片
+     * @param file 缓存文件
+     * @throws IOException 下载失败
+     */
+    private void fetchWithRetry(HlsPlaylist.Segment segment, File file) throws IOException {
+        File tempFile = new File(file.getPath() + ".tmp");
+        RetryPolicy policy = mRetryPolicy;
+        for (int retryCount = 1; ; retryCount++) {
+            try {
+                download(segment, tempFile);
+                break;
+            } catch (IOException e) {
+                if (isStopped() || !policy.isRetryable(e) || retryCount > policy.getMaxRetries()) {
+                    tempFile.delete();
+                    throw e;
+                }
+                Log.w(TAG, "Retry " + retryCount + "/" + policy.getMaxRetries() + ": " + segment + ", " + e);
+                try {
+                    Thread.sleep(policy.getDelay(retryCount));
+                } catch (InterruptedException ie) {
+                    tempFile.delete();
+                    throw new IOException("Fetch interrupted");
+                }
+            }
+        }
+        if (!tempFile.renameTo(file)) {
+            tempFile.delete();
+            throw new IOException("Rename segment failed: " + file);
+        }
+    }
+
+    /**
+     * 下载一个分片到文件
+     * @param segment 分片
+     * @param file 保存的文件
+     * @throws IOException 连接失败、响应错误或者数据不完整
+     */
+    private void download(HlsPlaylist.Segment segment, File file) throws IOException {
+        HttpURLConnection conn = openConnection(segment.getUrl());
+        boolean ranged = segment.getLength() >= 0;
+        if (ranged) {
+            conn.setRequestProperty("Range", "bytes=" + segment.getOffset() + "-"
+                    + (segment.getOffset() + segment.getLength() - 1));
+        }
+        InputStream in = null;
+        FileOutputStream out = null;
+        BandwidthMeter meter = BandwidthMeter.getInstance();
+        PlaybackSession session = mPlaybackSession;
+        meter.onTransferStart();
+        try {
+            int code = conn.getResponseCode();
+            boolean partial = code == HttpURLConnection.HTTP_PARTIAL;
+            if (!(code == HttpURLConnection.HTTP_OK && (!ranged || segment.getOffset() == 0)) && !(ranged && partial)) {
+                throw new HttpResponseException(code, "server response error, response code:" + code);
+            }
+            long expected = ranged ? segment.getLength() : conn.getContentLength();
+            in = conn.getInputStream();
+            File parent = file.getParentFile();
+            if (null != parent && !parent.exists()) {
+                parent.mkdirs();
+            }
+            out = new FileOutputStream(file);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long total = 0;
+            int count;
+            while ((expected < 0 || total < expected)
+                    && (count = in.read(buffer, 0, (int) (expected < 0 ? buffer.length
+                    : Math.min(buffer.length, expected - total)))) != -1) {
+                if (isStopped()) {
+                    throw new IOException("Session stopped");
+                }
+                out.write(buffer, 0, count);
+                total += count;
+                meter.onBytesTransferred(count);
+                if (null != session) {
+                    session.onNetworkBytes(count);
+                }
+            }
+            if (expected >= 0 && total < expected) {
+                throw new IOException("Segment truncated: " + total + "/" + expected);
+            }
+            out.getFD().sync();
+        } finally {
+            meter.onTransferEnd();
+            if (null != out) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            if (null != in) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            conn.disconnect();
+        }
+    }
+
+    /**
+     * 读取文本（播放列表），暂时性的错误按重试策略重试
+     * @param url 地址
+     * @return 重定向后的地址和文本内容
+     * @throws IOException 读取失败
+     */
+    private String[] fetchText(String url) throws IOException {
+        RetryPolicy policy = mRetryPolicy;
+        for (int retryCount = 1; ; retryCount++) {
+            HttpURLConnection conn = null;
+            try {
+                conn = openConnection(url);
+                int code = conn.getResponseCode();
+                if (code != HttpURLConnection.HTTP_OK) {
+                    throw new HttpResponseException(code, "server response error, response code:" + code);
+                }
+                InputStream in = conn.getInputStream();
+                try {
+                    return new String[] {conn.getURL().toString(), new String(readFully(in), "UTF-8"), };
+                } finally {
+                    in.close();
+                }
+            } catch (IOException e) {
+                if (isStopped() || !policy.isRetryable(e) || retryCount > policy.getMaxRetries()) {
+                    throw e;
+                }
+                Log.w(TAG, "Retry " + retryCount + "/" + policy.getMaxRetries() + ": " + url + ", " + e);
+                try {
+                    Thread.sleep(policy.getDelay(retryCount));
+                } catch (InterruptedException ie) {
+                    throw new IOException("Load interrupted");
+                }
+            } finally {
+                if (null != conn) {
+                    conn.disconnect();
+                }
+            }
+        }
+    }
+
+    private static HttpURLConnection openConnection(String url) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+        conn.setConnectTimeout(CONNECT_TIMEOUT);
+        conn.setReadTimeout(READ_TIMEOUT);
+        conn.setRequestMethod("GET");
+        conn.setRequestProperty("Accept", "*/*");
+        conn.setRequestProperty("Connection", "Keep-Alive");
+        return conn;
+    }
+
+    private static String getSegmentName(int index, HlsPlaylist.Segment segment) {
+        return index + segment.getExtension();
+    }
+
+    private String getInitName(HlsPlaylist.Segment initSegment) {
+        int index = mInitSegments.indexOf(initSegment);
+        return INIT_PREFIX + (index < 0 ? 0 : index) + initSegment.getExtension();
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024 * 8];
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            out.write(buffer, 0, count);
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            return readFully(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void writeFile(File file, byte[] data) throws IOException {
+        File parent = file.getParentFile();
+        if (null != parent && !parent.exists()) {
+            parent.mkdirs();
+        }
+        File tempFile = new File(file.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(tempFile);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        if (!tempFile.renameTo(file)) {
+            tempFile.delete();
+            throw new IOException("Rename failed: " + file);
+        }
+    }
+
+    /**
+     * 地址的md5，作为缓存目录名
+     */
+    private static String hash(String url) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            byte[] bytes = digest.digest(url.getBytes("UTF-8"));
+            StringBuilder builder = new StringBuilder();
+            for (byte b : bytes) {
+                builder.append(String.format(Locale.US, "%02x", b & 0xff));
+            }
+            return builder.toString();
+        } catch (NoSuchAlgorithmException e) {
+            return String.valueOf(url.hashCode() & 0x7fffffff);
+        } catch (IOException e) {
+            return String.valueOf(url.hashCode() & 0x7fffffff);
+        }
+    }
+}
@@ -0,0 +1,404 @@
+/*
+ * Copyright (C) 2016. The Android Open Source Project.
+ *
+ *          yinglovezhuzhu@gmail.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *           http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.opensource.videoplayer.metrics;
+
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 一次播放的体验指标（QoE）记录，从调用play()开始，到播放完成或者退出播放结束<br>
+ * 记录的时间点都是相对于play()的毫秒数，没有发生的为{@link #NOT_SET}：
+ * 网络数据的第一个字节、播放器准备完成（onPrepared）、第一帧画面；
+ * 卡顿为播放器出错（缓冲不足）到重新开始播放的过程，记录每一次的开始时间和时长；
+ * 数据量分为缓存数据（开始播放时已经在缓存中的数据）和本次从网络下载的数据，
+ * 下载速度为网络数据总量除以第一个字节到最后一个字节的时间<br>
+ * 下载线程和主线程都会更新，所有方法都同步；结束后不再改变，通过{@link Listener}回调，
+ * {@link #toRecord()}得到一行紧凑的JSON，可以保存后批量上传
+ * Created by yinglovezhuzhu@gmail.com on 2017/2/8.
+ */
+public class PlaybackSession {
+
+    /** 记录格式的版本 **/
+    public static final int RECORD_VERSION = 1;
+
+    /** 时间点没有发生 **/
+    public static final long NOT_SET = -1;
+
+    private static final Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long elapsedRealtime() {
+            return SystemClock.elapsedRealtime();
+        }
+    };
+
+    private final String mUrl;
+    private final Clock mClock;
+    private final long mStartTime; // play()的系统时间，单位毫秒
+    private final long mStartRealtime; // play()的开机时间，用来计算相对时间
+    private boolean mHls = false;
+
+    private long mFirstByteTime = NOT_SET;
+    private long mLastByteTime = NOT_SET;
+    private long mPreparedTime = NOT_SET;
+    private long mFirstFrameTime = NOT_SET;
+    private long mEndTime = NOT_SET;
+    private boolean mCompleted = false;
+
+    private final List<long[]> mRebuffers = new ArrayList<long[]>(); // 每次卡顿的开始时间和时长
+    private long mRebufferStartTime = NOT_SET; // 正在卡顿的开始时间
+
+    private long mCacheBytes = 0;
+    private long mNetworkBytes = 0;
+    private int mLastDownloadedSize = -1; // 渐进式下载上一次的下载进度
+    private long mEstimatedBitrate = 0; // 结束时的估计带宽
+
+    /**
+     * Constructor，在调用play()的时候创建
+     * @param url 视频地址
+     */
+    public PlaybackSession(String url) {
+        this(url, SYSTEM_CLOCK);
+    }
+
+    /**
+     * Constructor，使用指定的时钟计时
+     * @param url 视频地址
+     * @param clock 时钟
+     */
+    PlaybackSession(String url, Clock clock) {
+        this.mUrl = url;
+        this.mClock = clock;
+        this.mStartTime = System.currentTimeMillis();
+        this.mStartRealtime = clock.elapsedRealtime();
+    }
+
+    public String getUrl() {
+        return mUrl;
+    }
+
+    /**
+     * @return play()的系统时间，单位毫秒
+     */
+    public long getStartTime() {
+        return mStartTime;
+    }
+
+    public synchronized void setHls(boolean hls) {
+        this.mHls = hls;
+    }
+
+    public synchronized boolean isHls() {
+        return mHls;
+    }
+
+    /**
+     * 渐进式下载的进度更新，可以在下载线程调用；第一次调用时的下载长度为已经缓存的数据，
+     * 之后增加的长度为网络数据
+     * @param downloadedSize 已下载长度
+     * @param totalSize 总长度
+     */
+    public synchronized void onDownloadProgress(int downloadedSize, int totalSize) {
+        if (isFinished()) {
+            return;
+        }
+        if (mLastDownloadedSize < 0) {
+            mLastDownloadedSize = downloadedSize;
+            mCacheBytes += downloadedSize;
+            return;
+        }
+        if (downloadedSize > mLastDownloadedSize) {
+            onNetworkBytes(downloadedSize - mLastDownloadedSize);
+        }
+        mLastDownloadedSize = downloadedSize;
+    }
+
+    /**
+     * 换了一个下载（例如切换码率），下一次进度更新重新作为已经缓存的数据
+     */
+    public synchronized void onDownloadRestarted() {
+        mLastDownloadedSize = -1;
+    }
+
+    /**
+     * 从网络下载了数据，可以在下载线程调用
+     * @param count 字节数
+     */
+    public synchronized void onNetworkBytes(long count) {
+        if (isFinished() || count <= 0) {
+            return;
+        }
+        long now = now();
+        if (NOT_SET == mFirstByteTime) {
+            mFirstByteTime = now;
+        }
+        mLastByteTime = now;
+        mNetworkBytes += count;
+    }
+
+    /**
+     * 使用了开始播放前已经缓存的数据，可以在下载线程调用
+     * @param count 字节数
+     */
+    public synchronized void onCacheBytes(long count) {
+        if (isFinished() || count <= 0) {
+            return;
+        }
+        mCacheBytes += count;
+    }
+
+    /**
+     * 播放器准备完成，只记录第一次
+     */
+    public synchronized void onPrepared() {
+        if (!isFinished() && NOT_SET == mPreparedTime) {
+            mPreparedTime = now();
+        }
+    }
+
+    /**
+     * 播放器开始显示画面，第一次为首帧时间，正在卡顿的时候结束这次卡顿
+     */
+    public synchronized void onFrameRendered() {
+        if (isFinished()) {
+            return;
+        }
+        long now = now();
+        if (NOT_SET == mFirstFrameTime) {
+            mFirstFrameTime = now;
+        }
+        if (NOT_SET != mRebufferStartTime) {
+            mRebuffers.add(new long[] {mRebufferStartTime, now - mRebufferStartTime});
+            mRebufferStartTime = NOT_SET;
+        }
+    }
+
+    /**
+     * 播放器出错（缓冲不足）开始卡顿，已经在卡顿中的时候不重复记录
+     */
+    public synchronized void onRebufferStart() {
+        if (!isFinished() && NOT_SET == mRebufferStartTime) {
+            mRebufferStartTime = now();
+        }
+    }
+
+    /**
+     * 结束记录，没有结束的卡顿记到结束时间为止
+     * @param completed 是否播放完成，退出播放时为false
+     * @param estimatedBitrate 结束时的估计带宽，单位bit/s
+     * @return 是否是这次调用结束的，已经结束的返回false
+     */
+    public synchronized boolean finish(boolean completed, long estimatedBitrate) {
+        if (isFinished()) {
+            return false;
+        }
+        mEndTime = now();
+        mCompleted = completed;
+        mEstimatedBitrate = Math.max(0, estimatedBitrate);
+        if (NOT_SET != mRebufferStartTime) {
+            mRebuffers.add(new long[] {mRebufferStartTime, mEndTime - mRebufferStartTime});
+            mRebufferStartTime = NOT_SET;
+        }
+        return true;
+    }
+
+    public synchronized boolean isFinished() {
+        return NOT_SET != mEndTime;
+    }
+
+    public synchronized boolean isCompleted() {
+        return mCompleted;
+    }
+
+    /**
+     * @return 第一个网络字节的时间，单位毫秒，全部使用缓存的时候为{@link #NOT_SET}
+     */
+    public synchronized long getFirstByteTime() {
+        return mFirstByteTime;
+    }
+
+    public synchronized long getPreparedTime() {
+        return mPreparedTime;
+    }
+
+    /**
+     * @return 首帧时间，即起播耗时，单位毫秒
+     */
+    public synchronized long getFirstFrameTime() {
+        return mFirstFrameTime;
+    }
+
+    public synchronized long getEndTime() {
+        return mEndTime;
+    }
+
+    public synchronized int getRebufferCount() {
+        return mRebuffers.size();
+    }
+
+    /**
+     * @return 所有卡顿的总时长，单位毫秒
+     */
+    public synchronized long getRebufferDuration() {
+        long duration = 0;
+        for (long[] rebuffer : mRebuffers) {
+            duration += rebuffer[1];
+        }
+        return duration;
+    }
+
+    /**
+     * @return 每次卡顿的开始时间和时长，单位毫秒
+     */
+    public synchronized List<long[]> getRebuffers() {
+        List<long[]> rebuffers = new ArrayList<long[]>();
+        for (long[] rebuffer : mRebuffers) {
+            rebuffers.add(rebuffer.clone());
+        }
+        return rebuffers;
+    }
+
+    public synchronized long getCacheBytes() {
+        return mCacheBytes;
+    }
+
+    public synchronized long getNetworkBytes() {
+        return mNetworkBytes;
+    }
+
+    /**
+     * 本次播放的平均下载速度，网络数据总量除以第一个字节到最后一个字节的时间
+     * @return 下载速度，单位bit/s，没有网络数据或者时间太短的时候返回0
+     */
+    public synchronized long getThroughput() {
+        long elapsed = mLastByteTime - mFirstByteTime;
+        if (NOT_SET == mFirstByteTime || elapsed <= 0) {
+            return 0;
+        }
+        return mNetworkBytes * 8000 / elapsed;
+    }
+
+    /**
+     * 紧凑的JSON记录，一次播放一行，例如：<br>
+     * {"v":1,"url":"http://...","start":1486540800000,"hls":0,"firstByte":320,"prepared":910,
+     * "firstFrame":1050,"end":60230,"completed":1,"rebufferCount":1,"rebufferMs":2100,
+     * "rebuffers":[[20150,2100]],"cacheBytes":0,"networkBytes":8123456,"throughput":2400000,"estimate":2600000}<br>
+     * 时间都是相对于start（play()的系统时间）的毫秒数，-1表示没有发生
+     * @return JSON字符串
+     */
+    public synchronized String toRecord() {
+        StringBuilder sb = new StringBuilder(256);
+        sb.append("{\"v\":").append(RECORD_VERSION);
+        sb.append(",\"url\":");
+        appendString(sb, mUrl);
+        sb.append(",\"start\":").append(mStartTime);
+        sb.append(",\"hls\":").append(mHls ? 1 : 0);
+        sb.append(",\"firstByte\":").append(mFirstByteTime);
+        sb.append(",\"prepared\":").append(mPreparedTime);
+        sb.append(",\"firstFrame\":").append(mFirstFrameTime);
+        sb.append(",\"end\":").append(mEndTime);
+        sb.append(",\"completed\":").append(mCompleted ? 1 : 0);
+        sb.append(",\"rebufferCount\":").append(mRebuffers.size());
+        sb.append(",\"rebufferMs\":").append(getRebufferDuration());
+        sb.append(",\"rebuffers\":[");
+        for (int i = 0; i < mRebuffers.size(); i++) {
+            long[] rebuffer = mRebuffers.get(i);
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append('[').append(rebuffer[0]).append(',').append(rebuffer[1]).append(']');
+        }
+        sb.append(']');
+        sb.append(",\"cacheBytes\":").append(mCacheBytes);
+        sb.append(",\"networkBytes\":").append(mNetworkBytes);
+        sb.append(",\"throughput\":").append(getThroughput());
+        sb.append(",\"estimate\":").append(mEstimatedBitrate);
+        sb.append('}');
+        return sb.toString();
+    }
+
+    @Override
+    public String toString() {
+        return toRecord();
+    }
+
+    private long now() {
+        return mClock.elapsedRealtime() - mStartRealtime;
+    }
+
+    private static void appendString(StringBuilder sb, String value) {
+        if (null == value) {
+            sb.append("null");
+            return;
+        }
+        sb.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+                    break;
+            }
+        }
+        sb.append('"');
+    }
+
+    /**
+     * 计算相对时间使用的时钟，默认为{@link SystemClock#elapsedRealtime()}
+     */
+    interface Clock {
+
+        /**
+         * @return 开机时间，单位毫秒
+         */
+        long elapsedRealtime();
+    }
+
+    /**
+     * 播放记录结束的监听
+     */
+    public interface Listener {
+
+        /**
+         * 一次播放结束，在主线程回调
+         * @param session 播放记录，不会再改变
+         */
+        void onSessionFinished(PlaybackSession session);
+    }
+}
@@ -20,7 +20,12 @@ package com.opensource.videoplayer.model;
 
 import android.net.Uri;
 
+import com.opensource.videoplayer.downloader.CacheValidator;
+import com.opensource.videoplayer.downloader.DownloadLog;
+import com.opensource.videoplayer.metrics.PlaybackSession;
+
 import java.io.File;
+import java.util.List;
 
 /**
  * 下载Model接口
@@ -31,6 +36,38 @@ public interface IVideoPlayerModel {
 
     void setVideoUri(Uri videoUri);
 
+    /**
+     * 设置和视频地址内容相同的其他下载地址（镜像、不同的CDN），下载时同时使用
+     * @param urls 其他下载地址，可以为null
+     */
+    void setMirrorUrls(List<String> urls);
+
+    /**
+     * 切换到同一个视频的另一个地址（其他码率），停止当前地址的下载，已经下载的数据保留在缓存中
+     * @param videoUri 新的视频地址
+     */
+    void switchVideoUri(Uri videoUri);
+
+    /**
+     * 估计从指定播放位置开始已经缓存的时长，按固定码率把播放位置换算为文件位置
+     * @param positionMs 播放位置，单位毫秒
+     * @param bitrate 视频码率，单位bit/s
+     * @return 缓存的时长，单位毫秒
+     */
+    long getBufferedMs(int positionMs, long bitrate);
+
+    /**
+     * 设置当前的播放记录，下载的网络数据量和使用的缓存数据量记录到其中
+     * @param session 播放记录，可以为null
+     */
+    void setPlaybackSession(PlaybackSession session);
+
+    /**
+     * 视频地址是否是HLS播放列表，HLS视频通过本地代理播放，分片在后台预先下载到缓存
+     * @return 是否是HLS
+     */
+    boolean isHlsStream();
+
     /**
      * 下载视频文件
      */
@@ -42,6 +79,25 @@ public interface IVideoPlayerModel {
      */
     File getSavedVideoFile();
 
+    /**
+     * 获取边下边播的本地代理地址，播放器读取到还没有下载的数据时会等待下载，而不是出错
+     * @return 本地代理地址，代理服务不可用的时候返回null
+     */
+    Uri getStreamUri();
+
+    /**
+     * 播放位置改变，优先下载这个位置之后的数据
+     * @param msec 播放位置，单位毫秒
+     */
+    void seekTo(int msec);
+
+    /**
+     * 验证已经下载完成的缓存和服务器上的文件是否一致，不一致的时候删除缓存，结果在ui线程回调
+     * @param history 下载历史
+     * @param callback 验证结果回调
+     */
+    void validateCache(DownloadLog history, CacheValidator.Callback callback);
+
     void onCreate();
 
     void onPause();
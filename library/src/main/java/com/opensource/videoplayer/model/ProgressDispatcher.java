@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2016. The Android Open Source Project.
+ *
+ *          yinglovezhuzhu@gmail.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *           http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.opensource.videoplayer.model;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+import com.opensource.videoplayer.downloader.DownloadListener;
+
+/**
+ * 下载进度分发器，把下载线程中的进度更新合并后发送到Handler所在的线程<br>
+ * 所有更新共用一个Runnable，同一时间最多只有一个等待执行的消息，执行时取最新的进度，
+ * 两次分发之间至少间隔指定的时间；下载完成的进度会立即分发，保证最后的进度一定能收到
+ * Created by yinglovezhuzhu@gmail.com on 2017/1/3.
+ */
+public class ProgressDispatcher {
+
+    private final Handler mHandler;
+    private final DownloadListener mListener;
+    private final long mMinInterval;
+
+    private int mDownloadedSize = 0;
+    private int mTotalSize = 0;
+    private boolean mPosted = false; // 是否有等待执行的分发
+    private long mLastDispatchTime = 0;
+
+    private final Runnable mDispatchTask = new Runnable() {
+        @Override
+        public void run() {
+            int downloadedSize;
+            int totalSize;
+            synchronized (ProgressDispatcher.this) {
+                downloadedSize = mDownloadedSize;
+                totalSize = mTotalSize;
+                mPosted = false;
+                mLastDispatchTime = SystemClock.uptimeMillis();
+            }
+            mListener.onProgressUpdate(downloadedSize, totalSize);
+        }
+    };
+
+    /**
+     * Constructor
+     * @param handler 分发进度的Handler
+     * @param listener 进度监听，在Handler所在线程回调
+     * @param minInterval 两次分发之间的最小间隔，单位毫秒，例如100为最多每秒10次
+     */
+    public ProgressDispatcher(Handler handler, DownloadListener listener, long minInterval) {
+        this.mHandler = handler;
+        this.mListener = listener;
+        this.mMinInterval = minInterval;
+    }
+
+    /**
+     * 更新进度，可以在任意线程调用
+     * @param downloadedSize 已下载长度
+     * @param totalSize 总长度
+     */
+    public synchronized void dispatch(int downloadedSize, int totalSize) {
+        mDownloadedSize = downloadedSize;
+        mTotalSize = totalSize;
+        boolean finished = totalSize > 0 && downloadedSize >= totalSize;
+        if (mPosted) {
+            if (!finished) {
+                // 等待执行的分发会取到最新的进度
+                return;
+            }
+            mHandler.removeCallbacks(mDispatchTask);
+        }
+        long delay = finished ? 0 : mLastDispatchTime + mMinInterval - SystemClock.uptimeMillis();
+        mPosted = true;
+        if (delay > 0) {
+            mHandler.postDelayed(mDispatchTask, delay);
+        } else {
+            mHandler.post(mDispatchTask);
+        }
+    }
+
+    /**
+     * 取消等待执行的分发
+     */
+    public synchronized void cancel() {
+        mHandler.removeCallbacks(mDispatchTask);
+        mPosted = false;
+    }
+}
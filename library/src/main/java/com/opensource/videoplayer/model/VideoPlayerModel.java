@@ -23,15 +23,24 @@ import android.net.NetworkInfo;
 import android.net.Uri;
 import android.os.Handler;
 
+import com.opensource.videoplayer.BandwidthMeter;
 import com.opensource.videoplayer.NetworkManager;
+import com.opensource.videoplayer.cache.CacheManager;
+import com.opensource.videoplayer.downloader.CacheValidator;
 import com.opensource.videoplayer.downloader.DownloadListener;
 import com.opensource.videoplayer.downloader.DownloadLog;
+import com.opensource.videoplayer.downloader.DownloadScheduler;
 import com.opensource.videoplayer.downloader.Downloader;
+import com.opensource.videoplayer.db.DownloadDBHelper;
 import com.opensource.videoplayer.db.DownloadDBUtils;
+import com.opensource.videoplayer.hls.HlsSession;
+import com.opensource.videoplayer.metrics.PlaybackSession;
 import com.opensource.videoplayer.observer.NetworkObserver;
+import com.opensource.videoplayer.proxy.LocalProxyServer;
 import com.opensource.videoplayer.utils.StringUtils;
 
 import java.io.File;
+import java.util.List;
 
 /**
  * 视频播放器Model
@@ -40,11 +49,56 @@ import java.io.File;
 
 public class VideoPlayerModel implements IVideoPlayerModel {
 
+    /** 下载进度回调的最小间隔（毫秒），最多每秒10次 **/
+    private static final long PROGRESS_UPDATE_INTERVAL = 100;
+
     private Context mContext;
     private Downloader mDownloader;
     private DownloadListener mDownloadListener;
     private String mUrl;
     private final Handler mHandler = new Handler();
+    private ProgressDispatcher mProgressDispatcher;
+    private String mPinnedUrl = null; // 正在播放，锁定缓存的地址
+    private HlsSession mHlsSession = null; // HLS视频的下载会话
+    private volatile PlaybackSession mPlaybackSession = null; // 当前的播放记录
+
+    private final DownloadListener mSchedulerListener = new DownloadListener() {
+        @Override
+        public void onProgressUpdate(int downloadedSize, int totalSize) {
+            PlaybackSession session = mPlaybackSession;
+            if(null != session) {
+                // 在下载线程记录，不受进度分发间隔的影响
+                session.onDownloadProgress(downloadedSize, totalSize);
+            }
+            if(null != mProgressDispatcher) {
+                mProgressDispatcher.dispatch(downloadedSize, totalSize);
+            }
+        }
+
+        @Override
+        public void onError(final int code, final String message) {
+            if(null != mDownloadListener) {
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mDownloadListener.onError(code, message);
+                    }
+                });
+            }
+        }
+
+        @Override
+        public void onRetry(final int retryCount, final int maxRetries, final String message) {
+            if(null != mDownloadListener) {
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mDownloadListener.onRetry(retryCount, maxRetries, message);
+                    }
+                });
+            }
+        }
+    };
 
     private NetworkObserver mNetworkObserver = new NetworkObserver() {
         @Override
@@ -61,12 +115,69 @@ public class VideoPlayerModel implements IVideoPlayerModel {
         mDownloader = new Downloader(context, mUrl, true,
                 new File(context.getExternalCacheDir(), "Video"), null);
         this.mDownloadListener = listener;
+        if(null != listener) {
+            mProgressDispatcher = new ProgressDispatcher(mHandler, listener, PROGRESS_UPDATE_INTERVAL);
+        }
     }
 
     @Override
     public void setVideoUri(Uri videoUri) {
         this.mUrl = null == videoUri ? "" : videoUri.toString();
         mDownloader.setUrl(mUrl);
+        stopHlsSession();
+        if(null != mPinnedUrl) {
+            pinCache();
+        }
+    }
+
+    @Override
+    public void setMirrorUrls(List<String> urls) {
+        mDownloader.setMirrorUrls(urls);
+    }
+
+    @Override
+    public void switchVideoUri(Uri videoUri) {
+        if(null != mDownloader) {
+            // 其他页面还在使用同一个下载任务的时候不停止，由调度器在最后一个监听器取消的时候停止
+            DownloadScheduler.getInstance().cancel(mDownloader.getUrl(), mSchedulerListener);
+            LocalProxyServer.getInstance().unregister(mDownloader);
+        }
+        this.mUrl = null == videoUri ? "" : videoUri.toString();
+        mDownloader = new Downloader(mContext, mUrl, true,
+                new File(mContext.getExternalCacheDir(), "Video"), null);
+        PlaybackSession session = mPlaybackSession;
+        if(null != session) {
+            session.onDownloadRestarted();
+        }
+        if(null != mPinnedUrl) {
+            pinCache();
+        }
+    }
+
+    @Override
+    public long getBufferedMs(int positionMs, long bitrate) {
+        if(null == mDownloader || bitrate <= 0) {
+            return 0;
+        }
+        int fileSize = mDownloader.getFileSize();
+        if(fileSize <= 0) {
+            return 0;
+        }
+        int position = (int) Math.min(fileSize - 1, (long) positionMs * bitrate / 8000);
+        return (long) mDownloader.getAvailableLength(position) * 8000 / bitrate;
+    }
+
+    @Override
+    public void setPlaybackSession(PlaybackSession session) {
+        this.mPlaybackSession = session;
+        if(null != mHlsSession) {
+            mHlsSession.setPlaybackSession(session);
+        }
+    }
+
+    @Override
+    public boolean isHlsStream() {
+        return HlsSession.isHlsUrl(mUrl);
     }
 
     @Override
@@ -77,52 +188,19 @@ public class VideoPlayerModel implements IVideoPlayerModel {
             }
             return;
         }
+        if(isHlsStream()) {
+            startHlsSession();
+            return;
+        }
         if(mDownloader.isStop()) {
-            DownloadLog history = DownloadDBUtils.getHistoryByUrl(mContext, mUrl);
-            if(null != history && (new File(history.getSavedFile())).exists()) {
+            String savedFile = DownloadDBUtils.getHistoryFile(mContext, mUrl);
+            if(null != savedFile && (new File(savedFile)).exists()) {
                 return;
             }
-            new Thread(new Runnable() {
-                @Override
-                public void run() {
-                    try {
-                        mDownloader.download(".mp4", new DownloadListener() {
-                            @Override
-                            public void onProgressUpdate(final int downloadedSize, final int totalSize) {
-                                if(null != mDownloadListener) {
-                                    mHandler.post(new Runnable() {
-                                        @Override
-                                        public void run() {
-                                            mDownloadListener.onProgressUpdate(downloadedSize, totalSize);
-                                        }
-                                    });
-                                }
-                            }
-
-                            @Override
-                            public void onError(final int code, final String message) {
-                                if(null != mDownloadListener) {
-                                    mHandler.post(new Runnable() {
-                                        @Override
-                                        public void run() {
-                                            mDownloadListener.onError(code, message);
-                                        }
-                                    });
-                                }
-                            }
-                        });
-                    } catch (final Exception e) {
-                        if (null != mDownloadListener) {
-                            mHandler.post(new Runnable() {
-                                @Override
-                                public void run() {
-                                    mDownloadListener.onError(DownloadListener.CODE_EXCEPTION, e.getMessage());
-                                }
-                            });
-                        }
-                    }
-                }
-            }).start();
+            DownloadScheduler.Job job = DownloadScheduler.getInstance().submit(mDownloader, ".mp4",
+                    DownloadScheduler.PRIORITY_FOREGROUND, mSchedulerListener);
+            // 同一个地址已经在下载的时候使用正在下载的下载器
+            mDownloader = job.getDownloader();
         }
     }
 
@@ -134,33 +212,130 @@ public class VideoPlayerModel implements IVideoPlayerModel {
         return mDownloader.getSavedFile();
     }
 
+    @Override
+    public Uri getStreamUri() {
+        if(isHlsStream()) {
+            String url = LocalProxyServer.getInstance().register(startHlsSession());
+            return null == url ? null : Uri.parse(url);
+        }
+        if(null == mDownloader) {
+            return null;
+        }
+        String url = LocalProxyServer.getInstance().register(mDownloader);
+        return null == url ? null : Uri.parse(url);
+    }
+
+    @Override
+    public void seekTo(final int msec) {
+        if(null == mDownloader || mDownloader.isFinished() || isHlsStream()) {
+            // HLS视频由播放器请求的分片决定预先下载的位置
+            return;
+        }
+        // 第一次换算需要从缓存文件中解析moov，不在ui线程中执行
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                mDownloader.seekToTime(msec);
+            }
+        }).start();
+    }
+
+    @Override
+    public void validateCache(DownloadLog history, CacheValidator.Callback callback) {
+        if(CacheValidator.isFresh(history)) {
+            callback.onValidated(true);
+            return;
+        }
+        CacheValidator.validateAsync(mContext, history, callback);
+    }
+
     @Override
     public void onCreate() {
+        // 在后台线程打开数据库，第一次查询下载记录时不用在主线程等待
+        DownloadDBHelper.preload(mContext);
         // 初始化网络监听管理者
         NetworkManager.getInstance().initialized(mContext);
         NetworkManager.getInstance().registerNetworkObserver(mNetworkObserver);
+        BandwidthMeter.getInstance().initialize(mContext);
+        // 正在播放的视频缓存不会被清理
+        CacheManager.getInstance().initialize(mContext);
+        File cacheDir = new File(mContext.getExternalCacheDir(), "Video");
+        CacheManager.getInstance().addCacheDir(cacheDir);
+        CacheManager.getInstance().addCacheDir(new File(cacheDir, "hls"));
+        pinCache();
+        CacheManager.getInstance().trim();
     }
 
     @Override
     public void onPause() {
         mHandler.removeCallbacksAndMessages(null);
+        if(null != mProgressDispatcher) {
+            mProgressDispatcher.cancel();
+        }
     }
 
     @Override
     public void onResume() {
+        if(!StringUtils.isEmpty(mUrl)) {
+            CacheManager.getInstance().onAccess(mUrl);
+        }
         downloadVideo();
     }
 
     @Override
     public void onDestroy() {
         if(null != mDownloader) {
-            mDownloader.stop();
+            // 其他页面还在使用同一个下载任务的时候不停止，由调度器在最后一个监听器取消的时候停止
+            DownloadScheduler.getInstance().cancel(mDownloader.getUrl(), mSchedulerListener);
+            LocalProxyServer.getInstance().unregister(mDownloader);
         }
+        stopHlsSession();
         NetworkManager.getInstance().unregisterNetworkObserver(mNetworkObserver);
+        unpinCache();
+    }
+
+    /**
+     * 开始当前地址的HLS下载会话，已经开始的直接返回
+     * @return HLS下载会话
+     */
+    private HlsSession startHlsSession() {
+        if(null == mHlsSession || mHlsSession.isStopped()) {
+            mHlsSession = new HlsSession(mContext, mUrl,
+                    new File(new File(mContext.getExternalCacheDir(), "Video"), "hls"));
+        }
+        mHlsSession.setPlaybackSession(mPlaybackSession);
+        mHlsSession.start();
+        return mHlsSession;
+    }
+
+    private void stopHlsSession() {
+        if(null != mHlsSession) {
+            mHlsSession.stop();
+            LocalProxyServer.getInstance().unregister(mHlsSession);
+            mHlsSession = null;
+        }
+    }
+
+    private void pinCache() {
+        unpinCache();
+        if(!StringUtils.isEmpty(mUrl)) {
+            mPinnedUrl = mUrl;
+            CacheManager.getInstance().pin(mPinnedUrl);
+        }
+    }
+
+    private void unpinCache() {
+        if(null != mPinnedUrl) {
+            CacheManager.getInstance().unpin(mPinnedUrl);
+            mPinnedUrl = null;
+        }
     }
 
     @Override
     public boolean isDownloadStopped() {
+        if(isHlsStream()) {
+            return null == mHlsSession || mHlsSession.isStopped();
+        }
         if(null == mDownloader) {
             return true;
         }
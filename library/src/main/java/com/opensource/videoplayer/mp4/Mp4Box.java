@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2016. The Android Open Source Project.
+ *
+ *          yinglovezhuzhu@gmail.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *           http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.opensource.videoplayer.mp4;
+
+/**
+ * ISO-BMFF（MP4）文件中的一个box的位置信息
+ * Created by yinglovezhuzhu@gmail.com on 2016/12/24.
+ */
+public class Mp4Box {
+
+    private final String type;
+    private final long offset;
+    private final long size;
+    private final int headerSize;
+
+    public Mp4Box(String type, long offset, long size, int headerSize) {
+        this.type = type;
+        this.offset = offset;
+        this.size = size;
+        this.headerSize = headerSize;
+    }
+
+    /**
+     * box类型，四个字符，例如"moov"
+     */
+    public String getType() {
+        return type;
+    }
+
+    /**
+     * box在文件中的开始位置（包含头部）
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    /**
+     * box的总长度（包含头部）
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * box头部的长度，普通box为8，使用64位长度的box为16
+     */
+    public int getHeaderSize() {
+        return headerSize;
+    }
+
+    /**
+     * box结束的位置（不包含）
+     */
+    public long getEnd() {
+        return offset + size;
+    }
+
+    @Override
+    public String toString() {
+        return "Mp4Box{" +
+                "type='" + type + '\'' +
+                ", offset=" + offset +
+                ", size=" + size +
+                ", headerSize=" + headerSize +
+                '}';
+    }
+}
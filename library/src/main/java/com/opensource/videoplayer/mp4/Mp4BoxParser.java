@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2016. The Android Open Source Project.
+ *
+ *          yinglovezhuzhu@gmail.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *           http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.opensource.videoplayer.mp4;
+
+import java.io.IOException;
+
+/**
+ * ISO-BMFF（MP4）box解析工具，只读取box头部，按照box长度跳到下一个box，
+ * 不需要下载整个文件就可以找到moov等box的位置
+ * Created by yinglovezhuzhu@gmail.com on 2016/12/24.
+ */
+public class Mp4BoxParser {
+
+    /** 普通box头部长度：4字节长度 + 4字节类型 **/
+    private static final int HEADER_SIZE = 8;
+    /** 64位长度的box头部长度：4字节长度(1) + 4字节类型 + 8字节长度 **/
+    private static final int LARGE_HEADER_SIZE = 16;
+
+    /** 最多检查的顶层box数量，防止错误的文件导致过多的请求 **/
+    private static final int MAX_TOP_LEVEL_BOXES = 64;
+
+    private Mp4BoxParser() {
+
+    }
+
+    /**
+     * 读取指定位置的box头部
+     * @param reader 数据读取接口
+     * @param offset box开始的位置
+     * @param fileSize 文件总长度
+     * @return box信息，数据不是合法的box时返回null
+     * @throws IOException 读取出错
+     */
+    public static Mp4Box readBoxHeader(RangeReader reader, long offset, long fileSize) throws IOException {
+        if (offset + HEADER_SIZE > fileSize) {
+            return null;
+        }
+        // 一次读取16个字节，64位长度的box不需要再请求一次
+        int length = (int) Math.min(LARGE_HEADER_SIZE, fileSize - offset);
+        byte[] data = reader.read(offset, length);
+        return parseBoxHeader(data, 0, data.length, offset, fileSize);
+    }
+
+    /**
+     * 从内存数据中解析box头部
+     * @param data 数据
+     * @param index box在数据中的开始位置
+     * @param limit 数据有效的结束位置（不包含）
+     * @param offset box在文件中的开始位置
+     * @param parentEnd 父box（顶层box为文件）结束的位置，用于处理长度为0的box和校验长度
+     * @return box信息，数据不是合法的box时返回null
+     */
+    public static Mp4Box parseBoxHeader(byte[] data, int index, int limit, long offset, long parentEnd) {
+        if (null == data || limit - index < HEADER_SIZE) {
+            return null;
+        }
+        long size = readUInt32(data, index);
+        String type = readType(data, index + 4);
+        if (null == type) {
+            return null;
+        }
+        int headerSize = HEADER_SIZE;
+        if (size == 1) {
+            if (limit - index < LARGE_HEADER_SIZE) {
+                return null;
+            }
+            size = readInt64(data, index + 8);
+            headerSize = LARGE_HEADER_SIZE;
+        } else if (size == 0) {
+            // 长度为0表示box一直到文件（父box）末尾
+            size = parentEnd - offset;
+        }
+        if (size < headerSize || offset + size > parentEnd) {
+            return null;
+        }
+        return new Mp4Box(type, offset, size, headerSize);
+    }
+
+    /**
+     * 在顶层box中查找指定类型的box，只读取每个box的头部
+     * @param reader 数据读取接口
+     * @param fileSize 文件总长度
+     * @param type box类型，例如"moov"
+     * @return 找到的box，文件不是MP4文件或者没有找到时返回null
+     * @throws IOException 读取出错
+     */
+    public static Mp4Box findTopLevelBox(RangeReader reader, long fileSize, String type) throws IOException {
+        long offset = 0;
+        for (int i = 0; i < MAX_TOP_LEVEL_BOXES && offset < fileSize; i++) {
+            Mp4Box box = readBoxHeader(reader, offset, fileSize);
+            if (null == box) {
+                return null;
+            }
+            if (i == 0 && !"ftyp".equals(box.getType())) {
+                // MP4文件第一个box必须是ftyp
+                return null;
+            }
+            if (type.equals(box.getType())) {
+                return box;
+            }
+            offset = box.getEnd();
+        }
+        return null;
+    }
+
+    /**
+     * 读取4字节无符号整数（大端）
+     */
+    public static long readUInt32(byte[] data, int index) {
+        return ((data[index] & 0xFFL) << 24) | ((data[index + 1] & 0xFFL) << 16)
+                | ((data[index + 2] & 0xFFL) << 8) | (data[index + 3] & 0xFFL);
+    }
+
+    /**
+     * 读取8字节整数（大端）
+     */
+    public static long readInt64(byte[] data, int index) {
+        return (readUInt32(data, index) << 32) | readUInt32(data, index + 4);
+    }
+
+    /**
+     * 读取box类型，类型必须是四个可显示的ASCII字符
+     * @return box类型，不合法的时候返回null
+     */
+    private static String readType(byte[] data, int index) {
+        char[] chars = new char[4];
+        for (int i = 0; i < 4; i++) {
+            int c = data[index + i] & 0xFF;
+            if (c < 0x20 || c > 0x7E) {
+                // ©xyz 之类的类型只出现在udta等子box中，顶层box不会出现
+                return null;
+            }
+            chars[i] = (char) c;
+        }
+        return new String(chars);
+    }
+}
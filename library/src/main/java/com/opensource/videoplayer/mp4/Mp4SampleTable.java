@@ -0,0 +1,342 @@
+/*
+ * Copyright (C) 2016. The Android Open Source Project.
+ *
+ *          yinglovezhuzhu@gmail.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *           http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.opensource.videoplayer.mp4;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * MP4文件的采样表，从moov box中解析每个轨道的stts/stss/stsc/stsz/stco表，
+ * 用于把播放时间换算成文件中的字节位置<br>
+ * 表的条目数量在分配数组之前和box的长度比较，任何一个表损坏都不使用采样表（按字节位置seek）
+ * Created by yinglovezhuzhu@gmail.com on 2016/12/26.
+ */
+public class Mp4SampleTable {
+
+    private final List<Track> mTracks = new ArrayList<Track>();
+
+    private Mp4SampleTable() {
+
+    }
+
+    /**
+     * 解析moov box的数据
+     * @param moov moov box的完整数据（包含头部）
+     * @return 采样表，没有可用轨道或者数据损坏的时候返回null
+     */
+    public static Mp4SampleTable parse(byte[] moov) {
+        Mp4Box root = Mp4BoxParser.parseBoxHeader(moov, 0, moov.length, 0, moov.length);
+        if (null == root || !"moov".equals(root.getType())) {
+            return null;
+        }
+        Mp4SampleTable table = new Mp4SampleTable();
+        for (Mp4Box trak : children(moov, root)) {
+            if ("trak".equals(trak.getType())) {
+                try {
+                    Track track = parseTrack(moov, trak);
+                    if (null != track) {
+                        table.mTracks.add(track);
+                    }
+                } catch (ArrayIndexOutOfBoundsException e) {
+                    // 数据不完整
+                    e.printStackTrace();
+                    return null;
+                } catch (IllegalArgumentException e) {
+                    // 表的数量或者内容不合法
+                    e.printStackTrace();
+                    return null;
+                }
+            }
+        }
+        return table.mTracks.isEmpty() ? null : table;
+    }
+
+    /**
+     * 获取指定播放时间之前最近的关键帧对应的文件位置<br>
+     * 先在视频轨道中找到关键帧的时间，再取所有轨道在这个时间的采样中最小的文件位置，保证音频数据也能够从这里开始
+     *
+     * @param timeMs 播放时间，单位毫秒
+     * @return 文件中的字节位置，不能换算的时候返回-1
+     */
+    public long getKeyFrameOffset(long timeMs) {
+        long seekTimeMs = timeMs;
+        for (Track track : mTracks) {
+            if (track.video) {
+                int sample = track.getSampleAtTime(timeMs * track.timescale / 1000);
+                sample = track.getSyncSampleBefore(sample);
+                seekTimeMs = track.getSampleTime(sample) * 1000 / track.timescale;
+                break;
+            }
+        }
+        long offset = -1;
+        for (Track track : mTracks) {
+            int sample = track.getSampleAtTime(seekTimeMs * track.timescale / 1000);
+            long sampleOffset = track.getSampleOffset(sample);
+            if (sampleOffset >= 0 && (offset < 0 || sampleOffset < offset)) {
+                offset = sampleOffset;
+            }
+        }
+        return offset;
+    }
+
+    private static Track parseTrack(byte[] data, Mp4Box trak) {
+        Mp4Box mdia = findChild(data, trak, "mdia");
+        if (null == mdia) {
+            return null;
+        }
+        Mp4Box mdhd = findChild(data, mdia, "mdhd");
+        Mp4Box hdlr = findChild(data, mdia, "hdlr");
+        Mp4Box minf = findChild(data, mdia, "minf");
+        Mp4Box stbl = null == minf ? null : findChild(data, minf, "stbl");
+        if (null == mdhd || null == stbl) {
+            return null;
+        }
+
+        Track track = new Track();
+        int index = (int) (mdhd.getOffset() + mdhd.getHeaderSize());
+        int version = data[index] & 0xFF;
+        // version 1 的创建时间和修改时间是64位
+        track.timescale = Mp4BoxParser.readUInt32(data, index + (version == 1 ? 20 : 12));
+        if (track.timescale <= 0) {
+            return null;
+        }
+        if (null != hdlr) {
+            // hdlr: version/flags(4) + pre_defined(4) + handler_type(4)
+            int typeIndex = (int) (hdlr.getOffset() + hdlr.getHeaderSize() + 8);
+            track.video = data[typeIndex] == 'v' && data[typeIndex + 1] == 'i'
+                    && data[typeIndex + 2] == 'd' && data[typeIndex + 3] == 'e';
+        }
+
+        for (Mp4Box box : children(data, stbl)) {
+            int start = (int) (box.getOffset() + box.getHeaderSize()) + 4; // 跳过version/flags
+            String type = box.getType();
+            if ("stts".equals(type)) {
+                int count = readCount(data, start, box, 8);
+                track.sttsCounts = new long[count];
+                track.sttsDeltas = new long[count];
+                for (int i = 0; i < count; i++) {
+                    track.sttsCounts[i] = Mp4BoxParser.readUInt32(data, start + 4 + i * 8);
+                    track.sttsDeltas[i] = Mp4BoxParser.readUInt32(data, start + 8 + i * 8);
+                }
+            } else if ("stss".equals(type)) {
+                int count = readCount(data, start, box, 4);
+                track.syncSamples = new int[count];
+                for (int i = 0; i < count; i++) {
+                    track.syncSamples[i] = readInt(data, start + 4 + i * 4, box, 1);
+                }
+            } else if ("stsc".equals(type)) {
+                int count = readCount(data, start, box, 12);
+                track.stscFirstChunks = new int[count];
+                track.stscSamplesPerChunk = new int[count];
+                for (int i = 0; i < count; i++) {
+                    track.stscFirstChunks[i] = readInt(data, start + 4 + i * 12, box, 1);
+                    track.stscSamplesPerChunk[i] = readInt(data, start + 8 + i * 12, box, 0);
+                    if (i > 0 && track.stscFirstChunks[i] <= track.stscFirstChunks[i - 1]) {
+                        throw new IllegalArgumentException("Unordered stsc entry " + i);
+                    }
+                }
+            } else if ("stsz".equals(type)) {
+                track.fixedSampleSize = (int) Mp4BoxParser.readUInt32(data, start);
+                int count = readCount(data, start + 4, box, track.fixedSampleSize == 0 ? 4 : 0);
+                track.sampleCount = count;
+                if (track.fixedSampleSize == 0) {
+                    track.sampleSizes = new int[count];
+                    for (int i = 0; i < count; i++) {
+                        track.sampleSizes[i] = (int) Mp4BoxParser.readUInt32(data, start + 8 + i * 4);
+                    }
+                }
+            } else if ("stco".equals(type)) {
+                int count = readCount(data, start, box, 4);
+                track.chunkOffsets = new long[count];
+                for (int i = 0; i < count; i++) {
+                    track.chunkOffsets[i] = Mp4BoxParser.readUInt32(data, start + 4 + i * 4);
+                }
+            } else if ("co64".equals(type)) {
+                int count = readCount(data, start, box, 8);
+                track.chunkOffsets = new long[count];
+                for (int i = 0; i < count; i++) {
+                    track.chunkOffsets[i] = Mp4BoxParser.readInt64(data, start + 4 + i * 8);
+                }
+            }
+        }
+        if (null == track.sttsCounts || null == track.stscFirstChunks || null == track.chunkOffsets
+                || track.sampleCount <= 0) {
+            return null;
+        }
+        return track;
+    }
+
+    /**
+     * 读取表的条目数量，数量超过box中剩余的数据时说明数据损坏，不能按这个数量分配数组
+     * @param data moov数据
+     * @param index 数量所在的位置
+     * @param box 表所在的box
+     * @param entrySize 每个条目的字节数，条目不在表中的时候为0
+     * @return 条目数量
+     * @throws IllegalArgumentException 数量不合法
+     */
+    private static int readCount(byte[] data, int index, Mp4Box box, int entrySize) {
+        long remain = box.getEnd() - index - 4;
+        if (remain < 0) {
+            throw new IllegalArgumentException("Truncated " + box.getType());
+        }
+        long count = Mp4BoxParser.readUInt32(data, index);
+        if (count > Integer.MAX_VALUE || count * entrySize > remain) {
+            throw new IllegalArgumentException("Corrupt " + box.getType() + " entry count " + count);
+        }
+        return (int) count;
+    }
+
+    /**
+     * 读取序号（chunk、采样）或者数量，不能超过int的范围
+     * @param min 最小值，从1开始的序号为1
+     * @throws IllegalArgumentException 数值不合法
+     */
+    private static int readInt(byte[] data, int index, Mp4Box box, int min) {
+        long value = Mp4BoxParser.readUInt32(data, index);
+        if (value < min || value > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Invalid " + box.getType() + " value " + value);
+        }
+        return (int) value;
+    }
+
+    private static Mp4Box findChild(byte[] data, Mp4Box parent, String type) {
+        for (Mp4Box box : children(data, parent)) {
+            if (type.equals(box.getType())) {
+                return box;
+            }
+        }
+        return null;
+    }
+
+    private static List<Mp4Box> children(byte[] data, Mp4Box parent) {
+        List<Mp4Box> boxes = new ArrayList<Mp4Box>();
+        long offset = parent.getOffset() + parent.getHeaderSize();
+        while (offset < parent.getEnd()) {
+            Mp4Box box = Mp4BoxParser.parseBoxHeader(data, (int) offset, (int) parent.getEnd(),
+                    offset, parent.getEnd());
+            if (null == box) {
+                break;
+            }
+            boxes.add(box);
+            offset = box.getEnd();
+        }
+        return boxes;
+    }
+
+    /**
+     * 一个轨道的采样表，采样序号从0开始
+     */
+    private static class Track {
+        long timescale;
+        boolean video = false;
+        int sampleCount;
+        long[] sttsCounts;
+        long[] sttsDeltas;
+        int[] syncSamples; // 关键帧的采样序号（从1开始），为null表示所有采样都是关键帧
+        int[] stscFirstChunks; // 从1开始
+        int[] stscSamplesPerChunk;
+        int fixedSampleSize;
+        int[] sampleSizes;
+        long[] chunkOffsets;
+
+        /**
+         * 获取指定时间（轨道时间单位）所在的采样
+         */
+        int getSampleAtTime(long time) {
+            long current = 0;
+            int sample = 0;
+            for (int i = 0; i < sttsCounts.length; i++) {
+                long duration = sttsCounts[i] * sttsDeltas[i];
+                if (time < current + duration && sttsDeltas[i] > 0) {
+                    return Math.min(sampleCount - 1, sample + (int) ((time - current) / sttsDeltas[i]));
+                }
+                current += duration;
+                sample += sttsCounts[i];
+            }
+            return sampleCount - 1;
+        }
+
+        /**
+         * 获取采样的开始时间（轨道时间单位）
+         */
+        long getSampleTime(int sample) {
+            long current = 0;
+            int remain = sample;
+            for (int i = 0; i < sttsCounts.length; i++) {
+                if (remain < sttsCounts[i]) {
+                    return current + remain * sttsDeltas[i];
+                }
+                current += sttsCounts[i] * sttsDeltas[i];
+                remain -= sttsCounts[i];
+            }
+            return current;
+        }
+
+        /**
+         * 获取指定采样之前（包含）最近的关键帧
+         */
+        int getSyncSampleBefore(int sample) {
+            if (null == syncSamples || syncSamples.length == 0) {
+                return sample;
+            }
+            int result = syncSamples[0] - 1;
+            for (int syncSample : syncSamples) {
+                if (syncSample - 1 > sample) {
+                    break;
+                }
+                result = syncSample - 1;
+            }
+            return result;
+        }
+
+        /**
+         * 获取采样在文件中的位置
+         */
+        long getSampleOffset(int sample) {
+            // 表中的数值来自文件，用long计算避免溢出
+            long firstSampleOfRun = 0;
+            for (int i = 0; i < stscFirstChunks.length; i++) {
+                int firstChunk = stscFirstChunks[i];
+                int nextFirstChunk = i + 1 < stscFirstChunks.length
+                        ? stscFirstChunks[i + 1] : chunkOffsets.length + 1;
+                int samplesPerChunk = stscSamplesPerChunk[i];
+                if (samplesPerChunk <= 0 || nextFirstChunk <= firstChunk) {
+                    continue;
+                }
+                long samplesInRun = (long) (nextFirstChunk - firstChunk) * samplesPerChunk;
+                if (sample < firstSampleOfRun + samplesInRun) {
+                    int indexInRun = (int) (sample - firstSampleOfRun);
+                    long chunk = firstChunk + indexInRun / samplesPerChunk; // 从1开始
+                    int firstSampleOfChunk = sample - indexInRun % samplesPerChunk;
+                    if (chunk - 1 >= chunkOffsets.length) {
+                        return -1;
+                    }
+                    long offset = chunkOffsets[(int) (chunk - 1)];
+                    for (int s = firstSampleOfChunk; s < sample; s++) {
+                        offset += null == sampleSizes ? fixedSampleSize : sampleSizes[s];
+                    }
+                    return offset;
+                }
+                firstSampleOfRun += samplesInRun;
+            }
+            return -1;
+        }
+    }
+}
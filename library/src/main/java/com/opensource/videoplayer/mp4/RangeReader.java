@@ -0,0 +1,37 @@
+/*
+ * Copyright (C) 2016. The Android Open Source Project.
+ *
+ *          yinglovezhuzhu@gmail.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *           http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.opensource.videoplayer.mp4;
+
+import java.io.IOException;
+
+/**
+ * 按字节区间读取数据的接口，可以是网络上的文件（Range请求）或者本地文件
+ * Created by yinglovezhuzhu@gmail.com on 2016/12/24.
+ */
+public interface RangeReader {
+
+    /**
+     * 读取指定区间的数据
+     * @param offset 开始位置
+     * @param length 读取长度
+     * @return 读取到的数据，到达文件末尾的时候可能比请求的长度短
+     * @throws IOException 读取出错
+     */
+    byte[] read(long offset, int length) throws IOException;
+}
@@ -21,26 +21,35 @@ package com.opensource.videoplayer.presenter;
 import android.content.Context;
 import android.media.MediaPlayer;
 import android.net.Uri;
+import android.os.Build;
 import android.os.Handler;
-import android.util.Log;
 
+import com.opensource.videoplayer.BandwidthMeter;
+import com.opensource.videoplayer.abr.AbrController;
+import com.opensource.videoplayer.downloader.CacheValidator;
 import com.opensource.videoplayer.downloader.DownloadListener;
 import com.opensource.videoplayer.downloader.DownloadLog;
 import com.opensource.videoplayer.R;
 import com.opensource.videoplayer.VideoPlayListener;
 import com.opensource.videoplayer.db.DownloadDBUtils;
+import com.opensource.videoplayer.metrics.PlaybackSession;
 import com.opensource.videoplayer.model.IVideoPlayerModel;
 import com.opensource.videoplayer.model.VideoPlayerModel;
 import com.opensource.videoplayer.view.IVideoPlayerView;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
 
 
 public class VideoPlayerPresenter implements MediaPlayer.OnErrorListener,
-        MediaPlayer.OnCompletionListener, MediaPlayer.OnPreparedListener {
+        MediaPlayer.OnCompletionListener, MediaPlayer.OnPreparedListener, MediaPlayer.OnInfoListener {
 
     private static final int CACHE_MIN_SIZE = 1024 * 1024;
 
+    /** 出错后重新开始播放前按估计带宽缓存的时长，单位毫秒 **/
+    private static final long CACHE_DURATION = 2000;
+
     private Context mContext;
     private IVideoPlayerView mView;
     private IVideoPlayerModel mModel;
@@ -58,6 +67,14 @@ public class VideoPlayerPresenter implements MediaPlayer.OnErrorListener,
 
     private VideoPlayListener mPlayListener = null;
 
+    /** 同一个视频不同码率的地址，没有设置的时候为null **/
+    private List<String> mVariantUrls = null;
+    private AbrController mAbr = null;
+
+    /** 当前播放的体验指标记录 **/
+    private PlaybackSession mSession = null;
+    private PlaybackSession.Listener mSessionListener = null;
+
     private final Handler mHandler = new Handler();
 
     private boolean mDestroyed = true;
@@ -66,6 +83,10 @@ public class VideoPlayerPresenter implements MediaPlayer.OnErrorListener,
         public void run() {
             if (mView.isPlaying()) {
                 mView.hideLoadingProgress();
+                if(!hasRenderingStartInfo()) {
+                    // 系统不支持首帧回调，开始播放作为显示画面的时间
+                    onFrameRendered();
+                }
             } else {
                 mHandler.postDelayed(mPlayingChecker, 250);
             }
@@ -80,15 +101,14 @@ public class VideoPlayerPresenter implements MediaPlayer.OnErrorListener,
         this.mModel = new VideoPlayerModel(context, videoUri, new DownloadListener() {
             @Override
             public void onProgressUpdate(int downloadedSize, int totalSize) {
-                Log.e("VideoPlayerPresenter", downloadedSize + " / " + totalSize);
                 if(mOnError) {
                     if(!mCaching) {
                         mStartCachingSize = downloadedSize;
                         mCaching = true;
                     }
-                    if(downloadedSize - mStartCachingSize > CACHE_MIN_SIZE || downloadedSize >= totalSize) {
+                    if(downloadedSize - mStartCachingSize > getCacheSize() || downloadedSize >= totalSize) {
                         if(null == mCachedUri) {
-                            mCachedUri = Uri.fromFile(mModel.getSavedVideoFile());
+                            mCachedUri = getCachingUri();
                         }
                         mCaching = false;
                         mOnError = false;
@@ -100,7 +120,7 @@ public class VideoPlayerPresenter implements MediaPlayer.OnErrorListener,
                     }
                 } else {
                     if(null == mCachedUri) {
-                        mCachedUri = Uri.fromFile(mModel.getSavedVideoFile());
+                        mCachedUri = getCachingUri();
 
                         if(!mDestroyed) {
                             mView.playVideo(mCachedUri, 0);
@@ -116,12 +136,21 @@ public class VideoPlayerPresenter implements MediaPlayer.OnErrorListener,
                             "Video downloadVideo failed: " + message);
                 }
             }
+
+            @Override
+            public void onRetry(int retryCount, int maxRetries, String message) {
+                // 下载器自动重试，重试期间显示加载中，失败后会回调onError
+                if(!mDestroyed && !mView.isPlaying()) {
+                    mView.showLoadingProgress();
+                }
+            }
         });
         this.mPlayListener = listener;
 
         mView.setOnPreparedListener(this);
         mView.setOnErrorListener(this);
         mView.setOnCompletionListener(this);
+        mView.setOnInfoListener(this);
     }
 
     public void setVideoUri(Uri videoUri) {
@@ -129,6 +158,39 @@ public class VideoPlayerPresenter implements MediaPlayer.OnErrorListener,
         mModel.setVideoUri(mVideoUri);
     }
 
+    /**
+     * 设置同一个视频不同码率的地址（渐进式下载的mp4），开始播放、出错后重新加载和seek到没有缓存的位置时，
+     * 根据估计带宽选择码率，播放器从当前位置的关键帧继续播放；HLS视频的码率在分片之间切换，不需要设置
+     * @param urls 每个码率的地址
+     * @param bitrates 每个码率的码率值，单位bit/s，和地址一一对应
+     */
+    public void setVariants(List<String> urls, long[] bitrates) {
+        if(null == urls || urls.isEmpty() || null == bitrates || bitrates.length != urls.size()) {
+            mVariantUrls = null;
+            mAbr = null;
+            return;
+        }
+        mVariantUrls = new ArrayList<String>(urls);
+        mAbr = new AbrController(bitrates);
+    }
+
+    /**
+     * 设置播放记录的监听，每次播放完成或者退出播放的时候回调一次
+     * @param listener 播放记录监听，可以为null
+     */
+    public void setPlaybackSessionListener(PlaybackSession.Listener listener) {
+        this.mSessionListener = listener;
+    }
+
+    /**
+     * 设置和视频地址内容相同的其他下载地址（镜像、不同的CDN），下载时按速度同时使用，
+     * 一个地址出错的时候由其他地址继续下载
+     * @param urls 其他下载地址，可以为null
+     */
+    public void setMirrorUrls(List<String> urls) {
+        mModel.setMirrorUrls(urls);
+    }
+
     /**
      * 播放
      */
@@ -142,21 +204,59 @@ public class VideoPlayerPresenter implements MediaPlayer.OnErrorListener,
             }
             return;
         }
+        startSession();
         String scheme = mVideoUri.getScheme();
         if (null != scheme && (scheme.equalsIgnoreCase("http") || scheme.equalsIgnoreCase("https")
                 || scheme.equalsIgnoreCase("ftp") || "rtsp".equalsIgnoreCase(scheme))) {
             // 网络视频
+            if(null != mAbr && mAbr.getCurrentIndex() < 0) {
+                // 按估计带宽选择开始播放的码率，没有估计值的时候使用设置的地址
+                int index = mAbr.selectInitial(BandwidthMeter.getInstance().getEstimatedBitrate(),
+                        Math.max(0, mVariantUrls.indexOf(mVideoUri.toString())));
+                setVideoUri(Uri.parse(mVariantUrls.get(index)));
+            }
             final String url = mVideoUri.toString();
-            File cacheFile;
-            DownloadLog history = DownloadDBUtils.getHistoryByUrl(mContext, url);
-            if(null != history && (cacheFile = new File(history.getSavedFile())).exists()) {
-                // 网络视频，且已经有下载记录,并且缓存存在，直接播放缓存
-                mView.hideLoadingProgress();
-                mCachedUri = Uri.fromFile(cacheFile);
-
+            if(mModel.isHlsStream()) {
+                mSession.setHls(true);
+                // HLS视频，通过本地代理播放，分片在后台预先下载到缓存，已经缓存的分片直接使用
+                mHandler.postDelayed(mPlayingChecker, 250);
+                mModel.downloadVideo();
+                mCachedUri = mModel.getStreamUri();
+                if(null == mCachedUri) {
+                    if(null != mPlayListener) {
+                        mPlayListener.onError(VideoPlayListener.WHAT_DOWNLOAD_ERROR,
+                                "Local proxy for hls is not available");
+                    }
+                    return;
+                }
                 if(!mDestroyed) {
                     mView.playVideo(mCachedUri, 0);
                 }
+                return;
+            }
+            File cacheFile;
+            DownloadLog history = DownloadDBUtils.getHistoryByUrl(mContext, url);
+            if(null != history && (cacheFile = new File(history.getSavedFile())).exists()) {
+                // 网络视频，且已经有下载记录,并且缓存存在，确认服务器上的文件没有改变后播放缓存
+                final File validatingFile = cacheFile;
+                mModel.validateCache(history, new CacheValidator.Callback() {
+                    @Override
+                    public void onValidated(boolean valid) {
+                        if(mDestroyed) {
+                            return;
+                        }
+                        if(valid) {
+                            mView.hideLoadingProgress();
+                            mSession.onCacheBytes(validatingFile.length());
+                            mHandler.postDelayed(mPlayingChecker, 250);
+                            mCachedUri = Uri.fromFile(validatingFile);
+                            mView.playVideo(mCachedUri, 0);
+                        } else {
+                            // 文件已经改变，缓存已经删除，重新下载
+                            play();
+                        }
+                    }
+                });
             } else {
                 // 网络视频，没有下载记录（未下载完成或者还没有开始下载）
                 mHandler.postDelayed(mPlayingChecker, 250);
@@ -164,7 +264,10 @@ public class VideoPlayerPresenter implements MediaPlayer.OnErrorListener,
                 if(null != log) {
                     cacheFile = new File(log.getSavedFile());
                     if(cacheFile.exists()) {
-                        mCachedUri = Uri.fromFile(cacheFile);
+                        mCachedUri = getCachingUri();
+                        if(null == mCachedUri) {
+                            mCachedUri = Uri.fromFile(cacheFile);
+                        }
 
                         if(!mDestroyed) {
                             mView.playVideo(mCachedUri, 0);
@@ -189,11 +292,51 @@ public class VideoPlayerPresenter implements MediaPlayer.OnErrorListener,
     }
 
 
+    /**
+     * 用户拖动了播放进度，让下载优先下载新位置的数据
+     * @param msec 新的播放位置，单位毫秒
+     */
+    public void seekTo(int msec) {
+        mCurrentPosition = msec;
+        if(null != mAbr && !mModel.isHlsStream()
+                && mModel.getBufferedMs(msec, getCurrentBitrate()) < CACHE_DURATION) {
+            // seek到没有缓存的位置，需要重新缓冲，在这个位置重新选择码率
+            int index = mAbr.selectOnRestart(BandwidthMeter.getInstance().getEstimatedBitrate());
+            if(!mVariantUrls.get(index).equals(mVideoUri.toString())) {
+                mView.showLoadingProgress();
+                switchVariant(index);
+                return;
+            }
+        }
+        mModel.seekTo(msec);
+    }
+
     @Override
     public boolean onError(MediaPlayer mp, int what, int extra) {
         mHandler.removeCallbacksAndMessages(null);
         mView.showLoadingProgress();
         mCurrentPosition = mp.getCurrentPosition();
+        // 出错到重新开始播放记为一次卡顿，检查开始播放的时间
+        if(null != mSession) {
+            mSession.onRebufferStart();
+        }
+        mHandler.postDelayed(mPlayingChecker, 250);
+        if(null != mAbr && !mModel.isHlsStream()) {
+            // 缓冲不足卡住了，按当前带宽重新选择码率
+            int index = mAbr.selectOnRestart(BandwidthMeter.getInstance().getEstimatedBitrate());
+            if(!mVariantUrls.get(index).equals(mVideoUri.toString())) {
+                switchVariant(index);
+                return true;
+            }
+        }
+        if(mModel.isHlsStream() && null != mCachedUri) {
+            // HLS视频没有下载进度回调，重新开始下载后直接从出错的位置继续播放，代理会等待分片下载完成
+            mModel.downloadVideo();
+            if(!mDestroyed) {
+                mView.playVideo(mCachedUri, mCurrentPosition);
+            }
+            return true;
+        }
         mOnError = true;
         if(mModel.isDownloadStopped()) {
             mModel.downloadVideo();
@@ -203,6 +346,7 @@ public class VideoPlayerPresenter implements MediaPlayer.OnErrorListener,
 
     @Override
     public void onCompletion(MediaPlayer mp) {
+        finishSession(true);
         if(null != mPlayListener) {
             mPlayListener.onCompletion();
         }
@@ -210,7 +354,17 @@ public class VideoPlayerPresenter implements MediaPlayer.OnErrorListener,
 
     @Override
     public void onPrepared(MediaPlayer mp) {
+        if(null != mSession) {
+            mSession.onPrepared();
+        }
+    }
 
+    @Override
+    public boolean onInfo(MediaPlayer mp, int what, int extra) {
+        if(MediaPlayer.MEDIA_INFO_VIDEO_RENDERING_START == what) {
+            onFrameRendered();
+        }
+        return false;
     }
 
     public void onCreate() {
@@ -232,9 +386,120 @@ public class VideoPlayerPresenter implements MediaPlayer.OnErrorListener,
             return;
         }
         mDestroyed = true;
+        finishSession(false);
         mModel.onDestroy();
     }
 
+    /**
+     * 切换到另一个码率，从当前播放位置继续播放；新的码率已经下载完成的时候直接播放缓存文件，
+     * 否则重新开始下载，缓存足够后在当前位置继续播放（播放器从这个位置之前的关键帧开始）
+     * @param index 码率序号
+     */
+    private void switchVariant(int index) {
+        mVideoUri = Uri.parse(mVariantUrls.get(index));
+        mModel.switchVideoUri(mVideoUri);
+        mCachedUri = null;
+        mCaching = false;
+        String savedFile = DownloadDBUtils.getHistoryFile(mContext, mVideoUri.toString());
+        File cacheFile;
+        if(null != savedFile && (cacheFile = new File(savedFile)).exists()) {
+            mOnError = false;
+            if(null != mSession) {
+                mSession.onCacheBytes(cacheFile.length());
+            }
+            mCachedUri = Uri.fromFile(cacheFile);
+            if(!mDestroyed) {
+                mView.playVideo(mCachedUri, mCurrentPosition);
+                mView.hideLoadingProgress();
+            }
+            return;
+        }
+        // 和出错后重新缓冲一样，下载进度足够后继续播放
+        mOnError = true;
+        mModel.downloadVideo();
+    }
+
+    /**
+     * 开始一次播放记录；缓存失效后重新调用play()等还没有开始播放的情况继续使用同一个记录
+     */
+    private void startSession() {
+        if(null != mSession && !mSession.isFinished()
+                && PlaybackSession.NOT_SET == mSession.getPreparedTime()) {
+            return;
+        }
+        finishSession(false);
+        mSession = new PlaybackSession(mVideoUri.toString());
+        mModel.setPlaybackSession(mSession);
+    }
+
+    /**
+     * 结束当前的播放记录并回调监听，已经结束的不重复回调
+     * @param completed 是否播放完成
+     */
+    private void finishSession(boolean completed) {
+        if(null == mSession || !mSession.finish(completed, BandwidthMeter.getInstance().getEstimatedBitrate())) {
+            return;
+        }
+        mModel.setPlaybackSession(null);
+        if(null != mSessionListener) {
+            mSessionListener.onSessionFinished(mSession);
+        }
+    }
+
+    /**
+     * 播放器开始显示画面，记录首帧时间或者结束正在进行的卡顿
+     */
+    private void onFrameRendered() {
+        if(null != mSession) {
+            mSession.onFrameRendered();
+        }
+    }
+
+    /**
+     * 系统是否支持首帧画面的回调（{@link MediaPlayer#MEDIA_INFO_VIDEO_RENDERING_START}）
+     * @return API 17及以上返回true
+     */
+    private static boolean hasRenderingStartInfo() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1;
+    }
+
+    /**
+     * 当前码率的码率值
+     * @return 码率，单位bit/s，没有设置码率的时候为0
+     */
+    private long getCurrentBitrate() {
+        if(null == mAbr || mAbr.getCurrentIndex() < 0) {
+            return 0;
+        }
+        return mAbr.getBitrate(mAbr.getCurrentIndex());
+    }
+
+    /**
+     * 获取正在缓存的视频的播放地址，优先使用本地代理地址，代理不可用的时候直接播放缓存文件
+     * @return 播放地址
+     */
+    private Uri getCachingUri() {
+        Uri uri = mModel.getStreamUri();
+        if(null == uri) {
+            uri = Uri.fromFile(mModel.getSavedVideoFile());
+        }
+        return uri;
+    }
+
+    /**
+     * 出错后重新开始播放前需要缓存的长度，有带宽估计值的时候为估计带宽下{@link #CACHE_DURATION}的数据量，
+     * 限制在{@link #CACHE_MIN_SIZE}的1/4到4倍之间，没有估计值的时候为{@link #CACHE_MIN_SIZE}
+     * @return 缓存长度
+     */
+    private long getCacheSize() {
+        long bitrate = BandwidthMeter.getInstance().getEstimatedBitrate();
+        if(bitrate <= 0) {
+            return CACHE_MIN_SIZE;
+        }
+        long size = bitrate / 8 * CACHE_DURATION / 1000;
+        return Math.max(CACHE_MIN_SIZE / 4, Math.min(CACHE_MIN_SIZE * 4, size));
+    }
+
     private String formatDuration(final Context context, int durationMs) {
         int duration = durationMs / 1000;
         int h = duration / 3600;
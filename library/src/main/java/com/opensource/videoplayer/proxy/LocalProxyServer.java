@@ -0,0 +1,592 @@
+/*
+ * Copyright (C) 2016. The Android Open Source Project.
+ *
+ *          yinglovezhuzhu@gmail.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *           http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.opensource.videoplayer.proxy;
+
+import android.util.Log;
+
+import com.opensource.videoplayer.downloader.Downloader;
+import com.opensource.videoplayer.hls.HlsSession;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * 本地回环地址（127.0.0.1）上的HTTP代理服务，把正在下载的缓存文件以支持Range请求的方式提供给播放器<br>
+ * 播放器读取到还没有下载的数据时，请求会阻塞直到{@link Downloader}写入这部分数据，而不是让播放器出错；
+ * 下载器在等待期间停止、播放器断开连接或者太长时间没有新数据的时候结束请求，还没有返回数据时返回503<br>
+ * HLS视频提供替换为本地地址的媒体播放列表，请求分片的时候等待{@link HlsSession}把分片下载到缓存<br>
+ * 本机的其他应用也能连接回环地址，注册的地址中包含随机生成的密钥，猜不到密钥的请求返回404；
+ * 请求在固定数量的线程中处理，超过的请求排队等待
+ * Created by yinglovezhuzhu@gmail.com on 2016/12/22.
+ */
+public final class LocalProxyServer {
+
+    private static final String TAG = "LocalProxyServer";
+
+    private static final String HOST = "127.0.0.1";
+
+    private static final String PATH_PREFIX = "/video/";
+
+    private static final String HLS_PATH_PREFIX = "/hls/";
+
+    private static final String HLS_PLAYLIST_NAME = "index.m3u8";
+
+    private static final int BUFFER_SIZE = 1024 * 64;
+
+    private static final long WAIT_INTERVAL = 1000; // 每次等待数据的时长，超时后检查请求是否还有效
+
+    private static final long NO_PROGRESS_TIMEOUT = 30 * 1000; // 超过这个时长没有新数据的请求不再等待，释放处理请求的线程
+
+    private static final Pattern RANGE_PATTERN = Pattern.compile("bytes=(\\d*)-(\\d*)");
+
+    private static final int MAX_REQUEST_THREADS = 8; // 播放器同时打开的连接很少，HLS预先下载的分片请求也在这个数量以内
+
+    private static final int KEY_BYTES = 16;
+
+    private static final ExecutorService EXECUTOR = Executors.newFixedThreadPool(MAX_REQUEST_THREADS,
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "LocalProxy-request");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    private static LocalProxyServer mInstance = null;
+
+    private final Map<String, Downloader> mSources = new HashMap<String, Downloader>();
+
+    private final Map<String, HlsSession> mHlsSources = new HashMap<String, HlsSession>();
+
+    private ServerSocket mServerSocket = null;
+
+    private final SecureRandom mRandom = new SecureRandom();
+
+    private LocalProxyServer() {
+
+    }
+
+    public static LocalProxyServer getInstance() {
+        synchronized (LocalProxyServer.class) {
+            if (null == mInstance) {
+                mInstance = new LocalProxyServer();
+            }
+            return mInstance;
+        }
+    }
+
+    /**
+     * 注册一个下载器，返回可以给播放器使用的本地地址，同一个下载器多次注册返回同一个地址
+     *
+     * @param downloader 下载器
+     * @return 本地代理地址，服务启动失败的时候返回null
+     */
+    public synchronized String register(Downloader downloader) {
+        if (null == downloader) {
+            return null;
+        }
+        if (!ensureStarted()) {
+            return null;
+        }
+        String key = null;
+        for (Map.Entry<String, Downloader> entry : mSources.entrySet()) {
+            if (entry.getValue() == downloader) {
+                key = entry.getKey();
+                break;
+            }
+        }
+        if (null == key) {
+            key = newKey();
+            mSources.put(key, downloader);
+        }
+        return "http://" + HOST + ":" + mServerSocket.getLocalPort() + PATH_PREFIX + key;
+    }
+
+    /**
+     * 反注册一个下载器，正在等待这个下载器数据的请求会被关闭
+     *
+     * @param downloader 下载器
+     */
+    public synchronized void unregister(Downloader downloader) {
+        for (Map.Entry<String, Downloader> entry : mSources.entrySet()) {
+            if (entry.getValue() == downloader) {
+                mSources.remove(entry.getKey());
+                break;
+            }
+        }
+    }
+
+    /**
+     * 注册一个HLS下载会话，返回可以给播放器使用的本地播放列表地址，同一个会话多次注册返回同一个地址
+     *
+     * @param session HLS下载会话
+     * @return 本地播放列表地址，服务启动失败的时候返回null
+     */
+    public synchronized String register(HlsSession session) {
+        if (null == session) {
+            return null;
+        }
+        if (!ensureStarted()) {
+            return null;
+        }
+        String key = null;
+        for (Map.Entry<String, HlsSession> entry : mHlsSources.entrySet()) {
+            if (entry.getValue() == session) {
+                key = entry.getKey();
+                break;
+            }
+        }
+        if (null == key) {
+            key = newKey();
+            mHlsSources.put(key, session);
+        }
+        return getHlsBaseUrl(key) + HLS_PLAYLIST_NAME;
+    }
+
+    /**
+     * 反注册一个HLS下载会话，正在等待分片的请求会被关闭
+     *
+     * @param session HLS下载会话
+     */
+    public synchronized void unregister(HlsSession session) {
+        for (Map.Entry<String, HlsSession> entry : mHlsSources.entrySet()) {
+            if (entry.getValue() == session) {
+                mHlsSources.remove(entry.getKey());
+                break;
+            }
+        }
+    }
+
+    /**
+     * 生成注册地址中使用的随机密钥，十六进制字符串
+     */
+    private String newKey() {
+        byte[] bytes = new byte[KEY_BYTES];
+        mRandom.nextBytes(bytes);
+        StringBuilder sb = new StringBuilder(KEY_BYTES * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    private synchronized Downloader getSource(String key) {
+        return mSources.get(key);
+    }
+
+    private synchronized HlsSession getHlsSource(String key) {
+        return mHlsSources.get(key);
+    }
+
+    private String getHlsBaseUrl(String key) {
+        return "http://" + HOST + ":" + mServerSocket.getLocalPort() + HLS_PATH_PREFIX + key + "/";
+    }
+
+    /**
+     * 启动服务，已经启动的直接返回
+     * @return 是否已经启动
+     */
+    private boolean ensureStarted() {
+        if (null != mServerSocket && !mServerSocket.isClosed()) {
+            return true;
+        }
+        try {
+            mServerSocket = new ServerSocket(0, 8, InetAddress.getByName(HOST));
+        } catch (IOException e) {
+            Log.e(TAG, "Start local proxy server failed", e);
+            mServerSocket = null;
+            return false;
+        }
+        final ServerSocket serverSocket = mServerSocket;
+        Thread acceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!serverSocket.isClosed()) {
+                    try {
+                        final Socket socket = serverSocket.accept();
+                        EXECUTOR.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                handleRequest(socket);
+                            }
+                        });
+                    } catch (IOException e) {
+                        Log.e(TAG, "Accept failed", e);
+                    }
+                }
+            }
+        }, "LocalProxy-accept");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+        Log.i(TAG, "Local proxy server started on port " + serverSocket.getLocalPort());
+        return true;
+    }
+
+    /**
+     * 处理一个播放器请求
+     * @param socket 连接
+     */
+    private void handleRequest(Socket socket) {
+        RandomAccessFile file = null;
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+            String requestLine = reader.readLine();
+            if (null == requestLine) {
+                return;
+            }
+            String[] parts = requestLine.split(" ");
+            if (parts.length < 2) {
+                writeStatus(socket.getOutputStream(), "400 Bad Request");
+                return;
+            }
+            boolean head = "HEAD".equalsIgnoreCase(parts[0]);
+            String path = parts[1];
+            String range = null;
+            String line;
+            while (null != (line = reader.readLine()) && line.length() > 0) {
+                int index = line.indexOf(':');
+                if (index > 0 && "range".equals(line.substring(0, index).trim().toLowerCase(Locale.ENGLISH))) {
+                    range = line.substring(index + 1).trim();
+                }
+            }
+
+            if (path.startsWith(HLS_PATH_PREFIX)) {
+                handleHlsRequest(socket, path.substring(HLS_PATH_PREFIX.length()), range, head);
+                return;
+            }
+
+            String key = path.startsWith(PATH_PREFIX) ? path.substring(PATH_PREFIX.length()) : "";
+            Downloader downloader = getSource(key);
+            if (null == downloader) {
+                writeStatus(socket.getOutputStream(), "404 Not Found");
+                return;
+            }
+
+            // 下载器还没有获取到文件信息的时候等待
+            DataWaiter waiter = new DataWaiter(downloader);
+            int totalSize;
+            File savedFile;
+            while ((totalSize = downloader.getFileSize()) <= 0 || null == (savedFile = downloader.getSavedFile())) {
+                if (getSource(key) != downloader || isClientClosed(socket)) {
+                    return;
+                }
+                if (waiter.isStalled()) {
+                    writeStatus(socket.getOutputStream(), "503 Service Unavailable");
+                    return;
+                }
+                Thread.sleep(200);
+            }
+
+            int[] bounds = parseRange(range, totalSize);
+            OutputStream out = socket.getOutputStream();
+            if (!writeHeader(out, bounds, totalSize, "video/mp4") || head) {
+                return;
+            }
+            int start = bounds[0];
+            int end = bounds[1];
+
+            if (downloader.getAvailableLength(start) <= 0) {
+                // 播放器seek到还没有下载的位置，让下载器优先下载这个位置的数据
+                downloader.seekTo(start);
+            }
+
+            file = new RandomAccessFile(savedFile, "r");
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int position = start;
+            while (position <= end) {
+                int available = downloader.waitForData(position, WAIT_INTERVAL);
+                if (available <= 0) {
+                    // 数据还没有下载，请求失效（下载器反注册）或者等不到数据的时候结束，已经返回了响应头，只能关闭连接
+                    if (getSource(key) != downloader || isClientClosed(socket) || waiter.isStalled()) {
+                        return;
+                    }
+                    continue;
+                }
+                waiter.onProgress();
+                int length = Math.min(Math.min(available, buffer.length), end - position + 1);
+                file.seek(position);
+                int read = file.read(buffer, 0, length);
+                if (read <= 0) {
+                    continue;
+                }
+                out.write(buffer, 0, read);
+                position += read;
+            }
+            out.flush();
+        } catch (IOException e) {
+            // 播放器seek或者关闭的时候会主动断开连接
+            Log.w(TAG, "Request closed: " + e.toString());
+        } catch (InterruptedException e) {
+            Log.w(TAG, "Request interrupted");
+        } catch (RuntimeException e) {
+            // 请求内容由其他进程提供，任何异常都只结束这个请求
+            Log.e(TAG, "Handle request failed", e);
+        } finally {
+            if (null != file) {
+                try {
+                    file.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            try {
+                socket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * 处理HLS请求：播放列表直接返回替换了地址的内容，分片等待下载到缓存后返回缓存文件
+     * @param socket 连接
+     * @param path 去掉前缀的路径，格式为"会话/文件名"
+     * @param range Range请求头，没有的时候为null
+     * @param head 是否为HEAD请求
+     */
+    private void handleHlsRequest(Socket socket, String path, String range, boolean head)
+            throws IOException, InterruptedException {
+        OutputStream out = socket.getOutputStream();
+        int index = path.indexOf('/');
+        String key = index < 0 ? path : path.substring(0, index);
+        String name = index < 0 ? "" : path.substring(index + 1);
+        HlsSession session = getHlsSource(key);
+        if (null == session) {
+            writeStatus(out, "404 Not Found");
+            return;
+        }
+        if (HLS_PLAYLIST_NAME.equals(name)) {
+            String playlist = null;
+            try {
+                while (null == session.waitForPlaylist(WAIT_INTERVAL)) {
+                    if (getHlsSource(key) != session || session.isStopped()) {
+                        return;
+                    }
+                }
+                playlist = session.buildLocalPlaylist(getHlsBaseUrl(key));
+            } catch (IOException e) {
+                Log.e(TAG, "Load playlist failed: " + e.toString());
+            }
+            if (null == playlist) {
+                writeStatus(out, "502 Bad Gateway");
+                return;
+            }
+            byte[] data = playlist.getBytes("UTF-8");
+            out.write(("HTTP/1.1 200 OK\r\nContent-Type: application/vnd.apple.mpegurl\r\nContent-Length: "
+                    + data.length + "\r\nConnection: close\r\n\r\n").getBytes("UTF-8"));
+            if (!head) {
+                out.write(data);
+            }
+            out.flush();
+            return;
+        }
+
+        File file;
+        try {
+            while (null == (file = session.waitForFile(name, WAIT_INTERVAL))) {
+                // 分片还没有下载完成，请求失效（会话反注册）或者播放器断开连接的时候结束
+                if (getHlsSource(key) != session || session.isStopped() || isClientClosed(socket)) {
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Fetch segment failed: " + e.toString());
+            writeStatus(out, "502 Bad Gateway");
+            return;
+        }
+        int totalSize = (int) file.length();
+        int[] bounds = parseRange(range, totalSize);
+        String contentType = name.endsWith(".ts") ? "video/mp2t" : (name.endsWith(".aac") ? "audio/aac" : "video/mp4");
+        if (!writeHeader(out, bounds, totalSize, contentType) || head) {
+            return;
+        }
+        RandomAccessFile input = new RandomAccessFile(file, "r");
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            input.seek(bounds[0]);
+            int remain = bounds[1] - bounds[0] + 1;
+            int read;
+            while (remain > 0 && (read = input.read(buffer, 0, Math.min(buffer.length, remain))) != -1) {
+                out.write(buffer, 0, read);
+                remain -= read;
+            }
+            out.flush();
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * 解析Range请求头，超过文件长度的位置按文件长度处理（开始位置超出时写入416响应）
+     * @param range Range请求头，没有的时候为null
+     * @param totalSize 文件长度
+     * @return 开始位置、结束位置（包含）和是否为Range请求（1为是），数字无效的时候返回null
+     */
+    static int[] parseRange(String range, int totalSize) {
+        long start = 0;
+        long end = totalSize - 1;
+        boolean partial = false;
+        if (null != range) {
+            Matcher matcher = RANGE_PATTERN.matcher(range);
+            if (matcher.matches()) {
+                String first = matcher.group(1);
+                String last = matcher.group(2);
+                try {
+                    if (first.length() > 0) {
+                        start = Math.min(totalSize, Long.parseLong(first));
+                        if (last.length() > 0) {
+                            end = Math.min(end, Long.parseLong(last));
+                        }
+                    } else if (last.length() > 0) {
+                        // bytes=-n 表示最后n个字节
+                        start = Math.max(0, totalSize - Long.parseLong(last));
+                    } else {
+                        return null;
+                    }
+                } catch (NumberFormatException e) {
+                    // 超过long范围的数字
+                    return null;
+                }
+                partial = true;
+            }
+        }
+        return new int[] {(int) start, (int) end, partial ? 1 : 0, };
+    }
+
+    /**
+     * 写入响应头，请求的范围不能满足的时候写入416响应，Range请求头无效的时候写入400响应
+     * @param out 输出流
+     * @param bounds {@link #parseRange(String, int)}的结果
+     * @param totalSize 文件长度
+     * @param contentType 文件类型
+     * @return 是否需要继续写入数据
+     */
+    private static boolean writeHeader(OutputStream out, int[] bounds, int totalSize, String contentType)
+            throws IOException {
+        if (null == bounds) {
+            writeStatus(out, "400 Bad Request");
+            return false;
+        }
+        int start = bounds[0];
+        int end = bounds[1];
+        boolean partial = bounds[2] != 0;
+        if (start > end || start >= totalSize) {
+            out.write(("HTTP/1.1 416 Range Not Satisfiable\r\nContent-Range: bytes */" + totalSize
+                    + "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n").getBytes("UTF-8"));
+            out.flush();
+            return false;
+        }
+
+        StringBuilder header = new StringBuilder();
+        header.append(partial ? "HTTP/1.1 206 Partial Content\r\n" : "HTTP/1.1 200 OK\r\n");
+        header.append("Content-Type: ").append(contentType).append("\r\n");
+        header.append("Accept-Ranges: bytes\r\n");
+        header.append("Content-Length: ").append(end - start + 1).append("\r\n");
+        if (partial) {
+            header.append("Content-Range: bytes ").append(start).append("-").append(end)
+                    .append("/").append(totalSize).append("\r\n");
+        }
+        header.append("Connection: close\r\n\r\n");
+        out.write(header.toString().getBytes("UTF-8"));
+        out.flush();
+        return true;
+    }
+
+    private static void writeStatus(OutputStream out, String status) throws IOException {
+        out.write(("HTTP/1.1 " + status + "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n").getBytes("UTF-8"));
+        out.flush();
+    }
+
+    /**
+     * 播放器是否已经断开连接：读取完请求头之后播放器不再发送数据，读取到流结束说明连接已经关闭
+     * @param socket 连接
+     * @return 是否已经断开
+     */
+    private static boolean isClientClosed(Socket socket) {
+        if (socket.isClosed() || socket.isInputShutdown()) {
+            return true;
+        }
+        try {
+            socket.setSoTimeout(1);
+            return socket.getInputStream().read() < 0;
+        } catch (SocketTimeoutException e) {
+            return false;
+        } catch (IOException e) {
+            return true;
+        }
+    }
+
+    /**
+     * 等待下载数据的状态：下载器在等待期间开始后又停止（完成、出错、重试次数用完、暂停），
+     * 或者超过{@link #NO_PROGRESS_TIMEOUT}没有新数据的时候不再等待；
+     * 请求时还没有开始的下载器（例如在调度队列中等待）只受时长限制
+     */
+    private static final class DataWaiter {
+        private final Downloader mDownloader;
+        private boolean mRunning;
+        private long mProgressTime;
+
+        DataWaiter(Downloader downloader) {
+            this.mDownloader = downloader;
+            this.mRunning = !downloader.isStop();
+            this.mProgressTime = System.currentTimeMillis();
+        }
+
+        /**
+         * 读取到了新数据
+         */
+        void onProgress() {
+            mProgressTime = System.currentTimeMillis();
+        }
+
+        /**
+         * 是否不再等待
+         * @return 下载器已经停止或者太长时间没有新数据
+         */
+        boolean isStalled() {
+            if (mDownloader.isStop()) {
+                if (mRunning) {
+                    Log.w(TAG, "Downloader stopped while waiting for data");
+                    return true;
+                }
+            } else {
+                mRunning = true;
+            }
+            return System.currentTimeMillis() - mProgressTime > NO_PROGRESS_TIMEOUT;
+        }
+    }
+}
@@ -33,6 +33,12 @@ public interface IVideoPlayerView {
 
     void setOnPreparedListener(MediaPlayer.OnPreparedListener listener);
 
+    /**
+     * 设置播放器信息监听，用来获取首帧画面的时间，系统版本不支持的时候忽略
+     * @param listener 信息监听
+     */
+    void setOnInfoListener(MediaPlayer.OnInfoListener listener);
+
     void playVideo(Uri uri, int position);
 
     boolean isPlaying();
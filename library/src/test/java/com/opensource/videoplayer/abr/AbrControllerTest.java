@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2016. The Android Open Source Project.
+ *
+ *          yinglovezhuzhu@gmail.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *           http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.opensource.videoplayer.abr;
+
+import com.opensource.videoplayer.BandwidthMeter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * AbrController的测试：开始码率、提高和降低码率的缓冲阈值、不可用的码率、重新开始缓冲
+ * Created by yinglovezhuzhu@gmail.com on 2017/2/24.
+ */
+public class AbrControllerTest {
+
+    private static final long[] BITRATES = {800000, 400000, 1600000, };
+
+    private static final int LOW = 1;
+    private static final int MIDDLE = 0;
+    private static final int HIGH = 2;
+
+    /** 可用带宽按估计带宽的3/4计算，这个估计值可以使用最高的码率 **/
+    private static final long FAST = 2200000;
+
+    /** 这个估计值只能使用最低的码率 **/
+    private static final long SLOW = 1000000;
+
+    private AbrController mAbr;
+
+    @Before
+    public void setUp() {
+        mAbr = new AbrController(BITRATES);
+    }
+
+    @Test
+    public void initial() {
+        assertEquals(-1, mAbr.getCurrentIndex());
+        // 没有估计值的时候使用默认码率
+        assertEquals(MIDDLE, mAbr.selectInitial(BandwidthMeter.NO_ESTIMATE, MIDDLE));
+        assertEquals(HIGH, new AbrController(BITRATES).selectInitial(FAST, MIDDLE));
+        assertEquals(LOW, new AbrController(BITRATES).selectInitial(SLOW, MIDDLE));
+        // 所有码率都超过可用带宽的时候使用最低的码率
+        assertEquals(LOW, new AbrController(BITRATES).selectInitial(1000, MIDDLE));
+        // 超出范围的序号
+        assertEquals(HIGH, new AbrController(BITRATES).setInitialIndex(10, BandwidthMeter.NO_ESTIMATE));
+    }
+
+    @Test
+    public void upNeedsMinBuffer() {
+        mAbr.setInitialIndex(LOW, SLOW);
+        long threshold = AbrController.DEFAULT_MIN_BUFFER_FOR_UP;
+        assertEquals(LOW, mAbr.select(FAST, threshold - 1));
+        assertLastDecision(LOW, LOW, AbrController.REASON_HOLD_LOW_BUFFER);
+        assertEquals(HIGH, mAbr.select(FAST, threshold));
+        assertLastDecision(LOW, HIGH, AbrController.REASON_UP);
+    }
+
+    @Test
+    public void downUnlessMaxBuffer() {
+        mAbr.setInitialIndex(HIGH, FAST);
+        long threshold = AbrController.DEFAULT_MAX_BUFFER_FOR_DOWN;
+        assertEquals(HIGH, mAbr.select(SLOW, threshold + 1));
+        assertLastDecision(HIGH, HIGH, AbrController.REASON_HOLD_HIGH_BUFFER);
+        assertEquals(LOW, mAbr.select(SLOW, threshold));
+        assertLastDecision(HIGH, LOW, AbrController.REASON_DOWN);
+    }
+
+    @Test
+    public void customThresholds() {
+        AbrController abr = new AbrController(BITRATES, 3000, 6000);
+        abr.setInitialIndex(LOW, SLOW);
+        assertEquals(LOW, abr.select(FAST, 2999));
+        assertEquals(HIGH, abr.select(FAST, 3000));
+        assertEquals(HIGH, abr.select(SLOW, 6001));
+        assertEquals(LOW, abr.select(SLOW, 6000));
+    }
+
+    @Test
+    public void holdWithoutChange() {
+        mAbr.setInitialIndex(MIDDLE, SLOW);
+        int decisions = mAbr.getDecisions().size();
+        // 没有估计值或者目标码率就是当前码率的时候保持，不产生决策记录
+        assertEquals(MIDDLE, mAbr.select(BandwidthMeter.NO_ESTIMATE, 0));
+        assertEquals(MIDDLE, mAbr.select(1200000, 0));
+        assertEquals(decisions, mAbr.getDecisions().size());
+    }
+
+    @Test
+    public void disabledVariant() {
+        mAbr.setInitialIndex(LOW, SLOW);
+        mAbr.setEnabled(HIGH, false);
+        assertEquals(MIDDLE, mAbr.select(FAST, AbrController.DEFAULT_MIN_BUFFER_FOR_UP));
+        mAbr.setEnabled(HIGH, true);
+        assertEquals(HIGH, mAbr.select(FAST, AbrController.DEFAULT_MIN_BUFFER_FOR_UP));
+        // 所有码率都不可用的时候保持当前码率
+        for (int i = 0; i < BITRATES.length; i++) {
+            mAbr.setEnabled(i, false);
+        }
+        assertEquals(HIGH, mAbr.select(SLOW, 0));
+    }
+
+    @Test
+    public void restartIgnoresBuffer() {
+        mAbr.setInitialIndex(LOW, SLOW);
+        assertEquals(HIGH, mAbr.selectOnRestart(FAST));
+        assertLastDecision(LOW, HIGH, AbrController.REASON_RESTART);
+        assertEquals(HIGH, mAbr.selectOnRestart(BandwidthMeter.NO_ESTIMATE));
+    }
+
+    private void assertLastDecision(int from, int to, String reason) {
+        List<AbrController.Decision> decisions = mAbr.getDecisions();
+        AbrController.Decision decision = decisions.get(decisions.size() - 1);
+        assertEquals(from, decision.getFrom());
+        assertEquals(to, decision.getTo());
+        assertEquals(reason, decision.getReason());
+    }
+}
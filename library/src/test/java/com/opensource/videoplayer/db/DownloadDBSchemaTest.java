@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2016. The Android Open Source Project.
+ *
+ *          yinglovezhuzhu@gmail.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *           http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.opensource.videoplayer.db;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+/**
+ * 数据库建表、升级到版本8和下载完成时使用的SQL的测试，通过JDBC在内存中的SQLite数据库上执行
+ * Created by yinglovezhuzhu@gmail.com on 2017/2/24.
+ */
+public class DownloadDBSchemaTest {
+
+    /** 版本4的下载历史，没有最后访问时间和验证信息 **/
+    private static final String CREATE_HISTORY_TABLE_V4 = "CREATE TABLE download_history("
+            + "_id INTEGER PRIMARY KEY AUTOINCREMENT, url TEXT, total_size INTEGER, finished_time INTEGER, "
+            + "saved_file TEXT)";
+
+    /** 版本4的下载日志 **/
+    private static final String CREATE_LOG_TABLE_V4 = "CREATE TABLE download_log("
+            + "_id INTEGER PRIMARY KEY AUTOINCREMENT, url TEXT, downloaded_size INTEGER, total_size INTEGER, "
+            + "saved_file TEXT)";
+
+    private Connection mConnection;
+
+    @Before
+    public void setUp() throws SQLException {
+        mConnection = DriverManager.getConnection("jdbc:sqlite::memory:");
+    }
+
+    @After
+    public void tearDown() throws SQLException {
+        mConnection.close();
+    }
+
+    @Test
+    public void createdTablesHaveUniqueUrls() throws SQLException {
+        execute(DownloadDBHelper.getCreateStatements().toArray(new String[0]));
+        execute("INSERT INTO download_log(url, downloaded_size) VALUES('a', 1)");
+        try {
+            execute("INSERT INTO download_log(url, downloaded_size) VALUES('a', 2)");
+            fail("Duplicate url inserted");
+        } catch (SQLException e) {
+            // 唯一索引
+        }
+        execute("INSERT OR REPLACE INTO download_log(url, downloaded_size) VALUES('a', 3)");
+        assertEquals(1, count("download_log"));
+        assertEquals("3", queryString("SELECT downloaded_size FROM download_log WHERE url = 'a'"));
+    }
+
+    @Test
+    public void upgradeFromVersion7() throws SQLException {
+        // 版本7的表结构和现在相同，没有唯一索引
+        execute(DownloadDBHelper.CREATE_LOG_TABLE, DownloadDBHelper.CREATE_HISTORY_TABLE);
+        execute("INSERT INTO download_log(url, downloaded_size) VALUES('a', 1)",
+                "INSERT INTO download_log(url, downloaded_size) VALUES('b', 2)",
+                "INSERT INTO download_log(url, downloaded_size) VALUES('a', 3)",
+                "INSERT INTO download_history(url, saved_file) VALUES('c', 'old')",
+                "INSERT INTO download_history(url, saved_file) VALUES('c', 'new')");
+
+        upgrade(7);
+
+        // 下载日志保留，同一个地址只留下最后一条
+        assertEquals(2, count("download_log"));
+        assertEquals("3", queryString("SELECT downloaded_size FROM download_log WHERE url = 'a'"));
+        assertEquals(1, count("download_history"));
+        assertEquals("new", queryString("SELECT saved_file FROM download_history WHERE url = 'c'"));
+        assertEquals(2, count("sqlite_master WHERE type = 'index' AND name IN "
+                + "('download_log_url', 'download_history_url')"));
+    }
+
+    @Test
+    public void upgradeFromVersion4() throws SQLException {
+        execute(CREATE_LOG_TABLE_V4, CREATE_HISTORY_TABLE_V4);
+        execute("INSERT INTO download_log(url, downloaded_size) VALUES('a', 1)",
+                "INSERT INTO download_history(url, saved_file) VALUES('c', 'old')",
+                "INSERT INTO download_history(url, saved_file) VALUES('c', 'new')",
+                "INSERT INTO download_history(url, saved_file) VALUES('d', 'd')");
+
+        upgrade(4);
+
+        // 旧的下载日志不能续传，删除；下载历史增加字段并去掉重复的地址
+        assertEquals(0, count("download_log"));
+        assertEquals(2, count("download_history"));
+        assertEquals("new", queryString("SELECT saved_file FROM download_history WHERE url = 'c'"));
+        execute("UPDATE download_history SET last_access = 1, etag = 'e', last_modified = 'm', expires = 2");
+        execute("INSERT INTO download_log(url, downloaded_ranges, block_checksums) VALUES('a', '0-1', '')");
+    }
+
+    @Test
+    public void upgradeIgnoresExistingColumns() throws SQLException {
+        // 版本5的下载历史已经有last_access字段，重复增加的语句失败，升级继续
+        execute(CREATE_LOG_TABLE_V4, DownloadDBHelper.CREATE_HISTORY_TABLE);
+        upgrade(4);
+        assertEquals(0, count("download_history"));
+    }
+
+    @Test
+    public void completeDownload() throws SQLException {
+        execute(DownloadDBHelper.getCreateStatements().toArray(new String[0]));
+        execute("INSERT INTO download_log(url, downloaded_size, total_size) VALUES('a', 10, 100)",
+                "INSERT INTO download_log(url, downloaded_size, total_size) VALUES('b', 10, 100)",
+                "INSERT INTO download_history(url, saved_file, etag) VALUES('a', 'old', 'x')");
+
+        complete("a", "new");
+
+        assertNull(queryString("SELECT url FROM download_log WHERE url = 'a'"));
+        assertEquals(1, count("download_log"));
+        assertEquals(1, count("download_history"));
+        assertEquals("new", queryString("SELECT saved_file FROM download_history WHERE url = 'a'"));
+        assertNull(queryString("SELECT etag FROM download_history WHERE url = 'a'"));
+        assertEquals("100", queryString("SELECT total_size FROM download_history WHERE url = 'a'"));
+    }
+
+    /**
+     * 和{@link DownloadDBUtils#completeDownload}一样在一个事务中删除下载日志并保存下载历史
+     */
+    private void complete(String url, String savedFile) throws SQLException {
+        mConnection.setAutoCommit(false);
+        try {
+            PreparedStatement delete = mConnection.prepareStatement(DownloadDBUtils.SQL_DELETE_LOG);
+            delete.setString(1, url);
+            delete.executeUpdate();
+            delete.close();
+            PreparedStatement insert = mConnection.prepareStatement(DownloadDBUtils.SQL_REPLACE_HISTORY);
+            insert.setString(1, url);
+            insert.setLong(2, 100);
+            insert.setLong(3, 1000L);
+            insert.setString(4, savedFile);
+            insert.setLong(5, 2000L);
+            insert.setNull(6, java.sql.Types.VARCHAR);
+            insert.setNull(7, java.sql.Types.VARCHAR);
+            insert.setLong(8, 0);
+            insert.executeUpdate();
+            insert.close();
+            mConnection.commit();
+        } finally {
+            mConnection.setAutoCommit(true);
+        }
+    }
+
+    /**
+     * 和{@link DownloadDBHelper#onUpgrade}一样执行升级的语句，增加字段失败的时候忽略，然后执行建表语句
+     */
+    private void upgrade(int oldVersion) throws SQLException {
+        for (String sql : DownloadDBHelper.getUpgradeStatements(oldVersion)) {
+            try {
+                execute(sql);
+            } catch (SQLException e) {
+                if (!sql.startsWith("ALTER TABLE")) {
+                    throw e;
+                }
+            }
+        }
+        execute(DownloadDBHelper.getCreateStatements().toArray(new String[0]));
+    }
+
+    private void execute(String... statements) throws SQLException {
+        Statement statement = mConnection.createStatement();
+        try {
+            for (String sql : statements) {
+                statement.execute(sql);
+            }
+        } finally {
+            statement.close();
+        }
+    }
+
+    private int count(String table) throws SQLException {
+        return Integer.parseInt(queryString("SELECT COUNT(*) FROM " + table));
+    }
+
+    private String queryString(String sql) throws SQLException {
+        Statement statement = mConnection.createStatement();
+        try {
+            ResultSet result = statement.executeQuery(sql);
+            return result.next() ? result.getString(1) : null;
+        } finally {
+            statement.close();
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2016. The Android Open Source Project.
+ *
+ *          yinglovezhuzhu@gmail.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *           http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.opensource.videoplayer.downloader;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * BlockChecksums按块合并校验值、拒绝重叠数据和保存格式的测试
+ * Created by yinglovezhuzhu@gmail.com on 2017/2/24.
+ */
+public class BlockChecksumsTest {
+
+    private static final int BLOCK_SIZE = 1024;
+
+    private final byte[] mData = new byte[BLOCK_SIZE * 3 + 100];
+
+    public BlockChecksumsTest() {
+        new Random(3).nextBytes(mData);
+    }
+
+    @Test
+    public void piecesMergeToBlockCrc() {
+        BlockChecksums checksums = new BlockChecksums(BLOCK_SIZE);
+        // 乱序写入同一块的几段数据
+        add(checksums, 512, 1024);
+        add(checksums, 0, 100);
+        assertEquals(-1, checksums.getBlockCrc(0, mData.length));
+        add(checksums, 100, 512);
+        assertEquals(1, checksums.size());
+        assertEquals(crc(0, BLOCK_SIZE), checksums.getBlockCrc(0, mData.length));
+    }
+
+    @Test
+    public void lastBlockIsShort() {
+        BlockChecksums checksums = new BlockChecksums(BLOCK_SIZE);
+        add(checksums, BLOCK_SIZE * 3, mData.length);
+        assertEquals(crc(BLOCK_SIZE * 3, mData.length), checksums.getBlockCrc(3, mData.length));
+    }
+
+    @Test
+    public void rejectsOverlapAndBoundary() {
+        BlockChecksums checksums = new BlockChecksums(BLOCK_SIZE);
+        assertTrue(add(checksums, 100, 200));
+        assertFalse(add(checksums, 150, 250));
+        assertFalse(add(checksums, 50, 101));
+        assertFalse(add(checksums, 1000, 1100));
+        assertFalse(add(checksums, 10, 10));
+        assertEquals(1, checksums.size());
+    }
+
+    @Test
+    public void adjacentBlocksStaySeparate() {
+        BlockChecksums checksums = new BlockChecksums(BLOCK_SIZE);
+        add(checksums, 0, BLOCK_SIZE);
+        add(checksums, BLOCK_SIZE, BLOCK_SIZE * 2);
+        assertEquals(2, checksums.size());
+        assertEquals(crc(BLOCK_SIZE, BLOCK_SIZE * 2), checksums.getBlockCrc(1, mData.length));
+    }
+
+    @Test
+    public void removeOverlapping() {
+        BlockChecksums checksums = new BlockChecksums(BLOCK_SIZE);
+        add(checksums, 0, 100);
+        add(checksums, 200, 300);
+        add(checksums, BLOCK_SIZE, BLOCK_SIZE + 10);
+        checksums.remove(50, 250);
+        assertEquals(1, checksums.size());
+        assertTrue(add(checksums, 0, 100));
+    }
+
+    @Test
+    public void formatAndParse() {
+        BlockChecksums checksums = new BlockChecksums(BLOCK_SIZE);
+        add(checksums, 0, BLOCK_SIZE);
+        add(checksums, BLOCK_SIZE * 2, BLOCK_SIZE * 2 + 300);
+        BlockChecksums parsed = BlockChecksums.parse(checksums.format(), BLOCK_SIZE);
+        assertEquals(checksums.format(), parsed.format());
+        assertEquals(crc(0, BLOCK_SIZE), parsed.getBlockCrc(0, mData.length));
+        // 格式错误的记录被忽略
+        assertEquals(0, BlockChecksums.parse("abc,1-x:2", BLOCK_SIZE).size());
+    }
+
+    private boolean add(BlockChecksums checksums, int start, int end) {
+        return checksums.add(start, end, Crc32c.update(0, mData, start, end - start));
+    }
+
+    private long crc(int start, int end) {
+        return Crc32c.update(0, mData, start, end - start) & 0xffffffffL;
+    }
+}
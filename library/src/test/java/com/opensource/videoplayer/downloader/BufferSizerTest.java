@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2016. The Android Open Source Project.
+ *
+ *          yinglovezhuzhu@gmail.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *           http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.opensource.videoplayer.downloader;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * BufferSizer按读取速度调整缓存大小的测试，包括数据已经在接收缓存中、读取立即返回的慢速数据流
+ * Created by yinglovezhuzhu@gmail.com on 2017/2/24.
+ */
+public class BufferSizerTest {
+
+    private static final long SECOND = 1000000000L;
+
+    @Test
+    public void initialSizeIsClamped() {
+        assertEquals(8192, new BufferSizer(8192, 65536, 100).getBufferSize());
+        assertEquals(65536, new BufferSizer(8192, 65536, 1 << 20).getBufferSize());
+        assertEquals(16384, new BufferSizer(8192, 65536, 16384).getBufferSize());
+    }
+
+    @Test
+    public void sizeFollowsSpeed() {
+        BufferSizer sizer = new BufferSizer(1024, 1024 * 1024, 8192);
+        // 1MB/s，100毫秒大约读取100KB，取不大于它的2的整数次幂
+        sizer.onRead(8192, 1024 * 1024, SECOND);
+        assertEquals(64 * 1024, sizer.getBufferSize());
+        assertEquals(1024 * 1024, sizer.getBytesPerSecond());
+    }
+
+    @Test
+    public void speedIsSmoothed() {
+        BufferSizer sizer = new BufferSizer(1024, 1024 * 1024, 8192);
+        sizer.onRead(8192, 1000000, SECOND);
+        // 一次很快的读取只按0.25的权重计入
+        sizer.onRead(8192, 5000000, SECOND);
+        assertEquals(2000000, sizer.getBytesPerSecond());
+        assertEquals(128 * 1024, sizer.getBufferSize());
+    }
+
+    @Test
+    public void boundsAreRespected() {
+        BufferSizer sizer = new BufferSizer(4096, 32768, 8192);
+        sizer.onRead(8192, 1, SECOND);
+        assertEquals(4096, sizer.getBufferSize());
+        for (int i = 0; i < 20; i++) {
+            sizer.onRead(4096, 1 << 30, SECOND);
+        }
+        assertEquals(32768, sizer.getBufferSize());
+    }
+
+    @Test
+    public void emptyReadsOnlyCounted() {
+        BufferSizer sizer = new BufferSizer(4096, 32768, 8192);
+        sizer.onRead(8192, 0, SECOND);
+        sizer.onRead(8192, -1, SECOND);
+        assertEquals(8192, sizer.getBufferSize());
+        assertEquals(-1, sizer.getBytesPerSecond());
+        assertEquals(2, sizer.getReadCount());
+        Map<Integer, Long> counts = sizer.getSizeCounts();
+        assertEquals(Long.valueOf(2), counts.get(8192));
+    }
+
+    @Test
+    public void shortReadsAreAccumulated() {
+        BufferSizer sizer = new BufferSizer(1024, 1024 * 1024, 8192);
+        // 立即返回的读取不单独作为样本
+        for (int i = 0; i < 9; i++) {
+            sizer.onRead(8192, 10000, 0);
+        }
+        assertEquals(-1, sizer.getBytesPerSecond());
+        assertEquals(8192, sizer.getBufferSize());
+        // 累计的字节数除以累计的时长
+        sizer.onRead(8192, 10000, SECOND / 10);
+        assertEquals(1000000, sizer.getBytesPerSecond());
+        assertEquals(64 * 1024, sizer.getBufferSize());
+    }
+
+    @Test
+    public void slowStreamWithInstantReads() throws IOException {
+        final int chunk = 1024;
+        final int length = chunk * 40;
+        BufferSizer sizer = new BufferSizer(1024, 1024 * 512, 8192);
+        // 每次读取立即返回1KB，两次读取之间花费10毫秒，实际速度大约100KB/s
+        InputStream in = new InputStream() {
+            @Override
+            public int read() {
+                return 0;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                return Math.min(len, chunk);
+            }
+        };
+        File file = File.createTempFile("sizer", ".tmp");
+        RandomAccessFile randomFile = new RandomAccessFile(file, "rw");
+        try {
+            new ChunkCopier(sizer).copy(in, randomFile, 0, length, new ChunkCopier.Callback() {
+                private int mRemain = length;
+
+                @Override
+                public boolean isCancelled() {
+                    return false;
+                }
+
+                @Override
+                public int onChunkWritten(int position, int count, int crc) {
+                    try {
+                        Thread.sleep(10);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    mRemain -= count;
+                    return mRemain;
+                }
+            });
+        } finally {
+            randomFile.close();
+            file.delete();
+        }
+        assertTrue(sizer.getBytesPerSecond() > 0);
+        assertTrue(String.valueOf(sizer.getBytesPerSecond()), sizer.getBytesPerSecond() < 200 * 1024);
+        assertTrue(sizer.toString(), sizer.getBufferSize() <= 16 * 1024);
+    }
+}
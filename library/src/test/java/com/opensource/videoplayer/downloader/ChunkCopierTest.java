@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2016. The Android Open Source Project.
+ *
+ *          yinglovezhuzhu@gmail.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *           http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.opensource.videoplayer.downloader;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * ChunkCopier普通方式和NIO方式写入的测试：写入的位置和内容、按校验块拆分的回调和每段数据的CRC-32C
+ * Created by yinglovezhuzhu@gmail.com on 2017/2/26.
+ */
+public class ChunkCopierTest {
+
+    private static final int BLOCK_SIZE = 64 * 1024;
+
+    private static final int OFFSET = 10000;
+
+    @Test
+    public void copyStream() throws IOException {
+        copy(false);
+    }
+
+    @Test
+    public void copyChannel() throws IOException {
+        copy(true);
+    }
+
+    private void copy(boolean useNio) throws IOException {
+        final byte[] data = new byte[300 * 1024 + 123];
+        new Random(0).nextBytes(data);
+        File file = File.createTempFile("copier", ".bin");
+        RandomAccessFile randomFile = new RandomAccessFile(file, "rw");
+        try {
+            ChunkCopier copier = new ChunkCopier(useNio, 16 * 1024);
+            copier.setChecksumBlockSize(BLOCK_SIZE);
+            final int[] next = {OFFSET};
+            int written = copier.copy(new SplitInputStream(data, 5000), randomFile, OFFSET, data.length,
+                    new ChunkCopier.Callback() {
+                        @Override
+                        public boolean isCancelled() {
+                            return false;
+                        }
+
+                        @Override
+                        public int onChunkWritten(int position, int count, int crc) {
+                            // 连续回调，不跨越校验块的边界
+                            assertEquals(next[0], position);
+                            assertEquals(position / BLOCK_SIZE, (position + count - 1) / BLOCK_SIZE);
+                            assertEquals(Crc32c.update(0, data, position - OFFSET, count), crc);
+                            next[0] += count;
+                            return OFFSET + data.length - next[0];
+                        }
+                    });
+            assertEquals(data.length, written);
+            assertEquals(OFFSET + data.length, next[0]);
+            assertTrue(randomFile.length() >= OFFSET + data.length);
+            byte[] content = new byte[data.length];
+            randomFile.seek(OFFSET);
+            randomFile.readFully(content);
+            assertArrayEquals(data, content);
+        } finally {
+            randomFile.close();
+            file.delete();
+        }
+    }
+
+    /**
+     * 每次读取最多返回指定长度的数据流，模拟网络连接
+     */
+    private static class SplitInputStream extends ByteArrayInputStream {
+
+        private final int mReadSize;
+
+        SplitInputStream(byte[] data, int readSize) {
+            super(data);
+            this.mReadSize = readSize;
+        }
+
+        @Override
+        public synchronized int read(byte[] buffer, int offset, int length) {
+            return super.read(buffer, offset, Math.min(length, mReadSize));
+        }
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2016. The Android Open Source Project.
+ *
+ *          yinglovezhuzhu@gmail.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *           http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.opensource.videoplayer.downloader;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Crc32c计算和合并的测试
+ * Created by yinglovezhuzhu@gmail.com on 2017/2/24.
+ */
+public class Crc32cTest {
+
+    @Test
+    public void checkValue() throws Exception {
+        // CRC-32C的标准检验值
+        byte[] data = "123456789".getBytes("US-ASCII");
+        assertEquals(0xE3069283, Crc32c.update(0, data, 0, data.length));
+    }
+
+    @Test
+    public void incrementalUpdate() {
+        byte[] data = randomBytes(4096);
+        int crc = Crc32c.update(0, data, 0, 1000);
+        crc = Crc32c.update(crc, data, 1000, data.length - 1000);
+        assertEquals(Crc32c.update(0, data, 0, data.length), crc);
+    }
+
+    @Test
+    public void combineMatchesOnePass() {
+        byte[] data = randomBytes(100000);
+        int expected = Crc32c.update(0, data, 0, data.length);
+        int[] splits = {0, 1, 7, 4096, 65536, 99999, 100000, };
+        for (int split : splits) {
+            int crc1 = Crc32c.update(0, data, 0, split);
+            int crc2 = Crc32c.update(0, data, split, data.length - split);
+            assertEquals("split at " + split, expected, Crc32c.combine(crc1, crc2, data.length - split));
+        }
+    }
+
+    @Test
+    public void combineManyPieces() {
+        byte[] data = randomBytes(1024 * 1024);
+        int crc = 0;
+        int position = 0;
+        Random random = new Random(1);
+        while (position < data.length) {
+            int length = Math.min(data.length - position, 1 + random.nextInt(20000));
+            crc = Crc32c.combine(crc, Crc32c.update(0, data, position, length), length);
+            position += length;
+        }
+        assertEquals(Crc32c.update(0, data, 0, data.length), crc);
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+        return data;
+    }
+}
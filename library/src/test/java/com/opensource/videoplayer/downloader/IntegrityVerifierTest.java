@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2016. The Android Open Source Project.
+ *
+ *          yinglovezhuzhu@gmail.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *           http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.opensource.videoplayer.downloader;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 恢复没有同步到磁盘的进度时按校验值检查已下载区间的测试：断电后没有写到磁盘的数据不能信任
+ * Created by yinglovezhuzhu@gmail.com on 2017/2/24.
+ */
+public class IntegrityVerifierTest {
+
+    private static final int BLOCK_SIZE = 1024;
+
+    private static final int TOTAL_SIZE = BLOCK_SIZE * 4;
+
+    private File mFile;
+    private byte[] mData;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("verify", ".mp4");
+        mData = new byte[TOTAL_SIZE];
+        new Random(1).nextBytes(mData);
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        try {
+            file.write(mData);
+        } finally {
+            file.close();
+        }
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Test
+    public void writtenRangesAreKept() throws IOException {
+        DownloadLog log = newLog();
+        addRange(log, 0, 1024);
+        addRange(log, 1024, 1500);
+        addRange(log, 3072, 4096);
+        log.setEndDownloaded(true);
+        DownloadLog result = new IntegrityVerifier(mFile, log).verifyDownloadedRanges();
+        assertEquals("0-1500,3072-4096", result.getDownloadedRanges().format());
+        assertEquals(1500 + 1024, result.getDownloadedSize());
+        assertEquals(log.getBlockChecksums().format(), result.getBlockChecksums().format());
+        assertTrue(result.isEndDownloaded());
+    }
+
+    @Test
+    public void unwrittenRangesAreDropped() throws IOException {
+        DownloadLog log = newLog();
+        addRange(log, 0, 1024);
+        addRange(log, 1024, 2048);
+        addRange(log, 3072, 4096);
+        log.setEndDownloaded(true);
+        // 断电后第二块的数据没有写到磁盘
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        try {
+            file.seek(1024 + 100);
+            file.write(new byte[200]);
+        } finally {
+            file.close();
+        }
+        DownloadLog result = new IntegrityVerifier(mFile, log).verifyDownloadedRanges();
+        assertEquals("0-1024,3072-4096", result.getDownloadedRanges().format());
+        assertEquals(2048, result.getDownloadedSize());
+        assertEquals(-1, result.getBlockChecksums().getBlockCrc(1, TOTAL_SIZE));
+        assertFalse(result.isEndDownloaded());
+        // 原来的进度不变
+        assertEquals(3072, log.getDownloadedSize());
+    }
+
+    @Test
+    public void rangesBeyondFileAndWithoutChecksumAreDropped() throws IOException {
+        DownloadLog log = newLog();
+        addRange(log, 0, 1024);
+        // 没有校验值的区间
+        log.addDownloadedRange(1024, 2048);
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        try {
+            addRange(log, 3072, 4096);
+            // 文件的长度还没有写到磁盘
+            file.setLength(3500);
+        } finally {
+            file.close();
+        }
+        DownloadLog result = new IntegrityVerifier(mFile, log).verifyDownloadedRanges();
+        assertEquals("0-1024", result.getDownloadedRanges().format());
+    }
+
+    @Test(expected = IOException.class)
+    public void missingFile() throws IOException {
+        DownloadLog log = newLog();
+        addRange(log, 0, 1024);
+        mFile.delete();
+        new IntegrityVerifier(mFile, log).verifyDownloadedRanges();
+    }
+
+    private DownloadLog newLog() {
+        DownloadLog log = new DownloadLog("http://127.0.0.1/video.mp4", 0, TOTAL_SIZE, mFile.getPath());
+        log.setId(1);
+        log.setBlockChecksums(new BlockChecksums(BLOCK_SIZE));
+        return log;
+    }
+
+    private void addRange(DownloadLog log, int start, int end) {
+        log.addDownloadedRange(start, end, Crc32c.update(0, mData, start, end - start));
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2016. The Android Open Source Project.
+ *
+ *          yinglovezhuzhu@gmail.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *           http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.opensource.videoplayer.downloader;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * MirrorSelector按速度选择镜像、出错后暂停使用和移除不一致镜像的测试
+ * Created by yinglovezhuzhu@gmail.com on 2017/2/24.
+ */
+public class MirrorSelectorTest {
+
+    private static final String PRIMARY = "http://primary/video.mp4";
+    private static final String MIRROR = "http://mirror/video.mp4";
+
+    @Test(expected = IllegalArgumentException.class)
+    public void emptyUrls() {
+        new MirrorSelector(Collections.<String>emptyList());
+    }
+
+    @Test
+    public void preferPrimary() {
+        MirrorSelector selector = new MirrorSelector(Arrays.asList(PRIMARY, MIRROR));
+        for (int i = 0; i < 20; i++) {
+            assertTrue(selector.select(true).isPrimary());
+        }
+    }
+
+    @Test
+    public void weightedBySpeed() {
+        MirrorSelector selector = new MirrorSelector(Arrays.asList(PRIMARY, MIRROR));
+        MirrorSelector.Mirror primary = selector.getMirrors().get(0);
+        MirrorSelector.Mirror mirror = selector.getMirrors().get(1);
+        // 镜像的速度是主地址的9倍
+        selector.onTransferred(primary, 100000, 1000000000L);
+        selector.onTransferred(mirror, 900000, 1000000000L);
+        int mirrorCount = 0;
+        for (int i = 0; i < 2000; i++) {
+            if (selector.select(false) == mirror) {
+                mirrorCount++;
+            }
+        }
+        assertTrue("mirror selected " + mirrorCount, mirrorCount > 1600 && mirrorCount < 1950);
+    }
+
+    @Test
+    public void failureCooldown() {
+        MirrorSelector selector = new MirrorSelector(Arrays.asList(PRIMARY, MIRROR), 60000);
+        MirrorSelector.Mirror primary = selector.getMirrors().get(0);
+        MirrorSelector.Mirror mirror = selector.getMirrors().get(1);
+        assertTrue(selector.onFailure(primary));
+        for (int i = 0; i < 20; i++) {
+            assertSame(mirror, selector.select(true));
+        }
+        assertFalse(selector.onFailure(mirror));
+        assertFalse(selector.hasAvailable());
+        // 都不可用的时候返回最早恢复的镜像
+        assertSame(primary, selector.select(false));
+    }
+
+    @Test
+    public void cooldownExpires() throws InterruptedException {
+        MirrorSelector selector = new MirrorSelector(Arrays.asList(PRIMARY, MIRROR), 10);
+        MirrorSelector.Mirror primary = selector.getMirrors().get(0);
+        selector.onFailure(primary);
+        Thread.sleep(50);
+        assertSame(primary, selector.select(true));
+    }
+
+    @Test
+    public void removeMirror() {
+        MirrorSelector selector = new MirrorSelector(Arrays.asList(PRIMARY, MIRROR));
+        MirrorSelector.Mirror primary = selector.getMirrors().get(0);
+        MirrorSelector.Mirror mirror = selector.getMirrors().get(1);
+        selector.remove(mirror);
+        selector.remove(primary);
+        for (int i = 0; i < 20; i++) {
+            assertSame(primary, selector.select(false));
+        }
+        assertEquals(2, selector.size());
+    }
+}
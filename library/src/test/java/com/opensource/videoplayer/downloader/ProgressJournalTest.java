@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2016. The Android Open Source Project.
+ *
+ *          yinglovezhuzhu@gmail.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *           http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.opensource.videoplayer.downloader;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * ProgressJournal和JournalProgressStore的测试：重新打开后读取进度、槽位不属于这个下载时不写入、
+ * 日志不可用时数据库的写入推迟到下一次持久保存
+ * Created by yinglovezhuzhu@gmail.com on 2017/2/24.
+ */
+public class ProgressJournalTest {
+
+    private static final String URL = "http://127.0.0.1/video.mp4";
+
+    private File mFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("progress", ".journal");
+        mFile.delete();
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Test
+    public void readAfterReopen() throws IOException {
+        ProgressJournal journal = new ProgressJournal(mFile, 4, 8192);
+        DownloadLog log = newLog(URL, 7);
+        log.addDownloadedRange(0, 100, 0x1234);
+        log.addDownloadedRange(300, 400);
+        int slot = journal.acquire(URL, 7);
+        assertTrue(journal.write(slot, log.snapshot()));
+
+        List<DownloadLog> logs = new ProgressJournal(mFile, 4, 8192).readAll();
+        assertEquals(1, logs.size());
+        DownloadLog saved = logs.get(0);
+        assertEquals(URL, saved.getUrl());
+        assertEquals(7, saved.getId());
+        assertEquals(1000, saved.getTotalSize());
+        assertEquals("0-100,300-400", saved.getDownloadedRanges().format());
+        assertEquals(log.getBlockChecksums().format(), saved.getBlockChecksums().format());
+    }
+
+    @Test
+    public void writeToReleasedSlot() throws IOException {
+        ProgressJournal journal = new ProgressJournal(mFile, 4, 8192);
+        int slot = journal.acquire(URL, 7);
+        journal.release(URL);
+        assertFalse(journal.write(slot, newLog(URL, 7)));
+        assertTrue(journal.readAll().isEmpty());
+    }
+
+    @Test
+    public void writeToReacquiredSlot() throws IOException {
+        ProgressJournal journal = new ProgressJournal(mFile, 1, 8192);
+        int slot = journal.acquire(URL, 7);
+        journal.release(slot);
+        // 槽位被另一个下载申请，之前的下载不能再写入
+        assertEquals(slot, journal.acquire("http://127.0.0.1/other.mp4", 8));
+        assertFalse(journal.write(slot, newLog(URL, 7)));
+        // 同一个地址重新开始的下载（新的日志id）也不能写入
+        journal.release(slot);
+        assertEquals(slot, journal.acquire(URL, 9));
+        assertFalse(journal.write(slot, newLog(URL, 7)));
+        assertTrue(journal.write(slot, newLog(URL, 9)));
+    }
+
+    @Test
+    public void storeWritesJournalUntilClose() throws IOException {
+        RecordingStore database = new RecordingStore();
+        JournalProgressStore store = new JournalProgressStore(new ProgressJournal(mFile, 4, 8192), database);
+        DownloadLog log = newLog(URL, 7);
+        for (int i = 0; i < 5; i++) {
+            log.addDownloadedRange(i * 100, i * 100 + 50);
+            assertFalse(store.isDurable());
+            store.updateLog(log.snapshot());
+        }
+        assertTrue(database.mLogs.isEmpty());
+        store.close();
+        assertEquals(1, database.mLogs.size());
+        assertEquals(log.getDownloadedRanges().format(), database.mLogs.get(0).getDownloadedRanges().format());
+    }
+
+    @Test
+    public void storeFallsBackAfterSync() throws IOException {
+        RecordingStore database = new RecordingStore();
+        // 槽位太小，放不下很多区间
+        JournalProgressStore store = new JournalProgressStore(
+                new ProgressJournal(mFile, 1, 2048 + 2 * 64), database);
+        DownloadLog log = newLog(URL, 7);
+        log.addDownloadedRange(0, 10);
+        store.updateLog(log.snapshot());
+        for (int i = 1; i < 10; i++) {
+            log.addDownloadedRange(i * 100, i * 100 + 10);
+        }
+        // 第一次写入日志失败的时候还没有同步文件，不写数据库
+        store.updateLog(log.snapshot());
+        assertTrue(database.mLogs.isEmpty());
+        assertTrue(store.isDurable());
+        // 之后的保存已经同步，直接写数据库
+        log.addDownloadedRange(2000, 2010);
+        store.updateLog(log.snapshot());
+        assertEquals(1, database.mLogs.size());
+        store.close();
+        assertEquals(1, database.mLogs.size());
+    }
+
+    @Test
+    public void storeWithoutJournal() {
+        RecordingStore database = new RecordingStore();
+        JournalProgressStore store = new JournalProgressStore(null, database);
+        assertTrue(store.isDurable());
+        store.updateLog(newLog(URL, 7));
+        assertEquals(1, database.mLogs.size());
+        store.discard();
+        store.close();
+        assertEquals(1, database.mLogs.size());
+    }
+
+    @Test
+    public void discardReleasesSlot() throws IOException {
+        ProgressJournal journal = new ProgressJournal(mFile, 4, 8192);
+        RecordingStore database = new RecordingStore();
+        JournalProgressStore store = new JournalProgressStore(journal, database);
+        store.updateLog(newLog(URL, 7));
+        assertEquals(1, journal.readAll().size());
+        store.discard();
+        assertTrue(journal.readAll().isEmpty());
+        store.close();
+        assertTrue(database.mLogs.isEmpty());
+    }
+
+    private static DownloadLog newLog(String url, long id) {
+        DownloadLog log = new DownloadLog(url, 0, 1000, "/tmp/video.mp4");
+        log.setId(id);
+        return log;
+    }
+
+    /**
+     * 记录所有保存的进度，代替数据库
+     */
+    private static class RecordingStore implements ProgressStore {
+
+        private final List<DownloadLog> mLogs = new ArrayList<DownloadLog>();
+
+        @Override
+        public void updateLog(DownloadLog log) {
+            mLogs.add(log);
+        }
+
+        @Override
+        public boolean isDurable() {
+            return true;
+        }
+    }
+}
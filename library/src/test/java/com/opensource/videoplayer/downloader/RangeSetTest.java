@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2016. The Android Open Source Project.
+ *
+ *          yinglovezhuzhu@gmail.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *           http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.opensource.videoplayer.downloader;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * RangeSet合并、拆分、查询缺失区间和保存格式的测试
+ * Created by yinglovezhuzhu@gmail.com on 2017/2/24.
+ */
+public class RangeSetTest {
+
+    @Test
+    public void mergeAdjacentAndOverlapping() {
+        RangeSet ranges = new RangeSet();
+        ranges.add(0, 100);
+        ranges.add(100, 200);
+        assertEquals("0-200", ranges.format());
+        ranges.add(300, 400);
+        ranges.add(500, 600);
+        assertEquals(3, ranges.size());
+        // 跨越多个区间的新区间把它们合并成一个
+        ranges.add(150, 550);
+        assertEquals("0-600", ranges.format());
+        assertEquals(600, ranges.getCoveredLength());
+    }
+
+    @Test
+    public void ignoresEmptyRange() {
+        RangeSet ranges = new RangeSet();
+        ranges.add(10, 10);
+        ranges.add(20, 5);
+        assertEquals(0, ranges.size());
+        assertEquals(0, ranges.getCoveredLength());
+    }
+
+    @Test
+    public void removeSplits() {
+        RangeSet ranges = new RangeSet();
+        ranges.add(0, 1000);
+        ranges.remove(400, 600);
+        assertEquals("0-400,600-1000", ranges.format());
+        assertEquals(800, ranges.getCoveredLength());
+        // 覆盖多个区间的一部分
+        ranges.remove(300, 700);
+        assertEquals("0-300,700-1000", ranges.format());
+        ranges.remove(0, 300);
+        assertEquals("700-1000", ranges.format());
+        assertEquals(300, ranges.getCoveredLength());
+    }
+
+    @Test
+    public void availability() {
+        RangeSet ranges = new RangeSet();
+        ranges.add(100, 200);
+        assertEquals(0, ranges.getAvailableLength(99));
+        assertEquals(100, ranges.getAvailableLength(100));
+        assertEquals(1, ranges.getAvailableLength(199));
+        assertEquals(0, ranges.getAvailableLength(200));
+        assertTrue(ranges.isRangeAvailable(150, 50));
+        assertFalse(ranges.isRangeAvailable(150, 51));
+    }
+
+    @Test
+    public void nextMissingRange() {
+        RangeSet ranges = new RangeSet();
+        ranges.add(0, 100);
+        ranges.add(200, 300);
+        assertArrayEquals(new int[] {100, 200, }, ranges.nextMissingRange(0, 1000));
+        assertArrayEquals(new int[] {150, 200, }, ranges.nextMissingRange(150, 1000));
+        assertArrayEquals(new int[] {300, 1000, }, ranges.nextMissingRange(250, 1000));
+        assertNull(ranges.nextMissingRange(0, 100));
+        assertNull(ranges.nextMissingRange(250, 300));
+    }
+
+    @Test
+    public void formatAndParse() {
+        RangeSet ranges = new RangeSet();
+        ranges.add(0, 10);
+        ranges.add(20, 30);
+        RangeSet parsed = RangeSet.parse(ranges.format());
+        assertEquals("0-10,20-30", parsed.format());
+        assertEquals(20, parsed.getCoveredLength());
+        // 格式错误的区间被忽略
+        assertEquals("5-8", RangeSet.parse("x,5-8,9-,a-b").format());
+        assertEquals(0, RangeSet.parse(null).size());
+    }
+
+    @Test
+    public void matchesBitmap() {
+        // 随机添加和移除，结果和逐字节记录的结果一致
+        Random random = new Random(5);
+        boolean[] bits = new boolean[2000];
+        RangeSet ranges = new RangeSet();
+        for (int i = 0; i < 500; i++) {
+            int start = random.nextInt(bits.length);
+            int end = Math.min(bits.length, start + 1 + random.nextInt(100));
+            boolean add = random.nextInt(3) > 0;
+            if (add) {
+                ranges.add(start, end);
+            } else {
+                ranges.remove(start, end);
+            }
+            for (int j = start; j < end; j++) {
+                bits[j] = add;
+            }
+        }
+        int covered = 0;
+        for (int i = 0; i < bits.length; i++) {
+            if (bits[i]) {
+                covered++;
+            }
+            assertEquals("position " + i, bits[i], ranges.getAvailableLength(i) > 0);
+        }
+        assertEquals(covered, ranges.getCoveredLength());
+        assertEquals(ranges.format(), RangeSet.parse(ranges.format()).format());
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2016. The Android Open Source Project.
+ *
+ *          yinglovezhuzhu@gmail.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *           http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.opensource.videoplayer.downloader;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * RetryPolicy的错误分类和等待时间的测试
+ * Created by yinglovezhuzhu@gmail.com on 2017/2/24.
+ */
+public class RetryPolicyTest {
+
+    private final RetryPolicy mPolicy = new RetryPolicy(5, 500, 16000);
+
+    @Test
+    public void transientResponses() {
+        assertTrue(mPolicy.isRetryable(new HttpResponseException(408, "Request Timeout")));
+        assertTrue(mPolicy.isRetryable(new HttpResponseException(429, "Too Many Requests")));
+        assertTrue(mPolicy.isRetryable(new HttpResponseException(500, "Internal Server Error")));
+        assertTrue(mPolicy.isRetryable(new HttpResponseException(503, "Service Unavailable")));
+    }
+
+    @Test
+    public void permanentResponses() {
+        assertFalse(mPolicy.isRetryable(new HttpResponseException(400, "Bad Request")));
+        assertFalse(mPolicy.isRetryable(new HttpResponseException(403, "Forbidden")));
+        assertFalse(mPolicy.isRetryable(new HttpResponseException(404, "Not Found")));
+        assertFalse(mPolicy.isRetryable(new HttpResponseException(416, "Range Not Satisfiable")));
+    }
+
+    @Test
+    public void otherErrors() {
+        assertTrue(mPolicy.isRetryable(new SocketTimeoutException()));
+        assertTrue(mPolicy.isRetryable(new IOException("Connection reset")));
+        assertFalse(mPolicy.isRetryable(new ContentChangedException("ETag changed")));
+        assertFalse(mPolicy.isRetryable(new IllegalStateException()));
+    }
+
+    @Test
+    public void exponentialDelay() {
+        long[] expected = {500, 1000, 2000, 4000, 8000, 16000, 16000, 16000, };
+        for (int i = 0; i < expected.length; i++) {
+            for (int j = 0; j < 100; j++) {
+                // 实际等待时间在基础时间的一半到基础时间之间
+                long delay = mPolicy.getDelay(i + 1);
+                assertTrue(delay + " for retry " + (i + 1), delay >= expected[i] / 2 && delay <= expected[i]);
+            }
+        }
+    }
+
+    @Test
+    public void constructorBounds() {
+        RetryPolicy policy = new RetryPolicy(-1, 0, 0);
+        assertEquals(0, policy.getMaxRetries());
+        assertTrue(policy.getDelay(1) <= 1);
+        assertTrue(new RetryPolicy(3, 1000, 10).getDelay(5) <= 1000);
+    }
+}
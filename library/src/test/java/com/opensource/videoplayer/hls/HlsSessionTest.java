@@ -0,0 +1,249 @@
+/*
+ * Copyright (C) 2016. The Android Open Source Project.
+ *
+ *          yinglovezhuzhu@gmail.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *           http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.opensource.videoplayer.hls;
+
+import com.opensource.videoplayer.benchmark.OriginServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * HlsSession通过{@link OriginServer}下载的测试：分片内容、预先下载的范围、本地播放列表中码率变化处的#EXT-X-DISCONTINUITY<br>
+ * 分片很小，不会产生带宽估计值，码率控制器一直使用开始的码率
+ * Created by yinglovezhuzhu@gmail.com on 2017/2/24.
+ */
+public class HlsSessionTest {
+
+    private static final long TIMEOUT = 10 * 1000;
+
+    private static final String BASE_URL = "http://127.0.0.1/hls/";
+
+    private static final int SEGMENT_COUNT = 4;
+
+    private static final int SEGMENT_SIZE = 1024 * 4;
+
+    private OriginServer mServer;
+    private File mCacheRoot;
+    private final List<HlsSession> mSessions = new ArrayList<HlsSession>();
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = new OriginServer();
+        mServer.start();
+        mCacheRoot = File.createTempFile("hls", ".cache");
+        mCacheRoot.delete();
+        mCacheRoot.mkdirs();
+        addVariant("a", 1);
+        addVariant("b", 2);
+    }
+
+    @After
+    public void tearDown() {
+        for (HlsSession session : mSessions) {
+            session.stop();
+        }
+        mServer.stop();
+        delete(mCacheRoot);
+    }
+
+    @Test
+    public void singleVariant() throws Exception {
+        HlsSession session = startSession(mServer.getUrl("/a/playlist.m3u8"), SEGMENT_COUNT);
+        assertNotNull(session.waitForPlaylist(TIMEOUT));
+        for (int i = 0; i < SEGMENT_COUNT; i++) {
+            assertArrayEquals(segmentData(1, i), readFile(session.waitForFile(i + ".ts", TIMEOUT)));
+        }
+        // 不能切换码率，只保留源播放列表中的#EXT-X-DISCONTINUITY
+        assertEquals(localPlaylist(2), session.buildLocalPlaylist(BASE_URL));
+    }
+
+    @Test
+    public void prefetchWindow() throws Exception {
+        HlsSession session = startSession(mServer.getUrl("/a/playlist.m3u8"), 2);
+        // 从分片0开始预先下载2个分片：播放列表和分片0、1
+        assertNotNull(session.waitForFile("0.ts", TIMEOUT));
+        assertRequestCount(1 + 2);
+        // 跳到最后一个分片，范围在播放列表结束的位置截止，跳过的分片2不下载
+        assertNotNull(session.waitForFile("3.ts", TIMEOUT));
+        assertRequestCount(1 + 3);
+        // 回到开始，范围内的分片都已经缓存，不再下载
+        assertNotNull(session.waitForFile("0.ts", TIMEOUT));
+        assertRequestCount(1 + 3);
+    }
+
+    @Test
+    public void discontinuityOnVariantChange() throws Exception {
+        String masterUrl = mServer.getUrl("/master.m3u8");
+        // 第一次播放只有码率a，缓存分片0
+        mServer.addFile("/master.m3u8", masterPlaylist("a"));
+        HlsSession session = startSession(masterUrl, 1);
+        assertNotNull(session.waitForFile("0.ts", TIMEOUT));
+        session.stop();
+        // 第二次播放只有码率b，缓存分片1和2（开始时预先下载的分片0也在码率b的目录中）
+        mServer.addFile("/master.m3u8", masterPlaylist("b"));
+        session = startSession(masterUrl, 1);
+        assertNotNull(session.waitForFile("0.ts", TIMEOUT));
+        assertNotNull(session.waitForFile("1.ts", TIMEOUT));
+        assertNotNull(session.waitForFile("2.ts", TIMEOUT));
+        session.stop();
+
+        // 两个码率都可以使用，时间线是码率a：分片0来自a，1和2来自b，分片3下载时才选择码率
+        mServer.addFile("/master.m3u8", masterPlaylist("a", "b"));
+        session = startSession(masterUrl, 1);
+        assertNotNull(session.waitForPlaylist(TIMEOUT));
+        String expected = localPlaylist(1, 2);
+        // 码率b的播放列表在后台读取，读取完成后才能使用其中缓存的分片
+        String playlist = session.buildLocalPlaylist(BASE_URL);
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (!expected.equals(playlist) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+            playlist = session.buildLocalPlaylist(BASE_URL);
+        }
+        assertEquals(expected, playlist);
+
+        assertArrayEquals(segmentData(1, 0), readFile(session.waitForFile("0.ts", TIMEOUT)));
+        assertArrayEquals(segmentData(2, 1), readFile(session.waitForFile("1.ts", TIMEOUT)));
+        assertArrayEquals(segmentData(2, 2), readFile(session.waitForFile("2.ts", TIMEOUT)));
+        // 没有带宽估计值，保持当前码率a，下载之后分片3也是已知的码率变化
+        assertArrayEquals(segmentData(1, 3), readFile(session.waitForFile("3.ts", TIMEOUT)));
+        assertEquals(localPlaylist(1, 2, 3), session.buildLocalPlaylist(BASE_URL));
+    }
+
+    @Test
+    public void noDiscontinuityBeforeUnknownVariant() throws Exception {
+        mServer.addFile("/master.m3u8", masterPlaylist("a", "b"));
+        mServer.setLatency(500);
+        HlsSession session = startSession(mServer.getUrl("/master.m3u8"), 1);
+        assertNotNull(session.waitForPlaylist(TIMEOUT));
+        // 还没有缓存任何分片，只保留源播放列表中的#EXT-X-DISCONTINUITY
+        assertEquals(localPlaylist(2), session.buildLocalPlaylist(BASE_URL));
+        mServer.setLatency(0);
+        for (int i = 0; i < SEGMENT_COUNT; i++) {
+            assertArrayEquals(segmentData(1, i), readFile(session.waitForFile(i + ".ts", TIMEOUT)));
+        }
+        // 都来自码率a
+        assertEquals(localPlaylist(2), session.buildLocalPlaylist(BASE_URL));
+    }
+
+    /**
+     * 等待源站收到指定数量的请求，然后确认一段时间内没有更多的请求
+     */
+    private void assertRequestCount(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (mServer.getRequestCount() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        Thread.sleep(200);
+        assertEquals(count, mServer.getRequestCount());
+    }
+
+    private HlsSession startSession(String url, int lookAhead) {
+        // 没有Context，下载历史记录失败不影响会话
+        HlsSession session = new HlsSession(null, url, mCacheRoot, lookAhead, 2);
+        mSessions.add(session);
+        session.start();
+        return session;
+    }
+
+    /**
+     * 添加一个码率的媒体播放列表和分片，分片2之前有#EXT-X-DISCONTINUITY
+     */
+    private void addVariant(String name, int seed) throws IOException {
+        StringBuilder builder = new StringBuilder("#EXTM3U\n#EXT-X-VERSION:3\n#EXT-X-TARGETDURATION:4\n");
+        for (int i = 0; i < SEGMENT_COUNT; i++) {
+            if (i == 2) {
+                builder.append("#EXT-X-DISCONTINUITY\n");
+            }
+            builder.append("#EXTINF:4.0,\n").append("seg").append(i).append(".ts\n");
+            mServer.addFile("/" + name + "/seg" + i + ".ts", segmentData(seed, i));
+        }
+        builder.append("#EXT-X-ENDLIST\n");
+        mServer.addFile("/" + name + "/playlist.m3u8", builder.toString().getBytes("UTF-8"));
+    }
+
+    private static byte[] masterPlaylist(String... variants) throws IOException {
+        StringBuilder builder = new StringBuilder("#EXTM3U\n");
+        for (int i = 0; i < variants.length; i++) {
+            builder.append("#EXT-X-STREAM-INF:BANDWIDTH=").append((i + 1) * 800000)
+                    .append(",CODECS=\"avc1.4d401f,mp4a.40.2\"\n").append(variants[i]).append("/playlist.m3u8\n");
+        }
+        return builder.toString().getBytes("UTF-8");
+    }
+
+    private static byte[] segmentData(int seed, int index) {
+        return OriginServer.generate(SEGMENT_SIZE, seed * 100 + index);
+    }
+
+    /**
+     * 期望的本地播放列表
+     * @param discontinuities 前面有#EXT-X-DISCONTINUITY的分片序号
+     */
+    private static String localPlaylist(int... discontinuities) {
+        StringBuilder builder = new StringBuilder("#EXTM3U\n#EXT-X-VERSION:3\n#EXT-X-TARGETDURATION:4\n"
+                + "#EXT-X-MEDIA-SEQUENCE:0\n#EXT-X-PLAYLIST-TYPE:VOD\n");
+        for (int i = 0; i < SEGMENT_COUNT; i++) {
+            for (int discontinuity : discontinuities) {
+                if (discontinuity == i) {
+                    builder.append("#EXT-X-DISCONTINUITY\n");
+                }
+            }
+            builder.append(String.format(Locale.US, "#EXTINF:%.3f,\n", 4.0)).append(BASE_URL).append(i).append(".ts\n");
+        }
+        return builder.append("#EXT-X-ENDLIST\n").toString();
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        assertNotNull(file);
+        InputStream in = new FileInputStream(file);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[1024 * 8];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (null != children) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2016. The Android Open Source Project.
+ *
+ *          yinglovezhuzhu@gmail.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *           http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.opensource.videoplayer.metrics;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * PlaybackSession记录起播时间、卡顿、数据量和JSON记录的测试，使用手动推进的时钟
+ * Created by yinglovezhuzhu@gmail.com on 2017/2/24.
+ */
+public class PlaybackSessionTest {
+
+    private final ManualClock mClock = new ManualClock();
+
+    @Test
+    public void startupTimes() {
+        PlaybackSession session = new PlaybackSession("http://a/v.mp4", mClock);
+        assertEquals(PlaybackSession.NOT_SET, session.getFirstFrameTime());
+        mClock.advance(300);
+        session.onNetworkBytes(1000);
+        mClock.advance(600);
+        session.onPrepared();
+        mClock.advance(100);
+        session.onFrameRendered();
+        mClock.advance(100);
+        session.onPrepared();
+        session.onFrameRendered();
+        assertEquals(300, session.getFirstByteTime());
+        assertEquals(900, session.getPreparedTime());
+        assertEquals(1000, session.getFirstFrameTime());
+    }
+
+    @Test
+    public void rebuffers() {
+        PlaybackSession session = new PlaybackSession("http://a/v.mp4", mClock);
+        session.onFrameRendered();
+        mClock.advance(1000);
+        session.onRebufferStart();
+        mClock.advance(500);
+        // 已经在卡顿中的不重复记录
+        session.onRebufferStart();
+        mClock.advance(1500);
+        session.onFrameRendered();
+        mClock.advance(1000);
+        session.onRebufferStart();
+        mClock.advance(400);
+        // 没有结束的卡顿记到结束时间
+        assertTrue(session.finish(false, 0));
+        assertEquals(2, session.getRebufferCount());
+        assertEquals(2400, session.getRebufferDuration());
+        assertEquals(1000, session.getRebuffers().get(0)[0]);
+        assertEquals(2000, session.getRebuffers().get(0)[1]);
+        assertEquals(4400, session.getEndTime());
+    }
+
+    @Test
+    public void cacheAndNetworkBytes() {
+        PlaybackSession session = new PlaybackSession("http://a/v.mp4", mClock);
+        // 第一次进度是已经缓存的数据
+        session.onDownloadProgress(4000, 10000);
+        mClock.advance(100);
+        session.onDownloadProgress(5000, 10000);
+        mClock.advance(1000);
+        session.onDownloadProgress(6000, 10000);
+        session.onDownloadRestarted();
+        session.onDownloadProgress(2000, 20000);
+        assertEquals(6000, session.getCacheBytes());
+        assertEquals(2000, session.getNetworkBytes());
+        // 2000字节在1000毫秒内下载
+        assertEquals(16000, session.getThroughput());
+    }
+
+    @Test
+    public void finishedSessionDoesNotChange() {
+        PlaybackSession session = new PlaybackSession("http://a/v.mp4", mClock);
+        mClock.advance(100);
+        assertTrue(session.finish(true, 2000000));
+        assertFalse(session.finish(false, 0));
+        session.onNetworkBytes(100);
+        session.onFrameRendered();
+        session.onRebufferStart();
+        assertTrue(session.isCompleted());
+        assertEquals(0, session.getNetworkBytes());
+        assertEquals(PlaybackSession.NOT_SET, session.getFirstFrameTime());
+        assertEquals(0, session.getRebufferCount());
+    }
+
+    @Test
+    public void record() {
+        PlaybackSession session = new PlaybackSession("http://a/\"v\".mp4", mClock);
+        session.setHls(true);
+        mClock.advance(50);
+        session.onFrameRendered();
+        mClock.advance(100);
+        session.onRebufferStart();
+        mClock.advance(20);
+        session.onFrameRendered();
+        mClock.advance(30);
+        session.finish(true, 1000);
+        String record = session.toRecord();
+        assertTrue(record, record.startsWith("{\"v\":1,\"url\":\"http://a/\\\"v\\\".mp4\",\"start\":"));
+        assertTrue(record, record.endsWith(",\"hls\":1,\"firstByte\":-1,\"prepared\":-1,\"firstFrame\":50,"
+                + "\"end\":200,\"completed\":1,\"rebufferCount\":1,\"rebufferMs\":20,\"rebuffers\":[[150,20]],"
+                + "\"cacheBytes\":0,\"networkBytes\":0,\"throughput\":0,\"estimate\":1000}"));
+    }
+
+    /**
+     * 手动推进的时钟
+     */
+    private static class ManualClock implements PlaybackSession.Clock {
+
+        private long mTime = 100000;
+
+        @Override
+        public long elapsedRealtime() {
+            return mTime;
+        }
+
+        private void advance(long millis) {
+            mTime += millis;
+        }
+    }
+}
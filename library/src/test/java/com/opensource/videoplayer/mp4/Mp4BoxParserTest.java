@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2016. The Android Open Source Project.
+ *
+ *          yinglovezhuzhu@gmail.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *           http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.opensource.videoplayer.mp4;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Mp4BoxParser单元测试
+ * Created by yinglovezhuzhu@gmail.com on 2017/2/24.
+ */
+public class Mp4BoxParserTest {
+
+    @Test
+    public void parseBoxHeader() {
+        byte[] data = Mp4Fixtures.box("free", new byte[24]);
+        Mp4Box box = Mp4BoxParser.parseBoxHeader(data, 0, data.length, 100, 200);
+        assertEquals("free", box.getType());
+        assertEquals(100, box.getOffset());
+        assertEquals(32, box.getSize());
+        assertEquals(8, box.getHeaderSize());
+        assertEquals(132, box.getEnd());
+    }
+
+    @Test
+    public void parseLargeSizeHeader() {
+        long size = 5L * 1024 * 1024 * 1024;
+        byte[] data = Mp4Fixtures.largeBoxHeader("mdat", size);
+        Mp4Box box = Mp4BoxParser.parseBoxHeader(data, 0, data.length, 0, size);
+        assertEquals("mdat", box.getType());
+        assertEquals(size, box.getSize());
+        assertEquals(16, box.getHeaderSize());
+        // 64位长度的头部不完整
+        assertNull(Mp4BoxParser.parseBoxHeader(data, 0, 12, 0, size));
+    }
+
+    @Test
+    public void parseZeroSizeExtendsToParentEnd() {
+        byte[] data = Mp4Fixtures.concat(Mp4Fixtures.int32(0), Mp4Fixtures.ascii("mdat"));
+        Mp4Box box = Mp4BoxParser.parseBoxHeader(data, 0, data.length, 40, 1000);
+        assertEquals(960, box.getSize());
+    }
+
+    @Test
+    public void rejectInvalidHeaders() {
+        // 长度小于头部
+        byte[] data = Mp4Fixtures.concat(Mp4Fixtures.int32(4), Mp4Fixtures.ascii("free"));
+        assertNull(Mp4BoxParser.parseBoxHeader(data, 0, data.length, 0, 100));
+        // 超出父box
+        data = Mp4Fixtures.concat(Mp4Fixtures.int32(200), Mp4Fixtures.ascii("free"));
+        assertNull(Mp4BoxParser.parseBoxHeader(data, 0, data.length, 0, 100));
+        // 类型不是可显示字符
+        data = Mp4Fixtures.concat(Mp4Fixtures.int32(8), new byte[] {0, 1, 2, 3, });
+        assertNull(Mp4BoxParser.parseBoxHeader(data, 0, data.length, 0, 100));
+        // 数据不足8个字节
+        assertNull(Mp4BoxParser.parseBoxHeader(new byte[4], 0, 4, 0, 100));
+    }
+
+    @Test
+    public void findMoovInFaststartFile() throws Exception {
+        byte[] file = Mp4Fixtures.faststart();
+        Mp4Fixtures.ByteArrayReader reader = new Mp4Fixtures.ByteArrayReader(file);
+        Mp4Box moov = Mp4BoxParser.findTopLevelBox(reader, file.length, "moov");
+        assertNotNull(moov);
+        assertEquals(Mp4Fixtures.ftyp().length, moov.getOffset());
+        assertEquals(2, reader.readCount);
+    }
+
+    @Test
+    public void findMoovAfterMdat() throws Exception {
+        byte[] file = Mp4Fixtures.nonFaststart();
+        Mp4Fixtures.ByteArrayReader reader = new Mp4Fixtures.ByteArrayReader(file);
+        Mp4Box moov = Mp4BoxParser.findTopLevelBox(reader, file.length, "moov");
+        assertNotNull(moov);
+        assertEquals(file.length, moov.getEnd());
+        Mp4Box mdat = Mp4BoxParser.findTopLevelBox(reader, file.length, "mdat");
+        assertEquals(mdat.getEnd(), moov.getOffset());
+        // 只读取box头部，不读取mdat的数据
+        assertTrue(reader.maxReadLength <= 16);
+    }
+
+    @Test
+    public void findMoovAfterLargeSizeMdat() throws Exception {
+        byte[] ftyp = Mp4Fixtures.ftyp();
+        long mdatSize = 5L * 1024 * 1024 * 1024;
+        byte[] moov = Mp4Fixtures.moov(ftyp.length + 16);
+        long moovOffset = ftyp.length + mdatSize;
+        Mp4Fixtures.SparseReader reader = new Mp4Fixtures.SparseReader()
+                .put(0, ftyp)
+                .put(ftyp.length, Mp4Fixtures.largeBoxHeader("mdat", mdatSize))
+                .put(moovOffset, moov);
+        Mp4Box box = Mp4BoxParser.findTopLevelBox(reader, moovOffset + moov.length, "moov");
+        assertNotNull(box);
+        assertEquals(moovOffset, box.getOffset());
+        assertEquals(moov.length, box.getSize());
+    }
+
+    @Test
+    public void notMp4File() throws Exception {
+        byte[] file = Mp4Fixtures.concat(Mp4Fixtures.box("free", new byte[8]), Mp4Fixtures.moov(0));
+        assertNull(Mp4BoxParser.findTopLevelBox(new Mp4Fixtures.ByteArrayReader(file), file.length, "moov"));
+        byte[] text = Mp4Fixtures.ascii("<html><body>404</body></html>");
+        assertNull(Mp4BoxParser.findTopLevelBox(new Mp4Fixtures.ByteArrayReader(text), text.length, "moov"));
+    }
+
+    @Test
+    public void moovMissing() throws Exception {
+        byte[] file = Mp4Fixtures.concat(Mp4Fixtures.ftyp(), Mp4Fixtures.mdat(new byte[64]));
+        assertNull(Mp4BoxParser.findTopLevelBox(new Mp4Fixtures.ByteArrayReader(file), file.length, "moov"));
+    }
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright (C) 2016. The Android Open Source Project.
+ *
+ *          yinglovezhuzhu@gmail.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *           http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.opensource.videoplayer.mp4;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * 测试用的MP4文件数据：一个视频轨道，10个采样，每个采样100字节、100毫秒，第1和第6个采样是关键帧，
+ * 每5个采样一个chunk；可以生成moov在mdat之前（faststart）或者之后的文件
+ * Created by yinglovezhuzhu@gmail.com on 2017/2/24.
+ */
+final class Mp4Fixtures {
+
+    static final int SAMPLE_COUNT = 10;
+    static final int SAMPLE_SIZE = 100;
+    static final int SAMPLE_DURATION_MS = 100;
+    static final int SAMPLES_PER_CHUNK = 5;
+
+    private Mp4Fixtures() {
+
+    }
+
+    /**
+     * moov在mdat之前的文件
+     */
+    static byte[] faststart() {
+        byte[] ftyp = ftyp();
+        int moovSize = moov(0).length;
+        long mdatData = ftyp.length + moovSize + 8;
+        return concat(ftyp, moov(mdatData), mdat(sampleData()));
+    }
+
+    /**
+     * moov在mdat之后的文件
+     */
+    static byte[] nonFaststart() {
+        byte[] ftyp = ftyp();
+        long mdatData = ftyp.length + 8;
+        return concat(ftyp, mdat(sampleData()), moov(mdatData));
+    }
+
+    /**
+     * 采样数据在文件中的开始位置
+     * @param file {@link #faststart()}或者{@link #nonFaststart()}的数据
+     */
+    static long mdatDataOffset(byte[] file) {
+        for (int offset = 0; offset + 8 <= file.length; ) {
+            Mp4Box box = Mp4BoxParser.parseBoxHeader(file, offset, file.length, offset, file.length);
+            if ("mdat".equals(box.getType())) {
+                return box.getOffset() + box.getHeaderSize();
+            }
+            offset = (int) box.getEnd();
+        }
+        return -1;
+    }
+
+    static byte[] ftyp() {
+        return box("ftyp", ascii("isom"), int32(512), ascii("isomiso2avc1mp41"));
+    }
+
+    static byte[] mdat(byte[] data) {
+        return box("mdat", data);
+    }
+
+    /**
+     * moov box
+     * @param dataOffset 第一个采样在文件中的位置
+     */
+    static byte[] moov(long dataOffset) {
+        return moovWithStbl(stbl(dataOffset));
+    }
+
+    /**
+     * 使用指定stbl的moov box，用于构造损坏的采样表
+     */
+    static byte[] moovWithStbl(byte[] stbl) {
+        return box("moov", box("mvhd", new byte[100]), trak(stbl));
+    }
+
+    static byte[] trak(byte[] stbl) {
+        byte[] mdhd = fullBox("mdhd", 0, int32(0), int32(0), int32(1000), int32(SAMPLE_COUNT * SAMPLE_DURATION_MS),
+                int32(0));
+        byte[] hdlr = fullBox("hdlr", 0, int32(0), ascii("vide"), new byte[12], ascii("video\0"));
+        return box("trak", box("mdia", mdhd, hdlr, box("minf", stbl)));
+    }
+
+    static byte[] stbl(long dataOffset) {
+        return box("stbl", stts(), stss(), stsc(), stsz(), stco(dataOffset));
+    }
+
+    static byte[] stts() {
+        return fullBox("stts", 0, int32(1), int32(SAMPLE_COUNT), int32(SAMPLE_DURATION_MS));
+    }
+
+    static byte[] stss() {
+        return fullBox("stss", 0, int32(2), int32(1), int32(6));
+    }
+
+    static byte[] stsc() {
+        return fullBox("stsc", 0, int32(1), int32(1), int32(SAMPLES_PER_CHUNK), int32(1));
+    }
+
+    static byte[] stco(long dataOffset) {
+        return fullBox("stco", 0, int32(2), int32(dataOffset), int32(dataOffset + SAMPLES_PER_CHUNK * SAMPLE_SIZE));
+    }
+
+    static byte[] stsz() {
+        ByteArrayOutputStream sizes = new ByteArrayOutputStream();
+        write(sizes, int32(0));
+        write(sizes, int32(SAMPLE_COUNT));
+        for (int i = 0; i < SAMPLE_COUNT; i++) {
+            write(sizes, int32(SAMPLE_SIZE));
+        }
+        return fullBox("stsz", 0, sizes.toByteArray());
+    }
+
+    static byte[] sampleData() {
+        byte[] data = new byte[SAMPLE_COUNT * SAMPLE_SIZE];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i / SAMPLE_SIZE);
+        }
+        return data;
+    }
+
+    static byte[] box(String type, byte[]... payloads) {
+        byte[] payload = concat(payloads);
+        return concat(int32(8 + payload.length), ascii(type), payload);
+    }
+
+    /**
+     * 使用64位长度（largesize）的box头部，长度为size，不包含数据
+     */
+    static byte[] largeBoxHeader(String type, long size) {
+        return concat(int32(1), ascii(type), int64(size));
+    }
+
+    static byte[] fullBox(String type, int version, byte[]... payloads) {
+        return box(type, concat(new byte[] {(byte) version, 0, 0, 0, }, concat(payloads)));
+    }
+
+    static byte[] int32(long value) {
+        return new byte[] {(byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value, };
+    }
+
+    static byte[] int64(long value) {
+        return concat(int32(value >>> 32), int32(value));
+    }
+
+    static byte[] ascii(String value) {
+        byte[] data = new byte[value.length()];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) value.charAt(i);
+        }
+        return data;
+    }
+
+    static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            write(out, part);
+        }
+        return out.toByteArray();
+    }
+
+    private static void write(ByteArrayOutputStream out, byte[] data) {
+        out.write(data, 0, data.length);
+    }
+
+    /**
+     * 从内存数据读取，记录读取次数和最大的读取长度
+     */
+    static class ByteArrayReader implements RangeReader {
+
+        private final byte[] mData;
+        int readCount = 0;
+        int maxReadLength = 0;
+
+        ByteArrayReader(byte[] data) {
+            this.mData = data;
+        }
+
+        @Override
+        public byte[] read(long offset, int length) throws IOException {
+            readCount++;
+            maxReadLength = Math.max(maxReadLength, length);
+            int end = (int) Math.min(mData.length, offset + length);
+            byte[] result = new byte[Math.max(0, end - (int) offset)];
+            System.arraycopy(mData, (int) offset, result, 0, result.length);
+            return result;
+        }
+    }
+
+    /**
+     * 稀疏文件，只有指定位置有数据，其他位置都是0，用于模拟超过4GB的文件
+     */
+    static class SparseReader implements RangeReader {
+
+        private final TreeMap<Long, byte[]> mParts = new TreeMap<Long, byte[]>();
+
+        SparseReader put(long offset, byte[] data) {
+            mParts.put(offset, data);
+            return this;
+        }
+
+        @Override
+        public byte[] read(long offset, int length) throws IOException {
+            byte[] result = new byte[length];
+            for (Map.Entry<Long, byte[]> entry : mParts.entrySet()) {
+                byte[] data = entry.getValue();
+                for (int i = 0; i < data.length; i++) {
+                    long position = entry.getKey() + i;
+                    if (position >= offset && position < offset + length) {
+                        result[(int) (position - offset)] = data[i];
+                    }
+                }
+            }
+            return result;
+        }
+    }
+}
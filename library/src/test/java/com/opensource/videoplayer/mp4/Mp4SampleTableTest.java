@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2016. The Android Open Source Project.
+ *
+ *          yinglovezhuzhu@gmail.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *           http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.opensource.videoplayer.mp4;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Mp4SampleTable单元测试
+ * Created by yinglovezhuzhu@gmail.com on 2017/2/24.
+ */
+public class Mp4SampleTableTest {
+
+    @Test
+    public void keyFrameOffsetInFaststartFile() {
+        assertKeyFrameOffsets(Mp4Fixtures.faststart());
+    }
+
+    @Test
+    public void keyFrameOffsetInNonFaststartFile() {
+        assertKeyFrameOffsets(Mp4Fixtures.nonFaststart());
+    }
+
+    @Test
+    public void notMoov() {
+        assertNull(Mp4SampleTable.parse(Mp4Fixtures.ftyp()));
+        // 没有轨道
+        assertNull(Mp4SampleTable.parse(Mp4Fixtures.box("moov", Mp4Fixtures.box("mvhd", new byte[100]))));
+    }
+
+    @Test
+    public void co64ChunkOffsets() {
+        long base = 6L * 1024 * 1024 * 1024;
+        byte[] co64 = Mp4Fixtures.fullBox("co64", 0, Mp4Fixtures.int32(2), Mp4Fixtures.int64(base),
+                Mp4Fixtures.int64(base + 500));
+        Mp4SampleTable table = Mp4SampleTable.parse(Mp4Fixtures.moovWithStbl(Mp4Fixtures.box("stbl",
+                Mp4Fixtures.stts(), Mp4Fixtures.stss(), Mp4Fixtures.stsc(), Mp4Fixtures.stsz(), co64)));
+        assertNotNull(table);
+        assertEquals(base + 500, table.getKeyFrameOffset(900));
+    }
+
+    @Test
+    public void hugeEntryCounts() {
+        // 数量远大于box的长度，不能按这个数量分配数组
+        byte[] stts = Mp4Fixtures.fullBox("stts", 0, Mp4Fixtures.int32(0xFFFFFFFFL), Mp4Fixtures.int32(1),
+                Mp4Fixtures.int32(100));
+        assertCorrupt(stts, Mp4Fixtures.stss(), Mp4Fixtures.stsc(), Mp4Fixtures.stsz(), Mp4Fixtures.stco(0));
+        byte[] stss = Mp4Fixtures.fullBox("stss", 0, Mp4Fixtures.int32(0x80000000L), Mp4Fixtures.int32(1));
+        assertCorrupt(Mp4Fixtures.stts(), stss, Mp4Fixtures.stsc(), Mp4Fixtures.stsz(), Mp4Fixtures.stco(0));
+        byte[] stsc = Mp4Fixtures.fullBox("stsc", 0, Mp4Fixtures.int32(0x7FFFFFFFL));
+        assertCorrupt(Mp4Fixtures.stts(), Mp4Fixtures.stss(), stsc, Mp4Fixtures.stsz(), Mp4Fixtures.stco(0));
+        byte[] stsz = Mp4Fixtures.fullBox("stsz", 0, Mp4Fixtures.int32(0), Mp4Fixtures.int32(0x10000000L));
+        assertCorrupt(Mp4Fixtures.stts(), Mp4Fixtures.stss(), Mp4Fixtures.stsc(), stsz, Mp4Fixtures.stco(0));
+        byte[] stco = Mp4Fixtures.fullBox("stco", 0, Mp4Fixtures.int32(0xFFFFFFF0L), Mp4Fixtures.int32(0));
+        assertCorrupt(Mp4Fixtures.stts(), Mp4Fixtures.stss(), Mp4Fixtures.stsc(), Mp4Fixtures.stsz(), stco);
+        byte[] co64 = Mp4Fixtures.fullBox("co64", 0, Mp4Fixtures.int32(3), Mp4Fixtures.int64(0));
+        assertCorrupt(Mp4Fixtures.stts(), Mp4Fixtures.stss(), Mp4Fixtures.stsc(), Mp4Fixtures.stsz(), co64);
+    }
+
+    @Test
+    public void invalidEntries() {
+        // 关键帧序号从1开始
+        byte[] stss = Mp4Fixtures.fullBox("stss", 0, Mp4Fixtures.int32(1), Mp4Fixtures.int32(0));
+        assertCorrupt(Mp4Fixtures.stts(), stss, Mp4Fixtures.stsc(), Mp4Fixtures.stsz(), Mp4Fixtures.stco(0));
+        // chunk序号必须递增
+        byte[] stsc = Mp4Fixtures.fullBox("stsc", 0, Mp4Fixtures.int32(2),
+                Mp4Fixtures.int32(2), Mp4Fixtures.int32(5), Mp4Fixtures.int32(1),
+                Mp4Fixtures.int32(1), Mp4Fixtures.int32(5), Mp4Fixtures.int32(1));
+        assertCorrupt(Mp4Fixtures.stts(), Mp4Fixtures.stss(), stsc, Mp4Fixtures.stsz(), Mp4Fixtures.stco(0));
+        // 超过int范围的每个chunk的采样数量
+        stsc = Mp4Fixtures.fullBox("stsc", 0, Mp4Fixtures.int32(1),
+                Mp4Fixtures.int32(1), Mp4Fixtures.int32(0x80000000L), Mp4Fixtures.int32(1));
+        assertCorrupt(Mp4Fixtures.stts(), Mp4Fixtures.stss(), stsc, Mp4Fixtures.stsz(), Mp4Fixtures.stco(0));
+    }
+
+    @Test
+    public void truncatedTable() {
+        // 只有version/flags，没有数量
+        byte[] stts = Mp4Fixtures.fullBox("stts", 0);
+        assertCorrupt(stts, Mp4Fixtures.stss(), Mp4Fixtures.stsc(), Mp4Fixtures.stsz(), Mp4Fixtures.stco(0));
+    }
+
+    private static void assertCorrupt(byte[]... stblChildren) {
+        assertNull(Mp4SampleTable.parse(Mp4Fixtures.moovWithStbl(Mp4Fixtures.box("stbl", stblChildren))));
+    }
+
+    private static void assertKeyFrameOffsets(byte[] file) {
+        Mp4Box moov = findMoov(file);
+        Mp4SampleTable table = Mp4SampleTable.parse(Arrays.copyOfRange(file, (int) moov.getOffset(),
+                (int) moov.getEnd()));
+        assertNotNull(table);
+        long base = Mp4Fixtures.mdatDataOffset(file);
+        int keyFrameSize = 5 * Mp4Fixtures.SAMPLE_SIZE; // 第二个关键帧是第6个采样
+        assertEquals(base, table.getKeyFrameOffset(0));
+        assertEquals(base, table.getKeyFrameOffset(300));
+        assertEquals(base + keyFrameSize, table.getKeyFrameOffset(500));
+        assertEquals(base + keyFrameSize, table.getKeyFrameOffset(750));
+        // 超过时长的按最后一个采样处理
+        assertEquals(base + keyFrameSize, table.getKeyFrameOffset(60000));
+    }
+
+    private static Mp4Box findMoov(byte[] file) {
+        try {
+            return Mp4BoxParser.findTopLevelBox(new Mp4Fixtures.ByteArrayReader(file), file.length, "moov");
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
@@ -0,0 +1,243 @@
+/*
+ * Copyright (C) 2016. The Android Open Source Project.
+ *
+ *          yinglovezhuzhu@gmail.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *           http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.opensource.videoplayer.proxy;
+
+import com.opensource.videoplayer.downloader.Downloader;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.URL;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * LocalProxyServer的测试：Range请求头解析，下载器在等待数据的时候停止后请求结束
+ * Created by yinglovezhuzhu@gmail.com on 2017/2/24.
+ */
+public class LocalProxyServerTest {
+
+    private static final int SIZE = 1000;
+
+    private static final int READ_TIMEOUT = 10 * 1000;
+
+    private File mDir;
+    private File mFile;
+    private byte[] mData;
+
+    @Before
+    public void setUp() throws IOException {
+        mDir = File.createTempFile("proxy", ".dir");
+        mDir.delete();
+        mDir.mkdirs();
+        mFile = new File(mDir, "video.mp4");
+        mData = new byte[SIZE];
+        for (int i = 0; i < SIZE; i++) {
+            mData[i] = (byte) i;
+        }
+        FileOutputStream out = new FileOutputStream(mFile);
+        try {
+            out.write(mData);
+        } finally {
+            out.close();
+        }
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+        mDir.delete();
+    }
+
+    @Test
+    public void noRange() {
+        assertArrayEquals(new int[] {0, 999, 0, }, LocalProxyServer.parseRange(null, SIZE));
+        // 不支持的格式按整个文件返回
+        assertArrayEquals(new int[] {0, 999, 0, }, LocalProxyServer.parseRange("items=1-2", SIZE));
+    }
+
+    @Test
+    public void ranges() {
+        assertArrayEquals(new int[] {100, 199, 1, }, LocalProxyServer.parseRange("bytes=100-199", SIZE));
+        assertArrayEquals(new int[] {100, 999, 1, }, LocalProxyServer.parseRange("bytes=100-", SIZE));
+        assertArrayEquals(new int[] {900, 999, 1, }, LocalProxyServer.parseRange("bytes=-100", SIZE));
+        assertArrayEquals(new int[] {100, 999, 1, }, LocalProxyServer.parseRange("bytes=100-5000", SIZE));
+    }
+
+    @Test
+    public void valuesBeyondInt() {
+        // 开始位置超出文件长度，写入响应时返回416
+        assertArrayEquals(new int[] {1000, 999, 1, }, LocalProxyServer.parseRange("bytes=99999999999-", SIZE));
+        assertArrayEquals(new int[] {0, 999, 1, }, LocalProxyServer.parseRange("bytes=0-99999999999", SIZE));
+        assertArrayEquals(new int[] {0, 999, 1, }, LocalProxyServer.parseRange("bytes=-99999999999", SIZE));
+    }
+
+    @Test
+    public void invalidRanges() {
+        assertNull(LocalProxyServer.parseRange("bytes=-", SIZE));
+        assertNull(LocalProxyServer.parseRange("bytes=99999999999999999999999-", SIZE));
+    }
+
+    @Test
+    public void downloaderStopsMidStream() throws Exception {
+        FakeDownloader downloader = new FakeDownloader(mDir, SIZE, 400);
+        String url = LocalProxyServer.getInstance().register(downloader);
+        try {
+            Socket socket = request(url);
+            InputStream in = socket.getInputStream();
+            byte[] header = readHeader(in);
+            assertTrue(new String(header, "UTF-8").startsWith("HTTP/1.1 200"));
+            byte[] body = new byte[400];
+            int count = 0;
+            int read;
+            while (count < body.length && (read = in.read(body, count, body.length - count)) != -1) {
+                count += read;
+            }
+            assertArrayEquals(Arrays.copyOf(mData, 400), body);
+            // 下载器停止后不再等待剩下的数据，连接被关闭
+            long start = System.currentTimeMillis();
+            downloader.stop();
+            assertEquals(0, readAll(in).length);
+            assertTrue(System.currentTimeMillis() - start < READ_TIMEOUT);
+            socket.close();
+        } finally {
+            LocalProxyServer.getInstance().unregister(downloader);
+        }
+    }
+
+    @Test
+    public void downloaderStopsBeforeFileInfo() throws Exception {
+        FakeDownloader downloader = new FakeDownloader(mDir, 0, 0);
+        String url = LocalProxyServer.getInstance().register(downloader);
+        try {
+            Socket socket = request(url);
+            Thread.sleep(300);
+            downloader.stop();
+            // 还没有返回数据，返回503
+            String response = new String(readAll(socket.getInputStream()), "UTF-8");
+            assertTrue(response, response.startsWith("HTTP/1.1 503"));
+            socket.close();
+        } finally {
+            LocalProxyServer.getInstance().unregister(downloader);
+        }
+    }
+
+    private static Socket request(String url) throws IOException {
+        URL address = new URL(url);
+        Socket socket = new Socket(address.getHost(), address.getPort());
+        socket.setSoTimeout(READ_TIMEOUT);
+        OutputStream out = socket.getOutputStream();
+        out.write(("GET " + address.getPath() + " HTTP/1.1\r\nHost: " + address.getHost() + "\r\n\r\n")
+                .getBytes("UTF-8"));
+        out.flush();
+        return socket;
+    }
+
+    /**
+     * 读取响应头，到空行为止
+     */
+    private static byte[] readHeader(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1) {
+            out.write(b);
+            byte[] bytes = out.toByteArray();
+            int length = bytes.length;
+            if (length >= 4 && bytes[length - 4] == '\r' && bytes[length - 3] == '\n'
+                    && bytes[length - 2] == '\r' && bytes[length - 1] == '\n') {
+                break;
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1024];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * 不连接网络的下载器，已经下载的长度由测试控制
+     */
+    private class FakeDownloader extends Downloader {
+        private final int mFileSize;
+        private final int mDownloaded;
+        private volatile boolean mStopped = false;
+
+        FakeDownloader(File dir, int fileSize, int downloaded) {
+            super(null, "http://127.0.0.1/video.mp4", false, dir, "video.mp4");
+            this.mFileSize = fileSize;
+            this.mDownloaded = downloaded;
+        }
+
+        @Override
+        public int getFileSize() {
+            return mFileSize;
+        }
+
+        @Override
+        public File getSavedFile() {
+            return mFileSize > 0 ? mFile : null;
+        }
+
+        @Override
+        public int getAvailableLength(int position) {
+            return Math.max(0, mDownloaded - position);
+        }
+
+        @Override
+        public int waitForData(int position, long timeout) throws InterruptedException {
+            if (getAvailableLength(position) <= 0) {
+                Thread.sleep(Math.min(timeout, 50));
+            }
+            return getAvailableLength(position);
+        }
+
+        @Override
+        public boolean seekTo(int position) {
+            return false;
+        }
+
+        @Override
+        public synchronized void stop() {
+            mStopped = true;
+        }
+
+        @Override
+        public synchronized boolean isStop() {
+            return mStopped;
+        }
+    }
+}